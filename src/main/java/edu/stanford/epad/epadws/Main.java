@@ -118,7 +118,13 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jetty.server.DispatcherType;
@@ -129,8 +135,10 @@ import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.xml.XmlConfiguration;
 import org.springframework.web.context.ContextLoaderListener;
@@ -149,6 +157,7 @@ import edu.stanford.epad.epadws.aim.AIMUtil;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.handlers.admin.ConvertAIM4Handler;
 import edu.stanford.epad.epadws.handlers.admin.CopyAimsToExistHandler;
 import edu.stanford.epad.epadws.handlers.admin.ImageCheckHandler;
@@ -160,7 +169,11 @@ import edu.stanford.epad.epadws.handlers.admin.StatisticsHandler;
 import edu.stanford.epad.epadws.handlers.admin.XNATSyncHandler;
 import edu.stanford.epad.epadws.handlers.aim.AimResourceHandler;
 import edu.stanford.epad.epadws.handlers.coordination.CoordinationHandler;
+import edu.stanford.epad.epadws.handlers.core.AsyncDispatchHandler;
+import edu.stanford.epad.epadws.handlers.core.CompressionHandler;
 import edu.stanford.epad.epadws.handlers.core.EPADHandler;
+import edu.stanford.epad.epadws.handlers.core.RequestContextHandler;
+import edu.stanford.epad.epadws.handlers.dicom.ConditionalResourceHandler;
 import edu.stanford.epad.epadws.handlers.dicom.DownloadHandler;
 import edu.stanford.epad.epadws.handlers.dicom.ResourcesFileHandler;
 import edu.stanford.epad.epadws.handlers.dicom.WadoHandler;
@@ -204,6 +217,8 @@ public class Main
 	
 	public static boolean separateWebServicesApp = true;
 
+	private static ThreadPoolExecutor resourceRequestExec;
+
 	
 	public static void main(String[] args)
 	{
@@ -229,7 +244,7 @@ public class Main
 				log.info("############# Starting ePAD GWT FrontEnd ############");
 				log.info("#####################################################");
 			}
-			server = new Server(epadPort);
+			server = createJettyServer(epadPort);
 			configureJettyServer(server);
 			addHandlers(server);
 			Runtime.getRuntime().addShutdownHook(new ShutdownHookThread());
@@ -258,6 +273,9 @@ public class Main
 				EpadDatabase.getInstance().shutdown();
 				QueueAndWatcherManager.getInstance().shutdown();
 			}
+			HttpClientPool.shutdown();
+			if (resourceRequestExec != null)
+				resourceRequestExec.shutdownNow();
 			try { // Wait just long enough for some messages to be printed out.
 				TimeUnit.MILLISECONDS.sleep(2000);
 			} catch (InterruptedException e) {
@@ -452,6 +470,52 @@ public class Main
 
 	}
 	
+	/**
+	 * Create the server with two bounded thread pools and a tuned connector. Jetty's pool (epad-api) accepts every
+	 * request and serves the API calls and static files. WADO, downloads and the other long-running handlers are
+	 * handed over to the resource pool (epad-resources), see {@link #addLongRunningHandlerAtContextPath}, so large
+	 * transfers cannot take all the API threads.
+	 */
+	private static Server createJettyServer(int port)
+	{
+		Server server = new Server();
+
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setName("epad-api");
+		threadPool.setMinThreads(Integer.parseInt(EPADConfig.getParamValue("ServerMinThreads", "10")));
+		threadPool.setMaxThreads(Integer.parseInt(EPADConfig.getParamValue("ServerMaxThreads", "200")));
+		threadPool.setMaxIdleTimeMs(Integer.parseInt(EPADConfig.getParamValue("ServerThreadIdleTimeout", "60000")));
+		threadPool.setMaxQueued(Integer.parseInt(EPADConfig.getParamValue("ServerMaxQueuedRequests", "1000")));
+		server.setThreadPool(threadPool);
+
+		SelectChannelConnector connector = new SelectChannelConnector();
+		connector.setPort(port);
+		connector.setAcceptors(Integer.parseInt(EPADConfig.getParamValue("ServerAcceptors",
+				String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 4)))));
+		connector.setMaxIdleTime(Integer.parseInt(EPADConfig.getParamValue("ServerIdleTimeout", "200000")));
+		connector.setAcceptQueueSize(Integer.parseInt(EPADConfig.getParamValue("ServerAcceptQueueSize", "0")));
+		connector.setLowResourcesMaxIdleTime(Integer.parseInt(EPADConfig.getParamValue("ServerLowResourcesIdleTimeout", "5000")));
+		server.addConnector(connector);
+
+		int longRunningThreads = Integer.parseInt(EPADConfig.getParamValue("LongRunningRequestThreads", "50"));
+		int longRunningQueue = Integer.parseInt(EPADConfig.getParamValue("LongRunningRequestQueue", "500"));
+		resourceRequestExec = new ThreadPoolExecutor(longRunningThreads, longRunningThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(longRunningQueue), new ThreadFactory() {
+					private final AtomicInteger threadNumber = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable)
+					{
+						return new Thread(runnable, "epad-resources-" + threadNumber.incrementAndGet());
+					}
+				}, new ThreadPoolExecutor.AbortPolicy()); // Turned away with 503 by AsyncDispatchHandler
+		resourceRequestExec.allowCoreThreadTimeOut(true);
+
+		log.info("Jetty configured with " + threadPool.getMaxThreads() + " API threads, " + connector.getAcceptors()
+				+ " acceptors and " + longRunningThreads + " resource threads");
+		return server;
+	}
+
 	private static void configureJettyServer(Server server)
 	{
 		FileInputStream jettyConfigFileStream = null;
@@ -542,7 +606,15 @@ public class Main
 	
 			addHandlerAtContextPath(new EPADSessionHandler(), "/epad/session", handlerList);
 	
-			addHandlerAtContextPath(new EPADHandler(), "/epad/v2", handlerList);
+			// Downloads (format=stream/file/zip) run on the resource pool, everything else on the request thread
+			addHandlerAtContextPath(new AsyncDispatchHandler(new RequestContextHandler(new CompressionHandler(new EPADHandler())),
+					resourceRequestExec, getLongRunningRequestTimeout(), getLongRunningRequestRetryAfter()) {
+				@Override
+				protected boolean isLongRunning(HttpServletRequest httpRequest)
+				{
+					return EPADHandler.isLongRunning(httpRequest);
+				}
+			}, "/epad/v2", handlerList);
 			
 			
 		}
@@ -578,9 +650,9 @@ public class Main
 		addFileServerAtContextPath(EPADConfig.getEPADWebServerResourcesDir(), handlerList, "/epad/resources");
 
 		if (!separateWebServicesApp) {
-			addHandlerAtContextPath(new WadoHandler(), "/epad/wado", handlerList);
+			addLongRunningHandlerAtContextPath(new WadoHandler(), "/epad/wado", handlerList);
 	
-			addHandlerAtContextPath(new AimResourceHandler(), "/epad/aimresource", handlerList);
+			addLongRunningHandlerAtContextPath(new CompressionHandler(new AimResourceHandler()), "/epad/aimresource", handlerList);
 	
 			if (!"true".equalsIgnoreCase(EPADConfig.getParamValue("DISABLE_PLUGINS")))
 			{	
@@ -594,10 +666,10 @@ public class Main
 			addHandlerAtContextPath(new ImageReprocessingHandler(), "/epad/imagereprocess", handlerList);
 			addHandlerAtContextPath(new ConvertAIM4Handler(), "/epad/convertaim4", handlerList);
 			addHandlerAtContextPath(new CopyAimsToExistHandler(), "/epad/copyToExist", handlerList);
-			addHandlerAtContextPath(new XNATSyncHandler(), "/epad/syncxnat", handlerList);
+			addLongRunningHandlerAtContextPath(new XNATSyncHandler(), "/epad/syncxnat", handlerList);
 			addHandlerAtContextPath(new StatisticsHandler(), "/epad/statistics", handlerList);
-			addHandlerAtContextPath(new ResourcesFileHandler(), "/epad/resourcesFile", handlerList);
-			addHandlerAtContextPath(new DownloadHandler(), "/epad/download", handlerList);
+			addLongRunningHandlerAtContextPath(new ResourcesFileHandler(), "/epad/resourcesFile", handlerList);
+			addLongRunningHandlerAtContextPath(new DownloadHandler(), "/epad/download", handlerList);
 			
 			addHandlerAtContextPath(new StatusListenerHandler(), "/epad/statuslistener", handlerList);
 			
@@ -611,13 +683,37 @@ public class Main
 		log.info("Done setting up restapi handlers");
 	}
 
+	/**
+	 * Add a handler that streams large responses or blocks on other servers. Its requests are suspended and run on
+	 * the resource pool instead of holding a Jetty request thread. LongRunningRequestTimeout bounds how long a request
+	 * waits for a resource thread.
+	 */
+	private static void addLongRunningHandlerAtContextPath(Handler handler, String contextPath, List<Handler> handlerList)
+	{
+		addHandlerAtContextPath(new AsyncDispatchHandler(new RequestContextHandler(handler), resourceRequestExec,
+				getLongRunningRequestTimeout(), getLongRunningRequestRetryAfter()), contextPath, handlerList);
+	}
+
+	private static long getLongRunningRequestTimeout()
+	{
+		return Long.parseLong(EPADConfig.getParamValue("LongRunningRequestTimeout", "300000"));
+	}
+
+	/**
+	 * Seconds a client turned away because the resource pool is full is asked to wait.
+	 */
+	private static int getLongRunningRequestRetryAfter()
+	{
+		return Integer.parseInt(EPADConfig.getParamValue("LongRunningRequestRetryAfter", "30"));
+	}
+
 	private static void addHandlerAtContextPath(Handler handler, String contextPath, List<Handler> handlerList)
 	{
 		ContextHandler contextHandler = new ContextHandler(contextPath);
 
 		contextHandler.setResourceBase(".");
 		contextHandler.setClassLoader(Thread.currentThread().getContextClassLoader());
-		contextHandler.setHandler(handler);
+		contextHandler.setHandler(new RequestContextHandler(handler));
 		handlerList.add(contextHandler);
 
 		log.info("Added " + handler.getClass().getName() + " at context " + contextPath);
@@ -691,9 +787,10 @@ public class Main
 		resourceHandler.setResourceBase(baseDirectory);
 
 		HandlerList handlers = new HandlerList();
-		handlers.setHandlers(new Handler[] { resourceHandler, new ResourceFailureLogHandler(), new DefaultHandler() });
+		handlers.setHandlers(new Handler[] { new ConditionalResourceHandler(baseDirectory), resourceHandler,
+				new ResourceFailureLogHandler(), new DefaultHandler() });
 
-		addHandlerAtContextPath(handlers, contextPath, handlerList);
+		addHandlerAtContextPath(new CompressionHandler(handlers), contextPath, handlerList);
 
 		log.info("Added file server for " + baseDirectory + " directory.");
 	}
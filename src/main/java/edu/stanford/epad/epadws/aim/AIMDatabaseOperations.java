@@ -106,6 +106,7 @@ package edu.stanford.epad.epadws.aim;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -127,6 +128,7 @@ import edu.stanford.epad.dtos.internal.XNATSubjectList;
 import edu.stanford.epad.dtos.internal.XNATUserList;
 import edu.stanford.epad.epadws.models.Subject;
 import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.models.dao.Criteria;
 import edu.stanford.epad.epadws.queries.XNATQueries;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
@@ -211,11 +213,20 @@ public class AIMDatabaseOperations {
     	addColumn("SHAREDPROJECTS VARCHAR(2000)");
     	addColumn("NAME VARCHAR(128)");
     	addColumn("AIMCOLOR VARCHAR(64)");
+    	addColumn("IS_DICOMSR TINYINT(1)");
+    	addIndex("annotations_series_ind", "seriesuid");
+    	addIndex("annotations_project_ind", "projectuid");
+    	addIndex("annotations_study_ind", "studyuid");
+    	addIndex("annotations_dsoseries_ind", "dsoseriesuid");
+    	addIndex("annotations_template_ind", "templatecode");
+    	addIndex("annotations_project_patient_ind", "projectuid, patientid, annotationuid");
+    }
+    
+    private void addIndex(String name, String columns) throws SQLException {
     	try {
 	    	this.statement = mySqlConnection.createStatement();
-	        this.statement.executeUpdate("CREATE INDEX annotations_series_ind ON annotations(seriesuid)");
-	        this.statement.executeUpdate("CREATE INDEX annotations_project_ind ON annotations(projectuid)");
-       	} catch (SQLException x) {
+	        this.statement.executeUpdate("CREATE INDEX " + name + " ON " + ANNOTATIONS_TABLE + "(" + columns + ")");
+    	} catch (SQLException x) {
     		if (!x.getMessage().contains("Duplicate"))
     			log.warning("Error adding index", x);
     	} finally {
@@ -1022,6 +1033,68 @@ public class AIMDatabaseOperations {
         log.debug("Number of AIMs found in database:" + aims.size());
 		return aims;
     }
+
+    /**
+     * AIMs matching the criteria, in its order, limited to count rows in the query itself (for keyset paging).
+     */
+    public List<EPADAIM> getAIMs(Criteria criteria, int count) throws SQLException {
+        String sqlSelect = "SELECT UserLoginName, ProjectUID, PatientID, StudyUID, SeriesUID, ImageUID, frameID, AnnotationUID, DSOSeriesUID, DSOFRAMENO, XML, NAME, AIMCOLOR, TEMPLATECODE, is_dicomsr FROM annotations "
+        		+ criteria.toSQL() + " LIMIT ?";
+        log.debug("AIMs select:" + sqlSelect + " " + criteria.getValues());
+       
+        PreparedStatement ps = null;
+		ResultSet rs = null;
+        List<EPADAIM> aims = new ArrayList<EPADAIM>();
+        try
+        {
+        	int row = 1;
+        	ps = mySqlConnection.prepareStatement(sqlSelect);
+        	int index = criteria.bind(ps, 1);
+        	ps.setInt(index, count);
+        	rs = ps.executeQuery();
+			while (rs.next()) {
+				row++;
+				String UserName = rs.getString(1);
+				String ProjectID = rs.getString(2);
+				String PatientID = rs.getString(3);
+				String StudyUID = rs.getString(4);
+				String SeriesUID = rs.getString(5);
+				String ImageUID = rs.getString(6);
+				int FrameID = rs.getInt(7);
+				String AnnotationID = rs.getString(8);
+				String DSOSeriesUID = rs.getString(9);
+				Integer dsoFrameNo = rs.getInt(10);
+				String xml = rs.getString(11);
+				String name = rs.getString(12);
+				String color = rs.getString(13);
+				String template = rs.getString(14);
+				boolean isDicomSR = rs.getBoolean(15);
+				EPADAIM aim = new EPADAIM(AnnotationID, UserName, ProjectID, PatientID, StudyUID, SeriesUID, ImageUID, FrameID, DSOSeriesUID, isDicomSR);
+				aim.xml = xml;
+				aim.name = name;
+				aim.color = color;
+				aim.template = template;
+				if (dsoFrameNo != null)
+					aim.dsoFrameNo = dsoFrameNo;
+				if (aim.color == null || aim.color.trim().length() == 0)
+				{
+					aim.color = defaultColors[(row-1)%defaultColors.length];
+				}
+				else if (aim.color.equals(","))
+				{
+					aim.color = defaultColors[(row-1)%defaultColors.length] + "," + defaultColors[(row+5)%defaultColors.length];
+				}
+				aims.add(aim);
+			}
+        }
+        finally
+        {
+        	if (rs != null) rs.close();
+        	if (ps != null) ps.close();
+        }
+        log.debug("Number of AIMs found in database:" + aims.size());
+		return aims;
+    }
    
     public int getAIMCount(String userName, String projectID, String patientID, String studyUID, String seriesUID, String imageUID, int frameID) throws SQLException {
         String sqlSelect = "SELECT COUNT(*) FROM annotations WHERE 1 = 1";
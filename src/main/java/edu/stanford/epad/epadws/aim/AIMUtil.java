@@ -183,12 +183,12 @@ import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.handlers.core.FrameReference;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
-import edu.stanford.epad.epadws.handlers.event.EventHandler;
 import edu.stanford.epad.epadws.models.NonDicomSeries;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.Subject;
 import edu.stanford.epad.epadws.models.Template;
 import edu.stanford.epad.epadws.plugins.PluginConfig;
+import edu.stanford.epad.epadws.processing.events.EventBroker;
 import edu.stanford.epad.epadws.processing.pipeline.task.PluginStartTask;
 import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
@@ -394,7 +394,7 @@ public class AIMUtil
 			if (eventMaps.size() == 0)
 			{
 				eventMaps = new ArrayList<Map<String, String>>();
-				Map<String, String> eventMap = EventHandler.deletedEvents.get(aimID);
+				Map<String, String> eventMap = EventBroker.getInstance().getLastEvent(aimID);
 				if (eventMap != null)
 					eventMaps.add(eventMap);
 			}
@@ -23,7 +23,6 @@ import com.pixelmed.dicom.AttributeList;
 import com.pixelmed.utils.MessageLogger;
 import com.pixelmed.utils.PrintStreamMessageLogger;
 
-import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
 import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.pixelmed.PixelMedUtils;
 import edu.stanford.epad.common.pixelmed.RealWorldValueMapFileWriter;
@@ -40,6 +39,7 @@ import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.models.Template;
 import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
@@ -199,7 +199,7 @@ public class Aim2DicomSRConverter {
 		try {
 			log.info("Downloading remote DICOM file with image " + imageUID + " for series UID " + seriesUID);
 			File downloadedDICOMFile = File.createTempFile(imageUID, ".tmp");
-			DCM4CHEEUtil.downloadDICOMFileFromWADO(dicomFileDescription, downloadedDICOMFile);
+			HttpClientPool.downloadDICOMFileFromWADO(dicomFileDescription, downloadedDICOMFile);
 			return downloadedDICOMFile;
 		} catch (Exception e) {
 			log.warning("Exception when downloading DICOM file with series UID " + seriesUID + " and image UID "
@@ -512,7 +512,7 @@ public class Aim2DicomSRConverter {
 					Set<String> imageUIDs = Dcm4CheeDatabase.getInstance().getDcm4CheeDatabaseOperations().getImageUIDsForSeries(seriesUID); 
 					
 					File temporaryDICOMFile = File.createTempFile(seedImageUID, ".dcm");
-					int wadoStatusCode = DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID, seedImageUID, temporaryDICOMFile);
+					int wadoStatusCode = HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID, seedImageUID, temporaryDICOMFile);
 					RealWorldValueMapFileWriter rwvmWriter=null;
 					if (wadoStatusCode == HttpServletResponse.SC_OK) {
 						AttributeList imageDICOMAttributes = PixelMedUtils.readDICOMAttributeList(temporaryDICOMFile);
@@ -105,6 +105,7 @@
 package edu.stanford.epad.epadws.controllers;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -145,6 +146,7 @@ import edu.stanford.epad.dtos.EPADTemplateContainerList;
 import edu.stanford.epad.dtos.EPADUserList;
 import edu.stanford.epad.epadws.aim.AIMSearchType;
 import edu.stanford.epad.epadws.aim.AIMUtil;
+import edu.stanford.epad.epadws.controllers.exceptions.InvalidParameterException;
 import edu.stanford.epad.epadws.controllers.exceptions.NotFoundException;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.handlers.core.AIMReference;
@@ -165,6 +167,8 @@ import edu.stanford.epad.epadws.models.FileType;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.ProjectType;
 import edu.stanford.epad.epadws.models.WorkList;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
+import edu.stanford.epad.epadws.processing.pipeline.task.PreviewGeneratorTask;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
@@ -219,6 +223,7 @@ public class ProjectController {
 											@RequestParam(value="sortField", defaultValue = "name") String sortField,
 											@RequestParam(value="annotationCount", defaultValue = "true") boolean annotationCount,
 											@RequestParam(value="annotationCountOnly", defaultValue = "true") boolean annotationCountOnly,
+											@RequestParam(value="pageToken", required = false) String pageToken,
 											HttpServletRequest request, 
 									        HttpServletResponse response) throws Exception {
 		String sessionID = SessionService.getJSessionIDFromRequest(request);
@@ -226,6 +231,14 @@ public class ProjectController {
 		EPADSearchFilter searchFilter = EPADSearchFilterBuilder.build(request);
 		ProjectReference projectReference = new ProjectReference(projectID);
 		EpadOperations epadOperations = DefaultEpadOperations.getInstance();
+		if (pageToken != null)
+		{
+			KeysetPage page = getKeysetPage("subjects/" + projectID + "/" + sortField, pageToken,
+					DefaultEpadProjectOperations.getSubjectKeyColumns(sortField).length, count);
+			EPADSubjectList subjectList = epadOperations.getSubjectDescriptions(projectID, username, sessionID, searchFilter, page, sortField, annotationCount);
+			HandlerUtil.setNextPageToken(response, page);
+			return subjectList;
+		}
 		EPADSubjectList subjectList = epadOperations.getSubjectDescriptions(projectID, username, sessionID, searchFilter, start, count, sortField, annotationCount);
 		return subjectList;
 	}
@@ -250,6 +263,8 @@ public class ProjectController {
 	public EPADStudyList getEPADProjectStudies( 
 											@PathVariable String projectID,
 											@PathVariable String subjectID,
+											@RequestParam(value="count", defaultValue = "0") int count,
+											@RequestParam(value="pageToken", required = false) String pageToken,
 											HttpServletRequest request, 
 									        HttpServletResponse response) throws Exception {
 		String sessionID = SessionService.getJSessionIDFromRequest(request);
@@ -257,6 +272,13 @@ public class ProjectController {
 		EPADSearchFilter searchFilter = EPADSearchFilterBuilder.build(request);
 		SubjectReference subjectReference = new SubjectReference(projectID, subjectID);
 		EpadOperations epadOperations = DefaultEpadOperations.getInstance();
+		if (pageToken != null)
+		{
+			KeysetPage page = getKeysetPage("studies/" + projectID + "/" + subjectID, pageToken, 1, count);
+			EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter, page);
+			HandlerUtil.setNextPageToken(response, page);
+			return studyList;
+		}
 		EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID,
 		searchFilter);
 		return studyList;
@@ -436,11 +458,54 @@ public class ProjectController {
 		return frame;
 	}
 
+	@RequestMapping(value = "/{projectID}/subjects/{subjectID}/studies/{studyUID}/series/{seriesUID}/images/{imageUID}/preview", method = RequestMethod.GET)
+	public void getEPADProjectImagePreview( 
+											@PathVariable String projectID,
+											@PathVariable String subjectID,
+											@PathVariable String studyUID,
+											@PathVariable String seriesUID,
+											@PathVariable String imageUID,
+											HttpServletRequest request, 
+									        HttpServletResponse response) throws Exception {
+		File file = PreviewGeneratorTask.getPreviewFile(studyUID, seriesUID, imageUID);
+		if (!file.exists())
+			throw new NotFoundException("Preview of image " + imageUID + " for Series " + seriesUID + " not found in project " + projectID);
+		HandlerUtil.sendImage(response, new FileInputStream(file), "png");
+	}
+
+	@RequestMapping(value = "/{projectID}/subjects/{subjectID}/studies/{studyUID}/series/{seriesUID}/images/{imageUID}/frames/{frameNo}/render", method = RequestMethod.GET)
+	public void getEPADProjectFrameRendered( 
+											@RequestParam(value="windowCenter", required = false) Double windowCenter,
+											@RequestParam(value="windowWidth", required = false) Double windowWidth,
+											@RequestParam(value="size", defaultValue="0") int size,
+											@RequestParam(value="format", defaultValue="jpeg") String format,
+											@PathVariable String projectID,
+											@PathVariable String subjectID,
+											@PathVariable String studyUID,
+											@PathVariable String seriesUID,
+											@PathVariable String imageUID,
+											@PathVariable Integer frameNo,
+											HttpServletRequest request, 
+									        HttpServletResponse response) throws Exception {
+		format = format.toLowerCase();
+		if (format.equals("jpg"))
+			format = "jpeg";
+		if (!format.equals("jpeg") && !format.equals("png"))
+			throw new InvalidParameterException("Invalid render format " + format + ", use jpeg or png");
+		FrameReference frameReference = new FrameReference(projectID, subjectID, studyUID, seriesUID, imageUID, frameNo);
+		EpadOperations epadOperations = DefaultEpadOperations.getInstance();
+		FileInputStream in = epadOperations.getRenderedFrame(frameReference, windowCenter, windowWidth, size, format);
+		if (in == null)
+			throw new NotFoundException("Pixel values of image " + imageUID + " for Series " + seriesUID + " not found in project " + projectID);
+		HandlerUtil.sendImage(response, in, format);
+	}
+
 	@RequestMapping(value = "/{projectID}/aims/", method = RequestMethod.GET)
 	public void getEPADProjectAims( 
 									@RequestParam(value="start", defaultValue="0") int start,
 									@RequestParam(value="count", defaultValue="5000") int count,
 									@RequestParam(value="format", defaultValue="xml") String format,
+									@RequestParam(value="pageToken", required = false) String pageToken,
 										@PathVariable String projectID,
 											HttpServletRequest request, 
 									        HttpServletResponse response) throws Exception {
@@ -457,6 +522,12 @@ public class ProjectController {
 		EpadOperations epadOperations = DefaultEpadOperations.getInstance();
 		if (aimSearchType != null)
 			aims = epadOperations.getAIMDescriptions(projectID, aimSearchType, searchValue, username, sessionID, start, count);
+		else if (pageToken != null)
+		{
+			KeysetPage page = getKeysetPage("aims/" + projectID, pageToken, 2, count);
+			aims = epadOperations.getProjectAIMDescriptions(projectReference, username, sessionID, page);
+			HandlerUtil.setNextPageToken(response, page);
+		}
 		else
 			aims = epadOperations.getProjectAIMDescriptions(projectReference, username, sessionID);
 		long dbtime = System.currentTimeMillis();
@@ -1950,6 +2021,16 @@ public class ProjectController {
 		epadOperations.deleteFile(username, seriesReference, filename);
 	}			
 	
+	private KeysetPage getKeysetPage(String scope, String pageToken, int keyCount, int count) throws InvalidParameterException
+	{
+		try {
+			return HandlerUtil.getKeysetPage(scope, pageToken, keyCount, count);
+		} catch (IllegalArgumentException x) {
+			throw new InvalidParameterException(x.getMessage());
+		}
+	}
+
+	
 	private int getInt(String value)
 	{
 		try {
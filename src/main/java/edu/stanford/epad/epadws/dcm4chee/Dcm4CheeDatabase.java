@@ -179,6 +179,11 @@ public class Dcm4CheeDatabase
 		return connectionPool.usedConnectionCount();
 	}
 
+	public ConnectionPool getConnectionPool()
+	{
+		return connectionPool;
+	}
+
 	private void initConnectionPool()
 	{
 		try {
@@ -199,7 +204,7 @@ public class Dcm4CheeDatabase
 
 		logger.info("MySql using connection string for DCM4CHEE database: " + dcm4CheeDatabaseURL);
 
-		connectionPool = new ConnectionPool(dcm4CheeDatabaseURL, username, password);
+		connectionPool = new ConnectionPool("dcm4chee", dcm4CheeDatabaseURL, username, password);
 	}
 
 	private void closeConnectionPool()
@@ -146,6 +146,18 @@ public interface Dcm4CheeDatabaseOperations
 
 	public Set<DICOMFileDescription> getDICOMFilesForSeries(String seriesUID);
 
+	/**
+	 * Returns the stored DICOM file of an instance: its absolute path (filepath) and transfer syntax UID
+	 * (file_tsuid), or null if it is not on an online filesystem.
+	 */
+	Map<String, String> getDICOMFile(String imageUID);
+
+	/**
+	 * Returns the stored DICOM file path of every instance in a series that is on an online filesystem, keyed by
+	 * image UID, using a single query.
+	 */
+	Map<String, String> getDICOMFilePaths(String seriesUID);
+
 	List<DCM4CHEEImageDescription> getImageDescriptions(String studyUID, String seriesUID);
 
 	DCM4CHEEImageDescription getImageDescription(ImageReference imageReference);
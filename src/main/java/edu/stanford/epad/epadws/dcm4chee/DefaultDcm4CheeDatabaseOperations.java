@@ -104,6 +104,7 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.dcm4chee;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -126,6 +127,7 @@ import edu.stanford.epad.common.dicom.DCM4CHEEImageDescription;
 import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.dicom.DicomParentCache;
 import edu.stanford.epad.common.dicom.DicomParentType;
+import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.internal.DCM4CHEEStudySearchType;
 import edu.stanford.epad.epadws.epaddb.ConnectionPool;
@@ -597,6 +599,73 @@ public class DefaultDcm4CheeDatabaseOperations implements Dcm4CheeDatabaseOperat
 		return dicomFileDescriptions;
 	}
 
+	@Override
+	public Map<String, String> getDICOMFile(String imageUID)
+	{
+		Map<String, String> dicomFile = null;
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_FILE_FOR_INSTANCE);
+			ps.setString(1, imageUID);
+			if (log.isDebugEnabled())
+				log.debug(ps.toString());
+			rs = ps.executeQuery();
+			if (rs.next()) {
+				dicomFile = new HashMap<>();
+				dicomFile.put("filepath", getArchivePath(rs.getString("dirpath"), rs.getString("filepath")));
+				dicomFile.put("file_tsuid", rs.getString("file_tsuid"));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return dicomFile;
+	}
+
+	@Override
+	public Map<String, String> getDICOMFilePaths(String seriesUID)
+	{
+		Map<String, String> filePaths = new HashMap<>();
+		Connection c = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+
+		try {
+			c = getConnection();
+			ps = c.prepareStatement(Dcm4CheeDatabaseCommands.SELECT_FILE_PATHS_FOR_SERIES);
+			ps.setString(1, seriesUID);
+			if (log.isDebugEnabled())
+				log.debug(ps.toString());
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				String imageUID = rs.getString("sop_iuid");
+				// Newest copy first
+				if (!filePaths.containsKey(imageUID))
+					filePaths.put(imageUID, getArchivePath(rs.getString("dirpath"), rs.getString("filepath")));
+			}
+		} catch (SQLException sqle) {
+			String debugInfo = DatabaseUtils.getDebugData(rs);
+			log.warning("Database operation failed; debugInfo=" + debugInfo, sqle);
+		} finally {
+			close(c, ps, rs);
+		}
+		return filePaths;
+	}
+
+	private String getArchivePath(String dirPath, String relativePath)
+	{
+		if (dirPath != null && new File(dirPath).isAbsolute())
+			return new File(dirPath, relativePath).getAbsolutePath();
+		else
+			return EPADConfig.dcm4cheeDirRoot + relativePath;
+	}
+
 	@Override
 	public List<DCM4CHEEImageDescription> getImageDescriptions(String studyUID, String seriesUID)
 	{
@@ -106,15 +106,34 @@ package edu.stanford.epad.epadws.epaddb;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.epadws.processing.pipeline.threads.ShutdownSignal;
 
 /**
+ * Bounded JDBC connection pool.
+ * <p>
+ * At most {name}PoolMaxSize connections exist at once; a borrower that finds them all in use waits up to
+ * {name}PoolBorrowTimeout ms and then gets an SQLException. Idle connections are kept in a lock-free deque and handed
+ * out most-recently-used first. They are validated by a background thread rather than on every borrow, and closed
+ * when idle for longer than {name}PoolIdleTimeout above the minimum size. Connections held for longer than
+ * {name}PoolLeakThreshold are logged once and give up their place in the pool, so that a leak cannot starve other
+ * borrowers; the connection is closed when it is finally returned. The stack of the code that borrowed it is logged
+ * too when {name}PoolLeakTrace is true (it is captured on every borrow, so it is off by default). Each connection
+ * keeps an LRU cache of up to {name}PoolStatementCacheSize prepared statements (see {@link #prepareStatement}).
+ * Statements executed on pooled connections are timed into {@link QueryStatistics}.
  * 
  * @author amsnyder
  */
@@ -122,64 +141,207 @@ public class ConnectionPool implements Runnable
 {
 	private static final EPADLogger logger = EPADLogger.getInstance();
 
-	private final List<Connection> connectionsAvailable = new ArrayList<Connection>();
-	private final List<Connection> connectionsUsed = new ArrayList<Connection>();
-
+	private final String name;
 	private final String connectionUrl;
 	private final String username;
 	private final String password;
 
-	private int initialConnections = 25;
+	private final int minSize;
+	private final int maxSize;
+	private final long borrowTimeout;
+	private final long idleTimeout;
+	private final long validationInterval;
+	private final long leakThreshold;
+
+	private final Semaphore permits;
+	private final ConcurrentLinkedDeque<IdleConnection> connectionsAvailable = new ConcurrentLinkedDeque<>();
+	private final Map<Connection, Borrow> connectionsUsed = new ConcurrentHashMap<>();
+	private final Set<Connection> connectionsReclaimed = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	private volatile boolean leakTrace = false;
+	private volatile boolean disposed = false;
+
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong connectionsCreated = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+
+	private volatile int statementCacheSize = 50;
+	private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<>();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+
+	public ConnectionPool(String name, String connectionUrl, String username, String password) throws SQLException
+	{
+		this(name, connectionUrl, username, password, Integer.parseInt(EPADConfig.getParamValue(name + "PoolMinSize", "10")),
+				Integer.parseInt(EPADConfig.getParamValue(name + "PoolMaxSize", "50")), Long.parseLong(EPADConfig.getParamValue(
+						name + "PoolBorrowTimeout", "30000")), Long.parseLong(EPADConfig.getParamValue(name + "PoolIdleTimeout",
+						"600000")), Long.parseLong(EPADConfig.getParamValue(name + "PoolValidationInterval", "30000")),
+				Long.parseLong(EPADConfig.getParamValue(name + "PoolLeakThreshold", "300000")));
+		this.statementCacheSize = Integer.parseInt(EPADConfig.getParamValue(name + "PoolStatementCacheSize", "50"));
+		this.leakTrace = "true".equalsIgnoreCase(EPADConfig.getParamValue(name + "PoolLeakTrace", "false"));
+	}
 
-	public ConnectionPool(String connectionUrl, String username, String password) throws SQLException
+	ConnectionPool(String name, String connectionUrl, String username, String password, int minSize, int maxSize,
+			long borrowTimeout, long idleTimeout, long validationInterval, long leakThreshold) throws SQLException
 	{
+		this.name = name;
 		this.connectionUrl = connectionUrl;
 		this.username = username;
 		this.password = password;
+		this.maxSize = maxSize;
+		this.minSize = Math.min(maxSize, minSize);
+		this.borrowTimeout = borrowTimeout;
+		this.idleTimeout = idleTimeout;
+		this.validationInterval = validationInterval;
+		this.leakThreshold = leakThreshold;
+		this.permits = new Semaphore(maxSize, true);
 
-		logger.info("Creating connection pool for URL " + connectionUrl);
+		logger.info("Creating connection pool " + name + " for URL " + connectionUrl + ", size " + minSize + "-" + maxSize);
 
 		try {
 			Class.forName("com.mysql.jdbc.Driver");
-			for (int count = 0; count < initialConnections; count++) {
-				connectionsAvailable.add(createConnection());
-			}
 		} catch (ClassNotFoundException e) {
 			logger.warning(e.toString(), e);
 		}
+		for (int count = 0; count < minSize; count++) {
+			connectionsAvailable.add(new IdleConnection(createConnection()));
+		}
+		Thread maintenanceThread = new Thread(this, "ConnectionPool-" + name);
+		maintenanceThread.setDaemon(true);
+		maintenanceThread.start();
 	}
 
 	private Connection createConnection() throws SQLException
 	{
-		return DriverManager.getConnection(connectionUrl, username, password);
+		Connection connection = DriverManager.getConnection(connectionUrl, username, password);
+		connectionsCreated.incrementAndGet();
+		return TimedConnection.wrap(connection);
 	}
 
-	public synchronized Connection getConnection() throws SQLException
+	public Connection getConnection() throws SQLException
 	{
-		if (connectionsAvailable.size() == 0) {
-			logger.info("Creating new connection, used:" + connectionsUsed.size());
-			Connection connection = createConnection();
-			logger.info("Connection created");
-			connectionsUsed.add(connection);
-			return connection;
-		} else {
-			int size = connectionsAvailable.size();
-			Connection connection = connectionsAvailable.get(size - 1);
-			connectionsAvailable.remove(connection);
-			if (!connection.isValid(1)) {
-				logger.info("Closing invalid/expired connection for URL " + connectionUrl); // TODO Remove this log eventually
-				connection.close();
-				connection = createConnection();
+		if (disposed)
+			throw new SQLException("Connection pool " + name + " has been shut down");
+		long start = System.currentTimeMillis();
+		try {
+			if (!permits.tryAcquire() && !permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("Timed out after " + borrowTimeout + " ms waiting for a connection from pool " + name
+						+ " (" + connectionsUsed.size() + " in use)");
 			}
-			connectionsUsed.add(connection);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a connection from pool " + name);
+		}
+		long waitTime = System.currentTimeMillis() - start;
+		borrows.incrementAndGet();
+		totalWaitTime.addAndGet(waitTime);
+		updateMax(maxWaitTime, waitTime);
+
+		try {
+			Connection connection = null;
+			IdleConnection idleConnection;
+			while (connection == null && (idleConnection = connectionsAvailable.pollFirst()) != null) {
+				connection = idleConnection.connection;
+				// Connections the validator has not seen for a while are checked here rather than risk handing out a dead one
+				if (System.currentTimeMillis() - idleConnection.lastChecked > 2 * validationInterval && !isValid(connection))
+					connection = null;
+			}
+			if (connection == null)
+				connection = createConnection();
+			connectionsUsed.put(connection, new Borrow(leakTrace && leakThreshold > 0));
 			return connection;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public void freeConnection(Connection connection)
+	{
+		if (connection == null)
+			return;
+		if (connectionsReclaimed.remove(connection)) {
+			// Its permit was released when it was reported as leaked
+			logger.info("Closing connection returned to pool " + name + " after it was reclaimed as leaked");
+			closeQuietly(connection);
+			return;
+		}
+		if (connectionsUsed.remove(connection) == null) {
+			logger.warning("Connection returned to pool " + name + " that was not borrowed from it");
+			return;
+		}
+		try {
+			if (disposed || connection.isClosed()) {
+				closeQuietly(connection);
+			} else {
+				if (!connection.getAutoCommit())
+					connection.setAutoCommit(true);
+				connectionsAvailable.offerFirst(new IdleConnection(connection));
+			}
+		} catch (SQLException e) {
+			logger.info("Discarding broken connection from pool " + name + ": " + e.getMessage());
+			closeQuietly(connection);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL from the borrowed connection's statement cache, preparing it on a miss.
+	 * <p>
+	 * The statement belongs to the cache: callers close its result set and must not close the statement itself. It is
+	 * closed along with its connection, or when evicted as the least recently used once the cache is full.
+	 */
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException
+	{
+		if (statementCacheSize <= 0
+				|| (!connectionsUsed.containsKey(connection) && !connectionsReclaimed.contains(connection)))
+			throw new SQLException("Statement caching needs a connection currently borrowed from pool " + name);
+		StatementCache cache = statementCaches.get(connection);
+		if (cache == null) {
+			cache = new StatementCache(statementCacheSize);
+			statementCaches.put(connection, cache);
 		}
+		// Only the borrowing thread uses a connection's cache, so no further locking is needed
+		PreparedStatement ps = cache.get(sql);
+		if (ps != null) {
+			statementCacheHits.incrementAndGet();
+			ps.clearParameters();
+			return ps;
+		}
+		statementCacheMisses.incrementAndGet();
+		ps = connection.prepareStatement(sql);
+		cache.put(sql, ps);
+		return ps;
+	}
+
+	public boolean isStatementCacheEnabled()
+	{
+		return statementCacheSize > 0;
+	}
+
+	public long getStatementCacheHits()
+	{
+		return statementCacheHits.get();
+	}
+
+	public long getStatementCacheMisses()
+	{
+		return statementCacheMisses.get();
 	}
 
-	public synchronized void freeConnection(Connection connection)
+	public int getCachedStatementCount()
 	{
-		connectionsUsed.remove(connection);
-		connectionsAvailable.add(connection);
+		int count = 0;
+		for (StatementCache cache : statementCaches.values())
+			count += cache.size();
+		return count;
 	}
 
 	public int availableConnectionCount()
@@ -192,56 +354,214 @@ public class ConnectionPool implements Runnable
 		return connectionsUsed.size();
 	}
 
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Number of threads currently waiting for a connection.
+	 */
+	public int getWaitingCount()
+	{
+		return permits.getQueueLength();
+	}
+
+	public long getBorrowCount()
+	{
+		return borrows.get();
+	}
+
+	public long getAverageWaitTime()
+	{
+		long count = borrows.get();
+		return count == 0 ? 0 : totalWaitTime.get() / count;
+	}
+
+	public long getMaxWaitTime()
+	{
+		return maxWaitTime.get();
+	}
+
+	public long getTimeoutCount()
+	{
+		return timeouts.get();
+	}
+
+	public long getCreatedCount()
+	{
+		return connectionsCreated.get();
+	}
+
+	public long getLeakCount()
+	{
+		return leaks.get();
+	}
+
 	@Override
 	public void run()
 	{
-		try {
-			ShutdownSignal shutdownSignal = ShutdownSignal.getInstance();
-			while (!shutdownSignal.hasShutdown()) {
-				synchronized (this) {
-					closeExcessConnections();
-				}
-				Thread.sleep(600000);
+		ShutdownSignal shutdownSignal = ShutdownSignal.getInstance();
+		while (!shutdownSignal.hasShutdown() && !disposed) {
+			try {
+				Thread.sleep(validationInterval);
+				checkIdleConnections();
+				checkForLeaks();
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				logger.warning("Error maintaining connection pool " + name, e);
 			}
-		} catch (SQLException sqle) {
-			logger.severe("SQL Exception. Lost the connection pool.", sqle);
-			sqle.printStackTrace();
-		} catch (Exception e) {
-			logger.severe("Lost MySQL connection pool! ", e);
-			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Private method to close excess connections.
-	 * 
-	 * @throws SQLException
+	 * Validates idle connections, closes those idle too long above the minimum size, and tops the pool back up to it.
 	 */
-	private synchronized void closeExcessConnections() throws SQLException
+	private void checkIdleConnections()
+	{
+		long now = System.currentTimeMillis();
+		int count = connectionsAvailable.size();
+		for (int i = 0; i < count; i++) {
+			// Take from the cold end so that borrowers keep getting the recently used connections
+			IdleConnection idleConnection = connectionsAvailable.pollLast();
+			if (idleConnection == null)
+				break;
+			int total = connectionsAvailable.size() + connectionsUsed.size() + 1;
+			if (total > minSize && now - idleConnection.idleSince > idleTimeout) {
+				closeQuietly(idleConnection.connection);
+			} else if (now - idleConnection.lastChecked >= validationInterval && !isValid(idleConnection.connection)) {
+				logger.info("Closing invalid/expired connection in pool " + name);
+			} else {
+				idleConnection.lastChecked = now;
+				connectionsAvailable.offerLast(idleConnection);
+			}
+		}
+		while (!disposed && connectionsAvailable.size() + connectionsUsed.size() < minSize) {
+			try {
+				connectionsAvailable.offerLast(new IdleConnection(createConnection()));
+			} catch (SQLException e) {
+				logger.warning("Could not refill connection pool " + name, e);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reports connections held for longer than the leak threshold and releases their permits. The borrower may still be
+	 * running a long statement, so the connection is left open until it is returned.
+	 */
+	void checkForLeaks()
+	{
+		if (leakThreshold <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Connection, Borrow> entry : connectionsUsed.entrySet()) {
+			Borrow borrow = entry.getValue();
+			if (now - borrow.time <= leakThreshold)
+				continue;
+			Connection connection = entry.getKey();
+			connectionsReclaimed.add(connection);
+			if (!connectionsUsed.remove(connection, borrow)) { // Returned meanwhile
+				connectionsReclaimed.remove(connection);
+				continue;
+			}
+			permits.release();
+			leaks.incrementAndGet();
+			String message = "Connection from pool " + name + " held for " + (now - borrow.time) / 1000
+					+ " seconds by thread " + borrow.threadName + "; possible leak, releasing its place in the pool";
+			if (borrow.stack != null)
+				logger.warning(message + ", borrowed at:", borrow.stack);
+			else
+				logger.warning(message + " (set " + name + "PoolLeakTrace to log where it was borrowed)");
+		}
+	}
+
+	private boolean isValid(Connection connection)
 	{
-		int caSize = connectionsAvailable.size();
-		while (caSize > initialConnections) {
-			Connection connection = connectionsAvailable.get(caSize - 1);
-			connectionsAvailable.remove(connection);
+		try {
+			if (connection.isValid(1))
+				return true;
+		} catch (SQLException e) {
+		}
+		closeQuietly(connection);
+		return false;
+	}
+
+	private void closeQuietly(Connection connection)
+	{
+		statementCaches.remove(connection);
+		try {
 			connection.close();
-			caSize = connectionsAvailable.size();
+		} catch (SQLException e) {
 		}
 	}
 
+	private static void updateMax(AtomicLong max, long value)
+	{
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+			;
+	}
+
 	/**
 	 * Call during shutdown to get rid of all the connections.
 	 */
 	public void dispose()
 	{
-		try {
-			synchronized (this) {
-				logger.info("Shutting down mysql database connection pool. #avail: " + connectionsAvailable.size() + " #used: "
-						+ connectionsUsed.size());
-				initialConnections = 0;
-				closeExcessConnections();
+		logger.info("Shutting down mysql database connection pool " + name + ". #avail: " + connectionsAvailable.size()
+				+ " #used: " + connectionsUsed.size());
+		disposed = true;
+		IdleConnection idleConnection;
+		while ((idleConnection = connectionsAvailable.pollFirst()) != null)
+			closeQuietly(idleConnection.connection);
+	}
+
+	private static class StatementCache extends LinkedHashMap<String, PreparedStatement>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		StatementCache(int maxSize)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+		{
+			if (size() <= maxSize)
+				return false;
+			try {
+				eldest.getValue().close();
+			} catch (SQLException e) {
 			}
-		} catch (SQLException sqle) {
-			logger.severe("Failed to dispose of connections.", sqle);
+			return true;
+		}
+	}
+
+	private static class IdleConnection
+	{
+		final Connection connection;
+		final long idleSince = System.currentTimeMillis();
+		long lastChecked = idleSince;
+
+		IdleConnection(Connection connection)
+		{
+			this.connection = connection;
+		}
+	}
+
+	private static class Borrow
+	{
+		final long time = System.currentTimeMillis();
+		final String threadName = Thread.currentThread().getName();
+		final Throwable stack;
+
+		Borrow(boolean recordStack)
+		{
+			stack = recordStack ? new Throwable("Connection borrowed") : null;
 		}
 	}
-}
\ No newline at end of file
+}
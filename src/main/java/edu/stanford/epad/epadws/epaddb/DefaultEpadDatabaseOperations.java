@@ -105,7 +105,6 @@
 package edu.stanford.epad.epadws.epaddb;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -144,6 +143,10 @@ import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
 import edu.stanford.epad.epadws.models.EpadStatisticsTemplate;
 import edu.stanford.epad.epadws.models.Project;
+import edu.stanford.epad.epadws.models.dao.Criteria;
+import edu.stanford.epad.epadws.models.dao.DAOAccessors;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
+import edu.stanford.epad.epadws.processing.events.EventBroker;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.hakan.aim4api.base.AimException;
 import edu.stanford.hakan.aim4api.base.Enumerations.AimVersion;
@@ -648,6 +651,30 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		return null;
 	}
 
+	@Override
+	public List<EPADAIM> getAIMs(ProjectReference reference, KeysetPage page)
+	{
+		Connection c = null;
+		try {
+			c = getConnection();
+			AIMDatabaseOperations adb = new AIMDatabaseOperations(c, EPADConfig.eXistServerUrl,
+					EPADConfig.aim4Namespace, EPADConfig.eXistCollection, EPADConfig.eXistUsername, EPADConfig.eXistPassword);
+			Criteria criteria = page.apply(Criteria.where("ProjectUID", reference.projectID), "PatientID", "AnnotationUID");
+			List<EPADAIM> aims = adb.getAIMs(criteria, page.getSize());
+			if (aims.size() == page.getSize())
+			{
+				EPADAIM last = aims.get(aims.size() - 1);
+				page.setLast(last.subjectID, last.aimID);
+			}
+			return aims;
+		} catch (SQLException sqle) {
+			log.warning("AIM Database operation failed:", sqle);
+		} finally {
+			close(c);
+		}
+		return new ArrayList<EPADAIM>();
+	}
+
 	@Override
 	public List<EPADAIM> getAIMs(SubjectReference reference)
 	{
@@ -1434,31 +1461,41 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 
 	@Override
 	public void insertEpadFileRow(Map<String, String> row)
+	{
+		try {
+			executeEpadFileInsert(row);
+		} catch (SQLException sqle) {
+			log.warning("Database operation failed", sqle);
+		} catch (Exception e) {
+			log.warning("Database operation (insert epad_file) failed; row=" + row, e);
+		}
+	}
+
+	private void executeEpadFileInsert(Map<String, String> row) throws SQLException
 	{
 		Connection c = null;
 		PreparedStatement ps = null;
 		try {
 			c = getConnection();
 			ps = c.prepareStatement(EpadDatabaseCommands.INSERT_INTO_EPAD_FILES);
-			ps.setInt(1, Integer.parseInt(row.get("instance_fk")));
-			ps.setInt(2, Integer.parseInt(row.get("file_type")));
-			ps.setString(3, row.get("file_path"));
-			ps.setInt(4, Integer.parseInt(row.get("file_size")));
-			int seriesProcessingStatus = getSeriesProcessingStatusCode(row);
-			ps.setInt(5, seriesProcessingStatus);
-			String errMsg = getErrMsg(row);
-			ps.setString(6, errMsg);
-			ps.setString(7, row.get("file_md5"));
+			bindEpadFileRow(ps, row);
 			ps.execute();
-		} catch (SQLException sqle) {
-			log.warning("Database operation failed", sqle);
-		} catch (Exception e) {
-			log.warning("Database operation (insert epad_file) failed; row=" + row, e);
 		} finally {
 			close(c, ps);
 		}
 	}
 
+	private void bindEpadFileRow(PreparedStatement ps, Map<String, String> row) throws SQLException
+	{
+		ps.setInt(1, Integer.parseInt(row.get("instance_fk")));
+		ps.setInt(2, Integer.parseInt(row.get("file_type")));
+		ps.setString(3, row.get("file_path"));
+		ps.setInt(4, Integer.parseInt(row.get("file_size")));
+		ps.setInt(5, getSeriesProcessingStatusCode(row));
+		ps.setString(6, getErrMsg(row));
+		ps.setString(7, row.get("file_md5"));
+	}
+
 	@Override
 	public void updateEpadFileRow(String filePath, PNGFileProcessingStatus pngFileProcessingStatus, long fileSize,
 			String errorMsg)
@@ -1483,6 +1520,54 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 	
+	@Override
+	public List<Map<String, String>> insertEpadFileRows(List<Map<String, String>> rows)
+	{
+		try {
+			executeBatch(EpadDatabaseCommands.INSERT_INTO_EPAD_FILES, rows, false, new BatchBinder<Map<String, String>>() {
+				@Override
+				void bind(PreparedStatement ps, Map<String, String> row) throws SQLException
+				{
+					bindEpadFileRow(ps, row);
+				}
+			});
+			return new ArrayList<Map<String, String>>();
+		} catch (Exception e) {
+			log.warning("Database operation (insert " + rows.size() + " epad_files) failed, retrying row by row", e);
+		}
+		// The batch was rolled back, so one bad row must not cost the others their insert
+		List<Map<String, String>> failedRows = new ArrayList<Map<String, String>>();
+		for (Map<String, String> row : rows) {
+			try {
+				executeEpadFileInsert(row);
+			} catch (Exception e) {
+				log.warning("Database operation (insert epad_file) failed; row=" + row, e);
+				failedRows.add(row);
+			}
+		}
+		return failedRows;
+	}
+
+	@Override
+	public void updateEpadFileRows(List<Map<String, String>> updates)
+	{
+		try {
+			executeBatch(EpadDatabaseCommands.UPDATE_EPAD_FILES_FOR_EXACT_PATH, updates, false,
+					new BatchBinder<Map<String, String>>() {
+						@Override
+						void bind(PreparedStatement ps, Map<String, String> update) throws SQLException
+						{
+							ps.setInt(1, Integer.parseInt(update.get("file_status")));
+							ps.setLong(2, Long.parseLong(getValueOrDefault(update.get("file_size"), "0")));
+							ps.setString(3, getValueOrDefault(update.get("err_msg"), ""));
+							ps.setString(4, update.get("file_path"));
+						}
+					});
+		} catch (Exception e) {
+			log.warning("Database operation (update " + updates.size() + " epad_files) failed", e);
+		}
+	}
+
 	@Override
 	public void insertPixelValues(String filePath, int frameNum, String pixelValues, String imageUID)
 	{
@@ -2164,6 +2249,21 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		} finally {
 			close(c, ps);
 		}
+		Map<String, String> event = new HashMap<String, String>();
+		event.put("event_status", event_status);
+		event.put("aim_uid", aim_uid);
+		event.put("aim_name", aim_name);
+		event.put("patient_id", patient_id);
+		event.put("patient_name", patient_name);
+		event.put("template_id", template_id);
+		event.put("template_name", template_name);
+		event.put("plugin_name", plugin_name);
+		event.put("project_id", projectID);
+		event.put("project_name", projectName);
+		event.put("study_uid", studyUID);
+		event.put("series_uid", seriesUID);
+		event.put("error", String.valueOf(error));
+		EventBroker.getInstance().publish(sessionID, event);
 	}
 
 	// Enter short event
@@ -2194,6 +2294,17 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		} finally {
 			close(c, ps);
 		}
+		Map<String, String> event = new HashMap<String, String>();
+		event.put("event_status", message);
+		event.put("aim_uid", "");
+		event.put("aim_name", "");
+		event.put("patient_id", "");
+		event.put("patient_name", name);
+		event.put("template_id", "");
+		event.put("template_name", "");
+		event.put("plugin_name", target);
+		event.put("error", "false");
+		EventBroker.getInstance().publish(sessionID, event);
 	}
 
 	/**
@@ -2328,32 +2439,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			ps.executeUpdate();
 			rs = ps.getGeneratedKeys();
 			if (rs.next())
-			{
-				String methodName = "set" + columns[0][0].substring(0,1).toUpperCase() + columns[0][0].substring(1);
-				Integer value = rs.getInt(1);
-				try
-				{
-					Method method = dbObject.getClass().getMethod(methodName, new Class[] {int.class});
-					method.invoke(dbObject, new Object[] {value});
-				}
-				catch(NoSuchMethodException ne)
-				{
-					try
-					{
-						Method method = dbObject.getClass().getMethod(methodName, new Class[] {long.class});
-						method.invoke(dbObject, new Object[] {value});
-					}catch(Exception e)
-					{
-						e.printStackTrace();
-						throw new IllegalArgumentException(e.getMessage());
-					}
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-					throw new IllegalArgumentException(e.getMessage());
-				}
-			}
+				DAOAccessors.forClass(dbObject.getClass(), columns).setId(dbObject, rs.getInt(1));
 		}
 		catch (SQLException x)
 		{
@@ -2381,42 +2467,153 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			dbCon = getConnection();
 			//log.debug("Update:" + updateSQL);
 			ps = dbCon.prepareStatement(updateSQL);
-			setSQLValues(dbColumns, ps, dbObject);
-			String methodName = "get" + dbColumns[0][0].substring(0,1).toUpperCase() + dbColumns[0][0].substring(1);
-			try
+			DAOAccessors accessors = DAOAccessors.forClass(dbObject.getClass(), dbColumns);
+			accessors.bind(ps, dbObject);
+			bindKey(ps, dbColumns, accessors, dbObject);
+			if (log.isDebugEnabled())
+				log.debug("update sql:" + ps.toString());
+			ps.executeUpdate();
+			ps.close();
+		}
+		finally
+		{
+			close(dbCon, ps, rs);
+		}
+		return dbObject;
+	}
+
+	@Override
+	public List insertDBObjects(List dbObjects, String dbTable, final String[][] dbColumns) throws Exception
+	{
+		executeBatch(getInsertSQL(dbTable, dbColumns), dbObjects, true, new BatchBinder<Object>() {
+			@Override
+			void bind(PreparedStatement ps, Object dbObject) throws Exception
 			{
-				Method method = dbObject.getClass().getMethod(methodName, (Class[])null);
-				if (dbColumns[0][3].equalsIgnoreCase("Id") && dbColumns[0][1].equalsIgnoreCase("long"))
-				{
-					Long value = (Long) method.invoke(dbObject, (Object[])null);
-					ps.setLong(dbColumns.length, value);					
-				}
-				else if (dbColumns[0][3].equalsIgnoreCase("Id"))
+				DAOAccessors.forClass(dbObject.getClass(), dbColumns).bind(ps, dbObject);
+			}
+
+			@Override
+			void setKey(Object dbObject, int key)
+			{
+				DAOAccessors.forClass(dbObject.getClass(), dbColumns).setId(dbObject, key);
+			}
+		});
+		return dbObjects;
+	}
+
+	@Override
+	public List updateDBObjects(List dbObjects, String dbTable, final String[][] dbColumns) throws Exception
+	{
+		executeBatch(getUpdateSQL(dbTable, dbColumns), dbObjects, false, new BatchBinder<Object>() {
+			@Override
+			void bind(PreparedStatement ps, Object dbObject) throws Exception
+			{
+				DAOAccessors accessors = DAOAccessors.forClass(dbObject.getClass(), dbColumns);
+				accessors.bind(ps, dbObject);
+				bindKey(ps, dbColumns, accessors, dbObject);
+			}
+		});
+		return dbObjects;
+	}
+
+	/**
+	 * Sets the key of the object as the last parameter of an update statement.
+	 */
+	private void bindKey(PreparedStatement ps, String[][] dbColumns, DAOAccessors accessors, Object dbObject)
+			throws SQLException
+	{
+		try
+		{
+			if (dbColumns[0][3].equalsIgnoreCase("Id") && dbColumns[0][1].equalsIgnoreCase("long"))
+			{
+				Long value = (Long) accessors.getId(dbObject);
+				ps.setLong(dbColumns.length, value);					
+			}
+			else if (dbColumns[0][3].equalsIgnoreCase("Id"))
+			{
+				Integer value = (Integer) accessors.getId(dbObject);
+				ps.setInt(dbColumns.length, value);					
+			}
+			else if (dbColumns[0][2].equalsIgnoreCase("String"))
+			{
+				String value = (String) accessors.getId(dbObject);
+				ps.setString(dbColumns.length, value);					
+			}
+		}
+		catch (SQLException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			log.warning("Error setting DB values", e);
+			throw new IllegalArgumentException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Binds and executes one statement per item with addBatch/executeBatch, DatabaseBatchSize items per batch, all
+	 * in a single transaction that is rolled back if any batch fails.
+	 */
+	private <T> void executeBatch(String sql, List<? extends T> items, boolean generatedKeys, BatchBinder<T> binder)
+			throws Exception
+	{
+		if (items.isEmpty())
+			return;
+		int batchSize = Math.max(1, Integer.parseInt(EPADConfig.getParamValue("DatabaseBatchSize", "500")));
+		Connection dbCon = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		boolean committed = false;
+		try
+		{
+			dbCon = getConnection();
+			dbCon.setAutoCommit(false);
+			ps = generatedKeys ? dbCon.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : dbCon.prepareStatement(sql);
+			for (int start = 0; start < items.size(); start += batchSize)
+			{
+				List<? extends T> chunk = items.subList(start, Math.min(start + batchSize, items.size()));
+				for (T item : chunk)
 				{
-					Integer value = (Integer) method.invoke(dbObject, (Object[])null);
-					ps.setInt(dbColumns.length, value);					
+					binder.bind(ps, item);
+					ps.addBatch();
 				}
-				else if (dbColumns[0][2].equalsIgnoreCase("String"))
+				ps.executeBatch();
+				if (generatedKeys)
 				{
-					String value = (String) method.invoke(dbObject, (Object[])null);
-					ps.setString(dbColumns.length, value);					
+					rs = ps.getGeneratedKeys();
+					for (int i = 0; i < chunk.size() && rs.next(); i++)
+						binder.setKey(chunk.get(i), rs.getInt(1));
+					DatabaseUtils.close(rs);
+					rs = null;
 				}
 			}
-			catch (Exception e)
-			{
-				log.warning("Error setting DB values", e);
-				throw new IllegalArgumentException(e.getMessage());
-			}
+			dbCon.commit();
+			committed = true;
 			if (log.isDebugEnabled())
-				log.debug("update sql:" + ps.toString());
-			ps.executeUpdate();
-			ps.close();
+				log.debug("Batch of " + items.size() + " rows:" + sql);
 		}
 		finally
 		{
+			if (dbCon != null && !committed)
+			{
+				try {
+					dbCon.rollback();
+				} catch (SQLException e) {
+					log.warning("Rollback of batch failed", e);
+				}
+			}
 			close(dbCon, ps, rs);
 		}
-		return dbObject;
+	}
+
+	private static abstract class BatchBinder<T>
+	{
+		abstract void bind(PreparedStatement ps, T item) throws Exception;
+
+		void setKey(T item, int key)
+		{
+		}
 	}
 
 	@Override
@@ -2479,11 +2676,13 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 			if (log.isDebugEnabled())
 				log.debug("Query:" + sql);
 			rs = stmt.executeQuery(sql);
+			DAOAccessors accessors = DAOAccessors.forClass(dbClass, dbColumns);
+			int[] columnIndexes = accessors.findColumns(rs);
 			Object data = null;
 			while (rs.next()) 
 			{
 				data = dbClass.newInstance();
-				getSQLValues(dbColumns, rs, data);
+				accessors.read(rs, columnIndexes, data);
 				datas.add(data);
 			}
 			if (log.isDebugEnabled())
@@ -2599,6 +2798,161 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 		}
 	}
 
+	@Override
+	public int deleteDBObjects(String dbTable, Criteria criteria) throws Exception {
+		if (criteria.isEmpty())
+			throw new IllegalArgumentException("Refusing to delete all rows from " + dbTable);
+		PreparedStatement ps = null;
+		Connection dbCon = null;
+		try
+		{
+			String sql = "delete from " + dbTable + " " + criteria.toSQL();
+			if (log.isDebugEnabled())
+				log.debug(sql + " " + criteria.getValues());
+			dbCon = getConnection();
+			ps = prepareCachedStatement(dbCon, sql);
+			criteria.bind(ps, 1);
+			int rows = ps.executeUpdate();
+			if (log.isDebugEnabled())
+				log.debug("" + rows + " rows deleted");
+			return rows;
+		}
+		finally
+		{
+			closeCached(dbCon, ps, null);
+		}
+	}
+
+	@Override
+	public List getDBObjects(Class dbClass, String dbTable, String[][] dbColumns, Criteria criteria, int startRecord, int maxRecords, boolean distinct) throws Exception {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		List datas = new ArrayList();
+		Connection dbCon = null;
+		try
+		{
+			String sql = (distinct ? "SELECT DISTINCT * FROM " : "SELECT * FROM ") + dbTable + " a " + criteria.toSQL();
+			if (maxRecords <= 0)
+				maxRecords = 5000;
+			if (startRecord > 0)
+				sql = sql + " LIMIT ?,?";
+			if (log.isDebugEnabled())
+				log.debug("Query:" + sql + " " + criteria.getValues());
+			dbCon = getConnection();
+			ps = prepareCachedStatement(dbCon, sql);
+			int index = criteria.bind(ps, 1);
+			if (startRecord > 0)
+			{
+				ps.setInt(index++, startRecord-1);
+				ps.setInt(index, maxRecords);
+				ps.setMaxRows(0);
+			}
+			else
+				ps.setMaxRows(maxRecords);
+			rs = ps.executeQuery();
+			DAOAccessors accessors = DAOAccessors.forClass(dbClass, dbColumns);
+			int[] columnIndexes = accessors.findColumns(rs);
+			while (rs.next()) 
+			{
+				Object data = dbClass.newInstance();
+				accessors.read(rs, columnIndexes, data);
+				datas.add(data);
+			}
+			if (log.isDebugEnabled())
+				log.debug("Returned:" + datas.size() + " rows");
+			return datas;
+		}
+		finally
+		{
+			closeCached(dbCon, ps, rs);
+		}
+	}
+
+	@Override
+	public List<Long> getDBIds(String dbTable, Criteria criteria, int startRecord, int maxRecords) throws Exception {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		List<Long> ids = new ArrayList<Long>();
+		Connection dbCon = null;
+		try
+		{
+			String sql = "SELECT id FROM "  + dbTable + " " + criteria.toSQL();
+			if (maxRecords <= 0)
+				maxRecords = 5000;
+			if (startRecord > 0)
+				sql = sql + " LIMIT ?,?";
+			log.debug("Query:" + sql + " " + criteria.getValues());
+			dbCon = getConnection();
+			ps = prepareCachedStatement(dbCon, sql);
+			int index = criteria.bind(ps, 1);
+			if (startRecord > 0)
+			{
+				ps.setInt(index++, startRecord+1);
+				ps.setInt(index, maxRecords);
+				ps.setMaxRows(0);
+			}
+			else
+				ps.setMaxRows(maxRecords);
+			rs = ps.executeQuery();
+			while (rs.next()) 
+				ids.add(rs.getLong(1));
+			log.debug("Returned:" + ids.size() + " rows");
+			return ids;
+		}
+		finally
+		{
+			closeCached(dbCon, ps, rs);
+		}
+	}
+
+	@Override
+	public int getDBCount(String dbTable, Criteria criteria) throws Exception {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		Connection dbCon = null;
+		try
+		{
+			String sql = "SELECT count(*) FROM "  + dbTable + " " + criteria.toSQL();
+			if (log.isDebugEnabled())
+				log.debug("Query:" + sql + " " + criteria.getValues());
+			dbCon = getConnection();
+			ps = prepareCachedStatement(dbCon, sql);
+			criteria.bind(ps, 1);
+			rs = ps.executeQuery();
+			if (rs.next()) 
+			{
+				int count = rs.getInt(1);
+				if (log.isDebugEnabled())
+					log.debug("Returned:" + count + " rows");
+				return count;
+			}
+			else
+				throw new SQLException ("Error retrieve count");
+		}
+		finally
+		{
+			closeCached(dbCon, ps, rs);
+		}
+	}
+
+	/**
+	 * Prepared statement from the connection's statement cache; release with closeCached, which leaves it open.
+	 */
+	private PreparedStatement prepareCachedStatement(Connection dbCon, String sql) throws SQLException
+	{
+		if (connectionPool.isStatementCacheEnabled())
+			return connectionPool.prepareStatement(dbCon, sql);
+		return dbCon.prepareStatement(sql);
+	}
+
+	private void closeCached(Connection c, PreparedStatement ps, ResultSet rs)
+	{
+		DatabaseUtils.close(rs);
+		if (!connectionPool.isStatementCacheEnabled())
+			DatabaseUtils.close(ps);
+		connectionPool.freeConnection(c);
+	}
+
 	private String getInsertSQL(String tableName, String[][]columns)
 	{
 		String insertSQL = "INSERT INTO " + tableName + " (";
@@ -2649,90 +3003,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 	protected void setSQLValues(String[][]columns, PreparedStatement ps, Object data)
 			throws SQLException
 	{
-		int i = 1;
-		int j = 0;
-		try
-		{
-			for (j = 0; j < columns.length; j++)	
-			{
-				if (columns[j][3].equalsIgnoreCase("Id"))
-				{
-					continue;				
-				}
-				String methodName = "get" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
-				if (columns[j][1].equalsIgnoreCase("Boolean"))
-					methodName = "is" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
-				Method method = null;
-				try {
-					method = data.getClass().getMethod(methodName, (Class[])null);
-				} catch (Exception x) {
-					if (methodName.startsWith("is"))
-						method = data.getClass().getMethod("get" + methodName.substring(2), (Class[])null);
-				}
-				if (columns[j][1].equalsIgnoreCase("String"))
-				{
-					String value = (String) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setString(i, value);
-					else
-						ps.setNull(i, java.sql.Types.VARCHAR);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Integer") || columns[j][1].equalsIgnoreCase("int"))
-				{
-					Integer value = (Integer) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setInt(i, value);
-					else
-						ps.setNull(i, java.sql.Types.INTEGER);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Long") || columns[j][1].equalsIgnoreCase("long"))
-				{
-					Long value = (Long) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setLong(i, value);
-					else
-						ps.setNull(i, java.sql.Types.INTEGER);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Double"))
-				{
-					Double value = (Double) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setDouble(i, value);
-					else
-						ps.setNull(i, java.sql.Types.DOUBLE);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Boolean"))
-				{
-					Boolean value = (Boolean) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setBoolean(i, value);
-					else
-						ps.setInt(i, 0);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Timestamp"))
-				{
-					Timestamp value = (Timestamp) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
-					else
-						ps.setNull(i, java.sql.Types.TIMESTAMP);		
-				}
-				else if (columns[j][1].equalsIgnoreCase("Date"))
-				{
-					Date value = (Date) method.invoke(data, (Object[])null);
-					if (value != null)
-						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
-					else
-						ps.setNull(i, java.sql.Types.DATE);		
-				}
-				i++;
-			}
-		}
-		catch (Exception x)
-		{
-			x.printStackTrace();
-			throw new SQLException("Error setting values for " + columns[j][0] + " : " + x.getMessage());
-		}
+		DAOAccessors.forClass(data.getClass(), columns).bind(ps, data);
 	}
 
 	/**
@@ -2745,92 +3016,7 @@ public class DefaultEpadDatabaseOperations implements EpadDatabaseOperations
 	protected void getSQLValues(String[][]columns, ResultSet rs, Object data)
 			throws SQLException
 	{
-		int i = 0;
-		try
-		{
-			for (i = 0; i < columns.length; i++)	
-			{
-				String methodName = "set" + columns[i][0].substring(0,1).toUpperCase() + columns[i][0].substring(1);
-				if (columns[i][1].equals("String"))
-				{
-					String value = rs.getString(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {String.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Integer"))
-				{
-					Integer value = rs.getInt(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Integer.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("int"))
-				{
-					Integer value = rs.getInt(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {int.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Long"))
-				{
-					Long value = rs.getLong(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Long.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("long"))
-				{
-					Long value = rs.getLong(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {long.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Boolean"))
-				{
-					Boolean value = rs.getBoolean(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Boolean.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("boolean"))
-				{
-					Boolean value = rs.getBoolean(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {boolean.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Timestamp"))
-				{
-					Timestamp value = rs.getTimestamp(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {Timestamp.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Date"))
-				{
-					Timestamp stamp = rs.getTimestamp((columns[i][2]));
-					Date value = null;
-					if (stamp != null)
-						value = new Date(stamp.getTime());
-					Method method = data.getClass().getMethod(methodName, new Class[] {Date.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("Double"))
-				{
-					Double value = rs.getDouble(columns[i][2]);
-					if (rs.getObject(columns[i][2]) == null) value = null;
-					Method method = data.getClass().getMethod(methodName, new Class[] {Double.class});
-					method.invoke(data, new Object[] {value});
-				}
-				else if (columns[i][1].equals("double"))
-				{
-					Double value = rs.getDouble(columns[i][2]);
-					Method method = data.getClass().getMethod(methodName, new Class[] {double.class});
-					method.invoke(data, new Object[] {value});
-				}
-			}
-		}
-		catch (Exception x)
-		{
-			x.printStackTrace();
-			throw new SQLException("Error setting values for " + columns[i][0] + ":" + x.getMessage());
-		}
+		DAOAccessors.forClass(data.getClass(), columns).read(rs, data);
 	}
 
 	private List<String> getAllEPadFilePathsWithStatus(PNGFileProcessingStatus pngFileProcessingStatus)
@@ -190,6 +190,11 @@ public class EpadDatabase
 		return connectionPool.usedConnectionCount();
 	}
 
+	public ConnectionPool getConnectionPool()
+	{
+		return connectionPool;
+	}
+
 	private void initConnectionPool()
 	{
 		try {
@@ -210,7 +215,7 @@ public class EpadDatabase
 
 		log.info("MySql using connection string for ePAD database: " + epadDatabaseURL);
 
-		connectionPool = new ConnectionPool(epadDatabaseURL, username, password);
+		connectionPool = new ConnectionPool("epaddb", epadDatabaseURL, username, password);
 	}
 
 	private void closeConnectionPool()
@@ -256,7 +261,7 @@ public class EpadDatabase
 			log.info(sb.toString());
 			DatabaseUtils.close(rs);
 			DatabaseUtils.close(s);
-			DatabaseUtils.close(conn);
+			connectionPool.freeConnection(conn);
 		}
 		if (getDouble(version) == getDouble(requiredVersion))
 		{
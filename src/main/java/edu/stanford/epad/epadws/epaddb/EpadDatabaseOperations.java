@@ -125,6 +125,8 @@ import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
 import edu.stanford.epad.epadws.models.EpadStatisticsTemplate;
+import edu.stanford.epad.epadws.models.dao.Criteria;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 
 /**
  * Defines all operations on ePAD's database
@@ -195,6 +197,19 @@ public interface EpadDatabaseOperations
 
 	void updateEpadFileRow(String filePath, PNGFileProcessingStatus newStatus, long fileSize, String errorMsg);
 
+	/**
+	 * Inserts the rows (same keys as insertEpadFileRow) as JDBC batches in one transaction. If the batch fails the rows
+	 * are retried one at a time.
+	 * 
+	 * @return the rows that could not be inserted
+	 */
+	List<Map<String, String>> insertEpadFileRows(List<Map<String, String>> fileRecords);
+
+	/**
+	 * Applies updates with keys file_path, file_status, file_size and err_msg as JDBC batches in one transaction.
+	 */
+	void updateEpadFileRows(List<Map<String, String>> fileUpdates);
+
 	boolean hasEpadFileRow(String filePath);
 
 	List<String> getAllEPadFilePathsWithErrors();
@@ -221,6 +236,11 @@ public interface EpadDatabaseOperations
 
 	List<EPADAIM> getAIMs(ProjectReference projectReference);
 
+	/**
+	 * One page of a project's AIMs ordered by patient and AIM id; sets the page's next token if it was full.
+	 */
+	List<EPADAIM> getAIMs(ProjectReference projectReference, KeysetPage page);
+
 	List<EPADAIM> getAIMs(SubjectReference subjectReference);
 
 	List<EPADAIM> getAIMs(StudyReference studyReference);
@@ -386,6 +406,20 @@ public interface EpadDatabaseOperations
 	List<Long> getDBIds(String dbTable, String criteria, int startRecords, int maxRecords) throws Exception;
 	int getDBCount(String dbTable, String criteria) throws Exception;	
 	Object retrieveObjectById(Object dbObject, long id, String dbTable, String[][] dbColumns) throws Exception;
+	/*
+	 * Parameterized variants of the above; the SQL text is the same for every call so the prepared statements are
+	 * cached per connection.
+	 */
+	int deleteDBObjects(String dbTable, Criteria criteria) throws Exception;
+	List getDBObjects(Class dbClass, String dbTable, String[][] dbColumns, Criteria criteria, int startRecords, int maxRecords, boolean distinct) throws Exception;
+	List<Long> getDBIds(String dbTable, Criteria criteria, int startRecords, int maxRecords) throws Exception;
+	int getDBCount(String dbTable, Criteria criteria) throws Exception;
+	/*
+	 * Batched variants of insertDBObject/updateDBObject: one transaction, executed in chunks of DatabaseBatchSize rows.
+	 * Inserted objects get their generated ids.
+	 */
+	List insertDBObjects(List dbObjects, String dbTable, String[][] dbColumns) throws Exception;
+	List updateDBObjects(List dbObjects, String dbTable, String[][] dbColumns) throws Exception;
 	/**
 	 * @param script
 	 * @return true on success
@@ -115,6 +115,7 @@ import edu.stanford.epad.common.util.EPADFileUtils;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.PNGFileProcessingStatus;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
+import edu.stanford.epad.epadws.handlers.dicom.PixelValueStore;
 import edu.stanford.epad.epadws.processing.model.PNGGridGenerator;
 
 /**
@@ -136,6 +137,7 @@ public class PNGFilesOperations
 		outputPath.append(EPADConfig.getEPADWebServerPNGDir());
 		outputPath.append("/studies/" + studyUID);
 
+		PixelValueStore.deleteStudy(studyUID);
 		try {
 			File dirToDelete = new File(outputPath.toString());
 			if (dirToDelete.exists()){
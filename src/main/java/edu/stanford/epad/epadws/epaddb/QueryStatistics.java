@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.epaddb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Execution time statistics of the SQL statements run through the connection pools (see {@link TimedConnection}),
+ * aggregated per normalized statement: literals and IN lists are replaced by '?', so every call of a dynamically
+ * built query counts towards the same entry.
+ * <p>
+ * Latencies go into power-of-two microsecond buckets, so percentiles are approximate (within a factor of two) but
+ * recording is lock-free. Statements slower than SlowQueryThreshold ms are logged along with the endpoint whose
+ * request ran them (see {@link #setEndpoint}), or the thread name for background work. At most
+ * QueryStatisticsMaxStatements distinct statements are tracked; any others are counted together.
+ */
+public class QueryStatistics
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final QueryStatistics ourInstance = new QueryStatistics();
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.|'')*'");
+	private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(\\.\\d+)?\\b");
+	private static final Pattern IN_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final int MAX_STATEMENT_LENGTH = 1000;
+	private static final String OTHER_STATEMENTS = "(other statements)";
+	private static final int BUCKETS = 40;
+
+	private static final ThreadLocal<String> endpoint = new ThreadLocal<String>();
+
+	private final boolean enabled = !"false".equalsIgnoreCase(EPADConfig.getParamValue("QueryStatistics", "true"));
+	private final long slowQueryThreshold = Long.parseLong(EPADConfig.getParamValue("SlowQueryThreshold", "2000"));
+	private final int maxStatements = Integer.parseInt(EPADConfig.getParamValue("QueryStatisticsMaxStatements", "1000"));
+	private final ConcurrentHashMap<String, StatementStatistics> statements = new ConcurrentHashMap<String, StatementStatistics>();
+	private final AtomicLong slowQueries = new AtomicLong();
+
+	private QueryStatistics()
+	{
+	}
+
+	public static QueryStatistics getInstance()
+	{
+		return ourInstance;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Names the endpoint served by the current thread, for the slow query log; null clears it.
+	 */
+	public static void setEndpoint(String name)
+	{
+		if (name == null)
+			endpoint.remove();
+		else
+			endpoint.set(name);
+	}
+
+	public static String getEndpoint()
+	{
+		String name = endpoint.get();
+		return name != null ? name : "thread " + Thread.currentThread().getName();
+	}
+
+	/**
+	 * The statement with literal values replaced by '?' and whitespace collapsed.
+	 */
+	public static String normalize(String sql)
+	{
+		String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+		normalized = NUMBER.matcher(normalized).replaceAll("?");
+		normalized = IN_LIST.matcher(normalized).replaceAll("in (?)");
+		normalized = WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+		if (normalized.length() > MAX_STATEMENT_LENGTH)
+			normalized = normalized.substring(0, MAX_STATEMENT_LENGTH) + "...";
+		return normalized;
+	}
+
+	/**
+	 * Entry that the executions of a normalized statement are recorded in.
+	 */
+	StatementStatistics getStatistics(String normalizedSql)
+	{
+		StatementStatistics statistics = statements.get(normalizedSql);
+		if (statistics == null) {
+			if (statements.size() >= maxStatements)
+				normalizedSql = OTHER_STATEMENTS;
+			statistics = new StatementStatistics(normalizedSql);
+			StatementStatistics existing = statements.putIfAbsent(normalizedSql, statistics);
+			if (existing != null)
+				statistics = existing;
+		}
+		return statistics;
+	}
+
+	void recordExecution(StatementStatistics statistics, String sql, long nanos)
+	{
+		statistics.recordExecution(nanos);
+		long millis = nanos / 1000000;
+		if (slowQueryThreshold > 0 && millis >= slowQueryThreshold) {
+			slowQueries.incrementAndGet();
+			log.warning("Slow query, " + millis + " ms from " + getEndpoint() + ": "
+					+ (sql.length() > MAX_STATEMENT_LENGTH ? sql.substring(0, MAX_STATEMENT_LENGTH) + "..." : sql));
+		}
+	}
+
+	public long getSlowQueryCount()
+	{
+		return slowQueries.get();
+	}
+
+	public long getSlowQueryThreshold()
+	{
+		return slowQueryThreshold;
+	}
+
+	/**
+	 * Statistics of the statements that took the most time in total, slowest first.
+	 */
+	public List<StatementStatistics> getTopStatements(int max)
+	{
+		List<StatementStatistics> top = new ArrayList<StatementStatistics>(statements.values());
+		Collections.sort(top, new Comparator<StatementStatistics>() {
+			@Override
+			public int compare(StatementStatistics s1, StatementStatistics s2)
+			{
+				long t1 = s1.getTotalTime(), t2 = s2.getTotalTime();
+				return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+			}
+		});
+		return top.size() > max ? top.subList(0, max) : top;
+	}
+
+	public void reset()
+	{
+		statements.clear();
+		slowQueries.set(0);
+	}
+
+	public static class StatementStatistics
+	{
+		private final String sql;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		// Bucket i counts executions taking less than 2^(i+1) microseconds
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		StatementStatistics(String sql)
+		{
+			this.sql = sql;
+		}
+
+		void recordExecution(long nanos)
+		{
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos))
+				;
+			long micros = Math.max(1, nanos / 1000);
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+		}
+
+		void addRows(long rowCount)
+		{
+			rows.addAndGet(rowCount);
+		}
+
+		public String getSql()
+		{
+			return sql;
+		}
+
+		public long getCount()
+		{
+			return count.get();
+		}
+
+		/**
+		 * Total execution time in ms.
+		 */
+		public long getTotalTime()
+		{
+			return totalNanos.get() / 1000000;
+		}
+
+		public long getMaxTime()
+		{
+			return maxNanos.get() / 1000000;
+		}
+
+		public long getRows()
+		{
+			return rows.get();
+		}
+
+		/**
+		 * Upper bound in ms of the bucket holding the given percentile (0-100) of execution times.
+		 */
+		public double getPercentile(double percentile)
+		{
+			long total = 0;
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0)
+				return 0;
+			long rank = (long)Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min((1L << (i + 1)) / 1000.0, maxNanos.get() / 1000000.0);
+			}
+			return maxNanos.get() / 1000000.0;
+		}
+	}
+}
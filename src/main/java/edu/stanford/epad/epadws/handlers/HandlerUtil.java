@@ -106,6 +106,7 @@ package edu.stanford.epad.epadws.handlers;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -120,6 +121,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -130,20 +132,21 @@ import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Level;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.XML;
 
+import com.google.gson.Gson;
 import com.sun.jersey.api.uri.UriTemplate;
 
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.EPADMessage;
+import edu.stanford.epad.epadws.handlers.core.RouteRegistry;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 import xmlwise.Plist;
 
 /**
@@ -156,6 +159,13 @@ public class HandlerUtil
 {
 	private static final EPADLogger log = EPADLogger.getInstance();
 
+	private static final Gson jsonSerializer = new Gson();
+
+	// Keyset paged listings take the token of the previous page in pageToken ("" for the first page)
+	// and return the token of the next one, if any, in this header
+	public static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
 	public static int infoResponse(int responseCode, String message, PrintWriter responseStream, EPADLogger log)
 	{
 		log.info(message);
@@ -354,11 +364,18 @@ public class HandlerUtil
 			return defaultValue;
 	}
 
+	// Templates that are not route constants, compiled once
+	private static final Map<String, UriTemplate> uriTemplates = new ConcurrentHashMap<String, UriTemplate>();
+
 	public static Map<String, String> getTemplateMap(String template, String path)
 	{
+		RouteRegistry routeRegistry = RouteRegistry.getInstance();
+		if (routeRegistry.isRegistered(template))
+			return routeRegistry.match(path).getParameters(template);
+
 		Map<String, String> map = new HashMap<String, String>();
 
-		UriTemplate uriTemplate = new UriTemplate(template);
+		UriTemplate uriTemplate = getUriTemplate(template);
 		if (uriTemplate.match(path, map)) {
 			return map;
 		} else {
@@ -368,35 +385,73 @@ public class HandlerUtil
 
 	public static boolean matchesTemplate(String template, String path)
 	{
+		RouteRegistry routeRegistry = RouteRegistry.getInstance();
+		if (routeRegistry.isRegistered(template))
+			return routeRegistry.match(path).matches(template);
+
 		Map<String, String> map = new HashMap<String, String>();
 
-		UriTemplate uriTemplate = new UriTemplate(template);
+		UriTemplate uriTemplate = getUriTemplate(template);
 		return uriTemplate.match(path, map);
 	}
 
-	public static int streamGetResponse(String url, OutputStream outputStream, EPADLogger log) throws IOException,
-			HttpException
+	private static UriTemplate getUriTemplate(String template)
 	{
-		HttpClient client = new HttpClient();
-		GetMethod method = new GetMethod(url);
-		int statusCode;
+		UriTemplate uriTemplate = uriTemplates.get(template);
+		if (uriTemplate == null) {
+			uriTemplate = new UriTemplate(template);
+			uriTemplates.put(template, uriTemplate);
+		}
+		return uriTemplate;
+	}
 
+	/**
+	 * Send a rendered frame or preview image (format jpeg or png) and close the stream.
+	 */
+	public static void sendImage(HttpServletResponse httpResponse, FileInputStream in, String format) throws IOException
+	{
 		try {
-			statusCode = client.executeMethod(method);
-			if (statusCode == HttpServletResponse.SC_OK) {
-				InputStream is = method.getResponseBodyAsStream();
-				int read = 0;
-				byte[] bytes = new byte[4096];
-				while ((read = is.read(bytes)) != -1) {
-					outputStream.write(bytes, 0, read);
-				}
-			} else {
-				log.warning("Unexpected response from " + url + ";statusCode=" + statusCode);
-			}
+			httpResponse.setContentType("image/" + format);
+			httpResponse.setContentLength((int)in.getChannel().size());
+			httpResponse.setHeader("Cache-Control", "private, max-age=86400");
+			IOUtils.copy(in, httpResponse.getOutputStream());
 		} finally {
-			method.releaseConnection();
+			IOUtils.closeQuietly(in);
 		}
-		return statusCode;
+	}
+
+	/**
+	 * Page of a keyset paged listing; count 0 is the default page size.
+	 * 
+	 * @throws IllegalArgumentException if the page token is not valid for this listing
+	 */
+	public static KeysetPage getKeysetPage(String scope, String pageToken, int keyCount, int count)
+	{
+		return new KeysetPage(scope, pageToken, keyCount, count > 0 ? count : DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * Must be called before the listing is written, as the header cannot follow a committed response.
+	 */
+	public static void setNextPageToken(HttpServletResponse httpResponse, KeysetPage page)
+	{
+		if (page.getNextToken() != null)
+			httpResponse.setHeader(NEXT_PAGE_TOKEN_HEADER, page.getNextToken());
+	}
+
+	public static int streamGetResponse(String url, OutputStream outputStream, EPADLogger log) throws IOException,
+			HttpException
+	{
+		return HttpClientPool.streamGet(url, outputStream);
+	}
+
+	/**
+	 * Serialize an object straight to the response, element by element, rather than building the whole document as a
+	 * String first. The output is identical to the object's toJSON().
+	 */
+	public static void writeJSON(Object object, PrintWriter responseStream)
+	{
+		jsonSerializer.toJson(object, object.getClass(), responseStream);
 	}
 
 	public static List<File> extractFiles(FileItemIterator fileItemIterator, String prefix, String extension)
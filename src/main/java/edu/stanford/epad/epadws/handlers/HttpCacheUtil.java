@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+/**
+ * Conditional GET (ETag, If-None-Match, If-Modified-Since) and single byte-range support for file responses.
+ * <p>
+ * ETags are strong and are built from the object's identifier (typically its image UID) and the version of the
+ * stored file. Files that are regenerated in place, like rendered PNGs, use a hash of their content as the version
+ * instead, so a re-render with identical output keeps its ETag.
+ */
+public class HttpCacheUtil
+{
+	/**
+	 * Cache-Control for content that never changes for a given URL, such as stored DICOM instances.
+	 */
+	public static final String CACHE_IMMUTABLE = "private, max-age=31536000, immutable";
+
+	/**
+	 * Cache-Control for content that may be regenerated; clients keep it but must revalidate.
+	 */
+	public static final String CACHE_REVALIDATE = "private, no-cache";
+
+	private static final int CONTENT_HASH_CACHE_SIZE = 10000;
+
+	private static final MimeTypes mimeTypes = new MimeTypes();
+
+	// Content hashes keyed by path, modification time and length, so a changed file is hashed again
+	private static final Map<String, String> contentHashes = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+		{
+			return size() > CONTENT_HASH_CACHE_SIZE;
+		}
+	});
+
+	private HttpCacheUtil()
+	{
+	}
+
+	public static String getETag(String id, File file)
+	{
+		return getETag(id, Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()));
+	}
+
+	/**
+	 * ETag from an identifier and a hash of the file's content. Use for files that are rewritten with the same
+	 * content, where the modification time does not tell whether the content changed.
+	 */
+	public static String getContentETag(String id, File file) throws IOException
+	{
+		String key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+		String hash = contentHashes.get(key);
+		if (hash == null) {
+			hash = hashContent(file);
+			contentHashes.put(key, hash);
+		}
+		return getETag(id, hash);
+	}
+
+	public static String getETag(String id, String version)
+	{
+		return "\"" + id.replace('"', '_') + "-" + version + "\"";
+	}
+
+	/**
+	 * Sets the validator headers and checks the request preconditions.
+	 * 
+	 * @return true if a 304 Not Modified status was set and no body should be sent
+	 */
+	public static boolean checkNotModified(HttpServletRequest httpRequest, HttpServletResponse httpResponse,
+			String etag, long lastModified, String cacheControl)
+	{
+		if (etag != null)
+			httpResponse.setHeader("ETag", etag);
+		if (lastModified > 0)
+			httpResponse.setDateHeader("Last-Modified", lastModified);
+		if (cacheControl != null)
+			httpResponse.setHeader("Cache-Control", cacheControl);
+
+		String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			if (etag != null && matchesETag(ifNoneMatch, etag)) {
+				httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+			return false; // If-Modified-Since is ignored when If-None-Match is present
+		}
+		if (lastModified > 0) {
+			long ifModifiedSince = getDateHeader(httpRequest, "If-Modified-Since");
+			if (ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000) {
+				httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Send a file with conditional GET and single byte-range support. Multiple ranges are answered with the whole
+	 * file.
+	 * 
+	 * @return the status code set on the response
+	 */
+	public static int sendFile(HttpServletRequest httpRequest, HttpServletResponse httpResponse, File file, String etag,
+			String cacheControl, String contentType) throws IOException
+	{
+		long lastModified = file.lastModified();
+		if (checkNotModified(httpRequest, httpResponse, etag, lastModified, cacheControl))
+			return HttpServletResponse.SC_NOT_MODIFIED;
+
+		long length = file.length();
+		if (contentType == null) {
+			Buffer mimeType = mimeTypes.getMimeByExtension(file.getName());
+			if (mimeType != null)
+				contentType = mimeType.toString();
+		}
+		if (contentType != null)
+			httpResponse.setContentType(contentType);
+		httpResponse.setHeader("Accept-Ranges", "bytes");
+
+		long start = 0;
+		long end = length - 1;
+		int statusCode = HttpServletResponse.SC_OK;
+		String range = httpRequest.getHeader("Range");
+		if (range != null && isRangeApplicable(httpRequest, etag, lastModified)) {
+			long[] byteRange = parseRange(range, length);
+			if (byteRange == null) {
+				httpResponse.setHeader("Content-Range", "bytes */" + length);
+				httpResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+			}
+			if (byteRange.length == 2) {
+				start = byteRange[0];
+				end = byteRange[1];
+				statusCode = HttpServletResponse.SC_PARTIAL_CONTENT;
+				httpResponse.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		httpResponse.setStatus(statusCode);
+		httpResponse.setHeader("Content-Length", String.valueOf(end - start + 1));
+		if (!"HEAD".equalsIgnoreCase(httpRequest.getMethod()))
+			sendFileContent(file, start, end - start + 1, httpResponse);
+		return statusCode;
+	}
+
+	/**
+	 * Send part of a file as the response body. On Jetty's own output stream the region is memory mapped and handed
+	 * to the connection as the last content, as Jetty's DefaultServlet does with file mapped buffers, so the NIO
+	 * connector writes it to the socket without copying it through the heap. Wrapped streams (e.g. compression) get
+	 * {@link #transferFile}.
+	 */
+	static void sendFileContent(File file, long position, long count, HttpServletResponse httpResponse) throws IOException
+	{
+		OutputStream outputStream = httpResponse.getOutputStream();
+		if (!(outputStream instanceof AbstractHttpConnection.Output) || count <= 0 || count > Integer.MAX_VALUE) {
+			transferFile(file, position, count, outputStream);
+			return;
+		}
+		MappedByteBuffer content;
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			content = fis.getChannel().map(FileChannel.MapMode.READ_ONLY, position, count);
+		} finally {
+			fis.close(); // The mapping stays valid
+		}
+		((AbstractHttpConnection.Output)outputStream).sendContent(new DirectNIOBuffer(content, true));
+	}
+
+	/**
+	 * Copy part of a file to an output stream with FileChannel.transferTo. The servlet stream is not a file channel,
+	 * so the data is still copied through a user-space buffer; this only saves the read loop.
+	 */
+	public static void transferFile(File file, long position, long count, OutputStream outputStream) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fileChannel = fis.getChannel();
+			WritableByteChannel outputChannel = Channels.newChannel(outputStream);
+			long end = position + count;
+			while (position < end) {
+				long transferred = fileChannel.transferTo(position, end - position, outputChannel);
+				if (transferred <= 0)
+					break; // File was truncated while sending
+				position += transferred;
+			}
+			outputStream.flush();
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Parse a Range header against a resource length.
+	 * 
+	 * @return {start, end} for a single satisfiable range, an empty array if the header should be ignored (malformed or
+	 *         multiple ranges), or null if the range cannot be satisfied
+	 */
+	static long[] parseRange(String range, long length)
+	{
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			return new long[0];
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1)
+			return new long[0];
+		try {
+			long start;
+			long end;
+			if (dash == 0) { // Suffix range: last N bytes
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix <= 0 || length == 0)
+					return null;
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				if (end < start)
+					return new long[0];
+				if (start >= length)
+					return null;
+				end = Math.min(end, length - 1);
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private static String hashContent(File file) throws IOException
+	{
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No MD5 digest available", e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return new BigInteger(1, digest.digest()).toString(16);
+	}
+
+	private static boolean isRangeApplicable(HttpServletRequest httpRequest, String etag, long lastModified)
+	{
+		String ifRange = httpRequest.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return etag != null && ifRange.equals(etag);
+		long ifRangeDate = getDateHeader(httpRequest, "If-Range");
+		return ifRangeDate > 0 && lastModified / 1000 == ifRangeDate / 1000;
+	}
+
+	private static boolean matchesETag(String header, String etag)
+	{
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/"))
+				candidate = candidate.substring(2);
+			if (candidate.equals("*") || candidate.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
+	private static long getDateHeader(HttpServletRequest httpRequest, String name)
+	{
+		try {
+			return httpRequest.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+}
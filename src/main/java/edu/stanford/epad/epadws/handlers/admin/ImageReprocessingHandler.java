@@ -116,6 +116,8 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.core.AdmissionController;
+import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.SessionService;
 
 /**
@@ -128,6 +130,7 @@ public class ImageReprocessingHandler extends AbstractHandler
 	private static final String FORBIDDEN = "Forbidden method - only GET supported on reload route";
 	private static final String INTERNAL_ERROR_MESSAGE = "Internal server error on reload route";
 	private static final String INVALID_SESSION_TOKEN_MESSAGE = "Session token is invalid for reload route";
+	private static final String BUSY_MESSAGE = "Server is busy, please retry reload later";
 
 	@Override
 	public void handle(String s, Request request, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
@@ -144,8 +147,21 @@ public class ImageReprocessingHandler extends AbstractHandler
 			if (SessionService.hasValidSessionID(httpRequest)) {
 				String method = httpRequest.getMethod();
 				if ("GET".equalsIgnoreCase(method)) {
-					forceImageReload();
-					statusCode = HttpServletResponse.SC_OK;
+					String username = EPADSessionOperations.getSessionUser(SessionService.getJSessionIDFromRequest(httpRequest));
+					AdmissionController admissionController = AdmissionController.getInstance();
+					AdmissionController.Permit permit = admissionController.acquire(username, AdmissionController.EndpointClass.ADMIN);
+					if (permit == null) {
+						statusCode = HandlerUtil.warningResponse(
+								admissionController.reject(httpResponse, AdmissionController.EndpointClass.ADMIN), BUSY_MESSAGE,
+								responseStream, log);
+					} else {
+						try {
+							forceImageReload();
+						} finally {
+							permit.release();
+						}
+						statusCode = HttpServletResponse.SC_OK;
+					}
 				} else {
 					statusCode = HandlerUtil.warningResponse(HttpServletResponse.SC_FORBIDDEN, FORBIDDEN, responseStream, log);
 				}
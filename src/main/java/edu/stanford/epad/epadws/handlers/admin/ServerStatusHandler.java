@@ -129,8 +129,14 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.TaskStatus;
 import edu.stanford.epad.epadws.EPadWebServerVersion;
 import edu.stanford.epad.epadws.Main;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
+import edu.stanford.epad.epadws.epaddb.ConnectionPool;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.QueryStatistics;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
+import edu.stanford.epad.epadws.handlers.core.AdmissionController;
+import edu.stanford.epad.epadws.handlers.core.CompressionHandler;
 import edu.stanford.epad.epadws.models.EventLog;
 import edu.stanford.epad.epadws.models.Plugin;
 import edu.stanford.epad.epadws.models.User;
@@ -141,6 +147,7 @@ import edu.stanford.epad.epadws.processing.pipeline.watcher.QueueAndWatcherManag
 import edu.stanford.epad.epadws.security.EPADSession;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
+import edu.stanford.epad.epadws.service.EntityCache;
 import edu.stanford.epad.epadws.service.PluginOperations;
 import edu.stanford.epad.epadws.service.SessionService;
 
@@ -237,6 +244,28 @@ public class ServerStatusHandler extends AbstractHandler
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					responseStream.println("<tr><td nowrap><b>Available DB Connections:</b></td><td>" + free + "</td></tr>");
 					responseStream.println("<tr><td><b>Used DB Connections:</b></td><td>" + used + "</td></tr>");
+					printConnectionPool(responseStream, "ePAD DB Pool", EpadDatabase.getInstance().getConnectionPool());
+					printConnectionPool(responseStream, "DCM4CHEE DB Pool", Dcm4CheeDatabase.getInstance().getConnectionPool());
+					responseStream.println("<tr><td colspan=2><hr></td></tr>");
+					responseStream.println("<tr><td nowrap><b>HTTP Client Requests:</b></td><td>" + HttpClientPool.getRequests() + " (" + HttpClientPool.getFailures() + " failed)</td></tr>");
+					responseStream.println("<tr><td nowrap><b>HTTP Client Bytes Transferred:</b></td><td>" + HttpClientPool.getBytesTransferred() + "</td></tr>");
+					responseStream.println("<tr><td nowrap><b>HTTP Client Average Time:</b></td><td>" + HttpClientPool.getAverageRequestTime() + " ms</td></tr>");
+					responseStream.println("<tr><td nowrap><b>HTTP Client Connections:</b></td><td>" + HttpClientPool.getInFlight() + " in use, " + HttpClientPool.getConnectionsInPool() + " pooled</td></tr>");
+					responseStream.println("<tr><td nowrap><b>Compressed Responses:</b></td><td>" + CompressionHandler.getCompressedResponses() + " (" + CompressionHandler.getUncompressedBytes()
+							+ " to " + CompressionHandler.getCompressedBytes() + " bytes, ratio " + new DecimalFormat("0.0").format(CompressionHandler.getCompressionRatio()) + ")</td></tr>");
+					responseStream.println("<tr><td colspan=2><hr></td></tr>");
+					for (EntityCache<?> cache : DefaultEpadProjectOperations.getCaches()) {
+						responseStream.println("<tr><td nowrap><b>" + cache.getName() + " Cache:</b></td><td>" + cache.size() + "/" + cache.getMaxSize() + " entries, "
+								+ cache.getHitRate() + "% hits (" + cache.getHits() + "/" + (cache.getHits() + cache.getMisses()) + "), "
+								+ cache.getEvictions() + " evicted, " + cache.getExpirations() + " expired</td></tr>");
+					}
+					responseStream.println("<tr><td colspan=2><hr></td></tr>");
+					AdmissionController admissionController = AdmissionController.getInstance();
+					for (AdmissionController.EndpointClass endpointClass : AdmissionController.EndpointClass.values()) {
+						responseStream.println("<tr><td nowrap><b>" + endpointClass + " Requests:</b></td><td>" + admissionController.getActive(endpointClass)
+								+ "/" + admissionController.getLimit(endpointClass) + " active, " + admissionController.getWaiting(endpointClass) + " waiting, "
+								+ admissionController.getAdmitted(endpointClass) + " admitted, " + admissionController.getRejected(endpointClass) + " rejected</td></tr>");
+					}
 					responseStream.println("<tr><td colspan=2><hr></td></tr>");
 					long freeHeap = Runtime.getRuntime().freeMemory();
 					long totalHeap = Runtime.getRuntime().totalMemory();
@@ -299,6 +328,7 @@ public class ServerStatusHandler extends AbstractHandler
 					if (empty)
 						responseStream.println("<tr><td colspan=100% align=center>No background processes running</td></tr>");
 					responseStream.println("</tbody></table>");
+					printQueryStatistics(responseStream);
 					if (free > 0 && !debug)
 						recentLogs = DefaultEpadProjectOperations.getInstance().getUseEventLogs("%", 0, 100);
 				}  else {
@@ -385,6 +415,36 @@ public class ServerStatusHandler extends AbstractHandler
 		}
 	}
 
+	private void printQueryStatistics(PrintWriter responseStream)
+	{
+		QueryStatistics queryStatistics = QueryStatistics.getInstance();
+		if (!queryStatistics.isEnabled())
+			return;
+		DecimalFormat msFormat = new DecimalFormat("0.###");
+		responseStream.println("<br><b>Database Statements: </b>" + queryStatistics.getSlowQueryCount() + " slower than " + queryStatistics.getSlowQueryThreshold() + " ms");
+		responseStream.println("<br><table border=1 cellpadding=2 ><tbody><tr style='font-weight: bold;'><td align=center>Statement</td><td align=center>Count</td><td align=center>Total ms</td><td align=center>p50 ms</td><td align=center>p95 ms</td><td align=center>p99 ms</td><td align=center>Max ms</td><td align=center>Rows</td></tr>");
+		for (QueryStatistics.StatementStatistics statement : queryStatistics.getTopStatements(25))
+		{
+			responseStream.println("<tr><td><div style='max-width:500px; max-height:40px; overflow-y:auto'>" + statement.getSql().replace("&", "&amp;").replace("<", "&lt;") + "</div></td><td>" + statement.getCount()
+					+ "</td><td>" + statement.getTotalTime() + "</td><td>" + msFormat.format(statement.getPercentile(50)) + "</td><td>" + msFormat.format(statement.getPercentile(95))
+					+ "</td><td>" + msFormat.format(statement.getPercentile(99)) + "</td><td>" + statement.getMaxTime() + "</td><td>" + statement.getRows() + "</td></tr>");
+		}
+		responseStream.println("</tbody></table>");
+	}
+
+	private void printConnectionPool(PrintWriter responseStream, String title, ConnectionPool pool)
+	{
+		if (pool == null)
+			return;
+		responseStream.println("<tr><td nowrap><b>" + title + ":</b></td><td>" + pool.usedConnectionCount() + "/" + pool.getMaxSize() + " in use, "
+				+ pool.availableConnectionCount() + " idle, " + pool.getWaitingCount() + " waiting</td></tr>");
+		responseStream.println("<tr><td nowrap><b>" + title + " Wait:</b></td><td>" + pool.getAverageWaitTime() + " ms avg, " + pool.getMaxWaitTime() + " ms max, "
+				+ pool.getTimeoutCount() + " timeouts, " + pool.getLeakCount() + " leaks</td></tr>");
+		if (pool.isStatementCacheEnabled())
+			responseStream.println("<tr><td nowrap><b>" + title + " Statements:</b></td><td>" + pool.getCachedStatementCount() + " cached, "
+					+ pool.getStatementCacheHits() + " hits, " + pool.getStatementCacheMisses() + " misses</td></tr>");
+	}
+
 	private String getPipelineActivityLevel()
 	{
 		PipelineFactory pipelineFactory = PipelineFactory.getInstance();
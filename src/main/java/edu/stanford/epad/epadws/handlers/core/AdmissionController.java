@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.core;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Limits how many requests of each kind run at once, both in total and for a single user.
+ * <p>
+ * Requests are grouped into endpoint classes so that a user running a project download or a remote PACS retrieve cannot
+ * take the database connections and worker threads needed by interactive reading. A request that finds its class (or
+ * its user) at the limit waits in a fair FIFO queue until its deadline; when the queue is full or the deadline passes
+ * the caller is expected to answer 429 with a Retry-After header.
+ * <p>
+ * Limits are read from the configuration file, e.g. AdmissionDownloadLimit, AdmissionDownloadUserLimit,
+ * AdmissionDownloadQueueSize, AdmissionDownloadQueueTimeout (ms) and AdmissionDownloadRetryAfter (seconds).
+ * <p>
+ * Queued requests wait on a Jetty request thread, so the default limits and queue sizes are shares of the Jetty pool
+ * (ServerMaxThreads). Together they leave part of the pool free for requests outside admission control, such as
+ * static resources and status checks.
+ */
+public class AdmissionController
+{
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	public enum EndpointClass
+	{
+		METADATA("Metadata", 0.25, 20, 0.10, 10000, 1), IMAGES("Images", 0.25, 30, 0.10, 10000, 1), DOWNLOAD("Download",
+				0.02, 1, 0.03, 2000, 30), ADMIN("Admin", 0.05, 2, 0.05, 5000, 5);
+
+		private final String configName;
+		private final double defaultLimitShare;
+		private final int defaultUserLimit;
+		private final double defaultQueueShare;
+		private final long defaultQueueTimeout;
+		private final int defaultRetryAfter;
+
+		private EndpointClass(String configName, double defaultLimitShare, int defaultUserLimit,
+				double defaultQueueShare, long defaultQueueTimeout, int defaultRetryAfter)
+		{
+			this.configName = configName;
+			this.defaultLimitShare = defaultLimitShare;
+			this.defaultUserLimit = defaultUserLimit;
+			this.defaultQueueShare = defaultQueueShare;
+			this.defaultQueueTimeout = defaultQueueTimeout;
+			this.defaultRetryAfter = defaultRetryAfter;
+		}
+	}
+
+	// Routes that serve image or frame data; their sub-resources (AIMs, metadata) are METADATA requests
+	private static final Set<String> IMAGE_ROUTES = new HashSet<String>(Arrays.asList(ProjectsRouteTemplates.IMAGE_LIST,
+			ProjectsRouteTemplates.IMAGEFILE_LIST, ProjectsRouteTemplates.IMAGE, ProjectsRouteTemplates.FRAME_LIST,
+			ProjectsRouteTemplates.FRAME, ProjectsRouteTemplates.FRAME_PIXELS, ProjectsRouteTemplates.FRAME_STATISTICS,
+			ProjectsRouteTemplates.FRAME_RENDER, ProjectsRouteTemplates.IMAGE_PREVIEW, StudiesRouteTemplates.IMAGE_LIST, StudiesRouteTemplates.IMAGE,
+			StudiesRouteTemplates.FRAME_LIST, StudiesRouteTemplates.FRAME));
+
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final AdmissionController ourInstance = new AdmissionController();
+
+	private final boolean enabled = !"false".equalsIgnoreCase(EPADConfig.getParamValue("AdmissionControl", "true"));
+	private final ClassLimits[] classLimits = new ClassLimits[EndpointClass.values().length];
+	private final ConcurrentHashMap<String, UserPermits> userPermits = new ConcurrentHashMap<>();
+
+	public static AdmissionController getInstance()
+	{
+		return ourInstance;
+	}
+
+	private AdmissionController()
+	{
+		int serverThreads = Integer.parseInt(EPADConfig.getParamValue("ServerMaxThreads", "200"));
+		int admittedThreads = 0;
+		for (EndpointClass endpointClass : EndpointClass.values()) {
+			ClassLimits limits = ClassLimits.fromConfig(endpointClass, serverThreads);
+			classLimits[endpointClass.ordinal()] = limits;
+			admittedThreads += limits.limit + limits.queueSize;
+		}
+		if (enabled && admittedThreads >= serverThreads)
+			log.warning("Admission limits and queues allow " + admittedThreads + " requests, more than the "
+					+ serverThreads + " server threads; queued requests can take every thread");
+	}
+
+	/**
+	 * An admission controller applying the same limits to every endpoint class, for tests.
+	 */
+	AdmissionController(int limit, int userLimit, int queueSize, long queueTimeout, int retryAfter)
+	{
+		for (EndpointClass endpointClass : EndpointClass.values())
+			classLimits[endpointClass.ordinal()] = new ClassLimits(endpointClass, limit, userLimit, queueSize, queueTimeout,
+					retryAfter);
+	}
+
+	/**
+	 * Works out the endpoint class of an /epad/v2 request from its method, path and format parameter.
+	 */
+	public static EndpointClass classify(String method, String pathInfo, String format)
+	{
+		if (pathInfo == null)
+			return EndpointClass.METADATA;
+		if ("stream".equals(format) || "file".equals(format) || "zip".equals(format)
+				|| pathInfo.startsWith(PACSRouteTemplates.TCIA_TRANSFER)
+				|| (pathInfo.startsWith(PACSRouteTemplates.PACS_LIST) && !"GET".equalsIgnoreCase(method))
+				|| EPADHandler.isFileDownload(pathInfo))
+			return EndpointClass.DOWNLOAD;
+		if (pathInfo.startsWith(UsersRouteTemplates.USER_LIST) || pathInfo.startsWith(EPADsRouteTemplates.EPAD_LIST)
+				|| pathInfo.startsWith(PACSRouteTemplates.PACS_LIST) || pathInfo.startsWith(PluginRouteTemplates.PLUGIN_LIST))
+			return EndpointClass.ADMIN;
+		for (String template : RouteRegistry.getInstance().match(pathInfo).getTemplates()) {
+			if (IMAGE_ROUTES.contains(template))
+				return EndpointClass.IMAGES;
+		}
+		return EndpointClass.METADATA;
+	}
+
+	/**
+	 * Waits for a slot for this user and endpoint class, up to the class's queue timeout.
+	 * 
+	 * @return a permit that must be released when the request completes, or null if the request should be rejected
+	 */
+	public Permit acquire(String username, EndpointClass endpointClass)
+	{
+		ClassLimits limits = classLimits[endpointClass.ordinal()];
+		if (!enabled)
+			return new Permit(this, limits, null);
+
+		if (limits.waiting.incrementAndGet() > limits.queueSize) {
+			limits.waiting.decrementAndGet();
+			limits.rejected.incrementAndGet();
+			log.warning("Admission queue full for " + endpointClass + ", rejecting request from " + username);
+			return null;
+		}
+		long deadline = System.currentTimeMillis() + limits.queueTimeout;
+		UserPermits user = getUserPermits(username, limits);
+		boolean userAcquired = false;
+		try {
+			userAcquired = user.semaphore.tryAcquire(limits.queueTimeout, TimeUnit.MILLISECONDS);
+			if (userAcquired) {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				if (limits.permits.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+					limits.admitted.incrementAndGet();
+					return new Permit(this, limits, user);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			limits.waiting.decrementAndGet();
+		}
+		if (userAcquired)
+			user.semaphore.release();
+		releaseUserPermits(user);
+		limits.rejected.incrementAndGet();
+		log.warning("Admission deadline passed for " + endpointClass + ", rejecting request from " + username);
+		return null;
+	}
+
+	/**
+	 * Seconds a rejected client should wait before retrying a request of this class.
+	 */
+	public int getRetryAfter(EndpointClass endpointClass)
+	{
+		return classLimits[endpointClass.ordinal()].retryAfter;
+	}
+
+	/**
+	 * Sets Retry-After on the response to a request that was not admitted and returns the status to send, 429.
+	 */
+	public int reject(HttpServletResponse httpResponse, EndpointClass endpointClass)
+	{
+		httpResponse.setHeader("Retry-After", String.valueOf(getRetryAfter(endpointClass)));
+		return SC_TOO_MANY_REQUESTS;
+	}
+
+	public int getActive(EndpointClass endpointClass)
+	{
+		ClassLimits limits = classLimits[endpointClass.ordinal()];
+		return limits.limit - limits.permits.availablePermits();
+	}
+
+	public int getWaiting(EndpointClass endpointClass)
+	{
+		return classLimits[endpointClass.ordinal()].waiting.get();
+	}
+
+	public long getAdmitted(EndpointClass endpointClass)
+	{
+		return classLimits[endpointClass.ordinal()].admitted.get();
+	}
+
+	public long getRejected(EndpointClass endpointClass)
+	{
+		return classLimits[endpointClass.ordinal()].rejected.get();
+	}
+
+	public int getLimit(EndpointClass endpointClass)
+	{
+		return classLimits[endpointClass.ordinal()].limit;
+	}
+
+	/**
+	 * Number of users with a request running or waiting, over all endpoint classes.
+	 */
+	int getUserCount()
+	{
+		return userPermits.size();
+	}
+
+	/**
+	 * Returns the permits of a user, registered as in use until {@link #releaseUserPermits}.
+	 */
+	private UserPermits getUserPermits(String username, ClassLimits limits)
+	{
+		String key = limits.endpointClass.ordinal() + ":" + username;
+		while (true) {
+			UserPermits user = userPermits.get(key);
+			if (user == null) {
+				UserPermits newUser = new UserPermits(key, limits.userLimit);
+				user = userPermits.putIfAbsent(key, newUser);
+				if (user == null)
+					user = newUser;
+			}
+			int users = user.users.get();
+			if (users < 0) // Being evicted
+				userPermits.remove(key, user);
+			else if (user.users.compareAndSet(users, users + 1))
+				return user;
+		}
+	}
+
+	/**
+	 * Evicts the user's permits once no request of theirs is running or waiting, so that the map only holds active
+	 * users (anonymous requests are keyed by remote address).
+	 */
+	private void releaseUserPermits(UserPermits user)
+	{
+		if (user.users.decrementAndGet() == 0 && user.users.compareAndSet(0, -1))
+			userPermits.remove(user.key, user);
+	}
+
+	/**
+	 * A slot held by a running request.
+	 */
+	public static class Permit
+	{
+		private final AdmissionController admissionController;
+		private final ClassLimits limits;
+		private final UserPermits user;
+		private boolean released = false;
+
+		private Permit(AdmissionController admissionController, ClassLimits limits, UserPermits user)
+		{
+			this.admissionController = admissionController;
+			this.limits = limits;
+			this.user = user;
+		}
+
+		public void release()
+		{
+			if (released || user == null)
+				return;
+			released = true;
+			limits.permits.release();
+			user.semaphore.release();
+			admissionController.releaseUserPermits(user);
+		}
+	}
+
+	private static class UserPermits
+	{
+		final String key;
+		final Semaphore semaphore;
+		final AtomicInteger users = new AtomicInteger(); // Requests running or waiting, -1 once evicted
+
+		UserPermits(String key, int userLimit)
+		{
+			this.key = key;
+			this.semaphore = new Semaphore(userLimit, true);
+		}
+	}
+
+	private static class ClassLimits
+	{
+		final EndpointClass endpointClass;
+		final int limit;
+		final int userLimit;
+		final int queueSize;
+		final long queueTimeout;
+		final int retryAfter;
+		final Semaphore permits;
+		final AtomicInteger waiting = new AtomicInteger();
+		final AtomicLong admitted = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+
+		ClassLimits(EndpointClass endpointClass, int limit, int userLimit, int queueSize, long queueTimeout,
+				int retryAfter)
+		{
+			this.endpointClass = endpointClass;
+			this.limit = limit;
+			this.userLimit = Math.min(limit, userLimit);
+			this.queueSize = queueSize;
+			this.queueTimeout = queueTimeout;
+			this.retryAfter = retryAfter;
+			this.permits = new Semaphore(limit, true);
+		}
+
+		static ClassLimits fromConfig(EndpointClass endpointClass, int serverThreads)
+		{
+			String name = "Admission" + endpointClass.configName;
+			int defaultLimit = Math.max(1, (int)(serverThreads * endpointClass.defaultLimitShare));
+			int defaultQueueSize = Math.max(1, (int)(serverThreads * endpointClass.defaultQueueShare));
+			return new ClassLimits(endpointClass,
+					Integer.parseInt(EPADConfig.getParamValue(name + "Limit", String.valueOf(defaultLimit))),
+					Integer.parseInt(EPADConfig.getParamValue(name + "UserLimit", String.valueOf(endpointClass.defaultUserLimit))),
+					Integer.parseInt(EPADConfig.getParamValue(name + "QueueSize", String.valueOf(defaultQueueSize))),
+					Long.parseLong(EPADConfig.getParamValue(name + "QueueTimeout",
+							String.valueOf(endpointClass.defaultQueueTimeout))),
+					Integer.parseInt(EPADConfig.getParamValue(name + "RetryAfter",
+							String.valueOf(endpointClass.defaultRetryAfter))));
+		}
+	}
+}
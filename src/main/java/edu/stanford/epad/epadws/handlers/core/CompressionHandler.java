@@ -0,0 +1,594 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Compresses responses with gzip or deflate when the client accepts it.
+ * <p>
+ * The first CompressionMinSize bytes of a response are held back. If the response ends within them, or its
+ * Content-Length is below the threshold, it is sent as is. Otherwise it is compressed if its content type is in
+ * CompressionMimeTypes (or, when no type is set, its extension is in CompressionExtensions), so PNG, JPEG, ZIP and
+ * DICOM content passes through untouched. Range requests and HEAD are never compressed.
+ * <p>
+ * A compressed response is a different representation, so its ETag gets the encoding as a suffix ("...-gzip"). The
+ * suffix is removed from If-None-Match and If-Range before the wrapped handler sees them, and a 304 for a compressed
+ * representation gets the suffixed ETag and Vary: Accept-Encoding.
+ * <p>
+ * The wrapped handler must complete the response before returning; put this inside an {@link AsyncDispatchHandler}
+ * rather than around it.
+ */
+public class CompressionHandler extends HandlerWrapper
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final boolean enabled = !"false".equalsIgnoreCase(EPADConfig.getParamValue("ResponseCompression", "true"));
+	private static final int minSize = Integer.parseInt(EPADConfig.getParamValue("CompressionMinSize", "1024"));
+	private static final Set<String> mimeTypes = toSet(EPADConfig.getParamValue("CompressionMimeTypes",
+			"application/json,application/xml,text/xml,text/plain,text/html,text/css,text/csv,application/javascript,text/javascript,image/svg+xml"));
+	private static final Set<String> extensions = toSet(EPADConfig.getParamValue("CompressionExtensions", "tag,txt,json,xml,csv"));
+
+	private static final AtomicLong compressedResponses = new AtomicLong();
+	private static final AtomicLong uncompressedBytes = new AtomicLong();
+	private static final AtomicLong compressedBytes = new AtomicLong();
+
+	public CompressionHandler(Handler handler)
+	{
+		setHandler(handler);
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
+			throws IOException, ServletException
+	{
+		String encoding = enabled ? getEncoding(httpRequest) : null;
+		if (encoding == null || "HEAD".equalsIgnoreCase(httpRequest.getMethod()) || httpRequest.getHeader("Range") != null) {
+			getHandler().handle(target, baseRequest, httpRequest, httpResponse);
+			return;
+		}
+		EncodedRequest encodedRequest = new EncodedRequest(httpRequest, encoding);
+		CompressedResponse compressedResponse = new CompressedResponse(httpResponse, encoding, httpRequest.getRequestURI(),
+				encodedRequest);
+		try {
+			getHandler().handle(target, baseRequest, encodedRequest, compressedResponse);
+		} finally {
+			compressedResponse.finish();
+		}
+	}
+
+	public static long getCompressedResponses()
+	{
+		return compressedResponses.get();
+	}
+
+	public static long getUncompressedBytes()
+	{
+		return uncompressedBytes.get();
+	}
+
+	public static long getCompressedBytes()
+	{
+		return compressedBytes.get();
+	}
+
+	/**
+	 * Overall ratio of original to compressed size for compressed responses, or 0 if none yet.
+	 */
+	public static double getCompressionRatio()
+	{
+		long out = compressedBytes.get();
+		return out == 0 ? 0 : (double)uncompressedBytes.get() / out;
+	}
+
+	/**
+	 * Returns gzip or deflate if listed in Accept-Encoding without q=0, preferring gzip.
+	 */
+	static String getEncoding(HttpServletRequest httpRequest)
+	{
+		String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
+		if (acceptEncoding == null)
+			return null;
+		boolean deflate = false;
+		for (String coding : acceptEncoding.toLowerCase().split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?"))
+				continue;
+			if ("gzip".equals(name))
+				return "gzip";
+			if ("deflate".equals(name))
+				deflate = true;
+		}
+		return deflate ? "deflate" : null;
+	}
+
+	/**
+	 * ETag of the representation compressed with encoding: "abc" becomes "abc-gzip", W/"abc" becomes W/"abc-gzip".
+	 */
+	static String encodeETag(String etag, String encoding)
+	{
+		if (etag.endsWith("\""))
+			return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+		return etag + "-" + encoding;
+	}
+
+	/**
+	 * Removes the encoding suffix from the entity tags in an If-None-Match or If-Range header.
+	 */
+	static String decodeETags(String header, String encoding)
+	{
+		return header.replace("-" + encoding + "\"", "\"");
+	}
+
+	private static Set<String> toSet(String list)
+	{
+		Set<String> values = new HashSet<>();
+		for (String value : Arrays.asList(list.toLowerCase().split(","))) {
+			if (value.trim().length() > 0)
+				values.add(value.trim());
+		}
+		return values;
+	}
+
+	/**
+	 * The request with the compressed ETags in its validators replaced by those of the uncompressed representation.
+	 */
+	private static class EncodedRequest extends HttpServletRequestWrapper
+	{
+		private final String encoding;
+		private boolean encodedValidator = false;
+
+		EncodedRequest(HttpServletRequest httpRequest, String encoding)
+		{
+			super(httpRequest);
+			this.encoding = encoding;
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			String value = super.getHeader(name);
+			if (value != null && ("If-None-Match".equalsIgnoreCase(name) || "If-Range".equalsIgnoreCase(name))) {
+				String decoded = decodeETags(value, encoding);
+				if (!decoded.equals(value))
+					encodedValidator = true;
+				return decoded;
+			}
+			return value;
+		}
+	}
+
+	private static class CompressedResponse extends HttpServletResponseWrapper
+	{
+		private final String encoding;
+		private final String requestURI;
+		private final EncodedRequest request;
+		private String etag;
+		private CompressingOutputStream outputStream;
+		private PrintWriter writer;
+		private long contentLength = -1;
+		private boolean noCompression = false;
+		private int status = HttpServletResponse.SC_OK;
+
+		CompressedResponse(HttpServletResponse httpResponse, String encoding, String requestURI, EncodedRequest request)
+		{
+			super(httpResponse);
+			this.encoding = encoding;
+			this.requestURI = requestURI;
+			this.request = request;
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException
+		{
+			if (writer != null)
+				throw new IllegalStateException("getWriter() has already been called");
+			return getCompressingOutputStream();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException
+		{
+			if (writer == null) {
+				if (outputStream != null)
+					throw new IllegalStateException("getOutputStream() has already been called");
+				writer = new PrintWriter(new OutputStreamWriter(getCompressingOutputStream(), getCharacterEncoding()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void setStatus(int status)
+		{
+			this.status = status;
+			super.setStatus(status);
+			if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+				HttpServletResponse httpResponse = (HttpServletResponse)getResponse();
+				httpResponse.addHeader("Vary", "Accept-Encoding");
+				if (etag != null && request.encodedValidator) // The client holds the compressed representation
+					httpResponse.setHeader("ETag", encodeETag(etag, encoding));
+			}
+		}
+
+		@Override
+		public void sendError(int status, String message) throws IOException
+		{
+			this.status = status;
+			discardBuffered();
+			super.sendError(status, message);
+		}
+
+		@Override
+		public void sendError(int status) throws IOException
+		{
+			this.status = status;
+			discardBuffered();
+			super.sendError(status);
+		}
+
+		@Override
+		public void setContentLength(int length)
+		{
+			setContentLength((long)length);
+		}
+
+		@Override
+		public void setHeader(String name, String value)
+		{
+			if ("Content-Length".equalsIgnoreCase(name) && value != null)
+				setContentLength(Long.parseLong(value.trim()));
+			else {
+				if ("Content-Encoding".equalsIgnoreCase(name))
+					noCompression = true;
+				else if ("ETag".equalsIgnoreCase(name))
+					etag = value;
+				super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value)
+		{
+			if ("Content-Length".equalsIgnoreCase(name) && value != null)
+				setContentLength(Long.parseLong(value.trim()));
+			else {
+				if ("Content-Encoding".equalsIgnoreCase(name))
+					noCompression = true;
+				else if ("ETag".equalsIgnoreCase(name))
+					etag = value;
+				super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException
+		{
+			if (writer != null)
+				writer.flush();
+			if (outputStream == null || !outputStream.isBuffering())
+				super.flushBuffer();
+		}
+
+		@Override
+		public void reset()
+		{
+			if (outputStream != null && !outputStream.isBuffering())
+				throw new IllegalStateException("Response already committed");
+			super.reset();
+			outputStream = null;
+			writer = null;
+			contentLength = -1;
+			noCompression = false;
+			etag = null;
+		}
+
+		@Override
+		public void resetBuffer()
+		{
+			if (outputStream != null && !outputStream.isBuffering())
+				throw new IllegalStateException("Response already committed");
+			super.resetBuffer();
+			outputStream = null;
+			writer = null;
+		}
+
+		/**
+		 * Drops output held back before an error page replaces the response.
+		 */
+		private void discardBuffered()
+		{
+			if (outputStream != null && outputStream.isBuffering()) {
+				outputStream = null;
+				writer = null;
+			}
+		}
+
+		private void setContentLength(long length)
+		{
+			contentLength = length;
+			if (length >= 0 && length < minSize)
+				noCompression = true;
+			if (outputStream == null || !outputStream.isCompressing())
+				super.setHeader("Content-Length", String.valueOf(length));
+		}
+
+		private CompressingOutputStream getCompressingOutputStream()
+		{
+			if (outputStream == null)
+				outputStream = new CompressingOutputStream(this);
+			return outputStream;
+		}
+
+		boolean isCompressible()
+		{
+			if (noCompression || contentLength >= 0 && contentLength < minSize)
+				return false;
+			if (status == HttpServletResponse.SC_NO_CONTENT || status == HttpServletResponse.SC_NOT_MODIFIED
+					|| status == HttpServletResponse.SC_PARTIAL_CONTENT)
+				return false;
+			String contentType = getContentType();
+			if (contentType != null) {
+				int semicolon = contentType.indexOf(';');
+				if (semicolon != -1)
+					contentType = contentType.substring(0, semicolon);
+				return mimeTypes.contains(contentType.trim().toLowerCase());
+			}
+			int dot = requestURI == null ? -1 : requestURI.lastIndexOf('.');
+			return dot != -1 && extensions.contains(requestURI.substring(dot + 1).toLowerCase());
+		}
+
+		/**
+		 * Switches the underlying response to compressed output and returns the stream to write to.
+		 */
+		OutputStream startCompression(CountingOutputStream rawStream) throws IOException
+		{
+			HttpServletResponse httpResponse = (HttpServletResponse)getResponse();
+			httpResponse.setHeader("Content-Encoding", encoding);
+			httpResponse.addHeader("Vary", "Accept-Encoding");
+			if (etag != null)
+				httpResponse.setHeader("ETag", encodeETag(etag, encoding));
+			if (httpResponse.containsHeader("Content-Length"))
+				httpResponse.setHeader("Content-Length", null);
+			OutputStream shielded = new CloseShieldOutputStream(rawStream);
+			if ("gzip".equals(encoding))
+				return new GZIPOutputStream(shielded, 8192);
+			else
+				return new DeflaterOutputStream(shielded);
+		}
+
+		void finish() throws IOException
+		{
+			if (writer != null)
+				writer.flush();
+			if (outputStream != null) {
+				outputStream.close();
+				if (outputStream.isCompressing()) {
+					compressedResponses.incrementAndGet();
+					uncompressedBytes.addAndGet(outputStream.getBytesWritten());
+					compressedBytes.addAndGet(outputStream.getBytesSent());
+					if (log.isDebugEnabled())
+						log.debug("Compressed " + requestURI + " from " + outputStream.getBytesWritten() + " to "
+								+ outputStream.getBytesSent() + " bytes with " + encoding);
+				}
+			}
+		}
+	}
+
+	private static class CompressingOutputStream extends ServletOutputStream
+	{
+		private final CompressedResponse response;
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.min(minSize, 8192));
+		private CountingOutputStream rawStream;
+		private OutputStream outputStream;
+		private boolean compressing = false;
+		private boolean closed = false;
+		private long bytesWritten = 0;
+
+		CompressingOutputStream(CompressedResponse response)
+		{
+			this.response = response;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			if (closed)
+				throw new IOException("Stream closed");
+			bytesWritten += len;
+			if (buffer != null) {
+				if (!response.noCompression && buffer.size() + len <= minSize) {
+					buffer.write(b, off, len);
+					return;
+				}
+				start(response.isCompressible());
+			}
+			outputStream.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			// Held-back bytes stay buffered until the size threshold is reached or the response ends
+			if (buffer == null)
+				outputStream.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (closed)
+				return;
+			if (buffer != null)
+				start(false);
+			closed = true;
+			if (compressing)
+				outputStream.close(); // Ends the deflater; the response stream itself stays open
+			else
+				outputStream.flush();
+		}
+
+		boolean isBuffering()
+		{
+			return buffer != null;
+		}
+
+		boolean isCompressing()
+		{
+			return compressing;
+		}
+
+		long getBytesWritten()
+		{
+			return bytesWritten;
+		}
+
+		long getBytesSent()
+		{
+			return rawStream.getByteCount();
+		}
+
+		private void start(boolean compress) throws IOException
+		{
+			rawStream = new CountingOutputStream(response.getResponse().getOutputStream());
+			compressing = compress;
+			outputStream = compress ? response.startCompression(rawStream) : rawStream;
+			buffer.writeTo(outputStream);
+			buffer = null;
+		}
+	}
+}
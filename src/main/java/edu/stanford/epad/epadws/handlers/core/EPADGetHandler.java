@@ -105,9 +105,12 @@
 package edu.stanford.epad.epadws.handlers.core;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -117,6 +120,9 @@ import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+
 import com.google.gson.Gson;
 
 import edu.stanford.epad.common.pixelmed.SegmentedPropertyHelper;
@@ -172,9 +178,14 @@ import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
 import edu.stanford.epad.epadws.handlers.dicom.DSOUtil;
 import edu.stanford.epad.epadws.handlers.dicom.DownloadUtil;
+import edu.stanford.epad.epadws.handlers.dicom.ImageMetadataUtil;
+import edu.stanford.epad.epadws.handlers.dicom.PixelValueStore;
+import edu.stanford.epad.epadws.handlers.dicom.ROIStatistics;
 import edu.stanford.epad.epadws.models.RemotePACQuery;
 import edu.stanford.epad.epadws.models.User;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 import edu.stanford.epad.epadws.processing.pipeline.task.EpadStatisticsTask;
+import edu.stanford.epad.epadws.processing.pipeline.task.PreviewGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.TCIADownloadTask;
 import edu.stanford.epad.epadws.queries.DefaultEpadOperations;
 import edu.stanford.epad.epadws.queries.EpadOperations;
@@ -233,7 +244,7 @@ public class EPADGetHandler
 				boolean ignoreSystem = "false".equalsIgnoreCase(httpRequest.getParameter("system"));
 				boolean includeAnnotationStatus = "true".equalsIgnoreCase(httpRequest.getParameter("includeAnnotationStatus"));
 				EPADProjectList projectList = epadOperations.getProjectDescriptions(username, sessionID, searchFilter, annotationCount, ignoreSystem, includeAnnotationStatus);
-				responseStream.append(projectList.toJSON());
+				HandlerUtil.writeJSON(projectList, responseStream);
 
 				statusCode = HttpServletResponse.SC_OK;
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.PROJECT, pathInfo)) {
@@ -265,7 +276,7 @@ public class EPADGetHandler
 					log.info("removing project " + projectReference.projectID  );
 					allProjectList.removeEPADProject(projectReference.projectID);
 					
-					responseStream.append(allProjectList.toJSON());
+					HandlerUtil.writeJSON(allProjectList, responseStream);
 				} else {
 					EPADProject project = epadOperations.getProjectDescription(projectReference, username, sessionID, annotationCount, includeAnnotationStatus);
 				
@@ -310,6 +321,20 @@ public class EPADGetHandler
 				{
 					subjectList = epadOperations.getUnassignedSubjectDescriptions(username, sessionID, searchFilter);
 				}
+				else if (httpRequest.getParameter("pageToken") != null)
+				{
+					String pageSortField = sortField == null ? "name" : sortField;
+					KeysetPage page;
+					try {
+						page = getKeysetPage(httpRequest, "subjects/" + projectReference.projectID + "/" + pageSortField,
+								DefaultEpadProjectOperations.getSubjectKeyColumns(pageSortField).length);
+					} catch (IllegalArgumentException e) {
+						return HandlerUtil.badRequestJSONResponse(e.getMessage(), responseStream, log);
+					}
+					subjectList = epadOperations.getSubjectDescriptions(projectReference.projectID, username, sessionID,
+							searchFilter, page, pageSortField, annotationCount);
+					HandlerUtil.setNextPageToken(httpResponse, page);
+				}
 				else
 				{
 					subjectList = epadOperations.getSubjectDescriptions(projectReference.projectID, username,
@@ -331,7 +356,7 @@ public class EPADGetHandler
 				}
 				long endtime = System.currentTimeMillis();
 				log.info("Returning " + subjectList.ResultSet.totalRecords + " subjects to client, took " + (endtime-starttime) + " msecs");
-				responseStream.append(subjectList.toJSON());
+				HandlerUtil.writeJSON(subjectList, responseStream);
 				long resptime = System.currentTimeMillis();
 				log.info("Time taken for write http response:" + (resptime-endtime) + " msecs");
 				statusCode = HttpServletResponse.SC_OK;
@@ -352,7 +377,7 @@ public class EPADGetHandler
 					}
 					EPADProjectList projectList = epadOperations.getProjectsForSubject( username,  sessionID,  searchFilter,  false, subjectReference.subjectID);
 					projectList.removeEPADProject(subjectReference.projectID);
-					responseStream.append(projectList.toJSON());
+					HandlerUtil.writeJSON(projectList, responseStream);
 	
 				}else if (returnFile(httpRequest)) {
 					DownloadUtil.downloadSubject(false, httpResponse, subjectReference, username, sessionID, searchFilter, studyUIDs, includeAims);
@@ -375,10 +400,21 @@ public class EPADGetHandler
 				boolean includeAnnotationStatus = "true".equalsIgnoreCase(httpRequest.getParameter("includeAnnotationStatus"));
 				if (subjectReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
-				EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID,
-						searchFilter, includeAnnotationStatus);
+				EPADStudyList studyList;
+				if (httpRequest.getParameter("pageToken") != null) {
+					KeysetPage page;
+					try {
+						page = getKeysetPage(httpRequest, "studies/" + subjectReference.projectID + "/" + subjectReference.subjectID, 1);
+					} catch (IllegalArgumentException e) {
+						return HandlerUtil.badRequestJSONResponse(e.getMessage(), responseStream, log);
+					}
+					studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID, searchFilter, page);
+					HandlerUtil.setNextPageToken(httpResponse, page);
+				} else
+					studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID,
+							searchFilter, includeAnnotationStatus);
 				log.info("Returning " + studyList.ResultSet.totalRecords + " studies");
-				responseStream.append(studyList.toJSON());
+				HandlerUtil.writeJSON(studyList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.STUDY, pathInfo)) {
@@ -392,7 +428,7 @@ public class EPADGetHandler
 					}
 					EPADProjectList projectList = epadOperations.getProjectsForStudy( username,  sessionID,  searchFilter,  false, studyReference.studyUID);
 					projectList.removeEPADProject(studyReference.projectID);
-					responseStream.append(projectList.toJSON());
+					HandlerUtil.writeJSON(projectList, responseStream);
 	
 				}else if (returnFile(httpRequest)) {
 					if (studyReference.studyUID.contains(","))
@@ -433,7 +469,7 @@ public class EPADGetHandler
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADSeriesList seriesList = epadOperations.getSeriesDescriptions(studyReference, username, sessionID,
 						searchFilter, filterDSO, includeAnnotationStatus);
-				responseStream.append(seriesList.toJSON());
+				HandlerUtil.writeJSON(seriesList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.SERIES, pathInfo)) {
@@ -447,7 +483,7 @@ public class EPADGetHandler
 					}
 					EPADProjectList projectList = epadOperations.getProjectsForStudy( username,  sessionID,  searchFilter,  false, seriesReference.studyUID);
 					projectList.removeEPADProject(seriesReference.projectID);
-					responseStream.append(projectList.toJSON());
+					HandlerUtil.writeJSON(projectList, responseStream);
 	
 				}else if (returnFile(httpRequest)) {
 					if (seriesReference.seriesUID.contains(","))
@@ -495,9 +531,24 @@ public class EPADGetHandler
 				if (seriesReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADImageList imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, searchFilter);
-				responseStream.append(imageList.toJSON());
+				HandlerUtil.writeJSON(imageList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.IMAGE_METADATA, pathInfo)) {
+				SeriesReference seriesReference = SeriesReference.extract(ProjectsRouteTemplates.IMAGE_METADATA, pathInfo);
+				statusCode = writeImageMetadata(httpRequest, seriesReference, responseStream);
+
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.IMAGE_PREVIEW, pathInfo)) {
+				ImageReference imageReference = ImageReference.extract(ProjectsRouteTemplates.IMAGE_PREVIEW, pathInfo);
+				File previewFile = PreviewGeneratorTask.getPreviewFile(imageReference.studyUID, imageReference.seriesUID,
+						imageReference.imageUID);
+				if (previewFile.exists()) {
+					HandlerUtil.sendImage(httpResponse, new FileInputStream(previewFile), "png");
+					statusCode = HttpServletResponse.SC_OK;
+				} else
+					statusCode = HandlerUtil.warningResponse(HttpServletResponse.SC_NOT_FOUND, "Preview of image "
+							+ imageReference.imageUID + " not found", log);
+
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.IMAGE, pathInfo)) {
 				ImageReference imageReference = ImageReference.extract(ProjectsRouteTemplates.IMAGE, pathInfo);
 				if (returnFile(httpRequest)) {
@@ -549,7 +600,7 @@ public class EPADGetHandler
 				boolean pixelData = "true".equalsIgnoreCase(httpRequest.getParameter("includePixels"));
 				boolean allTags = "true".equalsIgnoreCase(httpRequest.getParameter("allTags"));
 				EPADFrameList frameList = epadOperations.getFrameDescriptions(imageReference,allTags,pixelData);
-				responseStream.append(frameList.toJSON());
+				HandlerUtil.writeJSON(frameList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME, pathInfo)) {
@@ -564,6 +615,27 @@ public class EPADGetHandler
 					throw new Exception("Image " + frameReference.imageUID + " frame " + frameReference.frameNumber + " not found");
 				}
 				
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_PIXELS, pathInfo)) {
+				FrameReference frameReference = FrameReference.extract(ProjectsRouteTemplates.FRAME_PIXELS, pathInfo);
+				int x = getInt(httpRequest.getParameter("x"));
+				int y = getInt(httpRequest.getParameter("y"));
+				int width = getInt(httpRequest.getParameter("width"));
+				int height = getInt(httpRequest.getParameter("height"));
+				PixelValueStore.PixelRegion pixelRegion = epadOperations.getPixelRegion(frameReference, x, y, width, height);
+				if (pixelRegion != null) {
+					responseStream.append(pixelRegion.toJSON());
+					statusCode = HttpServletResponse.SC_OK;
+				} else {
+					log.info("No stored pixel values for image " + frameReference.imageUID);
+					throw new Exception("No stored pixel values for image " + frameReference.imageUID);
+				}
+
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_STATISTICS, pathInfo)) {
+				statusCode = handleROIStatistics(httpRequest, pathInfo, responseStream, epadOperations);
+
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_RENDER, pathInfo)) {
+				statusCode = handleFrameRender(httpRequest, httpResponse, pathInfo, epadOperations);
+
 			} else if (HandlerUtil.matchesTemplate(SubjectsRouteTemplates.SUBJECT, pathInfo)) {
 				SubjectReference subjectReference = SubjectReference.extract(SubjectsRouteTemplates.SUBJECT, pathInfo);
 				boolean includeAims = "true".equalsIgnoreCase(httpRequest.getParameter("includeAims"));
@@ -588,7 +660,7 @@ public class EPADGetHandler
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADStudyList studyList = epadOperations.getStudyDescriptions(subjectReference, username, sessionID,
 						searchFilter);
-				responseStream.append(studyList.toJSON());
+				HandlerUtil.writeJSON(studyList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 				/**
@@ -610,7 +682,7 @@ public class EPADGetHandler
 				
 				EPADStudyList studyList = epadOperations.getStudyDescriptions( username, sessionID,olderThan);
 				log.info("Returning " + studyList.ResultSet.totalRecords + " studies that are not accesses in " + olderThan + " days");
-				responseStream.append(studyList.toJSON());
+				HandlerUtil.writeJSON(studyList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 				
 				/**
@@ -664,9 +736,13 @@ public class EPADGetHandler
 				if (seriesReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADImageList imageList = epadOperations.getImageDescriptions(seriesReference, sessionID, searchFilter);
-				responseStream.append(imageList.toJSON());
+				HandlerUtil.writeJSON(imageList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
+			} else if (HandlerUtil.matchesTemplate(StudiesRouteTemplates.IMAGE_METADATA, pathInfo)) {
+				SeriesReference seriesReference = SeriesReference.extract(StudiesRouteTemplates.IMAGE_METADATA, pathInfo);
+				statusCode = writeImageMetadata(httpRequest, seriesReference, responseStream);
+
 			} else if (HandlerUtil.matchesTemplate(StudiesRouteTemplates.IMAGE, pathInfo)) {
 				ImageReference imageReference = ImageReference.extract(StudiesRouteTemplates.IMAGE, pathInfo);
 				if (returnFile(httpRequest)) {
@@ -690,7 +766,7 @@ public class EPADGetHandler
 			} else if (HandlerUtil.matchesTemplate(StudiesRouteTemplates.FRAME_LIST, pathInfo)) {
 				ImageReference imageReference = ImageReference.extract(StudiesRouteTemplates.FRAME_LIST, pathInfo);
 				EPADFrameList frameList = epadOperations.getFrameDescriptions(imageReference);
-				responseStream.append(frameList.toJSON());
+				HandlerUtil.writeJSON(frameList, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 				/**
@@ -707,7 +783,16 @@ public class EPADGetHandler
 				EPADAIMList aims = null;
 				if (aimSearchType != null)
 					aims = epadOperations.getAIMDescriptions(projectID, aimSearchType, searchValue, username, sessionID, start, count);
-				else
+				else if (httpRequest.getParameter("pageToken") != null) {
+					KeysetPage page;
+					try {
+						page = getKeysetPage(httpRequest, "aims/" + projectID, 2);
+					} catch (IllegalArgumentException e) {
+						return HandlerUtil.badRequestJSONResponse(e.getMessage(), responseStream, log);
+					}
+					aims = epadOperations.getProjectAIMDescriptions(projectReference, username, sessionID, page);
+					HandlerUtil.setNextPageToken(httpResponse, page);
+				} else
 					aims = epadOperations.getProjectAIMDescriptions(projectReference, username, sessionID);
 				long dbtime = System.currentTimeMillis();
 				log.info("Time taken for AIM database query:" + (dbtime-starttime) + " msecs");
@@ -718,7 +803,7 @@ public class EPADGetHandler
 					else
 						aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
 					long starttime2 = System.currentTimeMillis();
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 					long resptime = System.currentTimeMillis();
 					log.info("Time taken for write http response:" + (resptime-starttime2) + " msecs");
 				}
@@ -778,7 +863,7 @@ public class EPADGetHandler
 					}
 					log.info("removing project " + projectReference.projectID  );
 					projectList.removeEPADProject(projectReference.projectID);
-					responseStream.append(projectList.toJSON());
+					HandlerUtil.writeJSON(projectList, responseStream);
 					statusCode = HttpServletResponse.SC_OK;
 					return statusCode;
 					
@@ -830,7 +915,7 @@ public class EPADGetHandler
 				else if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -889,7 +974,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -958,7 +1043,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1021,7 +1106,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1085,7 +1170,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1165,7 +1250,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1223,7 +1308,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1279,7 +1364,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1335,7 +1420,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1406,7 +1491,7 @@ public class EPADGetHandler
 				else if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, username, sessionID);					
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1481,7 +1566,7 @@ public class EPADGetHandler
 						if (returnSummary(httpRequest))
 						{
 							aims = AIMUtil.queryAIMImageAnnotationSummariesV4AIME(aimSearchType, searchValue, username, sessionID);
-							responseStream.append(aims.toJSON());
+							HandlerUtil.writeJSON(aims, responseStream);
 						}else if (returnJson(httpRequest))
 						{
 							AIMUtil.queryAIMImageAnnotationsV4AIME(responseStream, aimSearchType, searchValue, username, sessionID, true);					
@@ -1506,7 +1591,7 @@ public class EPADGetHandler
 							else
 								aims = AIMUtil.queryDeletedAIMImageAnnotationSummaries(aimSearchType, searchValue, username);
 						}
-						responseStream.append(aims.toJSON());
+						HandlerUtil.writeJSON(aims, responseStream);
 					}
 					else if (returnJson(httpRequest))
 					{
@@ -1568,17 +1653,17 @@ public class EPADGetHandler
 					if ("all".equalsIgnoreCase(version))
 					{
 						EPADAIMList aims = AIMUtil.getAllVersionSummaries(aim);
-						responseStream.append(aims.toJSON());
+						HandlerUtil.writeJSON(aims, responseStream);
 					}
 					else if ("previous".equalsIgnoreCase(version))
 					{
 						EPADAIMList aims = AIMUtil.getPreviousVersionSummaries(aim);
-						responseStream.append(aims.toJSON());
+						HandlerUtil.writeJSON(aims, responseStream);
 					}
 					else if ("next".equalsIgnoreCase(version))
 					{
 						EPADAIMList aims = AIMUtil.getNextVersionSummaries(aim);
-						responseStream.append(aims.toJSON());
+						HandlerUtil.writeJSON(aims, responseStream);
 					}
 					else
 						responseStream.append(aim.toJSON());
@@ -1733,7 +1818,7 @@ public class EPADGetHandler
 				if (returnSummary(httpRequest))
 				{	
 					aims = AIMUtil.queryAIMImageAnnotationSummariesV4(aims, "admin", sessionID);	// He needs to see all				
-					responseStream.append(aims.toJSON());
+					HandlerUtil.writeJSON(aims, responseStream);
 				}
 				else if (returnJson(httpRequest))
 				{
@@ -1748,7 +1833,7 @@ public class EPADGetHandler
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.PROJECT_FILE_LIST, pathInfo)) {
 				ProjectReference projectReference = ProjectReference.extract(ProjectsRouteTemplates.PROJECT_FILE_LIST, pathInfo);
 				EPADFileList files = epadOperations.getFileDescriptions(projectReference, username, sessionID, searchFilter, true);
-				responseStream.append(files.toJSON());
+				HandlerUtil.writeJSON(files, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 						
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.SUBJECT_FILE_LIST, pathInfo)) {
@@ -1756,7 +1841,7 @@ public class EPADGetHandler
 				if (subjectReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADFileList files = epadOperations.getFileDescriptions(subjectReference, username, sessionID, searchFilter, true);
-				responseStream.append(files.toJSON());
+				HandlerUtil.writeJSON(files, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.STUDY_FILE_LIST, pathInfo)) {
@@ -1764,7 +1849,7 @@ public class EPADGetHandler
 				if (studyReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADFileList files = epadOperations.getFileDescriptions(studyReference, username, sessionID, searchFilter, true);
-				responseStream.append(files.toJSON());
+				HandlerUtil.writeJSON(files, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 	
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.SERIES_FILE_LIST, pathInfo)) {
@@ -1772,7 +1857,7 @@ public class EPADGetHandler
 				if (seriesReference.subjectID.equals("null"))
 					throw new Exception("Patient ID in rest call is null:" + pathInfo);
 				EPADFileList files = epadOperations.getFileDescriptions(seriesReference, username, sessionID, searchFilter);
-				responseStream.append(files.toJSON());
+				HandlerUtil.writeJSON(files, responseStream);
 				statusCode = HttpServletResponse.SC_OK;
 
 			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.PROJECT_FILE, pathInfo)) {
@@ -2263,6 +2348,16 @@ public class EPADGetHandler
 		return statusCode;
 	}
 
+	/**
+	 * Keyset page for the pageToken and count parameters; the same listings as in ProjectController, so tokens work
+	 * with both.
+	 */
+	private static KeysetPage getKeysetPage(HttpServletRequest httpRequest, String scope, int keyCount)
+	{
+		return HandlerUtil.getKeysetPage(scope, httpRequest.getParameter("pageToken"), keyCount,
+				getInt(httpRequest.getParameter("count")));
+	}
+
 	private static boolean returnSummary(HttpServletRequest httpRequest)
 	{
 		String summary = httpRequest.getParameter("format");
@@ -2281,6 +2376,29 @@ public class EPADGetHandler
 		else
 			return false;
 	}
+	/**
+	 * Selected tags for a whole series, or for the images listed in imageUIDs (comma-separated). Tags are separated by
+	 * semicolons, e.g. tags=(0020,0032);(0028,0030);SliceThickness
+	 */
+	private static int writeImageMetadata(HttpServletRequest httpRequest, SeriesReference seriesReference,
+			PrintWriter responseStream) throws Exception
+	{
+		String tags = httpRequest.getParameter("tags");
+		if (tags == null || tags.trim().length() == 0)
+			return HandlerUtil.badRequestJSONResponse("Missing tags parameter", responseStream, log);
+		List<String> tagNames = ImageMetadataUtil.splitTagNames(tags);
+		List<String> imageUIDs = null;
+		String imageUIDList = httpRequest.getParameter("imageUIDs");
+		if (imageUIDList != null && imageUIDList.trim().length() > 0)
+			imageUIDs = Arrays.asList(imageUIDList.trim().split("\\s*,\\s*"));
+		try {
+			ImageMetadataUtil.writeImageMetadata(seriesReference, imageUIDs, tagNames, responseStream);
+		} catch (IllegalArgumentException e) {
+			return HandlerUtil.badRequestJSONResponse(e.getMessage(), responseStream, log);
+		}
+		return HttpServletResponse.SC_OK;
+	}
+
 	private static boolean returnFile(HttpServletRequest httpRequest)
 	{
 		String format = httpRequest.getParameter("format");
@@ -2335,6 +2453,106 @@ public class EPADGetHandler
 			return false;
 	}
 	
+	/**
+	 * Windowed JPEG or PNG rendering of a frame. EPADHandler does not open the writer for this route, so the image is
+	 * written to the output stream.
+	 */
+	private static int handleFrameRender(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String pathInfo,
+			EpadOperations epadOperations) throws Exception
+	{
+		FrameReference frameReference = FrameReference.extract(ProjectsRouteTemplates.FRAME_RENDER, pathInfo);
+		String format = httpRequest.getParameter("format");
+		format = format == null ? "jpeg" : format.trim().toLowerCase();
+		if (format.equals("jpg"))
+			format = "jpeg";
+		if (!format.equals("jpeg") && !format.equals("png"))
+			return HandlerUtil.badRequestResponse("Invalid render format " + format + ", use jpeg or png", log);
+		Double windowCenter = null;
+		Double windowWidth = null;
+		try {
+			if (httpRequest.getParameter("windowCenter") != null)
+				windowCenter = getDouble(httpRequest.getParameter("windowCenter"));
+			if (httpRequest.getParameter("windowWidth") != null)
+				windowWidth = getDouble(httpRequest.getParameter("windowWidth"));
+		} catch (NumberFormatException e) {
+			return HandlerUtil.badRequestResponse("Invalid window " + httpRequest.getParameter("windowCenter") + "/"
+					+ httpRequest.getParameter("windowWidth"), log);
+		}
+		int size = getInt(httpRequest.getParameter("size"));
+		FileInputStream in = epadOperations.getRenderedFrame(frameReference, windowCenter, windowWidth, size, format);
+		if (in == null)
+			return HandlerUtil.warningResponse(HttpServletResponse.SC_NOT_FOUND, "Pixel values of image "
+					+ frameReference.imageUID + " not found", log);
+		HandlerUtil.sendImage(httpResponse, in, format);
+		return HttpServletResponse.SC_OK;
+	}
+
+	/**
+	 * Statistics of a frame ROI, for GET and for POST (masks are too large for a query string).
+	 */
+	static int handleROIStatistics(HttpServletRequest httpRequest, String pathInfo, PrintWriter responseStream,
+			EpadOperations epadOperations) throws Exception
+	{
+		FrameReference frameReference = FrameReference.extract(ProjectsRouteTemplates.FRAME_STATISTICS, pathInfo);
+		ROIStatistics.Region region = null;
+		try {
+			region = getROIRegion(httpRequest);
+		} catch (IllegalArgumentException e) {
+			log.info("Invalid ROI:" + e.getMessage());
+		}
+		if (region == null)
+			return HandlerUtil.badRequestJSONResponse("Invalid ROI, use type=polygon&points=x1,y1,..., type=ellipse&cx=&cy=&rx=&ry= or type=mask&x=&y=&width=&height=&mask= (or POST the mask bits)", responseStream, log);
+		ROIStatistics roiStatistics = epadOperations.getROIStatistics(frameReference, region);
+		if (roiStatistics == null)
+			throw new Exception("Pixel values of image " + frameReference.imageUID + " not found");
+		responseStream.append(roiStatistics.toJSON());
+		return HttpServletResponse.SC_OK;
+	}
+
+	/**
+	 * ROI of a statistics request. Masks are packed bits, row major, most significant bit first: base64 in the mask
+	 * parameter (query string or form body), or the raw bits as the body of a POST.
+	 * 
+	 * @return null if the ROI type is missing or unknown
+	 */
+	private static ROIStatistics.Region getROIRegion(HttpServletRequest httpRequest) throws IOException
+	{
+		String type = httpRequest.getParameter("type");
+		if ("polygon".equalsIgnoreCase(type)) {
+			String points = httpRequest.getParameter("points");
+			if (points == null)
+				return null;
+			String[] coordinates = points.split(",");
+			double[] polygon = new double[coordinates.length];
+			for (int i = 0; i < coordinates.length; i++)
+				polygon[i] = Double.parseDouble(coordinates[i].trim());
+			return ROIStatistics.polygon(polygon);
+		} else if ("ellipse".equalsIgnoreCase(type)) {
+			return ROIStatistics.ellipse(getDouble(httpRequest.getParameter("cx")),
+					getDouble(httpRequest.getParameter("cy")), getDouble(httpRequest.getParameter("rx")),
+					getDouble(httpRequest.getParameter("ry")));
+		} else if ("mask".equalsIgnoreCase(type)) {
+			String mask = httpRequest.getParameter("mask");
+			byte[] bits;
+			if (mask != null)
+				bits = Base64.decodeBase64(mask);
+			else if ("POST".equalsIgnoreCase(httpRequest.getMethod()))
+				bits = IOUtils.toByteArray(httpRequest.getInputStream());
+			else
+				return null;
+			return ROIStatistics.mask(getInt(httpRequest.getParameter("x")), getInt(httpRequest.getParameter("y")),
+					getInt(httpRequest.getParameter("width")), getInt(httpRequest.getParameter("height")), bits);
+		}
+		return null;
+	}
+
+	private static double getDouble(String value)
+	{
+		if (value == null)
+			throw new IllegalArgumentException("Missing ROI parameter");
+		return Double.parseDouble(value.trim());
+	}
+
 	private static int getInt(String value)
 	{
 		try {
@@ -128,8 +128,10 @@ public class EPADHandler extends AbstractHandler
 	public static final String INVALID_SESSION_TOKEN_MESSAGE = "Session token is invalid";
 	public static final String FORBIDDEN_MESSAGE = "Forbidden method - only GET, DELETE, PUT, and POST allowed!";
 	public static final String NO_USERNAME_MESSAGE = "Must have username parameter for requests!";
+	public static final String TOO_MANY_REQUESTS_MESSAGE = "Server is busy, please retry later";
 
 	private static final EPADLogger log = EPADLogger.getInstance();
+	private static final AdmissionController admissionController = AdmissionController.getInstance();
 
 	/*
 	 * Main class for handling rest calls using the epad v2 api.
@@ -150,9 +152,10 @@ public class EPADHandler extends AbstractHandler
 		request.setHandled(true);
 
 		try {
-			if (!"stream".equals(httpRequest.getParameter("format")))
-				responseStream = httpResponse.getWriter();
 			String method = httpRequest.getMethod();
+			String format = httpRequest.getParameter("format");
+			if (!"stream".equals(format) && !isImageResponse(httpRequest.getPathInfo()))
+				responseStream = httpResponse.getWriter();
 
 			String sessionID = SessionService.getJSessionIDFromRequest(httpRequest);
 			log.info("request  "+ sessionID);
@@ -183,18 +186,32 @@ public class EPADHandler extends AbstractHandler
 					else
 						username = sessionUser;
 				} 
-				if ("GET".equalsIgnoreCase(method)) {
-					statusCode = EPADGetHandler.handleGet(httpRequest, httpResponse, responseStream, username, sessionID);
-				} else if ("DELETE".equalsIgnoreCase(method)) {
-					statusCode = EPADDeleteHandler.handleDelete(httpRequest, responseStream, username, sessionID);
-				} else if ("PUT".equalsIgnoreCase(method)) {
-					statusCode = EPADPutHandler.handlePut(httpRequest, httpResponse, responseStream, username, sessionID);
-				} else if ("POST".equalsIgnoreCase(method)) {
-					statusCode = EPADPostHandler.handlePost(httpRequest, responseStream, username, sessionID);
-				} else if ("OPTIONS".equalsIgnoreCase(method)) {
-					statusCode = HttpServletResponse.SC_OK;
+				AdmissionController.EndpointClass endpointClass = AdmissionController.classify(method, httpRequest.getPathInfo(), format);
+				AdmissionController.Permit permit = null;
+				if (!"OPTIONS".equalsIgnoreCase(method))
+					permit = admissionController.acquire(username != null ? username : httpRequest.getRemoteAddr(), endpointClass);
+				if (permit == null && !"OPTIONS".equalsIgnoreCase(method)) {
+					statusCode = HandlerUtil.warningJSONResponse(admissionController.reject(httpResponse, endpointClass),
+							TOO_MANY_REQUESTS_MESSAGE, responseStream, log);
 				} else {
-					statusCode = HandlerUtil.badRequestJSONResponse(FORBIDDEN_MESSAGE, responseStream, log);
+					try {
+						if ("GET".equalsIgnoreCase(method)) {
+							statusCode = EPADGetHandler.handleGet(httpRequest, httpResponse, responseStream, username, sessionID);
+						} else if ("DELETE".equalsIgnoreCase(method)) {
+							statusCode = EPADDeleteHandler.handleDelete(httpRequest, responseStream, username, sessionID);
+						} else if ("PUT".equalsIgnoreCase(method)) {
+							statusCode = EPADPutHandler.handlePut(httpRequest, httpResponse, responseStream, username, sessionID);
+						} else if ("POST".equalsIgnoreCase(method)) {
+							statusCode = EPADPostHandler.handlePost(httpRequest, responseStream, username, sessionID);
+						} else if ("OPTIONS".equalsIgnoreCase(method)) {
+							statusCode = HttpServletResponse.SC_OK;
+						} else {
+							statusCode = HandlerUtil.badRequestJSONResponse(FORBIDDEN_MESSAGE, responseStream, log);
+						}
+					} finally {
+						if (permit != null)
+							permit.release();
+					}
 				}
 			} else if ("OPTIONS".equalsIgnoreCase(method)) {
 				statusCode = HttpServletResponse.SC_OK;
@@ -219,4 +236,33 @@ public class EPADHandler extends AbstractHandler
 		httpResponse.setHeader("Access-Control-Allow-Methods", "POST, DELETE, PUT, GET, OPTIONS");
 		httpResponse.setStatus(statusCode);
 	}
+
+	/**
+	 * Downloads, which stream or build large files and so run on the long-running request pool.
+	 */
+	public static boolean isLongRunning(HttpServletRequest httpRequest)
+	{
+		return AdmissionController.classify(httpRequest.getMethod(), httpRequest.getPathInfo(),
+				httpRequest.getParameter("format")) == AdmissionController.EndpointClass.DOWNLOAD;
+	}
+
+	/**
+	 * Routes that write an image to the output stream rather than JSON to the writer.
+	 */
+	static boolean isImageResponse(String pathInfo)
+	{
+		return pathInfo != null && (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_RENDER, pathInfo)
+				|| HandlerUtil.matchesTemplate(ProjectsRouteTemplates.IMAGE_PREVIEW, pathInfo));
+	}
+
+	/**
+	 * File routes return the file itself unless format=summary is given.
+	 */
+	static boolean isFileDownload(String pathInfo)
+	{
+		return pathInfo != null && (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.PROJECT_FILE, pathInfo)
+				|| HandlerUtil.matchesTemplate(ProjectsRouteTemplates.SUBJECT_FILE, pathInfo)
+				|| HandlerUtil.matchesTemplate(ProjectsRouteTemplates.STUDY_FILE, pathInfo)
+				|| HandlerUtil.matchesTemplate(ProjectsRouteTemplates.SERIES_FILE, pathInfo));
+	}
 }
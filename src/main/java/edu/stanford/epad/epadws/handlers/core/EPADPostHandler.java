@@ -169,7 +169,9 @@ public class EPADPostHandler
 	    String requestContentType = httpRequest.getContentType();
 		try {
 			log.info("POST Request, contentType:" + requestContentType);
-			if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_LIST, pathInfo)) {
+			if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_STATISTICS, pathInfo)) {
+				statusCode = EPADGetHandler.handleROIStatistics(httpRequest, pathInfo, responseStream, epadOperations);
+			} else if (HandlerUtil.matchesTemplate(ProjectsRouteTemplates.FRAME_LIST, pathInfo)) {
 				ImageReference imageReference = ImageReference.extract(ProjectsRouteTemplates.FRAME_LIST, pathInfo);
 				String type = httpRequest.getParameter("type");
 				
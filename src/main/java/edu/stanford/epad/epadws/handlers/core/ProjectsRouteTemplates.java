@@ -135,13 +135,18 @@ public class ProjectsRouteTemplates
 	public static final String SERIES_FILE_COMPARE = SERIES_FILE_LIST + "{filename}" + "/file2/" + "{filename2}";
 	public static final String IMAGE_LIST = SERIES + "/images/";
 	public static final String IMAGEFILE_LIST = SERIES + "/imagefiles/";
+	public static final String IMAGE_METADATA = SERIES + "/imagemetadata/";
 	public static final String IMAGE = IMAGE_LIST + "{image}";
 	public static final String IMAGE_AIM_LIST = IMAGE + "/aims/";
+	public static final String IMAGE_PREVIEW = IMAGE + "/preview";
 	public static final String IMAGE_AIM = IMAGE_AIM_LIST + "{aid}";
 	public static final String FRAME_LIST = IMAGE + "/frames/";
 	public static final String FRAME = FRAME_LIST + "{frame}";
 	public static final String FRAME_AIM_LIST = FRAME + "/aims/";
 	public static final String FRAME_AIM = FRAME_AIM_LIST + "{aid}";
+	public static final String FRAME_PIXELS = FRAME + "/pixels";
+	public static final String FRAME_STATISTICS = FRAME + "/statistics";
+	public static final String FRAME_RENDER = FRAME + "/render";
 	public static final String USER_LIST = PROJECT + "/users/";
 	public static final String USER = USER_LIST + "{username}";
 //	public static final String WORKLISTS = PROJECT + "/worklists/";
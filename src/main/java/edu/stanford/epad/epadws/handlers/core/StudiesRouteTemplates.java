@@ -115,6 +115,7 @@ public class StudiesRouteTemplates
 	public static final String SERIES_AIM_LIST = SERIES + "/aims/";
 	public static final String SERIES_AIM = SERIES_AIM_LIST + "{aid}";
 	public static final String IMAGE_LIST = SERIES + "/images/";
+	public static final String IMAGE_METADATA = SERIES + "/imagemetadata/";
 	public static final String IMAGE = IMAGE_LIST + "{image}";
 	public static final String IMAGE_AIM_LIST = IMAGE + "/aims/";
 	public static final String IMAGE_AIM = IMAGE_AIM_LIST + "{aid}";
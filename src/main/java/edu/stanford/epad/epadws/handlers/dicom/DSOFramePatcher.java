@@ -0,0 +1,548 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.dicom;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.DecimalStringAttribute;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.IntegerStringAttribute;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.SequenceAttribute;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedLongAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.dtos.DSOEditRequest;
+import edu.stanford.epad.dtos.DSOEditResult;
+import edu.stanford.epad.dtos.PNGFileProcessingStatus;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadDatabase;
+import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
+import edu.stanford.epad.epadws.handlers.core.ImageReference;
+
+/**
+ * Incremental editing of binary DSOs.
+ * <p>
+ * Instead of downloading every source image and regenerating the whole segmentation, only the existing DSO is
+ * fetched; the bitplanes of the edited frames are overwritten in its pixel data (frames referencing source images not
+ * yet in the DSO are appended), and only the mask PNGs of the edited frames are rewritten. Source series geometry
+ * comes from {@link DSOSeriesGeometry}.
+ * <p>
+ * Any DSO this class cannot patch (multi-segment, fractional, unexpected dimensions) is left alone and null is
+ * returned so that the caller can fall back to the full regeneration path.
+ * 
+ * @see DSOUtil#handleDSOFramesEdit
+ */
+public class DSOFramePatcher
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final String baseDicomDirectory = EPADConfig.getEPADWebServerPNGDir();
+
+	private static final long patchedSeriesExpiryMillis = 60 * 60 * 1000L;
+
+	/**
+	 * DSO series whose mask PNGs were already updated here, so that the pipeline does not rewrite all masks when the
+	 * patched DSO comes back from dcm4chee.
+	 */
+	private static final Map<String, Long> patchedSeries = new ConcurrentHashMap<String, Long>();
+
+	private final static Dcm4CheeDatabaseOperations dcm4CheeDatabaseOperations = Dcm4CheeDatabase.getInstance()
+			.getDcm4CheeDatabaseOperations();
+
+	public static boolean isEnabled()
+	{
+		return "true".equalsIgnoreCase(EPADConfig.getParamValue("IncrementalDSOEdits", "true"));
+	}
+
+	/**
+	 * Called by the pipeline when a DSO arrives. Returns true (once) if the DSO was produced by an incremental edit, in
+	 * which case its mask PNGs are already current.
+	 */
+	public static boolean consumePatchedSeries(String dsoSeriesUID)
+	{
+		Long patchTime = patchedSeries.remove(dsoSeriesUID);
+		return patchTime != null && System.currentTimeMillis() - patchTime < patchedSeriesExpiryMillis;
+	}
+
+	/**
+	 * Patch the edited frames into an existing DSO, keeping its series and instance UIDs.
+	 * 
+	 * @return null if the DSO could not be patched; nothing has been sent to dcm4chee and the PNG mask files are left
+	 *         in place in that case
+	 */
+	public static DSOEditResult patchEditedFrames(DSOEditRequest dsoEditRequest, List<File> editFramesPNGMaskFiles,
+			String referencedSeriesUID)
+	{
+		if (dsoEditRequest.studyUID == null || dsoEditRequest.studyUID.equals(""))
+			dsoEditRequest.studyUID = dcm4CheeDatabaseOperations.getStudyUIDForSeries(referencedSeriesUID);
+		ImageReference imageReference = new ImageReference(dsoEditRequest);
+		if (referencedSeriesUID == null || imageReference.seriesUID.equals("*"))
+			return null;
+
+		DSOSeriesGeometry geometry = DSOSeriesGeometry.getGeometry(imageReference.studyUID, referencedSeriesUID);
+		if (geometry == null) {
+			log.info("No geometry for series " + referencedSeriesUID + ", cannot patch DSO " + imageReference.imageUID);
+			return null;
+		}
+		File dsoFile = null;
+		File patchedDSOFile = null;
+		try {
+			dsoFile = File.createTempFile(imageReference.imageUID, ".dcm");
+			int wadoStatusCode = HttpClientPool.downloadDICOMFileFromWADO(imageReference.studyUID, imageReference.seriesUID,
+					imageReference.imageUID, dsoFile);
+			if (wadoStatusCode != HttpServletResponse.SC_OK) {
+				log.warning("Error downloading DSO " + imageReference.imageUID + ", status:" + wadoStatusCode);
+				return null;
+			}
+			AttributeList dsoAttributes = readAttributeList(dsoFile);
+			PatchableDSO dso = PatchableDSO.create(dsoAttributes, geometry);
+			if (dso == null) {
+				log.info("DSO " + imageReference.imageUID + " cannot be patched incrementally");
+				return null;
+			}
+			for (int i = 0; i < dsoEditRequest.editedFrameNumbers.size(); i++) {
+				int frameNumber = dsoEditRequest.editedFrameNumbers.get(i);
+				if (geometry.getNumberOfFrames() == 1 && frameNumber >= 1)
+					frameNumber = 0; // Same single-frame handling as the full edit
+				String sourceImageUID = geometry.getImageUID(frameNumber);
+				if (sourceImageUID == null) {
+					log.warning("Frame number " + frameNumber + " is out of range for DSO image " + imageReference.imageUID
+							+ " which references " + geometry.getNumberOfFrames() + " frames");
+					return null;
+				}
+				BufferedImage mask = ImageIO.read(editFramesPNGMaskFiles.get(i));
+				if (mask == null || mask.getWidth() != dso.columns || mask.getHeight() != dso.rows) {
+					log.warning("Mask for frame " + frameNumber + " does not match DSO dimensions " + dso.columns + "x" + dso.rows);
+					return null;
+				}
+				if (!dso.setFrame(sourceImageUID, mask))
+					return null;
+				log.info("Patched frame " + frameNumber + " of DSO " + imageReference.imageUID);
+			}
+			dso.commit();
+
+			patchedDSOFile = File.createTempFile(imageReference.imageUID, ".dso");
+			writeAttributeList(dsoAttributes, patchedDSOFile);
+			patchedSeries.put(imageReference.seriesUID, System.currentTimeMillis());
+			log.info("Sending patched DSO " + patchedDSOFile.getAbsolutePath() + " imageUID:" + imageReference.imageUID
+					+ " to dcm4chee...");
+			DCM4CHEEUtil.dcmsnd(patchedDSOFile.getAbsolutePath(), false);
+
+			writeMaskPNGs(imageReference, dsoEditRequest.editedFrameNumbers, geometry, dso);
+			for (File pngFile : editFramesPNGMaskFiles)
+				pngFile.delete();
+
+			int firstFrame = dso.getFirstNonBlankFrame();
+			log.info("Finished patching DSO " + imageReference.imageUID + ", edited frames:"
+					+ dsoEditRequest.editedFrameNumbers.size() + " first frame:" + firstFrame);
+			return new DSOEditResult(imageReference.projectID, imageReference.subjectID, imageReference.studyUID,
+					imageReference.seriesUID, imageReference.imageUID, dsoEditRequest.aimID, firstFrame < 0 ? null : firstFrame);
+		} catch (Exception e) {
+			patchedSeries.remove(imageReference.seriesUID);
+			log.warning("Error patching DSO " + imageReference.imageUID + " in series " + imageReference.seriesUID, e);
+			return null;
+		} finally {
+			if (dsoFile != null)
+				dsoFile.delete();
+			if (patchedDSOFile != null)
+				patchedDSOFile.delete();
+		}
+	}
+
+	private static void writeMaskPNGs(ImageReference imageReference, List<Integer> frameNumbers,
+			DSOSeriesGeometry geometry, PatchableDSO dso)
+	{
+		EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		String pngMaskDirectoryPath = baseDicomDirectory + "/studies/" + imageReference.studyUID + "/series/"
+				+ imageReference.seriesUID + "/images/" + imageReference.imageUID + "/masks/";
+		new File(pngMaskDirectoryPath).mkdirs();
+		for (Integer frameNumber : frameNumbers) {
+			int sourceFrameNumber = geometry.getNumberOfFrames() == 1 ? 0 : frameNumber;
+			String pngMaskFilePath = pngMaskDirectoryPath + frameNumber + ".png";
+			try {
+				File pngMaskFile = new File(pngMaskFilePath);
+				DSOUtil.insertEpadFile(databaseOperations, pngMaskFilePath, 0, imageReference.imageUID);
+				ImageIO.write(dso.getMaskImage(geometry.getImageUID(sourceFrameNumber)), "png", pngMaskFile);
+				databaseOperations.updateEpadFileRow(pngMaskFilePath, PNGFileProcessingStatus.DONE, pngMaskFile.length(), "");
+			} catch (IOException e) {
+				log.warning("Failure writing PNG mask file " + pngMaskFilePath + " for DSO " + imageReference.imageUID, e);
+			}
+		}
+	}
+
+	private static AttributeList readAttributeList(File dicomFile) throws IOException, DicomException
+	{
+		DicomInputStream dicomInputStream = null;
+		try {
+			dicomInputStream = new DicomInputStream(new FileInputStream(dicomFile));
+			AttributeList attributeList = new AttributeList();
+			attributeList.read(dicomInputStream);
+			return attributeList;
+		} finally {
+			IOUtils.closeQuietly(dicomInputStream);
+		}
+	}
+
+	private static void writeAttributeList(AttributeList attributeList, File dicomFile) throws IOException,
+			DicomException
+	{
+		attributeList.removeGroupLengthAttributes();
+		attributeList.removeMetaInformationHeaderAttributes();
+		FileMetaInformation.addFileMetaInformation(attributeList, TransferSyntax.ExplicitVRLittleEndian, "EPAD");
+		attributeList.write(dicomFile, TransferSyntax.ExplicitVRLittleEndian, true, true);
+	}
+
+	/**
+	 * The pixel data and per-frame references of a single-segment, 1 bit per pixel DSO.
+	 */
+	private static class PatchableDSO
+	{
+		final AttributeList dsoAttributes;
+		final DSOSeriesGeometry geometry;
+		final int rows;
+		final int columns;
+		final Map<String, Integer> dsoFrameBySourceImage = new HashMap<String, Integer>();
+		DSOBitplanes bitplanes;
+
+		private PatchableDSO(AttributeList dsoAttributes, DSOSeriesGeometry geometry, int rows, int columns)
+		{
+			this.dsoAttributes = dsoAttributes;
+			this.geometry = geometry;
+			this.rows = rows;
+			this.columns = columns;
+		}
+
+		static PatchableDSO create(AttributeList dsoAttributes, DSOSeriesGeometry geometry) throws DicomException
+		{
+			int bitsAllocated = Attribute.getSingleIntegerValueOrDefault(dsoAttributes, TagFromName.BitsAllocated, 0);
+			int rows = Attribute.getSingleIntegerValueOrDefault(dsoAttributes, TagFromName.Rows, 0);
+			int columns = Attribute.getSingleIntegerValueOrDefault(dsoAttributes, TagFromName.Columns, 0);
+			SequenceAttribute segmentSequence = (SequenceAttribute)dsoAttributes.get(TagFromName.SegmentSequence);
+			SequenceAttribute perFrameSequence = (SequenceAttribute)dsoAttributes
+					.get(TagFromName.PerFrameFunctionalGroupsSequence);
+			Attribute pixelData = dsoAttributes.get(TagFromName.PixelData);
+			if (bitsAllocated != 1 || rows == 0 || columns == 0 || pixelData == null || perFrameSequence == null
+					|| (segmentSequence != null && segmentSequence.getNumberOfItems() > 1))
+				return null;
+
+			PatchableDSO dso = new PatchableDSO(dsoAttributes, geometry, rows, columns);
+			int numberOfFrames = Attribute.getSingleIntegerValueOrDefault(dsoAttributes, TagFromName.NumberOfFrames, 1);
+			if (perFrameSequence.getNumberOfItems() != numberOfFrames)
+				return null;
+			for (int i = 0; i < numberOfFrames; i++) {
+				String sourceImageUID = getReferencedImageUID(SequenceAttribute.getAttributeListFromSelectedItemWithinSequence(
+						perFrameSequence, i));
+				if (sourceImageUID == null || geometry.getFrameNumber(sourceImageUID) < 0)
+					return null; // References something outside the source series
+				dso.dsoFrameBySourceImage.put(sourceImageUID, i);
+			}
+			dso.bitplanes = new DSOBitplanes(rows, columns, numberOfFrames, getPixelBytes(pixelData));
+			if (!dso.bitplanes.isComplete())
+				return null;
+			return dso;
+		}
+
+		/**
+		 * Overwrite the bitplane of the DSO frame for a source image, appending a frame if the DSO has none for it yet.
+		 */
+		boolean setFrame(String sourceImageUID, BufferedImage mask)
+		{
+			Integer dsoFrame = dsoFrameBySourceImage.get(sourceImageUID);
+			if (dsoFrame == null) {
+				dsoFrame = appendFrame(sourceImageUID);
+				if (dsoFrame == null)
+					return false;
+			}
+			bitplanes.setFrame(dsoFrame, mask);
+			return true;
+		}
+
+		BufferedImage getMaskImage(String sourceImageUID)
+		{
+			Integer dsoFrame = dsoFrameBySourceImage.get(sourceImageUID);
+			if (dsoFrame == null)
+				return new BufferedImage(columns, rows, BufferedImage.TYPE_INT_ARGB);
+			return bitplanes.getFrame(dsoFrame);
+		}
+
+		/**
+		 * @return the lowest source frame number with a non-empty mask, or -1 if every frame is blank
+		 */
+		int getFirstNonBlankFrame()
+		{
+			int firstFrame = -1;
+			for (Map.Entry<String, Integer> entry : dsoFrameBySourceImage.entrySet()) {
+				int frameNumber = geometry.getFrameNumber(entry.getKey());
+				if ((firstFrame == -1 || frameNumber < firstFrame) && !bitplanes.isBlank(entry.getValue()))
+					firstFrame = frameNumber;
+			}
+			return firstFrame;
+		}
+
+		/**
+		 * Write the patched pixel data and frame count back into the attribute list.
+		 */
+		void commit() throws DicomException
+		{
+			OtherByteAttribute pixelData = new OtherByteAttribute(TagFromName.PixelData);
+			pixelData.setValues(bitplanes.getPixels());
+			dsoAttributes.put(pixelData);
+			Attribute numberOfFramesAttribute = new IntegerStringAttribute(TagFromName.NumberOfFrames);
+			numberOfFramesAttribute.addValue(bitplanes.getNumberOfFrames());
+			dsoAttributes.put(numberOfFramesAttribute);
+		}
+
+		private Integer appendFrame(String sourceImageUID)
+		{
+			String position = geometry.getImagePositionPatient(sourceImageUID);
+			if (position == null)
+				return null;
+			try {
+				SequenceAttribute perFrameSequence = (SequenceAttribute)dsoAttributes
+						.get(TagFromName.PerFrameFunctionalGroupsSequence);
+				// New frames follow the dimension index layout of the first frame, with the slice as last index
+				int[] templateIndexValues = null;
+				SequenceAttribute templateFrameContent = (SequenceAttribute)SequenceAttribute
+						.getAttributeListFromSelectedItemWithinSequence(perFrameSequence, 0).get(TagFromName.FrameContentSequence);
+				if (templateFrameContent != null) {
+					Attribute templateIndex = SequenceAttribute.getNamedAttributeFromWithinSequenceWithSingleItem(
+							templateFrameContent, TagFromName.DimensionIndexValues);
+					if (templateIndex != null)
+						templateIndexValues = templateIndex.getIntegerValues();
+				}
+				int frameNumber = geometry.getFrameNumber(sourceImageUID);
+
+				AttributeList sourceImageItem = new AttributeList();
+				putUID(sourceImageItem, TagFromName.ReferencedSOPClassUID, geometry.getSOPClassUID(sourceImageUID));
+				putUID(sourceImageItem, TagFromName.ReferencedSOPInstanceUID, sourceImageUID);
+				AttributeList derivationImageItem = new AttributeList();
+				derivationImageItem.put(singleItemSequence(TagFromName.SourceImageSequence, sourceImageItem));
+
+				AttributeList frameContentItem = new AttributeList();
+				if (templateIndexValues != null && templateIndexValues.length > 0) {
+					Attribute dimensionIndexValues = new UnsignedLongAttribute(TagFromName.DimensionIndexValues);
+					for (int i = 0; i < templateIndexValues.length - 1; i++)
+						dimensionIndexValues.addValue(templateIndexValues[i]);
+					dimensionIndexValues.addValue(frameNumber + 1);
+					frameContentItem.put(dimensionIndexValues);
+				}
+
+				AttributeList planePositionItem = new AttributeList();
+				Attribute imagePositionPatient = new DecimalStringAttribute(TagFromName.ImagePositionPatient);
+				for (String coordinate : position.split("\\\\"))
+					imagePositionPatient.addValue(coordinate);
+				planePositionItem.put(imagePositionPatient);
+
+				AttributeList segmentIdentificationItem = new AttributeList();
+				Attribute referencedSegmentNumber = new UnsignedShortAttribute(TagFromName.ReferencedSegmentNumber);
+				referencedSegmentNumber.addValue(1);
+				segmentIdentificationItem.put(referencedSegmentNumber);
+
+				AttributeList frameItem = new AttributeList();
+				frameItem.put(singleItemSequence(TagFromName.DerivationImageSequence, derivationImageItem));
+				frameItem.put(singleItemSequence(TagFromName.FrameContentSequence, frameContentItem));
+				frameItem.put(singleItemSequence(TagFromName.PlanePositionSequence, planePositionItem));
+				frameItem.put(singleItemSequence(TagFromName.SegmentIdentificationSequence, segmentIdentificationItem));
+				perFrameSequence.addItem(frameItem);
+				addReferencedInstance(sourceImageUID);
+
+				int dsoFrame = bitplanes.appendFrame();
+				dsoFrameBySourceImage.put(sourceImageUID, dsoFrame);
+				return dsoFrame;
+			} catch (DicomException e) {
+				log.warning("Error adding frame for image " + sourceImageUID + " to DSO", e);
+				return null;
+			}
+		}
+
+		private void addReferencedInstance(String sourceImageUID) throws DicomException
+		{
+			SequenceAttribute referencedSeriesSequence = (SequenceAttribute)dsoAttributes
+					.get(TagFromName.ReferencedSeriesSequence);
+			if (referencedSeriesSequence == null || referencedSeriesSequence.getNumberOfItems() == 0)
+				return;
+			AttributeList referencedSeriesItem = SequenceAttribute.getAttributeListFromSelectedItemWithinSequence(
+					referencedSeriesSequence, 0);
+			SequenceAttribute referencedInstanceSequence = (SequenceAttribute)referencedSeriesItem
+					.get(TagFromName.ReferencedInstanceSequence);
+			if (referencedInstanceSequence == null)
+				return;
+			AttributeList referencedInstanceItem = new AttributeList();
+			putUID(referencedInstanceItem, TagFromName.ReferencedSOPClassUID, geometry.getSOPClassUID(sourceImageUID));
+			putUID(referencedInstanceItem, TagFromName.ReferencedSOPInstanceUID, sourceImageUID);
+			referencedInstanceSequence.addItem(referencedInstanceItem);
+		}
+
+		private static String getReferencedImageUID(AttributeList frameItem)
+		{
+			SequenceAttribute derivationImageSequence = (SequenceAttribute)frameItem.get(TagFromName.DerivationImageSequence);
+			if (derivationImageSequence == null || derivationImageSequence.getNumberOfItems() == 0)
+				return null;
+			AttributeList derivationImageItem = SequenceAttribute.getAttributeListFromSelectedItemWithinSequence(
+					derivationImageSequence, 0);
+			String[] referencedUIDs = SequenceAttribute
+					.getArrayOfSingleStringValueOrEmptyStringOfNamedAttributeWithinSequenceItems(derivationImageItem,
+							TagFromName.SourceImageSequence, TagFromName.ReferencedSOPInstanceUID);
+			if (referencedUIDs == null || referencedUIDs.length == 0 || referencedUIDs[0].length() == 0)
+				return null;
+			return referencedUIDs[0];
+		}
+
+		private static byte[] getPixelBytes(Attribute pixelData) throws DicomException
+		{
+			if (pixelData instanceof OtherWordAttribute) { // Implicit VR files store pixel data as little endian words
+				short[] words = pixelData.getShortValues();
+				byte[] bytes = new byte[words.length * 2];
+				for (int i = 0; i < words.length; i++) {
+					bytes[i * 2] = (byte)words[i];
+					bytes[i * 2 + 1] = (byte)(words[i] >> 8);
+				}
+				return bytes;
+			}
+			return pixelData.getByteValues();
+		}
+
+		private static SequenceAttribute singleItemSequence(AttributeTag tag, AttributeList item)
+		{
+			SequenceAttribute sequence = new SequenceAttribute(tag);
+			sequence.addItem(item);
+			return sequence;
+		}
+
+		private static void putUID(AttributeList attributeList, AttributeTag tag, String uid) throws DicomException
+		{
+			Attribute attribute = new UniqueIdentifierAttribute(tag);
+			attribute.addValue(uid == null ? "" : uid);
+			attributeList.put(attribute);
+		}
+	}
+}
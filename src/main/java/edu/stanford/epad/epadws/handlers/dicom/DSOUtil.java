@@ -134,6 +134,10 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -186,7 +190,9 @@ import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatch;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
 import edu.stanford.epad.epadws.models.EpadFile;
 import edu.stanford.epad.epadws.models.FileType;
@@ -231,7 +237,7 @@ public class DSOUtil
 				try {
 					File temporaryDICOMFile = File.createTempFile(imageDescription.imageUID, ".dcm");
 					//log.info("Downloading source DICOM file for image " + imageDescription.imageUID);
-					DCM4CHEEUtil.downloadDICOMFileFromWADO(dsoEditRequest.studyUID, dsoEditRequest.seriesUID, imageDescription.imageUID, temporaryDICOMFile);
+					HttpClientPool.downloadDICOMFileFromWADO(dsoEditRequest.studyUID, dsoEditRequest.seriesUID, imageDescription.imageUID, temporaryDICOMFile);
 					if (width == 0) {
 						DicomInputStream dicomInputStream = null;
 						try {
@@ -373,7 +379,7 @@ public class DSOUtil
 				try {
 					File temporaryDICOMFile = File.createTempFile(imageDescription.imageUID, ".dcm");
 					//log.info("Downloading source DICOM file for image " + imageDescription.imageUID);
-					DCM4CHEEUtil.downloadDICOMFileFromWADO(dsoEditRequest.studyUID, dsoEditRequest.seriesUID, imageDescription.imageUID, temporaryDICOMFile);
+					HttpClientPool.downloadDICOMFileFromWADO(dsoEditRequest.studyUID, dsoEditRequest.seriesUID, imageDescription.imageUID, temporaryDICOMFile);
 //					if (width == 0) {
 //						DicomInputStream dicomInputStream = null;
 //						try {
@@ -592,6 +598,7 @@ public class DSOUtil
 	{
 		String pngFilePath = "";
 		EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+		EpadFilesBatch epadFilesBatch = new EpadFilesBatch(databaseOperations);
 		try {
 			int numberOfFrames = 1;
 			
@@ -621,10 +628,10 @@ public class DSOUtil
 					pngFilePath = pngDirectoryPath + frameNumber + ".png";
 					File pngFile = new File(pngFilePath);
 					try {
-						insertEpadFile(databaseOperations, pngFilePath, 0, imageUID);
+						epadFilesBatch.insert(createEpadFileRow(pngFilePath, 0, imageUID));
 						log.info("Writing PNG frame " + frameNumber + " in multi-frame image " + imageUID + " in series " + seriesUID);
 						ImageIO.write(bufferedImage, "png", pngFile);
-						databaseOperations.updateEpadFileRow(pngFilePath, PNGFileProcessingStatus.DONE, pngFile.length(), "");
+						epadFilesBatch.update(pngFilePath, PNGFileProcessingStatus.DONE, pngFile.length(), "");
 					} catch (IOException e) {
 						log.warning("Failure writing PNG file " + pngFilePath + " for frame " + frameNumber
 								+ " in multi-frame image " + imageUID + " in series " + seriesUID, e);
@@ -641,35 +648,51 @@ public class DSOUtil
 				//old version convertFileToEightBitImage(dicomFile.getAbsolutePath(), pngFilePath, "png", 0);
 				
 				SourceImage sImg=new SourceImage(dicomFile.getAbsolutePath());
+				// Stored pixel values go to a binary file next to the PNGs instead of JSON in epaddb
+				PixelValueStore.Writer pixelWriter = PixelValueStore.createWriter(studyUID, seriesUID, imageUID,
+						sImg.getNumberOfBufferedImages(), sImg.getHeight(), sImg.getWidth(), getPixelSampleType(sImg));
 				File[] pngs = pngFilesDirectory.listFiles();
-				for (File png: pngs)
-				{
-					if (!png.getName().endsWith(".png"))
-					{
-						deleteQuietly(png);
-					}
-					else
+				try {
+					for (File png: pngs)
 					{
-						String name = png.getName().replace("0_","");
-						File newFile = new File(pngDirectoryPath, name);
-						png.renameTo(newFile);
-						insertEpadFile(databaseOperations, newFile.getAbsolutePath(), 0, imageUID);
-						int frameNum=0;
-						try{ 
-							log.info("name is:"+name.replace(".png", ""));
-							frameNum=Integer.parseInt(name.replace(".png", ""));
-							databaseOperations.insertPixelValues(newFile.getAbsolutePath(), frameNum, getPixelValues(sImg,frameNum-1),imageUID);
-						} catch (NumberFormatException ne) {
-							log.warning("Could not parse the file name to get the frame number");
+						if (png.getName().startsWith(PixelValueStore.PIXEL_FILE_NAME))
+						{
+							continue;
+						}
+						else if (!png.getName().endsWith(".png"))
+						{
+							deleteQuietly(png);
+						}
+						else
+						{
+							String name = png.getName().replace("0_","");
+							File newFile = new File(pngDirectoryPath, name);
+							png.renameTo(newFile);
+							epadFilesBatch.insert(createEpadFileRow(newFile.getAbsolutePath(), 0, imageUID));
+							int frameNum=0;
+							try{ 
+								log.info("name is:"+name.replace(".png", ""));
+								frameNum=Integer.parseInt(name.replace(".png", ""));
+								pixelWriter.writeFrame(frameNum-1, getStoredPixelValues(sImg,frameNum-1));
+							} catch (NumberFormatException ne) {
+								log.warning("Could not parse the file name to get the frame number");
+							}
+							
+							epadFilesBatch.update(newFile.getAbsolutePath(), PNGFileProcessingStatus.DONE,png.length(), "");
 						}
-						
-						databaseOperations.updateEpadFileRow(newFile.getAbsolutePath(), PNGFileProcessingStatus.DONE,png.length(), "");
 					}
+					pixelWriter.close();
+				} catch (Exception e) {
+					pixelWriter.abort();
+					throw e;
 				}
 			}
+			epadFilesBatch.flush();
 			log.info("Finished writing PNGs for multi-frame DICOM " + imageUID + " in series " + seriesUID);
 		} catch (Exception e) {
 			log.warning("Exception writing multi-frame PNGs", e);
+			// Record the frames written so far before marking the failed one
+			epadFilesBatch.flush();
 			insertEpadFile(databaseOperations, pngFilePath, 0, imageUID);
 			databaseOperations.updateEpadFileRow(pngFilePath, PNGFileProcessingStatus.ERROR, 0,
 					e.getMessage());
@@ -679,6 +702,152 @@ public class DSOUtil
 	}
 	
 	public static String getPixelValues(SourceImage sImg, int frameNum){
+		return JSON.toString(getStoredPixelValues(sImg, frameNum));
+	}
+
+	/**
+	 * Smallest store sample type that holds the stored values of the image without loss.
+	 */
+	static PixelValueStore.SampleType getPixelSampleType(SourceImage sImg)
+	{
+		int dataType = sImg.getBufferedImage(0).getSampleModel().getDataType();
+		if (dataType == DataBuffer.TYPE_FLOAT)
+			return PixelValueStore.SampleType.FLOAT32;
+		if (dataType == DataBuffer.TYPE_DOUBLE)
+			return PixelValueStore.SampleType.FLOAT64;
+		if (dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_SHORT
+				|| (dataType == DataBuffer.TYPE_USHORT && sImg.isSigned()))
+			return PixelValueStore.SampleType.INT16;
+		return PixelValueStore.SampleType.INT32;
+	}
+
+	// Decodes in progress by imageUID, so concurrent requests for an image without a store decode it once while
+	// requests for other images go ahead
+	private static final ConcurrentHashMap<String, FutureTask<PixelValueStore>> pixelValueStoreTasks = new ConcurrentHashMap<>();
+
+	/**
+	 * Open the pixel value store of an image, decoding it from dcm4chee first if it was not stored at ingest (single
+	 * frame images, multi-frame images processed before the store existed).
+	 */
+	public static PixelValueStore getOrCreatePixelValueStore(final String studyUID, final String seriesUID,
+			final String imageUID) throws Exception
+	{
+		PixelValueStore pixelValueStore = PixelValueStore.open(studyUID, seriesUID, imageUID);
+		if (pixelValueStore != null)
+			return pixelValueStore;
+		FutureTask<PixelValueStore> task = new FutureTask<PixelValueStore>(new Callable<PixelValueStore>() {
+			@Override
+			public PixelValueStore call() throws Exception
+			{
+				return createPixelValueStore(studyUID, seriesUID, imageUID);
+			}
+		});
+		FutureTask<PixelValueStore> runningTask = pixelValueStoreTasks.putIfAbsent(imageUID, task);
+		if (runningTask == null) {
+			runningTask = task;
+			try {
+				task.run();
+			} finally {
+				pixelValueStoreTasks.remove(imageUID, task);
+			}
+		}
+		try {
+			return runningTask.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
+	private static PixelValueStore createPixelValueStore(String studyUID, String seriesUID, String imageUID)
+			throws Exception
+	{
+		// Another request may have finished decoding the image since this one looked
+		PixelValueStore pixelValueStore = PixelValueStore.open(studyUID, seriesUID, imageUID);
+		if (pixelValueStore != null)
+			return pixelValueStore;
+		File temporaryDICOMFile = File.createTempFile(imageUID, ".dcm");
+		try {
+			HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDICOMFile);
+			SourceImage sImg = new SourceImage(temporaryDICOMFile.getAbsolutePath());
+			PixelValueStore.Writer pixelWriter = PixelValueStore.createWriter(studyUID, seriesUID, imageUID,
+					sImg.getNumberOfBufferedImages(), sImg.getHeight(), sImg.getWidth(), getPixelSampleType(sImg));
+			try {
+				for (int frameNumber = 0; frameNumber < sImg.getNumberOfBufferedImages(); frameNumber++)
+					pixelWriter.writeFrame(frameNumber, getStoredPixelValues(sImg, frameNumber));
+				pixelWriter.close();
+			} catch (Exception e) {
+				pixelWriter.abort();
+				throw e;
+			}
+		} finally {
+			temporaryDICOMFile.delete();
+		}
+		return PixelValueStore.open(studyUID, seriesUID, imageUID);
+	}
+
+	/**
+	 * Rescale slope and intercept of each frame of an enhanced multi-frame image, from its per-frame functional
+	 * groups or, for frames without one, the shared functional groups.
+	 * 
+	 * @return slopes and intercepts by frame, or null if the image has no pixel value transformation functional group
+	 */
+	public static double[][] getFrameRescales(String studyUID, String seriesUID, String imageUID) throws Exception
+	{
+		File temporaryDICOMFile = File.createTempFile(imageUID, ".dcm");
+		DicomInputStream dicomInputStream = null;
+		try {
+			HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDICOMFile);
+			dicomInputStream = new DicomInputStream(new FileInputStream(temporaryDICOMFile));
+			AttributeList dicomAttributes = new AttributeList();
+			dicomAttributes.read(dicomInputStream, TagFromName.PixelData);
+			return getFrameRescales(dicomAttributes);
+		} finally {
+			IOUtils.closeQuietly(dicomInputStream);
+			temporaryDICOMFile.delete();
+		}
+	}
+
+	static double[][] getFrameRescales(AttributeList dicomAttributes)
+	{
+		SequenceAttribute perFrameSeq = (SequenceAttribute)dicomAttributes.get(TagFromName.PerFrameFunctionalGroupsSequence);
+		if (perFrameSeq == null)
+			return null;
+		AttributeList sharedTransformation = getPixelValueTransformation(getSequenceItem(
+				(SequenceAttribute)dicomAttributes.get(TagFromName.SharedFunctionalGroupsSequence), 0));
+		int numberOfFrames = perFrameSeq.getNumberOfItems();
+		double[][] rescales = new double[2][numberOfFrames];
+		boolean found = false;
+		for (int i = 0; i < numberOfFrames; i++) {
+			AttributeList transformation = getPixelValueTransformation(getSequenceItem(perFrameSeq, i));
+			if (transformation == null)
+				transformation = sharedTransformation;
+			rescales[0][i] = 1;
+			if (transformation != null) {
+				found = true;
+				rescales[0][i] = Attribute.getSingleDoubleValueOrDefault(transformation, TagFromName.RescaleSlope, 1);
+				rescales[1][i] = Attribute.getSingleDoubleValueOrDefault(transformation, TagFromName.RescaleIntercept, 0);
+			}
+		}
+		return found ? rescales : null;
+	}
+
+	private static AttributeList getPixelValueTransformation(AttributeList functionalGroups)
+	{
+		if (functionalGroups == null)
+			return null;
+		return getSequenceItem((SequenceAttribute)functionalGroups.get(TagFromName.PixelValueTransformationSequence), 0);
+	}
+
+	private static AttributeList getSequenceItem(SequenceAttribute sequence, int index)
+	{
+		if (sequence == null || index >= sequence.getNumberOfItems())
+			return null;
+		return sequence.getItem(index).getAttributeList();
+	}
+
+	public static double[] getStoredPixelValues(SourceImage sImg, int frameNum){
 		int signMask=0;
 		int signBit=0;
 		
@@ -724,7 +893,7 @@ public class DSOUtil
 			}
 			
 		}
-		return JSON.toString(storedPixelValueArray);
+		return storedPixelValueArray;
 		
 	}
 	
@@ -791,9 +960,11 @@ public class DSOUtil
 		log.info("Start generating DSO PNGs: " + dsoFile.getName());
 		String seriesUID = "";
 		File tmpDSO = File.createTempFile("DSO_" + dsoFile.getName(), ".dcm");
+		EpadFilesBatch epadFilesBatch = null;
 		try {
 			EPADFileUtils.copyFile(dsoFile, tmpDSO);
 			EpadDatabaseOperations databaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
+			epadFilesBatch = new EpadFilesBatch(databaseOperations);
 			EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 			DicomSegmentationObject dso = new DicomSegmentationObject();
 			SourceImage sourceDSOImage = dso.convert(tmpDSO.getAbsolutePath());
@@ -935,10 +1106,10 @@ public class DSOUtil
 						File pngMaskFile = new File(pngMaskFilePath);
 						log.info(" pngMaskFile "+ pngMaskFile.getAbsolutePath());
 						
-						insertEpadFile(databaseOperations, pngMaskFilePath, pngMaskFile.length(), imageUID);
+						epadFilesBatch.insert(createEpadFileRow(pngMaskFilePath, pngMaskFile.length(), imageUID));
 						log.info("Writing PNG mask file frame " + frameNumber + " of " + numberOfFrames + " for DSO " + imageUID + " in series " + seriesUID + " file:" + pngMaskFilePath + " nonBlank:" + nonBlank.get());
 						ImageIO.write(bufferedImageWithTransparency, "png", pngMaskFile);
-						databaseOperations.updateEpadFileRow(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
+						epadFilesBatch.update(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
 					} catch (Exception e) {
 						log.warning("Failure writing PNG mask file " + pngMaskFilePath + " for frame " + frameNumber + " of DSO "
 								+ imageUID + " in series " + seriesUID, e);
@@ -1000,10 +1171,10 @@ public class DSOUtil
 					
 					File pngMaskFile = new File(pngMaskFilePath);
 					try {
-						insertEpadFile(databaseOperations, pngMaskFilePath, pngMaskFile.length(), imageUID);
+						epadFilesBatch.insert(createEpadFileRow(pngMaskFilePath, pngMaskFile.length(), imageUID));
 						log.info("Writing PNG mask file frame " + frameNumber + " of " + numberOfFrames + " for DSO " + imageUID + " in series " + seriesUID + " file:" + pngMaskFilePath + " nonBlank:" + nonBlank.get());
 						ImageIO.write(bufferedImageWithTransparency, "png", pngMaskFile);
-						databaseOperations.updateEpadFileRow(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
+						epadFilesBatch.update(pngMaskFilePath, PNGFileProcessingStatus.DONE, 0, "");
 					} catch (IOException e) {
 						log.warning("Failure writing PNG mask file " + pngMaskFilePath + " for frame " + frameNumber + " of DSO "
 								+ imageUID + " in series " + seriesUID, e);
@@ -1011,6 +1182,7 @@ public class DSOUtil
 				}
 			
 			}
+			epadFilesBatch.flush();
 	
 			EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 			List<EPADAIM> aims = epadDatabaseOperations.getAIMsByDSOSeries(seriesUID);
@@ -1030,6 +1202,8 @@ public class DSOUtil
 			log.warning("Exception writing DSO PNG masks, series:" + seriesUID, e);
 			throw new Exception("Exception writing DSO PNG masks, series:" + seriesUID, e);
 		} finally {
+			if (epadFilesBatch != null)
+				epadFilesBatch.flush();
 			try {
 				tmpDSO.delete();
 			} catch (Exception e) {};
@@ -1141,18 +1315,30 @@ public class DSOUtil
 //						aim.dsoFrameNo = dsoEditRequest.editedFrameNumbers.get(0);
 //						epadDatabaseOperations.updateAIMDSOFrameNo(aim.aimID, aim.dsoFrameNo);
 //					}
-					DSOEditResult dsoEditResult = DSOUtil.createEditedDSO(dsoEditRequest, editedFramesPNGMaskFiles, aim.seriesUID);
+					DSOEditResult dsoEditResult = null;
+					boolean patched = false;
+					if (DSOFramePatcher.isEnabled())
+					{
+						// Only touch the edited frames if possible, otherwise regenerate the whole DSO
+						dsoEditResult = DSOFramePatcher.patchEditedFrames(dsoEditRequest, editedFramesPNGMaskFiles, aim.seriesUID);
+						patched = dsoEditResult != null;
+					}
+					if (dsoEditResult == null)
+						dsoEditResult = DSOUtil.createEditedDSO(dsoEditRequest, editedFramesPNGMaskFiles, aim.seriesUID);
 					if (dsoEditResult != null)
 					{
-						log.info("Copying edited frame pngs: " + dsoEditRequest.editedFrameNumbers.size());
-						for (int i = 0; i < dsoEditRequest.editedFrameNumbers.size(); i++)
+						if (!patched)
 						{
-							Integer frameNumber = dsoEditRequest.editedFrameNumbers.get(i);
-							String pngMaskDirectoryPath = baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/"
-									+ imageUID + "/masks/";
-							String pngMaskFilePath = pngMaskDirectoryPath + frameNumber + ".png";
-							EPADFileUtils.copyFile(editedFramesPNGMaskFiles.get(i), new File(pngMaskFilePath));
-							editedFramesPNGMaskFiles.get(i).delete();
+							log.info("Copying edited frame pngs: " + dsoEditRequest.editedFrameNumbers.size());
+							for (int i = 0; i < dsoEditRequest.editedFrameNumbers.size(); i++)
+							{
+								Integer frameNumber = dsoEditRequest.editedFrameNumbers.get(i);
+								String pngMaskDirectoryPath = baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/"
+										+ imageUID + "/masks/";
+								String pngMaskFilePath = pngMaskDirectoryPath + frameNumber + ".png";
+								EPADFileUtils.copyFile(editedFramesPNGMaskFiles.get(i), new File(pngMaskFilePath));
+								editedFramesPNGMaskFiles.get(i).delete();
+							}
 						}
 						if (dsoEditResult.aimID != null && dsoEditResult.aimID.length() > 0)
 						{
@@ -1345,9 +1531,9 @@ public class DSOUtil
 				if (imageDescriptions2.size() > 1)
 					throw new Exception("Invalid DSO " + seriesUID2 + " has multiple images");
 				File dicom1 = new File(inputDir, imageDescriptions1.get(0).imageUID + ".dcm");
-				DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID1, imageDescriptions1.get(0).imageUID, dicom1);
+				HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID1, imageDescriptions1.get(0).imageUID, dicom1);
 				File dicom2 = new File(inputDir, imageDescriptions2.get(0).imageUID + ".dcm");
-				DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID2, imageDescriptions2.get(0).imageUID, dicom2);
+				HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID2, imageDescriptions2.get(0).imageUID, dicom2);
 				niftis = DicomFileUtil.convertDicomsToNifti(inputDir);
 				if (niftis.length != 2)
 					throw new Exception("Error converting dicoms to nifi");
@@ -1412,7 +1598,7 @@ public class DSOUtil
 					File temporaryDICOMFile = File.createTempFile(sourceImageUID, ".dcm");
 //					log.info("Downloading source DICOM file for image " + sourceImageUID + " referenced by DSO image "
 //							+ dsoImageReference.imageUID);
-					DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, sourceSeriesUID, sourceImageUID, temporaryDICOMFile);
+					HttpClientPool.downloadDICOMFileFromWADO(studyUID, sourceSeriesUID, sourceImageUID, temporaryDICOMFile);
 					dicomFilePaths.add(temporaryDICOMFile.getAbsolutePath());
 				} catch (IOException e) {
 					log.warning("Error downloading DICOM file for referenced image " + sourceImageUID + " for DSO "
@@ -1579,11 +1765,16 @@ public class DSOUtil
 		return filePaths;
 	}
 
-	private static void insertEpadFile(EpadDatabaseOperations epadDatabaseOperations, String outputFilePath,
+	static void insertEpadFile(EpadDatabaseOperations epadDatabaseOperations, String outputFilePath,
 			long fileSize, String imageUID)
+	{
+		epadDatabaseOperations.insertEpadFileRow(createEpadFileRow(outputFilePath, fileSize, imageUID));
+	}
+
+	static Map<String, String> createEpadFileRow(String outputFilePath, long fileSize, String imageUID)
 	{
 		Map<String, String> epadFilesRow = Dcm4CheeDatabaseUtils.createEPadFilesRowData(outputFilePath, fileSize, imageUID);
 		epadFilesRow.put("file_status", "" + PNGFileProcessingStatus.IN_PIPELINE.getCode());
-		epadDatabaseOperations.insertEpadFileRow(epadFilesRow);
+		return epadFilesRow;
 	}
 }
@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.dicom;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADFileUtils;
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Renders windowed 8-bit JPEG or PNG images of frames from their stored pixel values.
+ * <p>
+ * Rendered files are kept in a directory shared by all images, keyed by the rendering parameters. The directory is
+ * bounded by size (RenderCacheSizeMB), the least recently used renders are deleted first. It is outside the resources
+ * directory, so renders are only served through the render route and its access checks.
+ * <p>
+ * Renders are returned as streams opened under the cache lock. An open file stays readable after it is evicted or
+ * replaced by a new render, so a request never loses the file it was given.
+ */
+public class FrameRenderer
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final File renderDirectory = new File(EPADConfig.getParamValue("RenderCacheDir",
+			EPADConfig.getEPADWebServerBaseDir() + "renders"));
+
+	// Where renders were kept before, inside the publicly served PNG directory
+	private static final File oldRenderDirectory = new File(EPADConfig.getEPADWebServerPNGDir() + "renders");
+
+	private static final long maxCacheBytes = Long.parseLong(EPADConfig.getParamValue("RenderCacheSizeMB", "512")) * 1024 * 1024;
+
+	private static final float jpegQuality = Float.parseFloat(EPADConfig.getParamValue("RenderJPEGQuality", "0.85"));
+
+	// Rendered file name to size, least recently used first
+	private static final LinkedHashMap<String, Long> cachedFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private static long cachedBytes = 0;
+	private static boolean cacheLoaded = false;
+
+	/**
+	 * @param size longest side of the output in pixels, 0 for the stored size (never enlarged)
+	 * @param format jpeg or png
+	 * @return the rendered image open for reading, from the cache when these parameters were rendered before. The
+	 *         caller closes it.
+	 */
+	public static FileInputStream render(PixelValueStore pixelValueStore, String imageUID, int frameNumber, double rescaleSlope,
+			double rescaleIntercept, double windowCenter, double windowWidth, int size, String format) throws IOException
+	{
+		String name = imageUID + "_" + frameNumber + "_" + windowCenter + "_" + windowWidth + "_" + size + "." + format;
+		File renderFile = new File(renderDirectory, name);
+		synchronized (cachedFiles) {
+			loadCache();
+			if (cachedFiles.get(name) != null && renderFile.exists())
+				return new FileInputStream(renderFile);
+		}
+
+		BufferedImage image = window(pixelValueStore, frameNumber, rescaleSlope, rescaleIntercept, windowCenter,
+				windowWidth);
+		image = scale(image, size);
+		File temporaryFile = File.createTempFile(name, ".tmp", renderDirectory);
+		try {
+			write(image, format, temporaryFile);
+			synchronized (cachedFiles) {
+				renderFile.delete();
+				if (!temporaryFile.renameTo(renderFile))
+					throw new IOException("Error moving render " + temporaryFile.getAbsolutePath() + " to " + renderFile);
+				Long previous = cachedFiles.put(name, renderFile.length());
+				if (previous != null)
+					cachedBytes -= previous;
+				cachedBytes += renderFile.length();
+				// Open before evicting, the new render may be evicted right away when the cache is full
+				FileInputStream renderStream = new FileInputStream(renderFile);
+				evict();
+				return renderStream;
+			}
+		} finally {
+			temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * Drop all renders of an image, e.g. when it is deleted or reprocessed.
+	 */
+	public static void invalidate(String imageUID)
+	{
+		synchronized (cachedFiles) {
+			loadCache();
+			Iterator<Map.Entry<String, Long>> entries = cachedFiles.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, Long> entry = entries.next();
+				if (entry.getKey().startsWith(imageUID + "_")) {
+					new File(renderDirectory, entry.getKey()).delete();
+					cachedBytes -= entry.getValue();
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render a downsampled preview of decoded stored values, without going through the cache.
+	 */
+	public static BufferedImage renderPreview(double[] values, int rows, int columns, double rescaleSlope,
+			double rescaleIntercept, double windowCenter, double windowWidth, int size)
+	{
+		BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = new byte[columns];
+		double[] row = new double[columns];
+		for (int y = 0; y < rows; y++) {
+			System.arraycopy(values, y * columns, row, 0, columns);
+			windowRow(row, rescaleSlope, rescaleIntercept, windowCenter, windowWidth, pixels);
+			image.getRaster().setDataElements(0, y, columns, 1, pixels);
+		}
+		return scale(image, size);
+	}
+
+	static BufferedImage window(PixelValueStore pixelValueStore, int frameNumber, double rescaleSlope,
+			double rescaleIntercept, double windowCenter, double windowWidth)
+	{
+		int rows = pixelValueStore.getRows();
+		int columns = pixelValueStore.getColumns();
+		BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] pixels = new byte[columns];
+		double[] values = new double[columns];
+		for (int y = 0; y < rows; y++) {
+			pixelValueStore.getRow(frameNumber, y, 0, columns, values, 0);
+			windowRow(values, rescaleSlope, rescaleIntercept, windowCenter, windowWidth, pixels);
+			image.getRaster().setDataElements(0, y, columns, 1, pixels);
+		}
+		return image;
+	}
+
+	/**
+	 * Linear VOI LUT function of DICOM PS3.3 C.11.2.1.2, applied to the rescaled values.
+	 */
+	private static void windowRow(double[] values, double rescaleSlope, double rescaleIntercept, double windowCenter,
+			double windowWidth, byte[] pixels)
+	{
+		double width = Math.max(windowWidth, 1);
+		double low = windowCenter - 0.5 - (width - 1) / 2;
+		double high = windowCenter - 0.5 + (width - 1) / 2;
+		for (int x = 0; x < pixels.length; x++) {
+			double value = values[x] * rescaleSlope + rescaleIntercept;
+			int gray;
+			if (value <= low)
+				gray = 0;
+			else if (value > high)
+				gray = 255;
+			else
+				gray = (int)Math.round(((value - (windowCenter - 0.5)) / (width - 1) + 0.5) * 255);
+			pixels[x] = (byte)Math.max(0, Math.min(255, gray));
+		}
+	}
+
+	private static BufferedImage scale(BufferedImage image, int size)
+	{
+		int longest = Math.max(image.getWidth(), image.getHeight());
+		if (size <= 0 || size >= longest)
+			return image;
+		// Halve with bilinear steps so large reductions do not skip pixels
+		while (longest / 2 >= size) {
+			image = resize(image, Math.max(1, image.getWidth() / 2), Math.max(1, image.getHeight() / 2));
+			longest = longest / 2;
+		}
+		double ratio = (double)size / Math.max(image.getWidth(), image.getHeight());
+		if (ratio < 1)
+			image = resize(image, Math.max(1, (int)Math.round(image.getWidth() * ratio)),
+					Math.max(1, (int)Math.round(image.getHeight() * ratio)));
+		return image;
+	}
+
+	private static BufferedImage resize(BufferedImage image, int width, int height)
+	{
+		BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = resized.createGraphics();
+		graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		graphics.drawImage(image, 0, 0, width, height, null);
+		graphics.dispose();
+		return resized;
+	}
+
+	private static void write(BufferedImage image, String format, File file) throws IOException
+	{
+		if (!"jpeg".equals(format)) {
+			ImageIO.write(image, format, file);
+			return;
+		}
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageOutputStream output = ImageIO.createImageOutputStream(file);
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality);
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+			output.close();
+		}
+	}
+
+	// Callers hold the cachedFiles lock
+	private static void loadCache()
+	{
+		if (cacheLoaded)
+			return;
+		cacheLoaded = true;
+		if (oldRenderDirectory.exists()) {
+			log.info("Deleting render cache " + oldRenderDirectory.getAbsolutePath() + " in the PNG directory");
+			EPADFileUtils.deleteDirectoryAndContents(oldRenderDirectory);
+		}
+		renderDirectory.mkdirs();
+		File[] files = renderDirectory.listFiles();
+		if (files == null)
+			return;
+		// Renders left by a previous run, oldest first so they are evicted first
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2)
+			{
+				return Long.compare(file1.lastModified(), file2.lastModified());
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(".tmp")) {
+				file.delete();
+				continue;
+			}
+			cachedFiles.put(file.getName(), file.length());
+			cachedBytes += file.length();
+		}
+		log.info("Render cache " + renderDirectory.getAbsolutePath() + " has " + cachedFiles.size() + " files, "
+				+ cachedBytes + " bytes");
+		evict();
+	}
+
+	// Callers hold the cachedFiles lock
+	private static void evict()
+	{
+		Iterator<Map.Entry<String, Long>> entries = cachedFiles.entrySet().iterator();
+		while (cachedBytes > maxCacheBytes && entries.hasNext()) {
+			Map.Entry<String, Long> entry = entries.next();
+			new File(renderDirectory, entry.getKey()).delete();
+			cachedBytes -= entry.getValue();
+			entries.remove();
+		}
+	}
+}
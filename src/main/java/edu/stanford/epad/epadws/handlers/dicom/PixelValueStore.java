@@ -0,0 +1,524 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.dicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.util.ajax.JSON;
+
+import com.google.gson.Gson;
+
+import edu.stanford.epad.common.util.EPADConfig;
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Binary store for the stored pixel values of decoded multi-frame images (parametric maps etc).
+ * <p>
+ * One file per image, next to its frame PNGs. Layout (all little endian):
+ * 
+ * <pre>
+ * int magic, int version, int numberOfFrames, int rows, int columns, int sampleType
+ * long[numberOfFrames] frame offsets
+ * frames, rows * columns samples each, row major
+ * </pre>
+ * 
+ * Files are memory mapped for reading, so a single frame, row or rectangle can be read without touching the rest of
+ * the image. Stores larger than a mapping can address are mapped in chunks; frames start on an 8 byte boundary and the
+ * chunk size is a multiple of 8, so a sample never spans two chunks. Frame numbers are zero-based.
+ * 
+ * @see DSOUtil#writeMultiFramePNGs
+ */
+public class PixelValueStore
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final String baseDicomDirectory = EPADConfig.getEPADWebServerPNGDir();
+
+	public static final String PIXEL_FILE_NAME = "pixels.bin";
+
+	private static final int MAGIC = 0x58495045; // "EPIX"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 6 * 4;
+	static final long CHUNK_SIZE = 1L << 30;
+
+	private static final int maxOpenStores = Integer.parseInt(EPADConfig.getParamValue("PixelStoreOpenFiles", "50"));
+
+	private static final Map<String, PixelValueStore> openStores = Collections
+			.synchronizedMap(new LinkedHashMap<String, PixelValueStore>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PixelValueStore> eldest)
+				{
+					return size() > maxOpenStores;
+				}
+			});
+
+	public enum SampleType
+	{
+		INT16(2), INT32(4), FLOAT32(4), FLOAT64(8);
+
+		public final int size;
+
+		SampleType(int size)
+		{
+			this.size = size;
+		}
+	}
+
+	private final MappedByteBuffer[] chunks;
+	private final long chunkSize;
+	private final int numberOfFrames;
+	private final int rows;
+	private final int columns;
+	private final SampleType sampleType;
+	private final long[] frameOffsets;
+
+	private PixelValueStore(MappedByteBuffer[] chunks, long chunkSize) throws IOException
+	{
+		this.chunks = chunks;
+		this.chunkSize = chunkSize;
+		for (MappedByteBuffer chunk : chunks)
+			chunk.order(ByteOrder.LITTLE_ENDIAN);
+		MappedByteBuffer buffer = chunks[0];
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Not a pixel value store");
+		numberOfFrames = buffer.getInt(8);
+		if (HEADER_SIZE + (long)numberOfFrames * 8 > buffer.capacity())
+			throw new IOException("Pixel value store header larger than " + chunkSize + " bytes");
+		rows = buffer.getInt(12);
+		columns = buffer.getInt(16);
+		sampleType = SampleType.values()[buffer.getInt(20)];
+		frameOffsets = new long[numberOfFrames];
+		for (int i = 0; i < numberOfFrames; i++)
+			frameOffsets[i] = buffer.getLong(HEADER_SIZE + i * 8);
+	}
+
+	public static File getStoreFile(String studyUID, String seriesUID, String imageUID)
+	{
+		return new File(baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID + "/images/" + imageUID
+				+ "/frames/" + PIXEL_FILE_NAME);
+	}
+
+	public static boolean exists(String studyUID, String seriesUID, String imageUID)
+	{
+		return getStoreFile(studyUID, seriesUID, imageUID).exists();
+	}
+
+	/**
+	 * Open the store of an image for reading.
+	 * 
+	 * @return null if no pixel values are stored for the image
+	 */
+	public static PixelValueStore open(String studyUID, String seriesUID, String imageUID) throws IOException
+	{
+		File storeFile = getStoreFile(studyUID, seriesUID, imageUID);
+		String key = storeFile.getAbsolutePath();
+		PixelValueStore store = openStores.get(key);
+		if (store != null)
+			return store;
+		if (!storeFile.exists())
+			return null;
+		store = open(storeFile, CHUNK_SIZE);
+		openStores.put(key, store);
+		return store;
+	}
+
+	static PixelValueStore open(File storeFile, long chunkSize) throws IOException
+	{
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(storeFile, "r");
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int)Math.max(1, (size + chunkSize - 1) / chunkSize)];
+			for (int i = 0; i < chunks.length; i++) {
+				long position = i * chunkSize;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(chunkSize, size - position));
+			}
+			return new PixelValueStore(chunks, chunkSize);
+		} finally {
+			IOUtils.closeQuietly(file); // The mappings stay valid after the file is closed
+		}
+	}
+
+	/**
+	 * Create (or replace) the store of an image. Frames can then be written in any order.
+	 */
+	public static Writer createWriter(String studyUID, String seriesUID, String imageUID, int numberOfFrames, int rows,
+			int columns, SampleType sampleType) throws IOException
+	{
+		File storeFile = getStoreFile(studyUID, seriesUID, imageUID);
+		openStores.remove(storeFile.getAbsolutePath());
+		FrameRenderer.invalidate(imageUID);
+		storeFile.getParentFile().mkdirs();
+		File temporaryFile = new File(storeFile.getParentFile(), PIXEL_FILE_NAME + ".tmp");
+		return new Writer(temporaryFile, storeFile, numberOfFrames, rows, columns, sampleType);
+	}
+
+	public static void delete(String studyUID, String seriesUID, String imageUID)
+	{
+		File storeFile = getStoreFile(studyUID, seriesUID, imageUID);
+		openStores.remove(storeFile.getAbsolutePath());
+		FrameRenderer.invalidate(imageUID);
+		storeFile.delete();
+	}
+
+	/**
+	 * Delete the stores of all images of a series, e.g. before the series is deleted or its PNGs are regenerated.
+	 */
+	public static void deleteSeries(String studyUID, String seriesUID)
+	{
+		File seriesDirectory = new File(baseDicomDirectory + "/studies/" + studyUID + "/series/" + seriesUID);
+		String[] imageUIDs = new File(seriesDirectory, "images").list();
+		if (imageUIDs != null) {
+			for (String imageUID : imageUIDs)
+				delete(studyUID, seriesUID, imageUID);
+		}
+		forgetStores(seriesDirectory);
+	}
+
+	/**
+	 * Delete the stores of all series of a study, e.g. before the study is deleted.
+	 */
+	public static void deleteStudy(String studyUID)
+	{
+		File studyDirectory = new File(baseDicomDirectory + "/studies/" + studyUID);
+		String[] seriesUIDs = new File(studyDirectory, "series").list();
+		if (seriesUIDs != null) {
+			for (String seriesUID : seriesUIDs)
+				deleteSeries(studyUID, seriesUID);
+		}
+		forgetStores(studyDirectory);
+	}
+
+	/**
+	 * Drop open stores below a directory whose files are already gone.
+	 */
+	private static void forgetStores(File directory)
+	{
+		String prefix = directory.getAbsolutePath() + File.separator;
+		synchronized (openStores) {
+			Iterator<String> keys = openStores.keySet().iterator();
+			while (keys.hasNext()) {
+				if (keys.next().startsWith(prefix))
+					keys.remove();
+			}
+		}
+	}
+
+	public int getNumberOfFrames()
+	{
+		return numberOfFrames;
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	public SampleType getSampleType()
+	{
+		return sampleType;
+	}
+
+	public double getValue(int frameNumber, int x, int y)
+	{
+		checkRegion(frameNumber, x, y, 1, 1);
+		return getSample(sampleIndex(frameNumber, x, y));
+	}
+
+	public double[] getFrame(int frameNumber)
+	{
+		return getRegion(frameNumber, 0, 0, columns, rows);
+	}
+
+	/**
+	 * Read the stored values of one row segment into values, starting at offset.
+	 */
+	public void getRow(int frameNumber, int y, int x, int width, double[] values, int offset)
+	{
+		checkRegion(frameNumber, x, y, width, 1);
+		long index = sampleIndex(frameNumber, x, y);
+		for (int i = 0; i < width; i++)
+			values[offset + i] = getSample(index + i);
+	}
+
+	/**
+	 * @return the values of the rectangle, row major
+	 */
+	public double[] getRegion(int frameNumber, int x, int y, int width, int height)
+	{
+		checkRegion(frameNumber, x, y, width, height);
+		double[] values = new double[width * height];
+		for (int row = 0; row < height; row++)
+			getRow(frameNumber, y + row, x, width, values, row * width);
+		return values;
+	}
+
+	/**
+	 * Frame values in the JSON form clients got from the pixel_values table.
+	 */
+	public String getFrameAsJSON(int frameNumber)
+	{
+		return JSON.toString(getFrame(frameNumber));
+	}
+
+	private long sampleIndex(int frameNumber, int x, int y)
+	{
+		return (frameOffsets[frameNumber] / sampleType.size) + (long)y * columns + x;
+	}
+
+	private double getSample(long index)
+	{
+		long offset = index * sampleType.size;
+		MappedByteBuffer buffer = chunks[(int)(offset / chunkSize)];
+		int position = (int)(offset % chunkSize);
+		switch (sampleType) {
+			case INT16:
+				return buffer.getShort(position);
+			case INT32:
+				return buffer.getInt(position);
+			case FLOAT32:
+				return buffer.getFloat(position);
+			default:
+				return buffer.getDouble(position);
+		}
+	}
+
+	private void checkRegion(int frameNumber, int x, int y, int width, int height)
+	{
+		if (frameNumber < 0 || frameNumber >= numberOfFrames)
+			throw new IllegalArgumentException("Invalid frame number " + frameNumber + ", image has " + numberOfFrames
+					+ " frames");
+		if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > columns || y + height > rows)
+			throw new IllegalArgumentException("Invalid region " + x + "," + y + " " + width + "x" + height + " for "
+					+ columns + "x" + rows + " image");
+	}
+
+	/**
+	 * A rectangle of stored pixel values, as returned to clients.
+	 */
+	public static class PixelRegion
+	{
+		public final int frameNumber;
+		public final int x;
+		public final int y;
+		public final int width;
+		public final int height;
+		public final double[] values;
+
+		public PixelRegion(int frameNumber, int x, int y, int width, int height, double[] values)
+		{
+			this.frameNumber = frameNumber;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.values = values;
+		}
+
+		public String toJSON()
+		{
+			Gson gson = new Gson();
+			return gson.toJson(this);
+		}
+	}
+
+	/**
+	 * Writes frames of an image to a temporary file, which replaces the store when closed.
+	 */
+	public static class Writer
+	{
+		private final File temporaryFile;
+		private final File storeFile;
+		private final RandomAccessFile file;
+		private final int rows;
+		private final int columns;
+		private final SampleType sampleType;
+		private final long dataOffset;
+		private final long frameSize;
+
+		Writer(File temporaryFile, File storeFile, int numberOfFrames, int rows, int columns,
+				SampleType sampleType) throws IOException
+		{
+			this.temporaryFile = temporaryFile;
+			this.storeFile = storeFile;
+			this.rows = rows;
+			this.columns = columns;
+			this.sampleType = sampleType;
+			// Keep frames aligned on their sample size so offsets can be turned into sample indexes
+			long headerSize = HEADER_SIZE + (long)numberOfFrames * 8;
+			this.dataOffset = (headerSize + 7) / 8 * 8;
+			this.frameSize = (long)rows * columns * sampleType.size;
+			this.file = new RandomAccessFile(temporaryFile, "rw");
+			file.setLength(dataOffset + numberOfFrames * frameSize);
+
+			ByteBuffer header = ByteBuffer.allocate((int)headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(numberOfFrames).putInt(rows).putInt(columns)
+					.putInt(sampleType.ordinal());
+			for (int i = 0; i < numberOfFrames; i++)
+				header.putLong(dataOffset + i * frameSize);
+			header.flip();
+			file.getChannel().write(header, 0);
+		}
+
+		public void writeFrame(int frameNumber, double[] values) throws IOException
+		{
+			if (values.length != rows * columns)
+				throw new IOException("Frame " + frameNumber + " has " + values.length + " values, expected " + rows * columns);
+			ByteBuffer frame = ByteBuffer.allocate((int)frameSize).order(ByteOrder.LITTLE_ENDIAN);
+			for (double value : values) {
+				switch (sampleType) {
+					case INT16:
+						frame.putShort((short)value);
+						break;
+					case INT32:
+						frame.putInt((int)value);
+						break;
+					case FLOAT32:
+						frame.putFloat((float)value);
+						break;
+					default:
+						frame.putDouble(value);
+				}
+			}
+			frame.flip();
+			file.getChannel().write(frame, dataOffset + frameNumber * frameSize);
+		}
+
+		public void close() throws IOException
+		{
+			file.close();
+			storeFile.delete();
+			if (!temporaryFile.renameTo(storeFile))
+				throw new IOException("Error moving pixel store " + temporaryFile.getAbsolutePath() + " to "
+						+ storeFile.getAbsolutePath());
+			log.info("Stored pixel values " + storeFile.getAbsolutePath() + " size:" + storeFile.length());
+		}
+
+		public void abort()
+		{
+			IOUtils.closeQuietly(file);
+			temporaryFile.delete();
+		}
+	}
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers.dicom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+/**
+ * Statistics of the rescaled (HU for CT) pixel values inside a region of interest of one frame.
+ * <p>
+ * Regions are described by the spans of pixels they cover on each row, so only the rows of the region's bounding box
+ * are read from the {@link PixelValueStore}. A pixel belongs to a polygon or ellipse when its center lies inside it.
+ */
+public class ROIStatistics
+{
+	public final int frameNumber;
+	public final long count;
+	public final double mean;
+	public final double stdDev;
+	public final double min;
+	public final double max;
+	public final double area;
+	public final String areaUnit;
+
+	private ROIStatistics(int frameNumber, long count, double mean, double stdDev, double min, double max, double area,
+			String areaUnit)
+	{
+		this.frameNumber = frameNumber;
+		this.count = count;
+		this.mean = mean;
+		this.stdDev = stdDev;
+		this.min = min;
+		this.max = max;
+		this.area = area;
+		this.areaUnit = areaUnit;
+	}
+
+	public String toJSON()
+	{
+		Gson gson = new Gson();
+		return gson.toJson(this);
+	}
+
+	/**
+	 * @param pixelSpacing row and column spacing in mm, or null to report the area in pixels
+	 */
+	public static ROIStatistics compute(PixelValueStore pixelValueStore, int frameNumber, Region region,
+			double rescaleSlope, double rescaleIntercept, double[] pixelSpacing)
+	{
+		int columns = pixelValueStore.getColumns();
+		int firstRow = Math.max(0, region.getMinY());
+		int lastRow = Math.min(pixelValueStore.getRows() - 1, region.getMaxY());
+		double[] values = new double[columns];
+		long count = 0;
+		double mean = 0;
+		double sumOfSquares = 0; // Welford's running sum of squared differences
+		double min = Double.NaN;
+		double max = Double.NaN;
+
+		for (int y = firstRow; y <= lastRow; y++) {
+			int[] spans = region.getSpans(y);
+			for (int i = 0; i + 1 < spans.length; i += 2) {
+				int x0 = Math.max(0, spans[i]);
+				int x1 = Math.min(columns, spans[i + 1]);
+				if (x1 <= x0)
+					continue;
+				pixelValueStore.getRow(frameNumber, y, x0, x1 - x0, values, 0);
+				for (int j = 0; j < x1 - x0; j++) {
+					double value = values[j] * rescaleSlope + rescaleIntercept;
+					count++;
+					double delta = value - mean;
+					mean += delta / count;
+					sumOfSquares += delta * (value - mean);
+					if (count == 1 || value < min)
+						min = value;
+					if (count == 1 || value > max)
+						max = value;
+				}
+			}
+		}
+		double stdDev = count > 1 ? Math.sqrt(sumOfSquares / (count - 1)) : 0;
+		if (count == 0)
+			mean = Double.NaN;
+		if (pixelSpacing != null)
+			return new ROIStatistics(frameNumber, count, mean, stdDev, min, max, count * pixelSpacing[0] * pixelSpacing[1],
+					"mm2");
+		else
+			return new ROIStatistics(frameNumber, count, mean, stdDev, min, max, count, "pixels");
+	}
+
+	/**
+	 * Pixels covered by a region of interest, in image coordinates.
+	 */
+	public interface Region
+	{
+		int getMinY();
+
+		int getMaxY();
+
+		/**
+		 * @return start (inclusive) and end (exclusive) columns of the covered spans of row y, in pairs
+		 */
+		int[] getSpans(int y);
+	}
+
+	/**
+	 * @param points x1,y1,x2,y2,... vertices of a closed polygon
+	 */
+	public static Region polygon(double[] points)
+	{
+		if (points.length < 6 || points.length % 2 != 0)
+			throw new IllegalArgumentException("A polygon needs at least three x,y points");
+		return new Polygon(points);
+	}
+
+	public static Region ellipse(double centerX, double centerY, double radiusX, double radiusY)
+	{
+		if (radiusX <= 0 || radiusY <= 0)
+			throw new IllegalArgumentException("Ellipse radii must be positive");
+		return new Ellipse(centerX, centerY, radiusX, radiusY);
+	}
+
+	/**
+	 * @param bits packed row major bitmap of width x height, most significant bit first, placed at x,y in the image
+	 */
+	public static Region mask(int x, int y, int width, int height, byte[] bits)
+	{
+		if (width <= 0 || height <= 0 || bits.length * 8L < (long)width * height)
+			throw new IllegalArgumentException("Mask of " + bits.length + " bytes does not cover " + width + "x" + height);
+		return new Mask(x, y, width, height, bits);
+	}
+
+	private static class Polygon implements Region
+	{
+		private final double[] points;
+		private final int minY;
+		private final int maxY;
+
+		Polygon(double[] points)
+		{
+			this.points = points;
+			double low = Double.MAX_VALUE;
+			double high = -Double.MAX_VALUE;
+			for (int i = 1; i < points.length; i += 2) {
+				low = Math.min(low, points[i]);
+				high = Math.max(high, points[i]);
+			}
+			minY = (int)Math.floor(low);
+			maxY = (int)Math.ceil(high);
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return minY;
+		}
+
+		@Override
+		public int getMaxY()
+		{
+			return maxY;
+		}
+
+		@Override
+		public int[] getSpans(int y)
+		{
+			// Even-odd crossings of the scanline through the pixel centers of row y
+			double scanY = y + 0.5;
+			int n = points.length / 2;
+			List<Double> crossings = new ArrayList<>();
+			for (int i = 0, j = n - 1; i < n; j = i++) {
+				double xi = points[2 * i], yi = points[2 * i + 1];
+				double xj = points[2 * j], yj = points[2 * j + 1];
+				if ((yi <= scanY) != (yj <= scanY))
+					crossings.add(xi + (scanY - yi) * (xj - xi) / (yj - yi));
+			}
+			double[] sorted = new double[crossings.size()];
+			for (int i = 0; i < sorted.length; i++)
+				sorted[i] = crossings.get(i);
+			Arrays.sort(sorted);
+			int[] spans = new int[sorted.length];
+			for (int i = 0; i < sorted.length; i++)
+				spans[i] = (int)Math.ceil(sorted[i] - 0.5);
+			return spans;
+		}
+	}
+
+	private static class Ellipse implements Region
+	{
+		private final double centerX;
+		private final double centerY;
+		private final double radiusX;
+		private final double radiusY;
+
+		Ellipse(double centerX, double centerY, double radiusX, double radiusY)
+		{
+			this.centerX = centerX;
+			this.centerY = centerY;
+			this.radiusX = radiusX;
+			this.radiusY = radiusY;
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return (int)Math.floor(centerY - radiusY);
+		}
+
+		@Override
+		public int getMaxY()
+		{
+			return (int)Math.ceil(centerY + radiusY);
+		}
+
+		@Override
+		public int[] getSpans(int y)
+		{
+			double dy = (y + 0.5 - centerY) / radiusY;
+			if (dy * dy > 1)
+				return new int[0];
+			double halfWidth = radiusX * Math.sqrt(1 - dy * dy);
+			int start = (int)Math.ceil(centerX - halfWidth - 0.5);
+			int end = (int)Math.floor(centerX + halfWidth - 0.5) + 1;
+			return new int[] { start, end };
+		}
+	}
+
+	private static class Mask implements Region
+	{
+		private final int x;
+		private final int y;
+		private final int width;
+		private final int height;
+		private final byte[] bits;
+
+		Mask(int x, int y, int width, int height, byte[] bits)
+		{
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.bits = bits;
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return y;
+		}
+
+		@Override
+		public int getMaxY()
+		{
+			return y + height - 1;
+		}
+
+		@Override
+		public int[] getSpans(int row)
+		{
+			List<Integer> spans = new ArrayList<>();
+			boolean inside = false;
+			long base = (long)(row - y) * width;
+			for (int column = 0; column < width; column++) {
+				long bit = base + column;
+				boolean set = (bits[(int)(bit >> 3)] & (0x80 >> (bit & 7))) != 0;
+				if (set != inside) {
+					spans.add(x + column);
+					inside = set;
+				}
+			}
+			if (inside)
+				spans.add(x + width);
+			int[] result = new int[spans.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = spans.get(i);
+			return result;
+		}
+	}
+}
@@ -117,9 +117,9 @@ import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import edu.stanford.epad.common.util.EPADConfig;
-import edu.stanford.epad.common.util.EPADFileUtils;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.HttpCacheUtil;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.SessionService;
 
@@ -175,7 +175,12 @@ public class ResourcesFileHandler extends AbstractHandler
 							}
 							String name = request.getParameter("name");
 							if (name == null) name = file.getName();
-						    EPADFileUtils.sendFile(request, httpResponse, file, name, false);
+							httpResponse.setHeader("Content-Disposition", "inline;filename=\"" + name + "\"");
+							String id = file.getName();
+							if (id.lastIndexOf('.') > 0)
+								id = id.substring(0, id.lastIndexOf('.'));
+							statusCode = HttpCacheUtil.sendFile(httpRequest, httpResponse, file,
+									HttpCacheUtil.getETag(id, file), HttpCacheUtil.CACHE_REVALIDATE, null);
 						} else {
 							statusCode = HandlerUtil.badRequestResponse(MISSING_QUERY_MESSAGE, log);
 							log.warning("Missing Resource Path");
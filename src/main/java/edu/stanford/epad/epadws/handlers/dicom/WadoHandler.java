@@ -104,8 +104,12 @@
  *******************************************************************************/
 package edu.stanford.epad.epadws.handlers.dicom;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -117,12 +121,19 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
+import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.handlers.HttpCacheUtil;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.SessionService;
 
 /**
  * WADO Handler
+ * <p>
+ * Requests for unmodified DICOM objects (contentType=application/dicom in the stored transfer syntax, without
+ * anonymization) are served directly from dcm4chee's archive on disk, with ETags and byte ranges. All other requests are proxied to
+ * dcm4chee's WADO service; their ETags combine the stored file's version with the rendering parameters so that
+ * revalidation can be answered without contacting dcm4chee.
  */
 public class WadoHandler extends AbstractHandler
 {
@@ -134,6 +145,28 @@ public class WadoHandler extends AbstractHandler
 
 	private static final String INVALID_SESSION_TOKEN_MESSAGE = "Session token is invalid on WADO route";
 
+	private static final boolean localFilesEnabled = "true".equalsIgnoreCase(EPADConfig.getParamValue("WadoLocalFiles", "true"));
+	private static final int filePathCacheSize = Integer.parseInt(EPADConfig.getParamValue("WadoFilePathCacheSize", "10000"));
+
+	// Transfer syntax dcm4chee returns when a request names none
+	private static final String DEFAULT_TRANSFER_SYNTAX = EPADConfig.getParamValue("WadoDefaultTransferSyntax",
+			"1.2.840.10008.1.2.1");
+
+	private static final String[] RENDER_PARAMETERS = { "contentType", "frameNumber", "rows", "columns", "region",
+			"windowCenter", "windowWidth", "imageQuality", "transferSyntax", "anonymize", "annotation", "presentationUID",
+			"presentationSeriesUID", "charset" };
+
+	private static final Map<String, Map<String, String>> archivedFiles = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest)
+		{
+			return size() > filePathCacheSize;
+		}
+	});
+
 	@Override
 	public void handle(String s, Request request, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
 	{
@@ -173,7 +206,18 @@ public class WadoHandler extends AbstractHandler
 						String queryString = httpRequest.getQueryString();
 						queryString = URLDecoder.decode(queryString, "UTF-8");
 						if (queryString != null) {
-							statusCode = performWADOQuery(queryString, responseStream, username, sessionID);
+							String imageUID = httpRequest.getParameter("objectUID");
+							Map<String, String> archivedFile = getArchivedFile(imageUID);
+							File dicomFile = archivedFile != null ? new File(archivedFile.get("filepath")) : null;
+							if (dicomFile != null && localFilesEnabled
+									&& isStoredObjectRequest(httpRequest, archivedFile.get("file_tsuid")))
+								statusCode = sendLocalDICOMFile(dicomFile, imageUID, httpRequest, httpResponse, username, sessionID);
+							else if (dicomFile != null && HttpCacheUtil.checkNotModified(httpRequest, httpResponse,
+									HttpCacheUtil.getETag(imageUID, getRenderVersion(httpRequest, dicomFile)),
+									dicomFile.lastModified(), HttpCacheUtil.CACHE_REVALIDATE))
+								statusCode = HttpServletResponse.SC_NOT_MODIFIED;
+							else
+								statusCode = performWADOQuery(queryString, responseStream, username, sessionID);
 						} else {
 							statusCode = HandlerUtil.badRequestResponse(MISSING_QUERY_MESSAGE, log);
 							log.warning("Missing Wado query");
@@ -223,6 +267,68 @@ public class WadoHandler extends AbstractHandler
 		return statusCode;
 	}
 
+	/**
+	 * True if the request asks for the DICOM object as stored, with no transcoding or anonymization by dcm4chee. The
+	 * requested transfer syntax (dcm4chee's default when none is given) must be * or the one the file is stored in.
+	 */
+	private boolean isStoredObjectRequest(HttpServletRequest httpRequest, String storedTransferSyntax)
+	{
+		if (!"WADO".equals(httpRequest.getParameter("requestType")))
+			return false;
+		if (!"application/dicom".equals(httpRequest.getParameter("contentType")))
+			return false;
+		String transferSyntax = httpRequest.getParameter("transferSyntax");
+		if (transferSyntax == null || transferSyntax.length() == 0)
+			transferSyntax = DEFAULT_TRANSFER_SYNTAX;
+		if (!transferSyntax.equals("*") && !transferSyntax.equals(storedTransferSyntax))
+			return false;
+		return !"yes".equalsIgnoreCase(httpRequest.getParameter("anonymize"));
+	}
+
+	/**
+	 * Returns the path (filepath) and transfer syntax (file_tsuid) of the archived file for an instance, or null if it
+	 * is not stored on an online dcm4chee filesystem.
+	 */
+	private Map<String, String> getArchivedFile(String imageUID)
+	{
+		if (imageUID == null || imageUID.length() == 0)
+			return null;
+
+		Map<String, String> archivedFile = archivedFiles.get(imageUID);
+		if (archivedFile == null) {
+			archivedFile = Dcm4CheeDatabase.getInstance().getDcm4CheeDatabaseOperations().getDICOMFile(imageUID);
+			if (archivedFile == null)
+				return null;
+			archivedFiles.put(imageUID, archivedFile);
+		}
+		if (!new File(archivedFile.get("filepath")).isFile()) {
+			archivedFiles.remove(imageUID);
+			return null;
+		}
+		return archivedFile;
+	}
+
+	/**
+	 * Version of a dcm4chee rendering: the stored file's version plus every parameter that affects the output.
+	 */
+	private String getRenderVersion(HttpServletRequest httpRequest, File dicomFile)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String parameter : RENDER_PARAMETERS)
+			sb.append(httpRequest.getParameter(parameter)).append('|');
+		return Integer.toHexString(sb.toString().hashCode()) + "-" + Long.toHexString(dicomFile.lastModified()) + "-"
+				+ Long.toHexString(dicomFile.length());
+	}
+
+	private int sendLocalDICOMFile(File dicomFile, String imageUID, HttpServletRequest httpRequest,
+			HttpServletResponse httpResponse, String username, String sessionID) throws IOException
+	{
+		log.info("User:" + username + " host:" + EPADSessionOperations.getSessionHost(sessionID)
+				+ " Wado Request to download dicom file:" + dicomFile.getName());
+		return HttpCacheUtil.sendFile(httpRequest, httpResponse, dicomFile, HttpCacheUtil.getETag(imageUID, dicomFile),
+				HttpCacheUtil.CACHE_IMMUTABLE, null);
+	}
+
 	private String buildWADOURL(String host, int port, String base, String queryString)
 	{
 		StringBuilder sb = new StringBuilder();
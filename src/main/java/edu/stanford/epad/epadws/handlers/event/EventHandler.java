@@ -107,18 +107,21 @@ package edu.stanford.epad.epadws.handlers.event;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.EPADEventMessage;
 import edu.stanford.epad.dtos.EPADObjectList;
@@ -126,13 +129,17 @@ import edu.stanford.epad.dtos.TaskStatus;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.handlers.HandlerUtil;
+import edu.stanford.epad.epadws.processing.events.EventBroker;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
 import edu.stanford.epad.epadws.service.EpadProjectOperations;
 import edu.stanford.epad.epadws.service.SessionService;
 
 /**
- * 
- * 
+ * Event route used by the web client.
+ * <p>
+ * GET delivers the events published for the caller's session and username. When none are pending the request is
+ * held open (Jetty continuation) until one is published or EventLongPollTimeout expires, so clients that poll
+ * continuously no longer hit the database on every request.
  * 
  * @author martin
  */
@@ -151,6 +158,9 @@ public class EventHandler extends AbstractHandler
 	public static final String EVENT_FAILED = "failed";
 	
 	private static int count = 999;
+
+	private static final long longPollTimeout = Long.parseLong(EPADConfig.getParamValue("EventLongPollTimeout", "25000"));
+	private static final String LISTENER_ATTRIBUTE = EventHandler.class.getName() + ".listener";
 	
 	@Override
 	public void handle(String base, Request request, HttpServletRequest httpRequest, HttpServletResponse httpResponse)
@@ -181,7 +191,10 @@ public class EventHandler extends AbstractHandler
 						boolean json = "json".equalsIgnoreCase(httpRequest.getParameter("format"));
 						if (json)
 							httpResponse.setContentType("application/json");
-						findEventsForSessionID(username, responseStream, jsessionID, json);
+						List<Map<String, String>> events = takeEventsOrWait(httpRequest, username, jsessionID);
+						if (events == null)
+							return; // Suspended until an event is published or the poll times out
+						writeEvents(events, responseStream, json);
 						statusCode = HttpServletResponse.SC_OK;
 					} else {
 						statusCode = HandlerUtil.badRequestResponse(MISSING_JSESSIONID_MESSAGE, log);
@@ -282,25 +295,55 @@ public class EventHandler extends AbstractHandler
 		httpResponse.setStatus(statusCode);
 	}
 
-	public static Map<String, Map<String, String>> deletedEvents = new HashMap<String, Map<String, String>>();
-	
-	private void findEventsForSessionID(String username, PrintWriter responseStream, String sessionID, boolean json)
+	/**
+	 * Returns the buffered events for the session and user. If there are none, the request is suspended until one
+	 * is published or the long-poll timeout expires, and null is returned; Jetty then dispatches the request again.
+	 */
+	private List<Map<String, String>> takeEventsOrWait(HttpServletRequest httpRequest, String username, String sessionID)
 	{
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		// TODO This map should be replaced with a class describing an event.
 		if (sessionID.indexOf(",") != -1)
 			sessionID = sessionID.substring(0, sessionID.indexOf(","));
-		List<Map<String, String>> eventMap = epadDatabaseOperations.getEpadEventsForSessionID(sessionID, true);
-		List<Map<String, String>> userEvents = epadDatabaseOperations.getEpadEventsForSessionID(username, true);
-		eventMap.addAll(userEvents);
+		List<String> keys = new ArrayList<String>();
+		keys.add(sessionID);
+		if (username != null && !username.equals(sessionID))
+			keys.add(username);
+
+		EventBroker eventBroker = EventBroker.getInstance();
+		EventBroker.Listener listener = (EventBroker.Listener)httpRequest.getAttribute(LISTENER_ATTRIBUTE);
+		if (listener != null) { // Resumed or timed out
+			eventBroker.removeListener(keys, listener);
+			return eventBroker.take(keys);
+		}
+
+		List<Map<String, String>> events = eventBroker.take(keys);
+		if (!events.isEmpty() || longPollTimeout <= 0)
+			return events;
+
+		final Continuation continuation = ContinuationSupport.getContinuation(httpRequest);
+		listener = new EventBroker.Listener() {
+			private final AtomicBoolean resumed = new AtomicBoolean();
+
+			@Override
+			public void eventsAvailable()
+			{
+				if (resumed.compareAndSet(false, true))
+					continuation.resume();
+			}
+		};
+		httpRequest.setAttribute(LISTENER_ATTRIBUTE, listener);
+		continuation.setTimeout(longPollTimeout);
+		continuation.suspend();
+		if (!eventBroker.addListener(keys, listener))
+			listener.eventsAvailable(); // Published since we looked
+		return null;
+	}
+
+	private void writeEvents(List<Map<String, String>> events, PrintWriter responseStream, boolean json)
+	{
 		String separator = ", ";
 
-		if (eventMap.size() == 0)
-		{
-			//responseStrean.println("No new events posted");
-			//log.info("No new events posted");
+		if (events.size() == 0)
 			return;
-		}
 		EPADObjectList jsonList = new EPADObjectList();
 		if (!json)
 		{	
@@ -308,8 +351,7 @@ public class EventHandler extends AbstractHandler
 				+ "template_id, template_name, plugin_name, project_id");
 		}
 		
-		for (Map<String, String> row : eventMap) {
-			deletedEvents.put(row.get("aim_uid"), row);
+		for (Map<String, String> row : events) {
 			if (getTime(row.get("created_time")) < (new Date().getTime() - 5*60*1000) && !"System".equals(row.get("aim_uid")))
 			{
 				continue;
@@ -349,20 +391,6 @@ public class EventHandler extends AbstractHandler
 		{
 			responseStream.append(jsonList.toJSON());
 		}
-		if (deletedEvents.size() > 100) purgeDeletedEvents();
-	}
-	
-	private void purgeDeletedEvents()
-	{
-		Collection<Map<String, String>> eventMaps = deletedEvents.values();
-		for (Map<String, String> eventMap: eventMaps)
-		{
-			if (getTime(eventMap.get("created_time")) < (new Date().getTime()- 1*60*60*1000))
-			{
-				deletedEvents.remove(eventMap.get("aim_uid"));
-			}
-			
-		}
 	}
 	
 	private static long getTime(String timestamp)
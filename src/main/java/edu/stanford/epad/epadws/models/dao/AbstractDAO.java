@@ -105,9 +105,9 @@
 package edu.stanford.epad.epadws.models.dao;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.epadws.epaddb.DatabaseUtils;
@@ -126,23 +126,94 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 	public final int MAX_RECORDS = 5000;
 	protected final EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
 	
+	private static final List<DAOChangeListener> changeListeners = new CopyOnWriteArrayList<DAOChangeListener>();
+
+	public static void addChangeListener(DAOChangeListener listener)
+	{
+		changeListeners.add(listener);
+	}
+
+	private static void fireChanged(AbstractDAO object, boolean deleted)
+	{
+		for (DAOChangeListener listener: changeListeners)
+		{
+			try
+			{
+				listener.changed(object, deleted);
+			}
+			catch (Exception x)
+			{
+				log.warning("Error notifying change of " + object.getClass().getSimpleName() + " id:" + object.getId(), x);
+			}
+		}
+	}
+
 	public void insert() throws Exception
 	{
 		Date time = new Date();
 		this.setCreatedTime(time);
 		this.setUpdateTime(time);
 		epadDatabaseOperations.insertDBObject(this, this.returnDBTABLE(), this.returnDBCOLUMNS());
+		fireChanged(this, false);
 	}
 	
 	public void update() throws Exception
 	{
 		this.setUpdateTime(new Date());
 		epadDatabaseOperations.updateDBObject(this, returnDBTABLE(), returnDBCOLUMNS());
+		fireChanged(this, false);
 	}
 	
+	/**
+	 * Inserts objects of one model class in batches within a single transaction, setting their generated ids.
+	 */
+	public static void insertAll(List<? extends AbstractDAO> objects) throws Exception
+	{
+		if (objects.isEmpty())
+			return;
+		Date time = new Date();
+		for (AbstractDAO object: objects)
+		{
+			object.setCreatedTime(time);
+			object.setUpdateTime(time);
+		}
+		AbstractDAO first = checkSameClass(objects);
+		first.epadDatabaseOperations.insertDBObjects(objects, first.returnDBTABLE(), first.returnDBCOLUMNS());
+		for (AbstractDAO object: objects)
+			fireChanged(object, false);
+	}
+
+	/**
+	 * Updates objects of one model class in batches within a single transaction.
+	 */
+	public static void updateAll(List<? extends AbstractDAO> objects) throws Exception
+	{
+		if (objects.isEmpty())
+			return;
+		Date time = new Date();
+		for (AbstractDAO object: objects)
+			object.setUpdateTime(time);
+		AbstractDAO first = checkSameClass(objects);
+		first.epadDatabaseOperations.updateDBObjects(objects, first.returnDBTABLE(), first.returnDBCOLUMNS());
+		for (AbstractDAO object: objects)
+			fireChanged(object, false);
+	}
+
+	private static AbstractDAO checkSameClass(List<? extends AbstractDAO> objects)
+	{
+		AbstractDAO first = objects.get(0);
+		for (AbstractDAO object: objects)
+		{
+			if (object.getClass() != first.getClass())
+				throw new IllegalArgumentException("Batch mixes " + first.getClass().getSimpleName() + " and " + object.getClass().getSimpleName());
+		}
+		return first;
+	}
+
 	public void delete() throws Exception
 	{
 		epadDatabaseOperations.deleteDBObject(returnDBTABLE(), getId());
+		fireChanged(this, true);
 	}
 	
 	public AbstractDAO retrieve() throws Exception
@@ -169,6 +240,17 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
         return epadDatabaseOperations.getDBObjects(this.getClass(), returnDBTABLE(), returnDBCOLUMNS(), criteria, offset, max, false);
     }
 
+    public List getObjects(Criteria criteria) throws Exception
+    {
+        return getObjects(criteria, 0, MAX_RECORDS);
+    }
+
+    public List getObjects(Criteria criteria, int offset, int max) throws Exception
+    {
+    	log.debug("Table:" + returnDBTABLE() + " criteria:" + criteria);
+        return epadDatabaseOperations.getDBObjects(this.getClass(), returnDBTABLE(), returnDBCOLUMNS(), criteria, offset, max, false);
+    }
+
     public List getIDs(String criteria) throws Exception
     {
         return getIDs(criteria, 0, MAX_RECORDS);
@@ -178,15 +260,34 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
     {
         return epadDatabaseOperations.getDBIds(returnDBTABLE(), criteria, offset, max);
     }
+
+    public List<Long> getIDs(Criteria criteria) throws Exception
+    {
+        return epadDatabaseOperations.getDBIds(returnDBTABLE(), criteria, 0, MAX_RECORDS);
+    }
     
 	public int deleteObjects(String criteria) throws Exception
 	{
 		return epadDatabaseOperations.deleteDBObjects(returnDBTABLE(), criteria);
 	}
+
+	public int deleteObjects(Criteria criteria) throws Exception
+	{
+		return epadDatabaseOperations.deleteDBObjects(returnDBTABLE(), criteria);
+	}
         
     public AbstractDAO getObject(String criteria) throws Exception
     {
-        List objects = getObjects(criteria);
+        return singleObject(getObjects(criteria));
+    }
+
+    public AbstractDAO getObject(Criteria criteria) throws Exception
+    {
+        return singleObject(getObjects(criteria));
+    }
+
+    private AbstractDAO singleObject(List objects) throws Exception
+    {
         if (objects.size() == 1)
             return (AbstractDAO) objects.get(0);
         else if (objects.size() > 1)
@@ -199,6 +300,11 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 	{
 		return epadDatabaseOperations.getDBCount(returnDBTABLE(), criteria);
 	}
+
+	public int getCount(Criteria criteria) throws Exception
+	{
+		return epadDatabaseOperations.getDBCount(returnDBTABLE(), criteria);
+	}
         
     public static String toSQL(Object value)
     {
@@ -217,14 +323,7 @@ public abstract class AbstractDAO implements Serializable, Cloneable {
 			return field;
 		try
 		{
-			String methodName = "get" + field.substring(0,1).toUpperCase() + field.substring(1);
-			Method method = null;
-			try {
-				method = this.getClass().getMethod(methodName, (Class[])null);
-			} catch (Exception x) {
-				method = this.getClass().getMethod("is" + methodName.substring(3), (Class[])null);
-			}
-			return method.invoke(this, (Object[])null);
+			return DAOAccessors.getProperty(this, field);
 		}
 		catch (Exception x)
 		{
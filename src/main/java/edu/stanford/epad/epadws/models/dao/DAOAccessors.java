@@ -0,0 +1,409 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.models.dao;
+
+import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.epad.common.util.EPADLogger;
+
+/**
+ * Getters and setters for the columns of a DAO class, looked up once per class from its DBCOLUMNS array (see
+ * {@link AbstractDAO#returnDBCOLUMNS()}) instead of with getMethod on every column of every row.
+ * <p>
+ * The column types and accessor names follow the conventions used by insertDBObject, updateDBObject and getDBObjects:
+ * values are bound with getX (isX for Booleans), matching types case-insensitively, and read back with setX taking
+ * exactly the declared type.
+ */
+public class DAOAccessors
+{
+	private static final EPADLogger log = EPADLogger.getInstance();
+
+	private static final Map<Class<?>, DAOAccessors> accessors = new ConcurrentHashMap<>();
+	private static final Map<Class<?>, Map<String, Method>> properties = new ConcurrentHashMap<>();
+	private static final Method NO_METHOD;
+
+	static {
+		try {
+			NO_METHOD = Object.class.getMethod("hashCode");
+		} catch (NoSuchMethodException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final String[][] columns;
+	private final Method[] getters;
+	private final Method[] setters;
+	private final Method idGetter;
+	private final Method idSetter;
+
+	/**
+	 * Returns the accessors for a DAO class, building them on first use.
+	 */
+	public static DAOAccessors forClass(Class<?> dbClass, String[][] columns)
+	{
+		DAOAccessors daoAccessors = accessors.get(dbClass);
+		if (daoAccessors != null && (daoAccessors.columns == columns || Arrays.deepEquals(daoAccessors.columns, columns)))
+			return daoAccessors;
+		daoAccessors = new DAOAccessors(dbClass, columns);
+		if (!accessors.containsKey(dbClass))
+			accessors.put(dbClass, daoAccessors);
+		return daoAccessors;
+	}
+
+	private DAOAccessors(Class<?> dbClass, String[][] columns)
+	{
+		this.columns = columns;
+		this.getters = new Method[columns.length];
+		this.setters = new Method[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			String name = columns[i][0].substring(0, 1).toUpperCase() + columns[i][0].substring(1);
+			if (columns[i][1].equalsIgnoreCase("Boolean")) {
+				getters[i] = findMethod(dbClass, "is" + name);
+				if (getters[i] == null)
+					getters[i] = findMethod(dbClass, "get" + name);
+			} else
+				getters[i] = findMethod(dbClass, "get" + name);
+			Class<?> type = getColumnClass(columns[i][1]);
+			if (type != null)
+				setters[i] = findMethod(dbClass, "set" + name, type);
+		}
+		String idName = columns[0][0].substring(0, 1).toUpperCase() + columns[0][0].substring(1);
+		Method setter = findMethod(dbClass, "set" + idName, int.class);
+		this.idSetter = setter != null ? setter : findMethod(dbClass, "set" + idName, long.class);
+		this.idGetter = findMethod(dbClass, "get" + idName);
+	}
+
+	/**
+	 * Sets the insert/update parameters of a statement from an object, skipping the Id column.
+	 */
+	public void bind(PreparedStatement ps, Object data) throws SQLException
+	{
+		int i = 1;
+		int j = 0;
+		try {
+			for (j = 0; j < columns.length; j++) {
+				if (columns[j][3].equalsIgnoreCase("Id"))
+					continue;
+				String type = columns[j][1];
+				Method method = getters[j];
+				if (type.equalsIgnoreCase("String")) {
+					String value = (String)method.invoke(data);
+					if (value != null)
+						ps.setString(i, value);
+					else
+						ps.setNull(i, java.sql.Types.VARCHAR);
+				} else if (type.equalsIgnoreCase("Integer") || type.equalsIgnoreCase("int")) {
+					Integer value = (Integer)method.invoke(data);
+					if (value != null)
+						ps.setInt(i, value);
+					else
+						ps.setNull(i, java.sql.Types.INTEGER);
+				} else if (type.equalsIgnoreCase("Long")) {
+					Long value = (Long)method.invoke(data);
+					if (value != null)
+						ps.setLong(i, value);
+					else
+						ps.setNull(i, java.sql.Types.INTEGER);
+				} else if (type.equalsIgnoreCase("Double")) {
+					Double value = (Double)method.invoke(data);
+					if (value != null)
+						ps.setDouble(i, value);
+					else
+						ps.setNull(i, java.sql.Types.DOUBLE);
+				} else if (type.equalsIgnoreCase("Boolean")) {
+					Boolean value = (Boolean)method.invoke(data);
+					if (value != null)
+						ps.setBoolean(i, value);
+					else
+						ps.setInt(i, 0);
+				} else if (type.equalsIgnoreCase("Timestamp")) {
+					Timestamp value = (Timestamp)method.invoke(data);
+					if (value != null)
+						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
+					else
+						ps.setNull(i, java.sql.Types.TIMESTAMP);
+				} else if (type.equalsIgnoreCase("Date")) {
+					Date value = (Date)method.invoke(data);
+					if (value != null)
+						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
+					else
+						ps.setNull(i, java.sql.Types.DATE);
+				}
+				i++;
+			}
+		} catch (Exception x) {
+			String message = "Error setting values for " + columns[j][0] + " : " + x.getMessage();
+			log.warning(message, x);
+			throw new SQLException(message, x);
+		}
+	}
+
+	/**
+	 * Positions of this class's columns in a result set, to be passed to {@link #read(ResultSet, int[], Object)} for
+	 * each row.
+	 */
+	public int[] findColumns(ResultSet rs) throws SQLException
+	{
+		int[] columnIndexes = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			columnIndexes[i] = rs.findColumn(columns[i][2]);
+		return columnIndexes;
+	}
+
+	public void read(ResultSet rs, Object data) throws SQLException
+	{
+		read(rs, findColumns(rs), data);
+	}
+
+	/**
+	 * Populates an object from the current row of a result set.
+	 */
+	public void read(ResultSet rs, int[] columnIndexes, Object data) throws SQLException
+	{
+		int i = 0;
+		try {
+			for (i = 0; i < columns.length; i++) {
+				String type = columns[i][1];
+				int column = columnIndexes[i];
+				Object value;
+				if (type.equals("String"))
+					value = rs.getString(column);
+				else if (type.equals("Integer") || type.equals("int")) {
+					value = rs.getInt(column);
+					if (type.equals("Integer") && rs.wasNull())
+						value = null;
+				} else if (type.equals("Long") || type.equals("long")) {
+					value = rs.getLong(column);
+					if (type.equals("Long") && rs.wasNull())
+						value = null;
+				} else if (type.equals("Boolean") || type.equals("boolean")) {
+					value = rs.getBoolean(column);
+					if (type.equals("Boolean") && rs.wasNull())
+						value = null;
+				} else if (type.equals("Timestamp"))
+					value = rs.getTimestamp(column);
+				else if (type.equals("Date")) {
+					Timestamp stamp = rs.getTimestamp(column);
+					value = stamp == null ? null : new Date(stamp.getTime());
+				} else if (type.equals("Double") || type.equals("double")) {
+					value = rs.getDouble(column);
+					if (type.equals("Double") && rs.wasNull())
+						value = null;
+				} else
+					continue;
+				if (setters[i] == null)
+					throw new NoSuchMethodException(data.getClass().getName() + ".set"
+							+ columns[i][0].substring(0, 1).toUpperCase() + columns[i][0].substring(1) + "(" + type + ")");
+				setters[i].invoke(data, value);
+			}
+		} catch (Exception x) {
+			String message = "Error setting values for " + columns[i][0] + ":" + x.getMessage();
+			log.warning(message, x);
+			throw new SQLException(message, x);
+		}
+	}
+
+	/**
+	 * Sets the generated key of a newly inserted object.
+	 */
+	public void setId(Object data, int id)
+	{
+		if (idSetter == null)
+			throw new IllegalArgumentException("No setter for " + columns[0][0] + " in " + data.getClass().getName());
+		try {
+			idSetter.invoke(data, id);
+		} catch (Exception e) {
+			String message = "Error setting " + columns[0][0] + " of " + data.getClass().getName() + ": " + e.getMessage();
+			log.warning(message, e);
+			throw new IllegalArgumentException(message, e);
+		}
+	}
+
+	/**
+	 * Returns the value of the first (key) column.
+	 */
+	public Object getId(Object data) throws Exception
+	{
+		if (idGetter == null)
+			throw new NoSuchMethodException("get" + columns[0][0] + " in " + data.getClass().getName());
+		return idGetter.invoke(data);
+	}
+
+	/**
+	 * Returns the value of the getX or isX method of an object; throws NoSuchMethodException if it has neither.
+	 */
+	public static Object getProperty(Object data, String field) throws Exception
+	{
+		Map<String, Method> classProperties = properties.get(data.getClass());
+		if (classProperties == null) {
+			classProperties = new ConcurrentHashMap<>();
+			properties.put(data.getClass(), classProperties);
+		}
+		Method method = classProperties.get(field);
+		if (method == null) {
+			String name = field.substring(0, 1).toUpperCase() + field.substring(1);
+			method = findMethod(data.getClass(), "get" + name);
+			if (method == null)
+				method = findMethod(data.getClass(), "is" + name);
+			if (method == null)
+				method = NO_METHOD;
+			classProperties.put(field, method);
+		}
+		if (method == NO_METHOD)
+			throw new NoSuchMethodException("get" + field + " in " + data.getClass().getName());
+		return method.invoke(data);
+	}
+
+	private static Class<?> getColumnClass(String type)
+	{
+		switch (type) {
+			case "String":
+				return String.class;
+			case "Integer":
+				return Integer.class;
+			case "int":
+				return int.class;
+			case "Long":
+				return Long.class;
+			case "long":
+				return long.class;
+			case "Boolean":
+				return Boolean.class;
+			case "boolean":
+				return boolean.class;
+			case "Timestamp":
+				return Timestamp.class;
+			case "Date":
+				return Date.class;
+			case "Double":
+				return Double.class;
+			case "double":
+				return double.class;
+			default:
+				return null;
+		}
+	}
+
+	private static Method findMethod(Class<?> dbClass, String name, Class<?>... parameterTypes)
+	{
+		try {
+			Method method = dbClass.getMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.models.dao;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+import edu.stanford.epad.common.util.EPADConfig;
+
+/**
+ * One page of a keyset (seek) paginated listing. Instead of skipping rows with an offset, each page starts after
+ * the sort key of the last row of the previous page, so a deep page costs the same as the first one.
+ * <p>
+ * The position travels between requests as an opaque continuation token. The key values are patient names and ids,
+ * so the token is encrypted (AES) and authenticated (HMAC-SHA256) with a server key; set PageTokenSecret to keep
+ * tokens valid across restarts and servers. A token is bound to its listing (the scope, e.g.
+ * "subjects/&lt;projectID&gt;/name") and its number of key columns, and is rejected by any other.
+ */
+public class KeysetPage
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char SEPARATOR = '\u0000';
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	private static final SecureRandom random = new SecureRandom();
+
+	private final String scope;
+	private List<Object> after;
+	private final int size;
+	private List<Object> last;
+	private String nextToken;
+
+	/**
+	 * @param token continuation token from the previous page, or null/empty for the first page
+	 * @param keyCount number of key columns of the listing
+	 * @throws IllegalArgumentException if the token is malformed, was not issued by this server or belongs to another
+	 *           listing
+	 */
+	public KeysetPage(String scope, String token, int keyCount, int size)
+	{
+		this.scope = scope;
+		this.after = token == null || token.length() == 0 ? null : decode(scope, token, keyCount);
+		this.size = size;
+	}
+
+	public boolean isFirst()
+	{
+		return after == null;
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Key values of the last row of the previous page, null on the first page.
+	 */
+	public List<Object> getAfter()
+	{
+		return after == null ? null : Collections.unmodifiableList(after);
+	}
+
+	/**
+	 * Restricts the criteria to rows after the previous page and orders them by the key columns.
+	 */
+	public Criteria apply(Criteria criteria, String... keyColumns)
+	{
+		if (after != null)
+			criteria.after(Arrays.asList(keyColumns), after);
+		for (String column : keyColumns)
+			criteria.orderBy(column, true);
+		return criteria;
+	}
+
+	/**
+	 * Records the key of the last row read; call only when the page was full, i.e. more rows may follow.
+	 */
+	public void setLast(Object... keyValues)
+	{
+		last = Arrays.asList(keyValues);
+		nextToken = null;
+	}
+
+	/**
+	 * Moves on to the rows after the last one read, for listings that drop some of the rows they read and read on
+	 * until the page is full. Returns false if the last read was not full, i.e. no rows follow.
+	 */
+	public boolean advance()
+	{
+		if (last == null)
+			return false;
+		after = last;
+		last = null;
+		nextToken = null;
+		return true;
+	}
+
+	/**
+	 * Token for the next page, or null if this was the last one.
+	 */
+	public String getNextToken()
+	{
+		if (nextToken == null && last != null)
+			nextToken = encode(scope, last);
+		return nextToken;
+	}
+
+	static String encode(String scope, List<?> keyValues)
+	{
+		StringBuilder sb = new StringBuilder(scope);
+		for (Object value : keyValues) {
+			sb.append(SEPARATOR);
+			if (value == null)
+				sb.append('n');
+			else if (value instanceof Long || value instanceof Integer)
+				sb.append('l').append(((Number)value).longValue());
+			else
+				sb.append('s').append(value);
+		}
+		try {
+			byte[] iv = new byte[IV_LENGTH];
+			random.nextBytes(iv);
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.ENCRYPT_MODE, TokenKeys.cipherKey, new IvParameterSpec(iv));
+			byte[] encrypted = cipher.doFinal(sb.toString().getBytes(UTF8));
+			byte[] token = Arrays.copyOf(iv, IV_LENGTH + encrypted.length + MAC_LENGTH);
+			System.arraycopy(encrypted, 0, token, IV_LENGTH, encrypted.length);
+			System.arraycopy(mac(token, IV_LENGTH + encrypted.length), 0, token, IV_LENGTH + encrypted.length, MAC_LENGTH);
+			return Base64.encodeBase64URLSafeString(token);
+		} catch (GeneralSecurityException x) {
+			throw new IllegalStateException("Page token encryption failed", x);
+		}
+	}
+
+	static List<Object> decode(String scope, String token, int keyCount)
+	{
+		String[] parts = decrypt(token).split(String.valueOf(SEPARATOR), -1);
+		if (parts.length != keyCount + 1 || !parts[0].equals(scope))
+			throw new IllegalArgumentException("Invalid page token");
+		List<Object> keyValues = new ArrayList<>();
+		for (int i = 1; i < parts.length; i++) {
+			String part = parts[i];
+			if (part.equals("n"))
+				keyValues.add(null);
+			else if (part.startsWith("s"))
+				keyValues.add(part.substring(1));
+			else if (part.startsWith("l")) {
+				try {
+					keyValues.add(Long.valueOf(part.substring(1)));
+				} catch (NumberFormatException x) {
+					throw new IllegalArgumentException("Invalid page token");
+				}
+			} else
+				throw new IllegalArgumentException("Invalid page token");
+		}
+		return keyValues;
+	}
+
+	private static String decrypt(String token)
+	{
+		byte[] bytes = Base64.decodeBase64(token);
+		int encryptedLength = bytes.length - IV_LENGTH - MAC_LENGTH;
+		if (encryptedLength <= 0)
+			throw new IllegalArgumentException("Invalid page token");
+		try {
+			byte[] mac = Arrays.copyOfRange(bytes, IV_LENGTH + encryptedLength, bytes.length);
+			if (!MessageDigest.isEqual(mac, mac(bytes, IV_LENGTH + encryptedLength)))
+				throw new IllegalArgumentException("Invalid page token");
+			Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			cipher.init(Cipher.DECRYPT_MODE, TokenKeys.cipherKey, new IvParameterSpec(bytes, 0, IV_LENGTH));
+			return new String(cipher.doFinal(bytes, IV_LENGTH, encryptedLength), UTF8);
+		} catch (GeneralSecurityException x) {
+			throw new IllegalArgumentException("Invalid page token");
+		}
+	}
+
+	private static byte[] mac(byte[] bytes, int length) throws GeneralSecurityException
+	{
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(TokenKeys.macKey);
+		mac.update(bytes, 0, length);
+		return mac.doFinal();
+	}
+
+	/**
+	 * Token keys, derived from PageTokenSecret or random per process; created on first use.
+	 */
+	private static class TokenKeys
+	{
+		static final SecretKeySpec cipherKey;
+		static final SecretKeySpec macKey;
+
+		static {
+			byte[] keys = new byte[32];
+			String secret = EPADConfig.getParamValue("PageTokenSecret", "");
+			if (secret.length() == 0) {
+				random.nextBytes(keys);
+			} else {
+				try {
+					keys = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(UTF8));
+				} catch (GeneralSecurityException x) {
+					throw new IllegalStateException(x);
+				}
+			}
+			cipherKey = new SecretKeySpec(keys, 0, 16, "AES");
+			macKey = new SecretKeySpec(keys, 16, 16, "HmacSHA256");
+		}
+	}
+}
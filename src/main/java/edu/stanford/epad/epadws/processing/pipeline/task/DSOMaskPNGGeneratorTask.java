@@ -127,6 +127,7 @@ import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
+import edu.stanford.epad.epadws.handlers.dicom.DSOFramePatcher;
 import edu.stanford.epad.epadws.handlers.dicom.DSOUtil;
 import edu.stanford.epad.epadws.models.Project;
 import edu.stanford.epad.epadws.models.Study;
@@ -196,7 +197,10 @@ public class DSOMaskPNGGeneratorTask implements GeneratorTask
 		try {
 			seriesBeingProcessed.add(seriesUID);
 			try {
-				DSOUtil.writeDSOMaskPNGs(dsoFile);
+				if (DSOFramePatcher.consumePatchedSeries(seriesUID))
+					log.info("Mask PNGs for DSO series " + seriesUID + " already updated by incremental edit");
+				else
+					DSOUtil.writeDSOMaskPNGs(dsoFile);
 			} catch (Exception x) {
 				log.warning("Error generating PNGs DSO series " + seriesUID, x);
 				SeriesPipelineState status = DicomSeriesProcessingStatusTracker.getInstance().getDicomSeriesProcessingStatus(seriesUID);
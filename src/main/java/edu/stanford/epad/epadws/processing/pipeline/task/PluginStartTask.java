@@ -107,7 +107,6 @@ package edu.stanford.epad.epadws.processing.pipeline.task;
 import java.io.IOException;
 import java.util.Date;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -115,6 +114,7 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import edu.stanford.epad.common.util.EPADConfig;
 import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.models.Plugin;
 import edu.stanford.epad.epadws.security.EPADSessionOperations;
 import edu.stanford.epad.epadws.service.DefaultEpadProjectOperations;
@@ -172,7 +172,7 @@ public class PluginStartTask implements Runnable
 		String username = EPADSessionOperations.getSessionUser(jsessionID);
 		EpadProjectOperations projectOperations = DefaultEpadProjectOperations.getInstance();
 		projectOperations.createEventLog(username, projectID, null, null, null, null, annotationID, "Start PlugIn", pluginName);
-        HttpClient client = new HttpClient(); // TODO Get rid of localhost
+        // TODO Get rid of localhost
         String url = EPADConfig.getParamValue("serverProxy", "http://localhost:8080") 
         		+ EPADConfig.getParamValue("webserviceBase", "/epad") + "/plugin/" + pluginName + "/?" //aimFile=" + annotationID 
         		+ "&frameNumber=" + frameNumber + "&projectID=" + projectID;
@@ -196,8 +196,9 @@ public class PluginStartTask implements Runnable
 	        method.setQueryString(params); 
         }
         method.setRequestHeader("Cookie", "JSESSIONID=" + jsessionID);
+        method.getParams().setSoTimeout(0); // Plugins may run for a long time
         try {
-            int statusCode = client.executeMethod(method);
+            int statusCode = HttpClientPool.executeMethod(method);
             log.info("Status code returned from plugin " + statusCode);
         } catch (Exception e) {
             log.warning("Error calling plugin " + pluginName, e);
@@ -153,7 +153,8 @@ import edu.stanford.epad.epadws.service.UserProjectService;
  * monitoring a dcm4chee MySQL database.
  * <p>
  * This watcher submits these to the PNG generation task queue to be processed by the
- * {@link SingleFrameDICOMPngGeneratorTask}.
+ * {@link SingleFrameDICOMPngGeneratorTask}. A low resolution preview of each image is generated first on a separate
+ * lane, see {@link edu.stanford.epad.epadws.processing.pipeline.task.PreviewGeneratorTask}.
  * 
  * @see XNATSeriesWatcher
  */
@@ -107,6 +107,7 @@ package edu.stanford.epad.epadws.processing.pipeline.watcher;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -114,7 +115,6 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
 import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.pixelmed.PixelMedUtils;
 import edu.stanford.epad.common.util.EPADConfig;
@@ -123,11 +123,14 @@ import edu.stanford.epad.dtos.SeriesProcessingStatus;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseUtils;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
+import edu.stanford.epad.epadws.epaddb.EpadFilesBatch;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.processing.model.SeriesProcessingDescription;
 import edu.stanford.epad.epadws.processing.pipeline.process.PngGeneratorProcess;
 import edu.stanford.epad.epadws.processing.pipeline.task.DSOMaskPNGGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.GeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.MultiFramePNGGeneratorTask;
+import edu.stanford.epad.epadws.processing.pipeline.task.PreviewGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.RTDICOMProcessingTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.SingleFrameDICOMPngGeneratorTask;
 
@@ -140,6 +143,7 @@ public class QueueAndWatcherManager
 	public static final BlockingQueue<SeriesProcessingDescription> xnatSeriesWatcherQueue = new ArrayBlockingQueue<SeriesProcessingDescription>(
 			2000);
 	public static final BlockingQueue<GeneratorTask> pngGeneratorTaskQueue = new ArrayBlockingQueue<GeneratorTask>(2000);
+	private static final int PENDING_TASK_LIMIT = 100;
 	// private static final BlockingQueue<DicomHeadersTask> dicomHeadersTaskQueue = new
 	// ArrayBlockingQueue<DicomHeadersTask>(2000);
 
@@ -149,6 +153,9 @@ public class QueueAndWatcherManager
 	private final ExecutorService pngGeneratorProcessExec = Executors.newSingleThreadExecutor();
 	private final ExecutorService epadUploadDirWatcherExec = Executors.newSingleThreadExecutor();
 	private final ExecutorService epadSessionWatcherExec = Executors.newSingleThreadExecutor();
+	// Previews get their own threads so they are not queued behind full resolution PNGs
+	private final ExecutorService previewGeneratorExec = Executors.newFixedThreadPool(Integer.parseInt(EPADConfig
+			.getParamValue("PreviewThreads", "2")));
 
 	private final Dcm4CheeDatabaseWatcher dcm4CheeDatabaseWatcher;
 	private final DICOMSeriesWatcher dicomSeriesWatcher;
@@ -159,6 +166,8 @@ public class QueueAndWatcherManager
 
 	private final String dcm4cheeRootDir;
 
+	private final boolean previewsEnabled = !"false".equalsIgnoreCase(EPADConfig.getParamValue("GeneratePreviews", "true"));
+
 	private final static QueueAndWatcherManager ourInstance = new QueueAndWatcherManager();
 
 	public static QueueAndWatcherManager getInstance()
@@ -198,6 +207,7 @@ public class QueueAndWatcherManager
 		xnatSeriesWatcherExec.shutdown();
 		pngGeneratorProcessExec.shutdown();
 		epadUploadDirWatcherExec.shutdown();
+		previewGeneratorExec.shutdown();
 	}
 
 	public void addDICOMFileToPNGGeneratorPipeline(String patientName, Set<DICOMFileDescription> dicomFileDescriptions)
@@ -214,55 +224,80 @@ public class QueueAndWatcherManager
 			}
 			dicomFilesCopy.add(dicomFileDescription);
 		}
-		for (DICOMFileDescription dicomFileDescription : dicomFileDescriptions) {
-			String seriesUID = dicomFileDescription.seriesUID;
-			String imageUID = dicomFileDescription.imageUID;
-			String dicomFilePath = getDICOMFilePath(dicomFileDescription);
-			String modality = dicomFileDescription.modality;
-			File inputDICOMFile = new File(dicomFilePath);
-
-			// If the file does not exist locally (because it is stored on another file system), download it.
-			if (!inputDICOMFile.exists()) {
-				inputDICOMFile = downloadRemoteDICOM(dicomFileDescription);
-				dicomFilePath = inputDICOMFile.getAbsolutePath();
-			}
-			log.info("Dicom file, modality:" +  dicomFileDescription.modality);
-			if ("RTSTRUCT".equals(modality))
-			{
-				extractRTDicomInfo(dicomFileDescription, inputDICOMFile);
-			}
-			if ("RTSTRUCT".equals(modality) || "RTPLAN".equals(modality) || "PR".equals(modality) || "SR".equals(modality)) return; // images to generate
-			if (PixelMedUtils.isDicomSegmentationObject(dicomFilePath)) {
-				if (sameSeries)
+		EpadFilesBatch epadFilesBatch = new EpadFilesBatch(EpadDatabase.getInstance().getEPADDatabaseOperations());
+		Map<String, GeneratorTask> pendingTasks = new LinkedHashMap<String, GeneratorTask>();
+		try {
+			for (DICOMFileDescription dicomFileDescription : dicomFileDescriptions) {
+				String seriesUID = dicomFileDescription.seriesUID;
+				String imageUID = dicomFileDescription.imageUID;
+				String dicomFilePath = getDICOMFilePath(dicomFileDescription);
+				String modality = dicomFileDescription.modality;
+				File inputDICOMFile = new File(dicomFilePath);
+
+				// If the file does not exist locally (because it is stored on another file system), download it.
+				if (!inputDICOMFile.exists()) {
+					inputDICOMFile = downloadRemoteDICOM(dicomFileDescription);
+					dicomFilePath = inputDICOMFile.getAbsolutePath();
+				}
+				log.info("Dicom file, modality:" +  dicomFileDescription.modality);
+				if ("RTSTRUCT".equals(modality))
 				{
-					// Get the last image (alphabetically last - looks like this is true all the time???)
-					String createdTime = dicomFileDescription.createdTime;
-					for (DICOMFileDescription dsoFile : dicomFilesCopy)
+					extractRTDicomInfo(dicomFileDescription, inputDICOMFile);
+				}
+				if ("RTSTRUCT".equals(modality) || "RTPLAN".equals(modality) || "PR".equals(modality) || "SR".equals(modality)) return; // images to generate
+				if (PixelMedUtils.isDicomSegmentationObject(dicomFilePath)) {
+					if (sameSeries)
 					{
-						// TODO - Should really convert to Date and then compare
-						if (createdTime.compareTo(dsoFile.createdTime) < 0)
+						// Get the last image (alphabetically last - looks like this is true all the time???)
+						String createdTime = dicomFileDescription.createdTime;
+						for (DICOMFileDescription dsoFile : dicomFilesCopy)
 						{
-							createdTime = dsoFile.createdTime;
-							dicomFileDescription = dsoFile;
+							// TODO - Should really convert to Date and then compare
+							if (createdTime.compareTo(dsoFile.createdTime) < 0)
+							{
+								createdTime = dsoFile.createdTime;
+								dicomFileDescription = dsoFile;
+							}
+						}
+						log.info("DSO Shown filepath:" + dicomFileDescription.filePath + " createdTime:" + dicomFileDescription.createdTime);
+						dicomFilePath = getDICOMFilePath(dicomFileDescription);
+						inputDICOMFile = new File(dicomFilePath);
+						if (!inputDICOMFile.exists()) {
+							inputDICOMFile = downloadRemoteDICOM(dicomFileDescription);
+							dicomFilePath = inputDICOMFile.getAbsolutePath();
 						}
 					}
-					log.info("DSO Shown filepath:" + dicomFileDescription.filePath + " createdTime:" + dicomFileDescription.createdTime);
-					dicomFilePath = getDICOMFilePath(dicomFileDescription);
-					inputDICOMFile = new File(dicomFilePath);
-					if (!inputDICOMFile.exists()) {
-						inputDICOMFile = downloadRemoteDICOM(dicomFileDescription);
-						dicomFilePath = inputDICOMFile.getAbsolutePath();
-					}
+					// Generate mask PNGs, also AIMFile if this is the first time (only one image)
+					generateMaskPNGsForDicomSegmentationObject(dicomFileDescription, inputDICOMFile, dicomFilesCopy.size() == 1);
+					if (sameSeries) break;
+				} else if (PixelMedUtils.isMultiframedDicom(dicomFilePath)) {
+					generatePreview(dicomFileDescription, inputDICOMFile);
+					generatePNGsForMultiFrameDicom(dicomFileDescription, inputDICOMFile);
+				} else { // Assume it is non multi-frame DICOM
+					generatePreview(dicomFileDescription, inputDICOMFile);
+					generatePNGFileForSingleFrameDICOMImage(patientName, dicomFileDescription, inputDICOMFile, epadFilesBatch,
+							pendingTasks);
 				}
-				// Generate mask PNGs, also AIMFile if this is the first time (only one image)
-				generateMaskPNGsForDicomSegmentationObject(dicomFileDescription, inputDICOMFile, dicomFilesCopy.size() == 1);
-				if (sameSeries) break;
-			} else if (PixelMedUtils.isMultiframedDicom(dicomFilePath)) {
-				generatePNGsForMultiFrameDicom(dicomFileDescription, inputDICOMFile);
-			} else { // Assume it is non multi-frame DICOM
-				generatePNGFileForSingleFrameDICOMImage(patientName, dicomFileDescription, inputDICOMFile);
 			}
+		} finally {
+			queuePendingTasks(epadFilesBatch, pendingTasks);
+		}
+	}
+
+	/**
+	 * Writes the batched epad_files rows and then queues the tasks, keyed by PNG path, that will update them. Tasks whose
+	 * row could not be inserted are dropped; the image is picked up again on the next pass.
+	 */
+	private void queuePendingTasks(EpadFilesBatch epadFilesBatch, Map<String, GeneratorTask> pendingTasks)
+	{
+		epadFilesBatch.flush();
+		for (Map.Entry<String, GeneratorTask> pendingTask : pendingTasks.entrySet()) {
+			if (epadFilesBatch.isInserted(pendingTask.getKey()))
+				pngGeneratorTaskQueue.offer(pendingTask.getValue());
+			else
+				log.warning("QWMgr: epad_files row not inserted, not queuing PNG generation for " + pendingTask.getKey());
 		}
+		pendingTasks.clear();
 	}
 
 	private File downloadRemoteDICOM(DICOMFileDescription dicomFileDescription)
@@ -272,7 +307,7 @@ public class QueueAndWatcherManager
 		try {
 			log.info("Downloading remote DICOM file with image " + imageUID + " for series UID " + seriesUID);
 			File downloadedDICOMFile = File.createTempFile(imageUID, ".tmp");
-			DCM4CHEEUtil.downloadDICOMFileFromWADO(dicomFileDescription, downloadedDICOMFile);
+			HttpClientPool.downloadDICOMFileFromWADO(dicomFileDescription, downloadedDICOMFile);
 			return downloadedDICOMFile;
 		} catch (Exception e) {
 			log.warning("Exception when downloading DICOM file with series UID " + seriesUID + " and image UID "
@@ -301,6 +336,15 @@ public class QueueAndWatcherManager
 			return dcm4cheeRootDir + "/";
 	}
 
+	private void generatePreview(DICOMFileDescription dicomFileDescription, File dicomFile)
+	{
+		// Downloaded copies of remote files are deleted by the PNG task, which may finish first
+		if (!previewsEnabled || dicomFile.getName().endsWith(".tmp"))
+			return;
+		previewGeneratorExec.execute(new PreviewGeneratorTask(dicomFileDescription.studyUID,
+				dicomFileDescription.seriesUID, dicomFileDescription.imageUID, dicomFile));
+	}
+
 	private void generateMaskPNGsForDicomSegmentationObject(DICOMFileDescription dicomFileDescription, File dsoFile , boolean generateAIM)
 	{
 		log.info("DICOM segmentation object found for series " + dicomFileDescription.seriesUID + " dso:" + dsoFile.getAbsolutePath());
@@ -331,7 +375,7 @@ public class QueueAndWatcherManager
 	}
 
 	private void generatePNGFileForSingleFrameDICOMImage(String patientName, DICOMFileDescription dicomFileDescription,
-			File dicomFile)
+			File dicomFile, EpadFilesBatch epadFilesBatch, Map<String, GeneratorTask> pendingTasks)
 	{
 		if (SingleFrameDICOMPngGeneratorTask.imagesBeingProcessed.contains(dicomFileDescription.imageUID))
 		{
@@ -340,12 +384,13 @@ public class QueueAndWatcherManager
 		}
 		String outputPNGFilePath = createOutputPNGFilePathForSingleFrameDICOMImage(dicomFileDescription);
 		File outputPNGFile = new File(outputPNGFilePath);
-		EpadDatabaseOperations epadDatabaseOperations = EpadDatabase.getInstance().getEPADDatabaseOperations();
-		
-		insertEpadFile(epadDatabaseOperations, outputPNGFilePath, outputPNGFile.length(), dicomFileDescription.imageUID);
+		epadFilesBatch.insert(createEpadFileRow(outputPNGFilePath, outputPNGFile.length(), dicomFileDescription.imageUID));
 		SingleFrameDICOMPngGeneratorTask pngGeneratorTask = new SingleFrameDICOMPngGeneratorTask(patientName,
 				dicomFileDescription, dicomFile, outputPNGFile);
-		pngGeneratorTaskQueue.offer(pngGeneratorTask);
+		pendingTasks.put(outputPNGFilePath, pngGeneratorTask);
+		// Keep the generators busy on large series rather than waiting for every row to be written
+		if (pendingTasks.size() >= PENDING_TASK_LIMIT)
+			queuePendingTasks(epadFilesBatch, pendingTasks);
 	}
 
 	private void extractRTDicomInfo(DICOMFileDescription dicomFileDescription, File dicomFile)
@@ -362,11 +407,16 @@ public class QueueAndWatcherManager
 
 	private void insertEpadFile(EpadDatabaseOperations epadDatabaseOperations, String outputPNGFilePath, long fileSize,
 			String imageUID)
+	{
+		epadDatabaseOperations.insertEpadFileRow(createEpadFileRow(outputPNGFilePath, fileSize, imageUID));
+	}
+
+	private Map<String, String> createEpadFileRow(String outputPNGFilePath, long fileSize, String imageUID)
 	{
 		Map<String, String> epadFilesRow = Dcm4CheeDatabaseUtils.createEPadFilesRowData(outputPNGFilePath, fileSize,
 				imageUID);
 		epadFilesRow.put("file_status", "" + SeriesProcessingStatus.IN_PIPELINE.getCode());
-		epadDatabaseOperations.insertEpadFileRow(epadFilesRow);
+		return epadFilesRow;
 	}
 
 	private String createOutputPNGFilePathForSingleFrameDICOMImage(DICOMFileDescription dicomFileDescription)
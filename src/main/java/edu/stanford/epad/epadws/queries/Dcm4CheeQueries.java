@@ -119,7 +119,6 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
 
-import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
 import edu.stanford.epad.common.pixelmed.SegmentedProperty;
 import edu.stanford.epad.common.pixelmed.SegmentedPropertyHelper;
 import edu.stanford.epad.common.util.EPADLogger;
@@ -132,6 +131,7 @@ import edu.stanford.epad.dtos.internal.DICOMElement;
 import edu.stanford.epad.dtos.internal.DICOMElementList;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabase;
 import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeDatabaseOperations;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.processing.pipeline.task.DicomHeadersTask;
 
 /**
@@ -259,7 +259,7 @@ public class Dcm4CheeQueries
 		boolean skipThumbnail=false;
 		try {
 			File temporaryDICOMFile = File.createTempFile(imageUID, ".tmp");
-			int wadoStatusCode = DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDICOMFile);
+			int wadoStatusCode = HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDICOMFile);
 			if (wadoStatusCode == HttpServletResponse.SC_OK) {
 				File tempTag = File.createTempFile(imageUID, "_tag.tmp");
 				ExecutorService taskExecutor = Executors.newFixedThreadPool(4);
@@ -111,6 +111,8 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -120,6 +122,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -139,7 +142,6 @@ import com.pixelmed.dicom.SOPClass;
 import com.pixelmed.dicom.UIDGenerator;
 
 import edu.stanford.epad.common.dicom.DCM4CHEEImageDescription;
-import edu.stanford.epad.common.dicom.DCM4CHEEUtil;
 import edu.stanford.epad.common.dicom.DICOMFileDescription;
 import edu.stanford.epad.common.pixelmed.PixelMedUtils;
 import edu.stanford.epad.common.pixelmed.SegmentedProperty;
@@ -206,6 +208,7 @@ import edu.stanford.epad.epadws.dcm4chee.Dcm4CheeOperations;
 import edu.stanford.epad.epadws.epaddb.EpadDatabase;
 import edu.stanford.epad.epadws.epaddb.EpadDatabaseOperations;
 import edu.stanford.epad.epadws.epaddb.PNGFilesOperations;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 import edu.stanford.epad.epadws.handlers.core.EPADSearchFilter;
 import edu.stanford.epad.epadws.handlers.core.FrameReference;
 import edu.stanford.epad.epadws.handlers.core.ImageReference;
@@ -214,6 +217,9 @@ import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
 import edu.stanford.epad.epadws.handlers.dicom.DSOUtil;
+import edu.stanford.epad.epadws.handlers.dicom.FrameRenderer;
+import edu.stanford.epad.epadws.handlers.dicom.PixelValueStore;
+import edu.stanford.epad.epadws.handlers.dicom.ROIStatistics;
 import edu.stanford.epad.epadws.models.DisabledTemplate;
 import edu.stanford.epad.epadws.models.EpadFile;
 import edu.stanford.epad.epadws.models.EpadStatistics;
@@ -236,7 +242,9 @@ import edu.stanford.epad.epadws.models.UserRole;
 import edu.stanford.epad.epadws.models.WorkList;
 import edu.stanford.epad.epadws.models.WorkListToStudy;
 import edu.stanford.epad.epadws.models.WorkListToSubject;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 import edu.stanford.epad.epadws.processing.pipeline.task.DSOEvaluationTask;
+import edu.stanford.epad.epadws.processing.pipeline.task.PreviewGeneratorTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.StudyDataDeleteTask;
 import edu.stanford.epad.epadws.processing.pipeline.task.SubjectDataDeleteTask;
 import edu.stanford.epad.epadws.processing.pipeline.watcher.Dcm4CheeDatabaseWatcher;
@@ -294,7 +302,6 @@ public class DefaultEpadOperations implements EpadOperations
 		long starttime = System.currentTimeMillis();
 		List<Project> projects = new ArrayList<Project>();
 		List projectList =	projectOperations.getProjectsForUser(username);
-		projectList = projectOperations.sort(projectList, "name", true);
 		projects.addAll(projectList);
 		long gettime = System.currentTimeMillis();
 		for (Project project : projects) {
@@ -344,6 +351,44 @@ public class DefaultEpadOperations implements EpadOperations
 		{
 			subjects = subjects.subList(start, start+count);
 		}
+		addSubjectDescriptions(epadSubjectList, subjects, projectID, username, sessionID, searchFilter, annotationCount, includeAnnotationStatus);
+		//		if (count > 0 && searchFilter.hasSomeMatchCriteria() && epadSubjectList.ResultSet.Result.size() > (start+count))
+		//		{
+		//			epadSubjectList.ResultSet.Result = epadSubjectList.ResultSet.Result.subList(start, start+count);
+		//		}
+		return epadSubjectList;
+	}
+
+	@Override
+	public EPADSubjectList getSubjectDescriptions(String projectID, String username, String sessionID,
+			EPADSearchFilter searchFilter, KeysetPage page, String sortField, boolean annotationCount) throws Exception
+	{
+		EPADSubjectList epadSubjectList = new EPADSubjectList();
+		if (page.getSize() > 300 && !searchFilter.hasAnnotationMatch())
+			annotationCount = false;
+		// Name and id matches narrow the query; the rest of the filter drops subjects after they are read, so read on
+		// until the page is full or the subjects run out
+		do {
+			List<Subject> subjects = projectOperations.getSubjectsForProject(projectID, sortField,
+					searchFilter.getPatientNameMatch(), searchFilter.getPatientIDMatch(), page);
+			for (int i = 0; i < subjects.size(); i++) {
+				int found = epadSubjectList.ResultSet.Result.size();
+				addSubjectDescriptions(epadSubjectList, subjects.subList(i, i + 1), projectID, username, sessionID,
+						searchFilter, annotationCount, false);
+				if (epadSubjectList.ResultSet.Result.size() > found && epadSubjectList.ResultSet.Result.size() == page.getSize()) {
+					// The next page starts after this subject; after the last one read only if more were left
+					if (i < subjects.size() - 1)
+						page.setLast(DefaultEpadProjectOperations.getSubjectKey(subjects.get(i), sortField));
+					return epadSubjectList;
+				}
+			}
+		} while (page.advance());
+		return epadSubjectList;
+	}
+
+	private void addSubjectDescriptions(EPADSubjectList epadSubjectList, List<Subject> subjects, String projectID, String username, String sessionID,
+			EPADSearchFilter searchFilter, boolean annotationCount, boolean includeAnnotationStatus) throws Exception
+	{
 		if (EPADConfig.xnatUploadProjectID.equals(projectID))
 		{
 			annotationCount = false;
@@ -379,11 +424,6 @@ public class DefaultEpadOperations implements EpadOperations
 				}
 			}
 		}
-		//		if (count > 0 && searchFilter.hasSomeMatchCriteria() && epadSubjectList.ResultSet.Result.size() > (start+count))
-		//		{
-		//			epadSubjectList.ResultSet.Result = epadSubjectList.ResultSet.Result.subList(start, start+count);
-		//		}
-		return epadSubjectList;
 	}	
 
 	@Override
@@ -582,6 +622,38 @@ public class DefaultEpadOperations implements EpadOperations
 			if (noProject || !unassignedProject || new ProjectToSubjectToStudy().getCount("study_id = " + study.getId()) <= 1)
 				studyUIDsInEpad.add(study.getStudyUID());
 		}
+		addStudyDescriptions(epadStudyList, studies, studyUIDsInEpad, subject, subjectReference, username, sessionID, searchFilter, includeAnnotationStatus);
+		return epadStudyList;
+	}
+
+	@Override
+	public EPADStudyList getStudyDescriptions(SubjectReference subjectReference, String username, String sessionID,
+			EPADSearchFilter searchFilter, KeysetPage page) throws Exception
+	{
+		EPADStudyList epadStudyList = new EPADStudyList();
+		Subject subject = projectOperations.getSubject(subjectReference.subjectID);
+		boolean noProject = subjectReference.projectID == null;
+		boolean unassignedProject = !noProject
+				&& subjectReference.projectID.equals(EPADConfig.getParamValue("UnassignedProjectID", "nonassigned"));
+		List<Study> studies;
+		if (unassignedProject || noProject)
+			studies = projectOperations.getStudiesForSubject(subjectReference.subjectID, page);
+		else
+			studies = projectOperations.getStudiesForProjectAndSubject(subjectReference.projectID, subjectReference.subjectID, page);
+		// As in the offset listing, the unassigned project shows only studies in no other project, so its page may hold fewer
+		Set<String> studyUIDsInEpad = new HashSet<String>();
+		for (Study study: studies)
+		{
+			if (noProject || !unassignedProject || new ProjectToSubjectToStudy().getCount("study_id = " + study.getId()) <= 1)
+				studyUIDsInEpad.add(study.getStudyUID());
+		}
+		addStudyDescriptions(epadStudyList, studies, studyUIDsInEpad, subject, subjectReference, username, sessionID, searchFilter, false);
+		return epadStudyList;
+	}
+
+	private void addStudyDescriptions(EPADStudyList epadStudyList, List<Study> studies, Set<String> studyUIDsInEpad, Subject subject,
+			SubjectReference subjectReference, String username, String sessionID, EPADSearchFilter searchFilter, boolean includeAnnotationStatus) throws Exception
+	{
 		DCM4CHEEStudyList dcm4CheeStudyList = Dcm4CheeQueries.getStudies(studyUIDsInEpad);
 
 		for (DCM4CHEEStudy dcm4CheeStudy : dcm4CheeStudyList.ResultSet.Result) {
@@ -632,7 +704,6 @@ public class DefaultEpadOperations implements EpadOperations
 					epadStudyList.addEPADStudy(epadStudy);
 			}
 		}
-		return epadStudyList;
 	}
 
 	@Override
@@ -1193,8 +1264,11 @@ public class DefaultEpadOperations implements EpadOperations
 					//log.debug("png " + i + ":" + pngs.get(i).substring(pngs.get(i).lastIndexOf("/")+1));
 				}
 				Map<String, String> pixelValues=null;
+				PixelValueStore pixelValueStore=null;
 				if (pixelData) {
-					pixelValues= epadDatabaseOperations.getPixelValues(imageReference.imageUID);
+					pixelValueStore = openPixelValueStore(imageReference);
+					if (pixelValueStore == null) // Images processed before the binary store
+						pixelValues= epadDatabaseOperations.getPixelValues(imageReference.imageUID);
 				}
 				DICOMElementList suppliedDICOMElements = getDICOMElements(imageReference);
 				DICOMElementList defaultDICOMElements = getDefaultDICOMElements(imageReference, suppliedDICOMElements);
@@ -1207,7 +1281,13 @@ public class DefaultEpadOperations implements EpadOperations
 				{
 					
 					String pixelValue=null;
-					if (pixelData) {
+					if (pixelValueStore != null) {
+						// PNGs are named by their 1-based pixelmed frame number
+						String pngName = pngs.get(i).substring(pngs.get(i).lastIndexOf("/")+1);
+						int storeFrame = getInt(pngName.substring(0, pngName.indexOf("."))) - 1;
+						if (storeFrame >= 0 && storeFrame < pixelValueStore.getNumberOfFrames())
+							pixelValue=pixelValueStore.getFrameAsJSON(storeFrame);
+					} else if (pixelData) {
 						pixelValue=pixelValues.get(pngs.get(i));
 					}
 					if (i == 0 || all) {
@@ -1234,6 +1314,203 @@ public class DefaultEpadOperations implements EpadOperations
 		return new EPADFrameList();
 	}
 
+	private PixelValueStore openPixelValueStore(ImageReference imageReference)
+	{
+		try {
+			return PixelValueStore.open(imageReference.studyUID, imageReference.seriesUID, imageReference.imageUID);
+		} catch (IOException e) {
+			log.warning("Error opening pixel values of image " + imageReference.imageUID, e);
+			return null;
+		}
+	}
+
+	@Override
+	public PixelValueStore.PixelRegion getPixelRegion(FrameReference frameReference, int x, int y, int width, int height)
+			throws Exception
+	{
+		PixelValueStore pixelValueStore = PixelValueStore.open(frameReference.studyUID, frameReference.seriesUID,
+				frameReference.imageUID);
+		if (pixelValueStore == null)
+			return null;
+		if (width <= 0)
+			width = pixelValueStore.getColumns() - x;
+		if (height <= 0)
+			height = pixelValueStore.getRows() - y;
+		double[] values = pixelValueStore.getRegion(frameReference.frameNumber, x, y, width, height);
+		return new PixelValueStore.PixelRegion(frameReference.frameNumber, x, y, width, height, values);
+	}
+
+	private static final int maxImageCalibrations = Integer.parseInt(EPADConfig.getParamValue("ImageCalibrationCacheSize", "500"));
+
+	// Header values needed to measure and render stored pixels, by imageUID, so repeated requests on an image do not
+	// fetch its header again
+	private static final Map<String, ImageCalibration> imageCalibrations = Collections
+			.synchronizedMap(new LinkedHashMap<String, ImageCalibration>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ImageCalibration> eldest)
+				{
+					return size() > maxImageCalibrations;
+				}
+			});
+
+	private static class ImageCalibration
+	{
+		double rescaleSlope = 1;
+		double rescaleIntercept = 0;
+		double[] pixelSpacing; // row, column in mm; null if unknown
+		double windowCenter = Double.NaN;
+		double windowWidth = Double.NaN;
+		String modality;
+		String bodyPart;
+		double[][] frameRescales; // per-frame slopes and intercepts of enhanced multi-frame images; null if none
+
+		double getRescaleSlope(int frameNumber)
+		{
+			return frameRescales != null && frameNumber < frameRescales[0].length ? frameRescales[0][frameNumber]
+					: rescaleSlope;
+		}
+
+		double getRescaleIntercept(int frameNumber)
+		{
+			return frameRescales != null && frameNumber < frameRescales[1].length ? frameRescales[1][frameNumber]
+					: rescaleIntercept;
+		}
+	}
+
+	@Override
+	public ROIStatistics getROIStatistics(FrameReference frameReference, ROIStatistics.Region region) throws Exception
+	{
+		PixelValueStore pixelValueStore = getFramePixelValueStore(frameReference);
+		if (pixelValueStore == null)
+			return null;
+		ImageCalibration calibration = getImageCalibration(frameReference.studyUID, frameReference.seriesUID,
+				frameReference.imageUID, pixelValueStore.getNumberOfFrames());
+		int frameNumber = frameReference.frameNumber;
+		return ROIStatistics.compute(pixelValueStore, frameNumber, region, calibration.getRescaleSlope(frameNumber),
+				calibration.getRescaleIntercept(frameNumber), calibration.pixelSpacing);
+	}
+
+	@Override
+	public FileInputStream getRenderedFrame(FrameReference frameReference, Double windowCenter, Double windowWidth, int size,
+			String format) throws Exception
+	{
+		PixelValueStore pixelValueStore = getFramePixelValueStore(frameReference);
+		if (pixelValueStore == null)
+			return null;
+		ImageCalibration calibration = getImageCalibration(frameReference.studyUID, frameReference.seriesUID,
+				frameReference.imageUID, pixelValueStore.getNumberOfFrames());
+		double rescaleSlope = calibration.getRescaleSlope(frameReference.frameNumber);
+		double rescaleIntercept = calibration.getRescaleIntercept(frameReference.frameNumber);
+		if (windowCenter == null || windowWidth == null) {
+			String key = calibration.modality + "-" + calibration.bodyPart;
+			if (defaultWindow.get(key.toUpperCase()) != null) {
+				String[] win = defaultWindow.get(key.toUpperCase()).split(",");
+				windowCenter = Double.valueOf(getInt(win[1]));
+				windowWidth = Double.valueOf(getInt(win[0]));
+			} else if (!Double.isNaN(calibration.windowCenter) && !Double.isNaN(calibration.windowWidth)) {
+				windowCenter = calibration.windowCenter;
+				windowWidth = calibration.windowWidth;
+			} else { // Full range of the frame
+				double[] values = pixelValueStore.getFrame(frameReference.frameNumber);
+				double min = Double.MAX_VALUE;
+				double max = -Double.MAX_VALUE;
+				for (double value : values) {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				min = min * rescaleSlope + rescaleIntercept;
+				max = max * rescaleSlope + rescaleIntercept;
+				windowWidth = Math.max(1, Math.abs(max - min));
+				windowCenter = (min + max) / 2;
+			}
+		}
+		return FrameRenderer.render(pixelValueStore, frameReference.imageUID, frameReference.frameNumber,
+				rescaleSlope, rescaleIntercept, windowCenter, windowWidth, size, format);
+	}
+
+	private PixelValueStore getFramePixelValueStore(FrameReference frameReference) throws Exception
+	{
+		PixelValueStore pixelValueStore = DSOUtil.getOrCreatePixelValueStore(frameReference.studyUID,
+				frameReference.seriesUID, frameReference.imageUID);
+		if (pixelValueStore != null
+				&& (frameReference.frameNumber < 0 || frameReference.frameNumber >= pixelValueStore.getNumberOfFrames()))
+			throw new Exception("Image " + frameReference.imageUID + " frame " + frameReference.frameNumber + " not found");
+		return pixelValueStore;
+	}
+
+	private ImageCalibration getImageCalibration(String studyUID, String seriesUID, String imageUID, int numberOfFrames)
+	{
+		ImageCalibration calibration = imageCalibrations.get(imageUID);
+		if (calibration != null)
+			return calibration;
+		calibration = new ImageCalibration();
+		String rescaleSlope = null;
+		String rescaleIntercept = null;
+		String pixelSpacing = null;
+		String windowCenter = null;
+		String windowWidth = null;
+		DCM4CHEEImageDescription imageDescription = dcm4CheeDatabaseOperations.getImageDescription(studyUID, seriesUID, imageUID);
+		if (imageDescription != null) {
+			rescaleSlope = imageDescription.rescaleSlope;
+			rescaleIntercept = imageDescription.rescaleIntercept;
+			calibration.modality = imageDescription.modality;
+		}
+		// The header is needed for pixel spacing anyway, and for rescale values dcm4chee did not index
+		DICOMElementList dicomElements = getDICOMElements(studyUID, seriesUID, imageUID);
+		if (dicomElements != null) {
+			for (DICOMElement dicomElement : dicomElements.ResultSet.Result) {
+				if (rescaleIntercept == null && dicomElement.tagCode.equals("(0028,1052)"))
+					rescaleIntercept = dicomElement.value.trim();
+				else if (rescaleSlope == null && dicomElement.tagCode.equals("(0028,1053)"))
+					rescaleSlope = dicomElement.value.trim();
+				else if (pixelSpacing == null && dicomElement.tagCode.equals("(0028,0030)"))
+					pixelSpacing = dicomElement.value.trim();
+				else if (windowCenter == null && dicomElement.tagCode.equals("(0028,1050)"))
+					windowCenter = dicomElement.value.trim();
+				else if (windowWidth == null && dicomElement.tagCode.equals("(0028,1051)"))
+					windowWidth = dicomElement.value.trim();
+				else if (calibration.modality == null && dicomElement.tagCode.equals("(0008,0060)"))
+					calibration.modality = dicomElement.value.trim();
+				else if (calibration.bodyPart == null && dicomElement.tagCode.equals("(0018,0015)"))
+					calibration.bodyPart = dicomElement.value.trim();
+			}
+		}
+		try {
+			if (rescaleSlope != null && rescaleSlope.length() > 0)
+				calibration.rescaleSlope = Double.parseDouble(rescaleSlope);
+			if (rescaleIntercept != null && rescaleIntercept.length() > 0)
+				calibration.rescaleIntercept = Double.parseDouble(rescaleIntercept);
+			if (pixelSpacing != null) {
+				String[] spacing = pixelSpacing.split("\\\\");
+				if (spacing.length == 2)
+					calibration.pixelSpacing = new double[] { Double.parseDouble(spacing[0].trim()),
+							Double.parseDouble(spacing[1].trim()) };
+			}
+			// Multi-valued windows hold alternatives, the first one is the default
+			if (windowCenter != null && windowWidth != null && windowCenter.length() > 0 && windowWidth.length() > 0) {
+				calibration.windowCenter = Double.parseDouble(windowCenter.split("\\\\")[0].trim());
+				calibration.windowWidth = Double.parseDouble(windowWidth.split("\\\\")[0].trim());
+			}
+		} catch (NumberFormatException e) {
+			log.warning("Invalid rescale, pixel spacing or window in image " + imageUID, e);
+		}
+		// Enhanced multi-frame images can rescale every frame differently, the flat header only shows the first frame
+		if (numberOfFrames > 1) {
+			try {
+				calibration.frameRescales = DSOUtil.getFrameRescales(studyUID, seriesUID, imageUID);
+			} catch (Exception e) {
+				log.warning("Error reading per-frame rescale of image " + imageUID, e);
+			}
+		}
+		log.info("Image " + imageUID + " rescale slope:" + calibration.rescaleSlope + " intercept:"
+				+ calibration.rescaleIntercept + " pixel spacing:" + pixelSpacing + " window:" + windowCenter + "/"
+				+ windowWidth);
+		imageCalibrations.put(imageUID, calibration);
+		return calibration;
+	}
+
 	private int getInt(String value)
 	{
 		try {
@@ -1438,9 +1715,11 @@ public class DefaultEpadOperations implements EpadOperations
 	public void deleteSeriesPNGs(SeriesReference seriesReference) {
 		String pngPath = EPADConfig.getEPADWebServerPNGDir() + "studies/" + seriesReference.studyUID + "/series/" + seriesReference.seriesUID + "/images/";
 		log.debug("Deleting all files in:" + pngPath);
+		PixelValueStore.deleteSeries(seriesReference.studyUID, seriesReference.seriesUID);
 		File pngDir = new File(pngPath);
 		if (pngDir.exists())
 			EPADFileUtils.deleteDirectoryAndContents(pngDir);
+		PreviewGeneratorTask.deletePreviews(seriesReference.studyUID, seriesReference.seriesUID);
 	}
 
 	@Override
@@ -1594,7 +1873,7 @@ public class DefaultEpadOperations implements EpadOperations
 						try {
 							log.info("Downloading remote DICOM file with image " + dicomFileDescription.imageUID + " for series UID " + seriesUID);
 							dsoFile = File.createTempFile(dicomFileDescription.imageUID, ".tmp");
-							DCM4CHEEUtil.downloadDICOMFileFromWADO(dicomFileDescription, dsoFile);
+							HttpClientPool.downloadDICOMFileFromWADO(dicomFileDescription, dsoFile);
 						} catch (Exception e) {
 							log.warning("Exception when downloading DICOM file with series UID " + seriesUID + " and image UID "
 									+ dicomFileDescription.imageUID, e);
@@ -3788,6 +4067,23 @@ public class DefaultEpadOperations implements EpadOperations
 	public EPADAIMList getProjectAIMDescriptions(ProjectReference projectReference, String username, String sessionID)
 	{
 		List<EPADAIM> aims = epadDatabaseOperations.getAIMs(projectReference);
+		checkProjectAIMs(projectReference, aims);
+		return new EPADAIMList(aims);
+	}
+
+	@Override
+	public EPADAIMList getProjectAIMDescriptions(ProjectReference projectReference, String username, String sessionID, KeysetPage page)
+	{
+		List<EPADAIM> aims = epadDatabaseOperations.getAIMs(projectReference, page);
+		checkProjectAIMs(projectReference, aims);
+		return new EPADAIMList(aims);
+	}
+
+	/**
+	 * Drops aims of other projects and aims whose DSO series is gone, and sets the DSO processing status.
+	 */
+	private void checkProjectAIMs(ProjectReference projectReference, List<EPADAIM> aims)
+	{
 		for (int i = 0; i < aims.size(); i++)
 		{
 			if (!projectReference.projectID.equals(aims.get(i).projectID))
@@ -3814,7 +4110,6 @@ public class DefaultEpadOperations implements EpadOperations
 			if (status != null)
 				aim.dsoStatus = status.name();
 		}
-		return new EPADAIMList(aims);
 	}
 
 	@Override
@@ -5647,7 +5942,7 @@ public class DefaultEpadOperations implements EpadOperations
 
 		try {
 			File temporaryDicomFile = File.createTempFile(imageUID, ".dcm");
-			DCM4CHEEUtil.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDicomFile);
+			HttpClientPool.downloadDICOMFileFromWADO(studyUID, seriesUID, imageUID, temporaryDicomFile);
 
 			dicomImageFilePath = temporaryDicomFile.getAbsolutePath();
 			Opener opener = new Opener();
@@ -6118,7 +6413,6 @@ public class DefaultEpadOperations implements EpadOperations
 		long starttime = System.currentTimeMillis();
 		List<Project> projects = new ArrayList<Project>();
 		List projectList =	projectOperations.getProjectsForStudy(studyUID);
-		projectList = projectOperations.sort(projectList, "name", true);
 		projects.addAll(projectList);
 		long gettime = System.currentTimeMillis();
 		log.info("get projects for study " + studyUID + " returned " + projectList.size() +" items");
@@ -6145,7 +6439,6 @@ public class DefaultEpadOperations implements EpadOperations
 		long starttime = System.currentTimeMillis();
 		List<Project> projects = new ArrayList<Project>();
 		List projectList =	projectOperations.getProjectsForSubject(subjectUID);
-		projectList = projectOperations.sort(projectList, "name", true);
 		projects.addAll(projectList);
 		long gettime = System.currentTimeMillis();
 		log.info("get projects for subject " + subjectUID + " returned " + projectList.size() +" items");
@@ -105,6 +105,7 @@
 package edu.stanford.epad.epadws.queries;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -149,8 +150,11 @@ import edu.stanford.epad.epadws.handlers.core.ProjectReference;
 import edu.stanford.epad.epadws.handlers.core.SeriesReference;
 import edu.stanford.epad.epadws.handlers.core.StudyReference;
 import edu.stanford.epad.epadws.handlers.core.SubjectReference;
+import edu.stanford.epad.epadws.handlers.dicom.PixelValueStore;
+import edu.stanford.epad.epadws.handlers.dicom.ROIStatistics;
 import edu.stanford.epad.epadws.models.ProjectType;
 import edu.stanford.epad.epadws.models.Template;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 import edu.stanford.epad.epadws.security.EPADSession;
 
 /**
@@ -195,6 +199,20 @@ public interface EpadOperations
 	 */
 	EPADSubjectList getSubjectDescriptions(String projectID, String username, String sessionID,
 			EPADSearchFilter searchFilter, int start, int count, String sortField, boolean annotationCount) throws Exception;
+
+	/**
+	 * Get one keyset page of subject descriptions for a project
+	 * @param projectID
+	 * @param username
+	 * @param sessionID
+	 * @param searchFilter
+	 * @param page position and size of the page; its next token is set if more subjects may follow
+	 * @param sortField
+	 * @return
+	 * @throws Exception
+	 */
+	EPADSubjectList getSubjectDescriptions(String projectID, String username, String sessionID,
+			EPADSearchFilter searchFilter, KeysetPage page, String sortField, boolean annotationCount) throws Exception;
 	
 	EPADSubjectList getWorklistSubjectDescriptions(String projectID, String username, String worklistID, EPADSearchFilter searchFilter, String sessionID, String sortField) throws Exception;
 
@@ -233,6 +251,19 @@ public interface EpadOperations
 	 */
 	EPADStudyList getStudyDescriptions(SubjectReference subjectReference, String username, String sessionID,
 			EPADSearchFilter searchFilter) throws Exception;
+
+	/**
+	 * Get one keyset page of study descriptions for a subject
+	 * @param subjectReference
+	 * @param username
+	 * @param sessionID
+	 * @param searchFilter
+	 * @param page position and size of the page; its next token is set if more studies may follow
+	 * @return
+	 * @throws Exception
+	 */
+	EPADStudyList getStudyDescriptions(SubjectReference subjectReference, String username, String sessionID,
+			EPADSearchFilter searchFilter, KeysetPage page) throws Exception;
 	
 	/**
 	 * Get study description
@@ -1161,6 +1192,16 @@ public interface EpadOperations
 	 */
 	EPADAIMList getProjectAIMDescriptions(ProjectReference projectReference, String username, String sessionID);
 
+	/**
+	 * Get one keyset page of project aims
+	 * @param projectReference
+	 * @param username
+	 * @param sessionID
+	 * @param page position and size of the page; its next token is set if more aims may follow
+	 * @return
+	 */
+	EPADAIMList getProjectAIMDescriptions(ProjectReference projectReference, String username, String sessionID, KeysetPage page);
+
 	/**
 	 * @param projectReference
 	 * @param aimID
@@ -1619,6 +1660,40 @@ public interface EpadOperations
 	 */
 	EPADFrame getFrameDescription(FrameReference frameReference, String sessionID, boolean pixelData);
 
+	/**
+	 * read a rectangle of stored pixel values of a frame from the binary pixel store
+	 * @param frameReference
+	 * @param x
+	 * @param y
+	 * @param width to the right edge if 0
+	 * @param height to the bottom edge if 0
+	 * @return null if no pixel values are stored for the image
+	 * @throws Exception
+	 */
+	PixelValueStore.PixelRegion getPixelRegion(FrameReference frameReference, int x, int y, int width, int height) throws Exception;
+
+	/**
+	 * compute statistics of the rescaled pixel values inside a region of interest of a frame
+	 * @param frameReference
+	 * @param region polygon, ellipse or mask in image coordinates
+	 * @return
+	 * @throws Exception
+	 */
+	ROIStatistics getROIStatistics(FrameReference frameReference, ROIStatistics.Region region) throws Exception;
+
+	/**
+	 * render a frame as a windowed 8-bit image
+	 * @param frameReference
+	 * @param windowCenter null for the default window of the modality, then the image's window
+	 * @param windowWidth
+	 * @param size longest side in pixels, 0 for the stored size
+	 * @param format jpeg or png
+	 * @return the rendered image open for reading (the caller closes it), null if no pixel values can be read for the
+	 *         image
+	 * @throws Exception
+	 */
+	FileInputStream getRenderedFrame(FrameReference frameReference, Double windowCenter, Double windowWidth, int size, String format) throws Exception;
+
 	/**
 	 * delete a specific file
 	 * @param username
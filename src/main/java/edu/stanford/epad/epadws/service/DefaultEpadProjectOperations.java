@@ -108,6 +108,8 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -164,6 +166,9 @@ import edu.stanford.epad.epadws.models.WorkList;
 import edu.stanford.epad.epadws.models.WorkListToStudy;
 import edu.stanford.epad.epadws.models.WorkListToSubject;
 import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.models.dao.Criteria;
+import edu.stanford.epad.epadws.models.dao.DAOChangeListener;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 import edu.stanford.epad.epadws.queries.Dcm4CheeQueries;
 
 /**
@@ -178,14 +183,40 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 
 	private static final DefaultEpadProjectOperations ourInstance = new DefaultEpadProjectOperations();
 	
-	// Simple Project/Subject/User cache - maybe replace it with Ehcache someday
-	private static Map<String, Project> projectCache = new HashMap<String, Project>();
-	private static Map<String, User> userCache = new HashMap<String, User>();
-	private static Map<String, Subject> subjectCache = new HashMap<String, Subject>();
-	private static Map<String, Template> templateCache = new HashMap<String, Template>();
+	// Project/Subject/Template entries are invalidated whenever the object is saved or deleted
+	private static final EntityCache<Project> projectCache = new EntityCache<Project>("Project", 500, 10*60*1000L);
+	private static final EntityCache<Subject> subjectCache = new EntityCache<Subject>("Subject", 5000, 10*60*1000L);
+	private static final EntityCache<Template> templateCache = new EntityCache<Template>("Template", 500, 10*60*1000L);
+	// Users hold their background tasks in memory, so those with a task in process are never evicted
+	private static final EntityCache<User> userCache = new EntityCache<User>("User", 500, 30*60*1000L) {
+		@Override
+		protected boolean canEvict(User user)
+		{
+			for (TaskStatus task: user.getCurrentTasks().values())
+			{
+				if (task.completetime == null)
+					return false;
+			}
+			return true;
+		}
+	};
 	
 	private DefaultEpadProjectOperations()
 	{
+		AbstractDAO.addChangeListener(new DAOChangeListener() {
+			@Override
+			public void changed(AbstractDAO object, boolean deleted)
+			{
+				if (object instanceof Project)
+					projectCache.remove(((Project) object).getProjectId());
+				else if (object instanceof Subject)
+					subjectCache.remove(((Subject) object).getSubjectUID());
+				else if (object instanceof Template)
+					templateCache.remove(((Template) object).getTemplateCode());
+				else if (object instanceof User && deleted)
+					userCache.remove(((User) object).getUsername());
+			}
+		});
 	}
 
 	public static DefaultEpadProjectOperations getInstance()
@@ -198,20 +229,29 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	@Override
 	public void clearCache() {
-		projectCache = new HashMap<String, Project>();
-		userCache = new HashMap<String, User>();
-		subjectCache = new HashMap<String, Subject>();
-		templateCache = new HashMap<String, Template>();
+		projectCache.clear();
+		userCache.clear();
+		subjectCache.clear();
+		templateCache.clear();
 	}
 	
 	@Override
 	public int getCacheSize() {
-		return projectCache.keySet().size() +  userCache.keySet().size() +  subjectCache.keySet().size();
+		return projectCache.size() +  userCache.size() +  subjectCache.size();
 	}
 
 	public static Collection<User> getUserCache() {
 		return userCache.values();
 	}
+
+	public static List<EntityCache<?>> getCaches() {
+		List<EntityCache<?>> caches = new ArrayList<EntityCache<?>>();
+		caches.add(projectCache);
+		caches.add(userCache);
+		caches.add(subjectCache);
+		caches.add(templateCache);
+		return caches;
+	}
 	/**
 	 * @param username
 	 * @return
@@ -274,7 +314,6 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		project.setType(type.getName());
 		project.setCreator(loggedInUser);
 		project.save();
-		projectCache.put(project.getProjectId(), project);
 		return project;
 	}
 
@@ -295,7 +334,6 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (defaultTemplate != null)
 			project.setDefaultTemplate(defaultTemplate);
 		project.save();
-		projectCache.put(project.getProjectId(), project);
 		return project;
 	}
 
@@ -362,7 +400,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (addPermissions.size() > 0 && !loggedInUser.isAdmin())
 			throw new Exception("Only admin can add permissions");
 		User user = new User();
-		user = (User) user.getObject("username = " + user.toSQL(username));
+		user = (User) user.getObject(Criteria.where("username", username));
 		if (loggedInUser != null && !loggedInUser.isAdmin() && !loggedInUserName.equals(username) && !loggedInUserName.equals(user.getCreator()))
 			throw new Exception("No permission to modify user");
 		if (firstName != null) user.setFirstName(firstName);
@@ -712,7 +750,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (!requestor.isAdmin() && !loggedInUser.equals(user.getCreator()))
 			throw new Exception("No permissions to delete user");
 		try {
-			new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" user_id =" + user.getId());
+			new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("user_id", user.getId()));
 			//check if there are worklists assigned to this user and delete
 			try {
 				EpadWorkListOperations worklistOperations = DefaultWorkListOperations.getInstance();
@@ -801,7 +839,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			int aims = epadDatabaseOperations.getNumberOfAIMs(AIMDatabaseOperations.aimcol_username + " = '" + username + "'");
 			int dsos = epadDatabaseOperations.getNumberOfAIMs("DSOSeriesUID is not null or DSOSeriesUID != '' and " + AIMDatabaseOperations.aimcol_username + " = '" + username + "'");
 			int pacQueries = new RemotePACQuery().getCount("");
-			int wls = new WorkList().getCount("user_id =" + user.getId());
+			int wls = new WorkList().getCount(Criteria.where("user_id", user.getId()));
 			String host = EPADConfig.xnatServer;
 			es.setHost(host);
 			es.setNumOfUsers(users);
@@ -873,7 +911,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String username, UserRole role, String defaultTemplate) throws Exception {
 		User user = getUser(username);
 		Project project = getProject(projectId);
-		ProjectToUser ptou = (ProjectToUser) new ProjectToUser().getObject("project_id = " + project.getId() + " and user_id=" + user.getId());
+		ProjectToUser ptou = (ProjectToUser) new ProjectToUser().getObject(Criteria.where("project_id", project.getId()).and("user_id", user.getId()));
 		if (ptou == null)
 		{
 			ptou = new ProjectToUser();
@@ -898,8 +936,8 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String username) throws Exception {
 		User user = getUser(username);
 		Project project = getProject(projectId);
-		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" project_id =" + project.getId()+ " and user_id=" + user.getId());
-		ProjectToUser ptou = (ProjectToUser) new ProjectToUser().getObject("project_id = " + project.getId() + " and user_id=" + user.getId());
+		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("project_id", project.getId()).and("user_id", user.getId()));
+		ProjectToUser ptou = (ProjectToUser) new ProjectToUser().getObject(Criteria.where("project_id", project.getId()).and("user_id", user.getId()));
 		if (ptou != null)
 			ptou.delete();
 	}
@@ -913,7 +951,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		User user = getUser(username);
 		Project project = getProject(projectId);
 		ProjectToUser ptou = new ProjectToUser();
-		ptou = (ProjectToUser) ptou.getObject("project_id = " + project.getId() + " and user_id =" + user.getId());
+		ptou = (ProjectToUser) ptou.getObject(Criteria.where("project_id", project.getId()).and("user_id", user.getId()));
 		ptou.setRole(role.getName());
 	}
 
@@ -1023,18 +1061,18 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	public void addSubjectToProject(String loggedInUser, String subjectUID,
 			String projectId) throws Exception {
 		Subject subject = new Subject();
-		subject = (Subject) subject.getObject("subjectuid = " + subject.toSQL(subjectUID));
+		subject = (Subject) subject.getObject(Criteria.where("subjectuid", subjectUID));
 		Project project = new Project();
-		project = (Project) project.getObject("projectId = " + project.toSQL(projectId));
+		project = (Project) project.getObject(Criteria.where("projectId", projectId));
 
-		List<ProjectToSubject> ptss = new ProjectToSubject().getObjects("subject_id=" + subject.getId());
+		List<ProjectToSubject> ptss = new ProjectToSubject().getObjects(Criteria.where("subject_id", subject.getId()));
 		//ml null checks added for the bug occured after delete subject
 		if (ptss!=null && ptss.size() == 1 && ( subject.getCreator()==null || subject.getCreator().equals("admin")))
 		{
 			subject.setCreator(loggedInUser);
 			subject.save();
 		}
-		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject("project_id =" + project.getId() + " and subject_id=" + subject.getId());
+		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (ptos == null)
 		{
 			ptos = new ProjectToSubject();
@@ -1078,7 +1116,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		
 		Project project = getProject(projectId);
 		ProjectToSubject ptos = new ProjectToSubject();
-		ptos = (ProjectToSubject) ptos.getObject("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		ptos = (ProjectToSubject) ptos.getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (ptos == null)
 		{
 			ptos = new ProjectToSubject();
@@ -1088,14 +1126,14 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			ptos.save();
 			this.createEventLog(loggedInUser, projectId, subjectUID, null, null, null, null, null, "Added Patient to Project", null, false);
 		}
-		List<ProjectToSubjectToStudy> psss = new ProjectToSubjectToStudy().getObjects("study_id=" + study.getId());
+		List<ProjectToSubjectToStudy> psss = new ProjectToSubjectToStudy().getObjects(Criteria.where("study_id", study.getId()));
 		//ml null check
 		if (psss!=null && psss.size() == 1 && ( subject.getCreator()==null || subject.getCreator().equals("admin")))
 		{
 			study.setCreator(loggedInUser);
 			study.save();
 		}
-		ProjectToSubjectToStudy pss = (ProjectToSubjectToStudy) new ProjectToSubjectToStudy().getObject("proj_subj_id = " + ptos.getId() + " and study_id=" + study.getId());
+		ProjectToSubjectToStudy pss = (ProjectToSubjectToStudy) new ProjectToSubjectToStudy().getObject(Criteria.where("proj_subj_id", ptos.getId()).and("study_id", study.getId()));
 		if (pss == null)
 		{
 			pss = new ProjectToSubjectToStudy();
@@ -1114,13 +1152,13 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String subjectUID, String projectId) throws Exception {
 		Subject subject = getSubject(subjectUID);
 		Project project = new Project();
-		project = (Project) project.getObject("projectId = " + project.toSQL(projectId));
+		project = (Project) project.getObject(Criteria.where("projectId", projectId));
 		ProjectToSubject ptos = new ProjectToSubject();
-		ptos = (ProjectToSubject) ptos.getObject("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		ptos = (ProjectToSubject) ptos.getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		ProjectToSubjectToStudy pss = new ProjectToSubjectToStudy();
-		pss.deleteObjects("proj_subj_id = " + ptos.getId());
+		pss.deleteObjects(Criteria.where("proj_subj_id", ptos.getId()));
 		ptos.delete();
-		new WorkListToSubject().deleteObjects("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		new WorkListToSubject().deleteObjects(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 	}
 
 	/* (non-Javadoc)
@@ -1134,12 +1172,12 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		subject.setId(study.getSubjectId());
 		subject = (Subject) subject.retrieve();
 		Project project = new Project();
-		project = (Project) project.getObject("projectId = " + project.toSQL(projectId));
+		project = (Project) project.getObject(Criteria.where("projectId", projectId));
 		ProjectToSubject ptos = new ProjectToSubject();
-		ptos = (ProjectToSubject) ptos.getObject("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		ptos = (ProjectToSubject) ptos.getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		ProjectToSubjectToStudy pss = new ProjectToSubjectToStudy();
-		pss.deleteObjects("proj_subj_id = " + ptos.getId() + " and study_id =" + study.getId());
-		new WorkListToStudy().deleteObjects("project_id = " + project.getId() + " and study_id =" + study.getId());
+		pss.deleteObjects(Criteria.where("proj_subj_id", ptos.getId()).and("study_id", study.getId()));
+		new WorkListToStudy().deleteObjects(Criteria.where("project_id", project.getId()).and("study_id", study.getId()));
 	}
 
 	/* (non-Javadoc)
@@ -1154,7 +1192,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (project == null)
 			throw new Exception("Project not found, ID:" + subjectUID);
 		ProjectToSubject ptos = new ProjectToSubject();
-		ptos = (ProjectToSubject) ptos.getObject("project_id = " + project.getId() + " and subject_id =" + subject.getId());
+		ptos = (ProjectToSubject) ptos.getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (ptos == null)
 			return false;
 		else
@@ -1241,9 +1279,11 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		templateCode=templateCode.trim();
 		Template template = templateCache.get(templateCode);
 		if (template != null)
-			return template;
+			return (Template) template.clone();
 		template = new Template();
-		template = (Template) template.getObject("templateCode = " + template.toSQL(templateCode));
+		template = (Template) template.getObject(Criteria.where("templateCode", templateCode));
+		if (template != null)
+			templateCache.put(templateCode, (Template) template.clone());
 		return template;
 	}
 	
@@ -1252,11 +1292,13 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	@Override
 	public Project getProject(String projectId) throws Exception {
-		Project project = projectCache.get(projectId);
+		Project project = getProjectFromCache(projectId);
 		if (project != null)
 			return project;
 		project = new Project();
-		project = (Project) project.getObject("projectId = " + project.toSQL(projectId));
+		project = (Project) project.getObject(Criteria.where("projectId", projectId));
+		if (project != null)
+			projectCache.put(projectId, (Project) project.clone());
 		return project;
 	}
 
@@ -1265,22 +1307,44 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	@Override
 	public User getUser(String username) throws Exception {
+		User user = findUser(username);
+		if (user == null) return user;
+		Map<Long, ProjectToUser> memberships = getProjectMemberships(user);
+		List<Project> projects = memberships.isEmpty() ? new ArrayList<Project>()
+				: new Project().getObjects(new Criteria().in("id", memberships.keySet()));
+		setProjectToRole(user, memberships, projects);
+		return user;
+	}
+
+	/**
+	 * The cached user, without refreshing its project roles.
+	 */
+	private User findUser(String username) throws Exception
+	{
 		User user = userCache.get(username);
 		if (user == null)
 		{
 			user = new User();
-			user = (User) user.getObject("username = " + user.toSQL(username));
+			user = (User) user.getObject(Criteria.where("username", username));
 			if (user == null) return user;
 			userCache.put(user.getUsername(), user);
 		}
-		user.setProjectToRole(new HashMap<String, String>());
-		List<ProjectToUser> ptous = new ProjectToUser().getObjects("user_id = " + user.getId());
-		for (ProjectToUser ptou: ptous)
+		return user;
+	}
+
+	/**
+	 * Sets the user's role in each of the projects it is a member of; projects may hold others as well.
+	 */
+	private void setProjectToRole(User user, Map<Long, ProjectToUser> memberships, List<Project> projects)
+	{
+		Map<String, String> projectToRole = new HashMap<String, String>();
+		for (Project project: projects)
 		{
-			Project project = (Project)new Project(ptou.getProjectId()).retrieve();
-			user.getProjectToRole().put(project.getProjectId(), ptou.getRole());
+			ProjectToUser p2u = memberships.get(project.getId());
+			if (p2u != null)
+				projectToRole.put(project.getProjectId(), p2u.getRole());
 		}
-		return user;
+		user.setProjectToRole(projectToRole);
 	}
 
 	/* (non-Javadoc)
@@ -1289,7 +1353,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public User getUserByEmail(String email) throws Exception {
 		User user = new User();
-		List objects = user.getObjects("email = " + user.toSQL(email));
+		List objects = user.getObjects(Criteria.where("email", email));
 		if (objects.size() > 0)
 			return (User) objects.get(0);
 		else
@@ -1301,11 +1365,13 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	@Override
 	public Subject getSubject(String subjectUID) throws Exception {
-		Subject subject = subjectCache.get(subjectUID);
+		Subject subject = getSubjectFromCache(subjectUID);
 		if (subject != null)
 			return subject;
 		subject = new Subject();
-		subject = (Subject) subject.getObject("subjectuid = " + subject.toSQL(subjectUID));
+		subject = (Subject) subject.getObject(Criteria.where("subjectuid", subjectUID));
+		if (subject != null)
+			subjectCache.put(subjectUID, (Subject) subject.clone());
 		return subject;
 	}
 
@@ -1315,7 +1381,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public Study getStudy(String studyUID) throws Exception {
 		Study study = new Study();
-		study = (Study) study.getObject("studyUID = " + study.toSQL(studyUID));
+		study = (Study) study.getObject(Criteria.where("studyUID", studyUID));
 		return study;
 	}
 
@@ -1349,16 +1415,9 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		List objects = new User().getObjects("1 = 1 order by username");
 		List<User> users = new ArrayList<User>();
 		users.addAll(objects);
+		List<Project> projects = new Project().getObjects(new Criteria());
 		for (User user: users)
-		{
-			user.setProjectToRole(new HashMap<String, String>());
-			List<ProjectToUser> ptous = new ProjectToUser().getObjects("user_id = " + user.getId());
-			for (ProjectToUser ptou: ptous)
-			{
-				Project project = (Project)new Project(ptou.getProjectId()).retrieve();
-				user.getProjectToRole().put(project.getProjectId(), ptou.getRole());
-			}
-		}
+			setProjectToRole(user, getProjectMemberships(user), projects);
 		return users;
 	}
 
@@ -1367,30 +1426,41 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	 */
 	@Override
 	public List<Project> getProjectsForUser(String username) throws Exception {
-		User user = getUser(username);
-		List<Project> projects = this.getAllProjects();
-		for (int i = 0; i < projects.size(); i++)
-		{
-			Project project = projects.get(i);
-			List<ProjectToUser> p2us = new ProjectToUser().getObjects("user_id =" + user.getId() + " and project_id=" + project.getId());
-			if (p2us.size() > 0)
-			{
-				ProjectToUser p2u = p2us.get(0);
-				if (p2u.getDefaultTemplate() != null && p2u.getDefaultTemplate().length() > 0)
-					project.setDefaultTemplate(p2u.getDefaultTemplate());
-			}
-			else if (username.equals("admin") || user.isAdmin() || project.getType().equals(ProjectType.PUBLIC.getName()))
-			{
-			}
-			else
-			{
-				projects.remove(i);
-				i--;
-			}
+		User user = findUser(username);
+		// All of the user's memberships in one query, rather than one query per project
+		Map<Long, ProjectToUser> memberships = getProjectMemberships(user);
+		List<Project> projects;
+		if (username.equals("admin") || user.isAdmin())
+			projects = new Project().getObjects(new Criteria().orderBy("name", true));
+		else
+			projects = new Project().getObjects(Criteria.anyOf(Criteria.where("type", ProjectType.PUBLIC.getName()),
+					new Criteria().in("id", memberships.keySet())).orderBy("name", true));
+		// The listing holds every project the user is a member of, so it also gives the roles
+		setProjectToRole(user, memberships, projects);
+		for (Project project: projects)
+		{
+			ProjectToUser p2u = memberships.get(project.getId());
+			if (p2u != null && p2u.getDefaultTemplate() != null && p2u.getDefaultTemplate().length() > 0)
+				project.setDefaultTemplate(p2u.getDefaultTemplate());
 		}
 		return projects;
 	}
 
+	/**
+	 * The user's project_user rows keyed by project id.
+	 */
+	private Map<Long, ProjectToUser> getProjectMemberships(User user) throws Exception
+	{
+		Map<Long, ProjectToUser> memberships = new HashMap<Long, ProjectToUser>();
+		List<ProjectToUser> p2us = new ProjectToUser().getObjects(Criteria.where("user_id", user.getId()));
+		for (ProjectToUser p2u: p2us)
+		{
+			if (!memberships.containsKey(p2u.getProjectId()))
+				memberships.put(p2u.getProjectId(), p2u);
+		}
+		return memberships;
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getProjectForUser(java.lang.String, java.lang.String)
 	 */
@@ -1399,7 +1469,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectID);
 		if (project == null) return null;
 		User user = getUser(username);
-		List<ProjectToUser> p2us = new ProjectToUser().getObjects("user_id =" + user.getId() + " and project_id=" + project.getId());
+		List<ProjectToUser> p2us = new ProjectToUser().getObjects(Criteria.where("user_id", user.getId()).and("project_id", project.getId()));
 		if (p2us.size() > 0)
 		{
 			ProjectToUser p2u = p2us.get(0);
@@ -1466,7 +1536,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			throws Exception {
 		Project project = getProject(projectId);
 		if (project == null) return new ArrayList<User>();
-		List ptous = new ProjectToUser().getObjects("project_id = " + project.getId());
+		List ptous = new ProjectToUser().getObjects(Criteria.where("project_id", project.getId()));
 		List<User> users = new ArrayList<User>();
 		for (Object ptou: ptous)
 		{
@@ -1501,10 +1571,86 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		return getSubjectsByProjectId(project.getId(), sortBy);
 	}
 
+	/* (non-Javadoc)
+	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getSubjectsForProject(java.lang.String, java.lang.String, java.lang.String, java.lang.String, edu.stanford.epad.epadws.models.dao.KeysetPage)
+	 */
+	@Override
+	public List<Subject> getSubjectsForProject(String projectId, String sortBy, String patientNameMatch,
+			String patientIDMatch, KeysetPage page) throws Exception {
+		List<Subject> subjects = new ArrayList<Subject>();
+		Project project = getProject(projectId);
+		if (project == null) return subjects;
+		
+		Criteria criteria = new Criteria().inSelect("id", "subject_id", ProjectToSubject.DBTABLE, Criteria.where("project_id", project.getId()));
+		String namePattern = patientNameMatch == null ? null : toLikePattern(patientNameMatch.replace('^', ' '));
+		if (namePattern != null)
+			criteria.and("name", "like", namePattern);
+		String idPattern = patientIDMatch == null ? null : toLikePattern(patientIDMatch);
+		if (idPattern != null)
+			criteria.and("subjectuid", "like", idPattern);
+		page.apply(criteria, getSubjectKeyColumns(sortBy));
+		subjects.addAll(new Subject().getObjects(criteria, 1, page.getSize()));
+		if (subjects.size() == page.getSize())
+			page.setLast(getSubjectKey(subjects.get(subjects.size() - 1), sortBy));
+		return subjects;
+	}
+
+	/**
+	 * LIKE pattern for a search filter match (a case insensitive "contains" regular expression with * as wildcard),
+	 * or null if the match needs regular expression syntax that LIKE lacks. The pattern may match more rows than the
+	 * filter but never fewer, as the filter still runs on the rows read.
+	 */
+	static String toLikePattern(String match)
+	{
+		match = match.replace('%', '*');
+		int start = 0;
+		int end = match.length();
+		while (start < end && match.charAt(start) == '*')
+			start++;
+		while (end > start && match.charAt(end - 1) == '*')
+			end--;
+		if (start == end)
+			return null;
+		StringBuilder pattern = new StringBuilder("%");
+		for (int i = start; i < end; i++) {
+			char c = match.charAt(i);
+			if (c == '.' || c == ' ')
+				pattern.append('_'); // Any character; names match '^' for ' '
+			else if (c == '_')
+				pattern.append("\\_");
+			else if ("\\^$[](){}*+?|".indexOf(c) >= 0)
+				return null;
+			else
+				pattern.append(c);
+		}
+		return pattern.append('%').toString();
+	}
+
+	/**
+	 * Key columns of the keyset paginated subject listing for a sort field; subjectUID is unique, so it completes the
+	 * sort key.
+	 */
+	public static String[] getSubjectKeyColumns(String sortBy)
+	{
+		if ("subjectUID".equalsIgnoreCase(sortBy) || "SubjectId".equalsIgnoreCase(sortBy))
+			return new String[] { "subjectuid" };
+		return new String[] { "name", "subjectuid" };
+	}
+
+	/**
+	 * Values of the key columns for a subject, for {@link KeysetPage#setLast}.
+	 */
+	public static Object[] getSubjectKey(Subject subject, String sortBy)
+	{
+		if (getSubjectKeyColumns(sortBy).length == 1)
+			return new Object[] { subject.getSubjectUID() };
+		return new Object[] { subject.getName(), subject.getSubjectUID() };
+	}
+
 	@Override
 	public List<Subject> getUnassignSubjects() throws Exception {
 		Project project = this.getProject(EPADConfig.xnatUploadProjectID);
-		List psAll = new ProjectToSubject().getObjects("project_id = " + project.getId());
+		List psAll = new ProjectToSubject().getObjects(Criteria.where("project_id", project.getId()));
 		Set<Long> allIds = new HashSet<Long>();
 		for (Object obj: psAll)
 		{
@@ -1517,7 +1663,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			long id = ((ProjectToSubject) obj).getSubjectId();
 			if (!allIds.contains(id))
 			{
-				Subject subject = (Subject) new Subject().getObject("id = " + id);
+				Subject subject = (Subject) new Subject().getObject(Criteria.where("id", id));
 				log.info("Adding " + subject.getSubjectUID() + " to " + EPADConfig.xnatUploadProjectID);
 				this.addSubjectToProject("admin", subject.getSubjectUID(), EPADConfig.xnatUploadProjectID);
 			}
@@ -1562,6 +1708,8 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			sortBy = "name";
 		else if (sortBy.equalsIgnoreCase("SubjectId"))
 			sortBy = "subjectUID";
+		else if (!sortBy.matches("[A-Za-z_][A-Za-z0-9_]*"))
+			sortBy = "name";
 			
 		List objects = new Subject().getObjects("id in (select subject_id from " 
 													+ ProjectToSubject.DBTABLE 
@@ -1581,7 +1729,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectId);
 		Subject subject = getSubject(subjectUID);
 		if (subject == null) return null;
-		if (new ProjectToSubject().getCount("subject_id=" + subject.getId() + " and project_id=" + project.getId()) > 0)
+		if (new ProjectToSubject().getCount(Criteria.where("subject_id", subject.getId()).and("project_id", project.getId())) > 0)
 			return subject;
 		else
 			return null;
@@ -1593,7 +1741,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public Subject getSubjectFromName(String subjectName) throws Exception {
 		Subject subject = new Subject();
-		List<Subject> subjects = subject.getObjects("name =" +subject.toSQL(subjectName));
+		List<Subject> subjects = subject.getObjects(Criteria.where("name", subjectName));
 		if (subjects.size() > 0)
 			return subjects.get(0);
 		else
@@ -1628,7 +1776,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Subject subject = getSubject(subjectUID);
 		List objects = new Project().getObjects("id in (select project_id from " 
 													+ ProjectToSubject.DBTABLE 
-													+ " where subject_id =" + subject.getId() + ")");
+													+ " where subject_id =" + subject.getId() + ") order by name");
 		List<Project> projects = new ArrayList<Project>();
 		projects.addAll(objects);
 		
@@ -1639,11 +1787,11 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	public List<Project> getProjectsForStudy(String studyUID) throws Exception {
 		Study study = getStudy(studyUID);
 		List<Project> projects = new ArrayList<Project>();
-		List<AbstractDAO> psss = new ProjectToSubjectToStudy().getObjects("study_id=" + study.getId());
+		List<AbstractDAO> psss = new ProjectToSubjectToStudy().getObjects(Criteria.where("study_id", study.getId()));
 		if (psss.size() == 0) return projects;
 		List objects = new Project().getObjects("id in (select project_id from " 
 													+ ProjectToSubject.DBTABLE 
-													+ " where id in (" + getProjectToSubjectIdList(psss) + "))");
+													+ " where id in (" + getProjectToSubjectIdList(psss) + ")) order by name");
 		projects.addAll(objects);
 		log.info("study "+ study.getId() + "projecttosubj "+ getProjectToSubjectIdList(psss));
 		
@@ -1675,7 +1823,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		//if we cannot retrieve the project or subject, we should return empty list 
 		if (project == null || subject == null)
 			return studies;
-		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject("project_id = " + project.getId() + " and subject_id=" + subject.getId());
+		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (ptos == null)
 			return studies;
 		List objects = new Study().getObjects("id in (select study_id from " 
@@ -1686,13 +1834,34 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		return studies;
 	}
 
+	/* (non-Javadoc)
+	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getStudiesForProjectAndSubject(java.lang.String, java.lang.String, edu.stanford.epad.epadws.models.dao.KeysetPage)
+	 */
+	@Override
+	public List<Study> getStudiesForProjectAndSubject(String projectId,
+			String subjectUID, KeysetPage page) throws Exception {
+		Project project = getProject(projectId);
+		Subject subject = getSubject(subjectUID);
+		List<Study> studies = new ArrayList<Study>();
+		if (project == null || subject == null)
+			return studies;
+		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
+		if (ptos == null)
+			return studies;
+		Criteria criteria = new Criteria().inSelect("id", "study_id", ProjectToSubjectToStudy.DBTABLE, Criteria.where("proj_subj_id", ptos.getId()));
+		studies.addAll(new Study().getObjects(page.apply(criteria, "studyuid"), 1, page.getSize()));
+		if (studies.size() == page.getSize())
+			page.setLast(studies.get(studies.size() - 1).getStudyUID());
+		return studies;
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.stanford.epad.epadws.service.EpadProjectOperations#getFirstProjectForStudy(java.lang.String)
 	 */
 	@Override
 	public Project getFirstProjectForStudy(String studyUID) throws Exception {
 		Study study = getStudy(studyUID);
-		List<ProjectToSubject> ptoss = new ProjectToSubject().getObjects("subject_id=" + study.getSubjectId());
+		List<ProjectToSubject> ptoss = new ProjectToSubject().getObjects(Criteria.where("subject_id", study.getSubjectId()));
 		Map<Long, ProjectToSubject> ptosIdMap = new HashMap<Long, ProjectToSubject>();
 		for (ProjectToSubject ptos: ptoss)
 			ptosIdMap.put(ptos.getId(), ptos);
@@ -1717,10 +1886,10 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectId);
 		Subject subject = getSubject(subjectUID);
 		Study study = getStudy(studyUID);
-		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject("project_id = " + project.getId() + " and subject_id=" + subject.getId());
+		ProjectToSubject ptos = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (ptos == null)
 			return false;
-		return new ProjectToSubjectToStudy().getCount("proj_subj_id = " + ptos.getId() + " and study_id=" + study.getId()) > 0;
+		return new ProjectToSubjectToStudy().getCount(Criteria.where("proj_subj_id", ptos.getId()).and("study_id", study.getId())) > 0;
 	}
 
 	/* (non-Javadoc)
@@ -1729,7 +1898,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public List<Study> getAllStudiesForProject(String projectId) throws Exception {
 		Project project = getProject(projectId);
-		List objects = new ProjectToSubject().getObjects("project_id = " + project.getId());
+		List objects = new ProjectToSubject().getObjects(Criteria.where("project_id", project.getId()));
 		List<Study> studies = new ArrayList<Study>();
 		for (Object ptos: objects)
 		{
@@ -1750,12 +1919,24 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Subject subject = getSubject(subjectUID);
 		if (subject == null)
 			return new ArrayList<Study>();
-		List objects = new Study().getObjects("subject_id  =" + subject.getId());
+		List objects = new Study().getObjects(Criteria.where("subject_id", subject.getId()));
 		List<Study> studies = new ArrayList<Study>();
 		studies.addAll(objects);		
 		return studies;
 	}
 
+	@Override
+	public List<Study> getStudiesForSubject(String subjectUID, KeysetPage page) throws Exception {
+		Subject subject = getSubject(subjectUID);
+		List<Study> studies = new ArrayList<Study>();
+		if (subject == null)
+			return studies;
+		studies.addAll(new Study().getObjects(page.apply(Criteria.where("subject_id", subject.getId()), "studyuid"), 1, page.getSize()));
+		if (studies.size() == page.getSize())
+			page.setLast(studies.get(studies.size() - 1).getStudyUID());
+		return studies;
+	}
+
 	@Override
 	public Subject getSubjectForStudy(String studyUID) throws Exception {
 		Study study = this.getStudy(studyUID);
@@ -1771,7 +1952,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Study study = getStudy(studyUID);
 		if (study == null)
 			throw new Exception("Study " + studyUID + " not found");
-		List objects = new NonDicomSeries().getObjects("study_id  =" + study.getId());
+		List objects = new NonDicomSeries().getObjects(Criteria.where("study_id", study.getId()));
 		List<NonDicomSeries> serieses = new ArrayList<NonDicomSeries>();
 		serieses.addAll(objects);		
 		return serieses;
@@ -1780,7 +1961,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public NonDicomSeries getNonDicomSeries(String seriesUID) throws Exception {
 		NonDicomSeries series = new NonDicomSeries();
-		series = (NonDicomSeries) series.getObject("seriesUID = " + series.toSQL(seriesUID));
+		series = (NonDicomSeries) series.getObject(Criteria.where("seriesUID", seriesUID));
 		return series;
 	}
 
@@ -1793,8 +1974,8 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectID);
 		Subject subject = getSubject(subjectUID);
 		User user = getUser(loggedInUser);
-		ProjectToSubject ptos = (ProjectToSubject)new ProjectToSubject().getObject("project_id=" + project.getId() + " and subject_id=" + subject.getId());
-		ProjectToSubjectToUser psu = (ProjectToSubjectToUser)new ProjectToSubjectToUser().getObject("proj_subj_id=" + ptos.getId() + " and user_id=" + user.getId());
+		ProjectToSubject ptos = (ProjectToSubject)new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
+		ProjectToSubjectToUser psu = (ProjectToSubjectToUser)new ProjectToSubjectToUser().getObject(Criteria.where("proj_subj_id", ptos.getId()).and("user_id", user.getId()));
 		if (psu == null)
 		{
 			psu = new ProjectToSubjectToUser();
@@ -1815,8 +1996,8 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectID);
 		Subject subject = getSubject(subjectUID);
 		User user = getUser(loggedInUser);
-		ProjectToSubject ptos = (ProjectToSubject)new ProjectToSubject().getObject("project_id=" + project.getId() + " and subject_id=" + subject.getId());
-		ProjectToSubjectToUser psu = (ProjectToSubjectToUser)new ProjectToSubjectToUser().getObject("proj_subj_id=" + ptos.getId() + " and user_id=" + user.getId());
+		ProjectToSubject ptos = (ProjectToSubject)new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
+		ProjectToSubjectToUser psu = (ProjectToSubjectToUser)new ProjectToSubjectToUser().getObject(Criteria.where("proj_subj_id", ptos.getId()).and("user_id", user.getId()));
 		if (psu == null)
 			return null;
 		else
@@ -1837,7 +2018,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		{
 			subjectIdToUID.put(subject.getId(), subject.getSubjectUID());
 		}
-		List ptoss = new ProjectToSubject().getObjects("project_id=" + project.getId());
+		List ptoss = new ProjectToSubject().getObjects(Criteria.where("project_id", project.getId()));
 		List<Long> ptosIds = new ArrayList<Long>();
 		Map<Long, Long> ptosIdToSubjectID = new HashMap<Long, Long>();
 		for (Object ptos: ptoss)
@@ -1865,7 +2046,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String loggedInUser, String projectID) throws Exception {
 		Project project = getProject(projectID);
 		User user = getUser(loggedInUser);
-		List ptoss = new ProjectToSubject().getObjects("project_id=" + project.getId());
+		List ptoss = new ProjectToSubject().getObjects(Criteria.where("project_id", project.getId()));
 		List<Long> ptosIds = new ArrayList<Long>();
 		Map<Long, Long> ptosIdToSubjectID = new HashMap<Long, Long>();
 		for (Object ptos: ptoss)
@@ -1923,7 +2104,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 
 	protected boolean isUserInProject(long userId, long projectId)
 			throws Exception {
-		ProjectToUser pu = (ProjectToUser) new ProjectToUser().getObject("project_id =" + projectId + " and user_id=" + userId);
+		ProjectToUser pu = (ProjectToUser) new ProjectToUser().getObject(Criteria.where("project_id", projectId).and("user_id", userId));
 		if (pu == null)
 			return false;
 		else
@@ -2015,7 +2196,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String projectID) throws Exception {
 		User user = getUser(username);
 		Project project = getProject(projectID);
-		ProjectToUser pu = (ProjectToUser) new ProjectToUser().getObject("project_id =" + project.getId() + " and user_id=" + user.getId());
+		ProjectToUser pu = (ProjectToUser) new ProjectToUser().getObject(Criteria.where("project_id", project.getId()).and("user_id", user.getId()));
 		if (pu == null)
 			return null;
 		String role = pu.getRole();
@@ -2276,7 +2457,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectID);
 		if (project == null)
 			throw new Exception("Project not found");
-		new DisabledTemplate().deleteObjects("project_id = " + project.getId() + " and templatename=" + DisabledTemplate.toSQL(templateName));
+		new DisabledTemplate().deleteObjects(Criteria.where("project_id", project.getId()).and("templatename", templateName));
 	}
 	
 	
@@ -2308,7 +2489,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			throw new Exception("Template not found");
 		
 		
-		ProjectToTemplate pt = (ProjectToTemplate) new ProjectToTemplate().getObject("project_id = " + project.getId() + " and template_id=" + template.getId());
+		ProjectToTemplate pt = (ProjectToTemplate) new ProjectToTemplate().getObject(Criteria.where("project_id", project.getId()).and("template_id", template.getId()));
 		if (pt==null) {
 			pt= new ProjectToTemplate();
 			pt.setProjectId(project.getId());
@@ -2339,7 +2520,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			throw new Exception("Template not found");
 		
 		
-		ProjectToTemplate pt = (ProjectToTemplate) new ProjectToTemplate().getObject("project_id = " + project.getId() + " and template_id=" + template.getId());
+		ProjectToTemplate pt = (ProjectToTemplate) new ProjectToTemplate().getObject(Criteria.where("project_id", project.getId()).and("template_id", template.getId()));
 		return pt.isEnabled();
 	}
 
@@ -2386,7 +2567,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		if (project == null)
 			throw new Exception("Project not found");
 		
-		List<DisabledTemplate> dts = new DisabledTemplate().getObjects("project_id = " + project.getId() );
+		List<DisabledTemplate> dts = new DisabledTemplate().getObjects(Criteria.where("project_id", project.getId()));
 		//if empty check call the method for the new version 
 		if (dts==null || dts.isEmpty())
 			return getDisabledTemplateCodes(projectID);
@@ -2410,7 +2591,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	
 	@Override
 	public List<Long> getProjectsForTemplate(long templateId) throws Exception {
-		List<ProjectToTemplate> pts = new ProjectToTemplate().getObjects("template_id=" + templateId );
+		List<ProjectToTemplate> pts = new ProjectToTemplate().getObjects(Criteria.where("template_id", templateId));
 		List<Long> projects = new ArrayList<Long>();
 		for (ProjectToTemplate pt: pts)
 			projects.add(pt.getProjectId());
@@ -2451,15 +2632,16 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		//if file is a template delete the entries in template and project_template
 		if (efile.getFileType().equalsIgnoreCase("Template")){
 			//get project entities and delete them first
-			List<Template> templates=new Template().getObjects("file_id =" + efile.getId());
+			List<Template> templates=new Template().getObjects(Criteria.where("file_id", efile.getId()));
 			for (Template t:templates) {
-				new ProjectToTemplate().deleteObjects("template_id =" + t.getId());
+				new ProjectToTemplate().deleteObjects(Criteria.where("template_id", t.getId()));
 			}
 			//delete the template
-			new Template().deleteObjects("file_id =" + efile.getId());
+			new Template().deleteObjects(Criteria.where("file_id", efile.getId()));
+			templateCache.clear();
 		}
 		
-		new ProjectToFile().deleteObjects("file_id =" + efile.getId());
+		new ProjectToFile().deleteObjects(Criteria.where("file_id", efile.getId()));
 		efile.delete();
 	}
 	
@@ -2486,15 +2668,16 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		//if file is a template delete the entries in template and project_template
 		if (efile.getFileType().equalsIgnoreCase("Template")){
 			//get project entities and delete them first
-			List<Template> templates=new Template().getObjects("file_id =" + efile.getId());
+			List<Template> templates=new Template().getObjects(Criteria.where("file_id", efile.getId()));
 			for (Template t:templates) {
-				new ProjectToTemplate().deleteObjects("template_id =" + t.getId());
+				new ProjectToTemplate().deleteObjects(Criteria.where("template_id", t.getId()));
 			}
 			//delete the template
-			new Template().deleteObjects("file_id =" + efile.getId());
+			new Template().deleteObjects(Criteria.where("file_id", efile.getId()));
+			templateCache.clear();
 		}
 		
-		new ProjectToFile().deleteObjects("file_id =" + efile.getId());
+		new ProjectToFile().deleteObjects(Criteria.where("file_id", efile.getId()));
 		efile.delete();
 	}
 	
@@ -2507,7 +2690,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		} catch (Exception x) {
 			log.warning("Error deleting file:" + file.getAbsolutePath(), x);
 		}
-		new ProjectToFile().deleteObjects("file_id =" + efile.getId());
+		new ProjectToFile().deleteObjects(Criteria.where("file_id", efile.getId()));
 		efile.delete();
 	}
 
@@ -2523,13 +2706,13 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		log.info("Deleting project:" + projectID);
 		Project project = getProject(projectID);
 		if (project == null) return;
-		new ProjectToUser().deleteObjects("project_id=" + project.getId());
+		new ProjectToUser().deleteObjects(Criteria.where("project_id", project.getId()));
 		//extra checks for migration
 		//if the templates that are in this project has any references to other projects, 
 		//check if they have file references
 		//check if the are same size
 		//if so update the template file ref in the template
-		List<ProjectToTemplate> projectTemplates= new ProjectToTemplate().getObjects("project_id=" + project.getId());
+		List<ProjectToTemplate> projectTemplates= new ProjectToTemplate().getObjects(Criteria.where("project_id", project.getId()));
 		for (ProjectToTemplate pt :projectTemplates) {
 			List<ProjectToTemplate> otherProjects =new ProjectToTemplate().getObjects("template_id="+pt.getTemplateId()+" and project_id<>" + project.getId());
 			for (ProjectToTemplate ot :otherProjects) { //for each template check
@@ -2546,23 +2729,23 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			}
 		}
 		
-		new ProjectToTemplate().deleteObjects("project_id=" + project.getId());
+		new ProjectToTemplate().deleteObjects(Criteria.where("project_id", project.getId()));
 		new Template().deleteObjects("file_id in (select id from epad_file where project_id=" + project.getId()+")");
-		new EpadFile().deleteObjects("project_id=" + project.getId());
+		templateCache.clear();
+		new EpadFile().deleteObjects(Criteria.where("project_id", project.getId()));
 					
-		new ProjectToPluginParameter().deleteObjects("project_id=" + project.getId() );
-		new ProjectToPlugin().deleteObjects("project_id=" + project.getId() );
+		new ProjectToPluginParameter().deleteObjects(Criteria.where("project_id", project.getId()));
+		new ProjectToPlugin().deleteObjects(Criteria.where("project_id", project.getId()));
 		new ProjectToSubjectToUser().deleteObjects("proj_subj_id in (select id from " + new ProjectToSubject().returnDBTABLE() + " where project_id=" + project.getId() + ")");
 		new ProjectToSubjectToStudy().deleteObjects("proj_subj_id in (select id from " + new ProjectToSubject().returnDBTABLE() + " where project_id=" + project.getId() + ")");
-		new ProjectToSubject().deleteObjects("project_id=" + project.getId());
+		new ProjectToSubject().deleteObjects(Criteria.where("project_id", project.getId()));
 		//ml
-		new RemotePACQuery().deleteObjects("project_id=" + project.getId());
-		new WorkListToStudy().deleteObjects("project_id=" + project.getId());
-		new WorkListToSubject().deleteObjects("project_id=" + project.getId());
-		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" project_id =" + project.getId());
+		new RemotePACQuery().deleteObjects(Criteria.where("project_id", project.getId()));
+		new WorkListToStudy().deleteObjects(Criteria.where("project_id", project.getId()));
+		new WorkListToSubject().deleteObjects(Criteria.where("project_id", project.getId()));
+		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("project_id", project.getId()));
 		try {
 			project.delete();
-			projectCache.remove(project.getProjectId());
 		} catch (Exception x) {
 			if (x.getMessage() != null && x.getMessage().contains("constraint")) {
 				log.warning("Error deleting project", x);
@@ -2589,28 +2772,27 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			if (projSubjs.size() > 0)
 				throw new Exception("Patient exists in other projects");
 		}
-		ProjectToSubject projSubj = (ProjectToSubject) new ProjectToSubject().getObject("project_id =" + project.getId() + " and subject_id=" + subject.getId());
+		ProjectToSubject projSubj = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (projSubj != null)
 		{
-			new ProjectToSubjectToUser().deleteObjects("proj_subj_id =" + projSubj.getId());
-			new ProjectToSubjectToStudy().deleteObjects("proj_subj_id =" + projSubj.getId());
+			new ProjectToSubjectToUser().deleteObjects(Criteria.where("proj_subj_id", projSubj.getId()));
+			new ProjectToSubjectToStudy().deleteObjects(Criteria.where("proj_subj_id", projSubj.getId()));
 			projSubj.delete();
 		}
-		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(" project_id =" + project.getId() + " and subject_id=" + subject.getId());
-		new WorkListToSubject().deleteObjects("subject_id =" + subject.getId() + " and project_id =" + project.getId());			
-		List projSubjs = new ProjectToSubject().getObjects("subject_id=" + subject.getId());
+		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
+		new WorkListToSubject().deleteObjects(Criteria.where("subject_id", subject.getId()).and("project_id", project.getId()));			
+		List projSubjs = new ProjectToSubject().getObjects(Criteria.where("subject_id", subject.getId()));
 		// TODO: delete subject if not used any more
 		if (projSubjs.size() == 0)
 		{
-			List<Study> studies = new Study().getObjects("subject_id = " + subject.getId());
+			List<Study> studies = new Study().getObjects(Criteria.where("subject_id", subject.getId()));
 			for (Study study: studies)
 			{
-				new WorkListToStudy().deleteObjects("study_id =" + study.getId());			
+				new WorkListToStudy().deleteObjects(Criteria.where("study_id", study.getId()));			
 				study.delete();
 			}
-			new WorkListToSubject().deleteObjects("subject_id =" + subject.getId());			
+			new WorkListToSubject().deleteObjects(Criteria.where("subject_id", subject.getId()));			
 			subject.delete();
-			subjectCache.remove(subjectUID);
 		}
 	}
 
@@ -2627,17 +2809,17 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		Project project = getProject(projectID);
 		Study study = getStudy(studyUID);
 		if (study == null) return;
-		ProjectToSubject projSubj = (ProjectToSubject) new ProjectToSubject().getObject("project_id =" + project.getId() + " and subject_id=" + subject.getId());
+		ProjectToSubject projSubj = (ProjectToSubject) new ProjectToSubject().getObject(Criteria.where("project_id", project.getId()).and("subject_id", subject.getId()));
 		if (projSubj != null) {
-			ProjectToSubjectToStudy projSubjStudy = (ProjectToSubjectToStudy) new ProjectToSubjectToStudy().getObject("proj_subj_id =" + projSubj.getId() + " and study_id=" + study.getId());
+			ProjectToSubjectToStudy projSubjStudy = (ProjectToSubjectToStudy) new ProjectToSubjectToStudy().getObject(Criteria.where("proj_subj_id", projSubj.getId()).and("study_id", study.getId()));
 			if (projSubjStudy != null) projSubjStudy.delete();
 		}
 		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects("study_id =" + study.getId() + " and project_id =" + project.getId() + " and subject_id=" + subject.getId());
-		new WorkListToStudy().deleteObjects("study_id =" + study.getId() + " and project_id =" + project.getId());			
-		List<ProjectToSubjectToStudy> projSubjStudys = new ProjectToSubjectToStudy().getObjects("study_id=" + study.getId());
+		new WorkListToStudy().deleteObjects(Criteria.where("study_id", study.getId()).and("project_id", project.getId()));			
+		List<ProjectToSubjectToStudy> projSubjStudys = new ProjectToSubjectToStudy().getObjects(Criteria.where("study_id", study.getId()));
 		if (projSubjStudys.size() == 0)
 		{
-			new WorkListToStudy().deleteObjects("study_id =" + study.getId());			
+			new WorkListToStudy().deleteObjects(Criteria.where("study_id", study.getId()));			
 			study.delete();
 			List<Study> studies = this.getStudiesForSubject(subjectUID);
 			List<EpadFile> files = this.getEpadFiles(null, subjectUID, null, null, null, false);
@@ -2654,24 +2836,24 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		log.info("Deleting subject:" + subjectUID);
 		Subject subject = getSubject(subjectUID);
 		if (subject == null) return;
-		List<ProjectToSubject> objects = new ProjectToSubject().getObjects("subject_id=" + subject.getId());
+		List<ProjectToSubject> objects = new ProjectToSubject().getObjects(Criteria.where("subject_id", subject.getId()));
 		for (ProjectToSubject ptos: objects)
 		{
-			new ProjectToSubjectToUser().deleteObjects("proj_subj_id =" + ptos.getId());
-			new ProjectToSubjectToStudy().deleteObjects("proj_subj_id =" + ptos.getId());
+			new ProjectToSubjectToUser().deleteObjects(Criteria.where("proj_subj_id", ptos.getId()));
+			new ProjectToSubjectToStudy().deleteObjects(Criteria.where("proj_subj_id", ptos.getId()));
 			ptos.delete();
 		}
-		List<Study> studies = new Study().getObjects("subject_id = " + subject.getId());
+		List<Study> studies = new Study().getObjects(Criteria.where("subject_id", subject.getId()));
 		for (Study study: studies)
 		{
-			new WorkListToStudy().deleteObjects("study_id =" + study.getId());
+			new WorkListToStudy().deleteObjects(Criteria.where("study_id", study.getId()));
 			//delete files first
-			new EpadFile().deleteObjects("study_id=" + study.getId());
+			new EpadFile().deleteObjects(Criteria.where("study_id", study.getId()));
 			study.delete();
 		}
-		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects("subject_id=" + subject.getId());
-		new EpadFile().deleteObjects("subject_id=" + subject.getId());
-		new WorkListToSubject().deleteObjects("subject_id =" + subject.getId());			
+		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("subject_id", subject.getId()));
+		new EpadFile().deleteObjects(Criteria.where("subject_id", subject.getId()));
+		new WorkListToSubject().deleteObjects(Criteria.where("subject_id", subject.getId()));			
 		subject.delete();
 	}
 
@@ -2682,9 +2864,9 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	public void deleteStudy(String username, String studyUID) throws Exception {
 		Study study = getStudy(studyUID);
 		if (study == null) return;
-		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects("study_id=" + study.getId());
-		new ProjectToSubjectToStudy().deleteObjects("study_id=" + study.getId());
-		new EpadFile().deleteObjects("study_id=" + study.getId());
+		new ProjectToSubjectToStudyToSeriesToUserStatus().deleteObjects(Criteria.where("study_id", study.getId()));
+		new ProjectToSubjectToStudy().deleteObjects(Criteria.where("study_id", study.getId()));
+		new EpadFile().deleteObjects(Criteria.where("study_id", study.getId()));
 		study.delete();
 	}
 
@@ -2695,7 +2877,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		{
 			this.deleteFile(file);
 		}
-		NonDicomSeries nds = (NonDicomSeries) new NonDicomSeries().getObject("seriesUID = " + NonDicomSeries.toSQL(seriesUID));
+		NonDicomSeries nds = (NonDicomSeries) new NonDicomSeries().getObject(Criteria.where("seriesUID", seriesUID));
 		if (nds != null)
 			nds.delete();
 	}
@@ -2712,7 +2894,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public List<User> getReviewers(String username) throws Exception {
 		List<User> users = new ArrayList<User>();
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewee = " + DatabaseUtils.toSQL(username));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewee", username));
 		for (ReviewerToReviewee rtr: rtrs)
 		{
 			User reviewer = getUser(rtr.getReviewer());
@@ -2727,7 +2909,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public List<User> getReviewees(String username) throws Exception {
 		List<User> users = new ArrayList<User>();
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewer = " + DatabaseUtils.toSQL(username));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewer", username));
 		for (ReviewerToReviewee rtr: rtrs)
 		{
 			User reviewee = getUser(rtr.getReviewee());
@@ -2744,7 +2926,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String reviewer) throws Exception {
 		if (username.equals(reviewer))
 			throw new Exception("Reviewer and reviewee " + username + " are the same");
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewee = " + DatabaseUtils.toSQL(username) + " and reviewer=" + DatabaseUtils.toSQL(reviewer));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewee", username).and("reviewer", reviewer));
 		if (rtrs.size() == 0)
 		{
 			ReviewerToReviewee rtr = new ReviewerToReviewee();
@@ -2762,7 +2944,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 			String reviewee) throws Exception {
 		if (username.equals(reviewee))
 			throw new Exception("Reviewer and reviewee " + username + " are the same");
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewer = " + DatabaseUtils.toSQL(username) + " and reviewee=" + DatabaseUtils.toSQL(reviewee));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewer", username).and("reviewee", reviewee));
 		if (rtrs.size() == 0)
 		{
 			ReviewerToReviewee rtr = new ReviewerToReviewee();
@@ -2778,7 +2960,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public void removeReviewer(String loggedInUser, String username,
 			String reviewer) throws Exception {
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewee = " + DatabaseUtils.toSQL(username) + " and reviewer=" + DatabaseUtils.toSQL(reviewer));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewee", username).and("reviewer", reviewer));
 		for (ReviewerToReviewee rtr: rtrs)
 		{
 			rtr.delete();
@@ -2791,7 +2973,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public void removeReviewee(String loggedInUser, String username,
 			String reviewee) throws Exception {
-		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects("reviewer = " + DatabaseUtils.toSQL(username) + " and reviewee=" + DatabaseUtils.toSQL(reviewee));
+		List<ReviewerToReviewee> rtrs = new ReviewerToReviewee().getObjects(Criteria.where("reviewer", username).and("reviewee", reviewee));
 		for (ReviewerToReviewee rtr: rtrs)
 		{
 			rtr.delete();
@@ -2806,7 +2988,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		User user = getUser(loggedInUser);
 		if (user != null && !user.isAdmin() && !isOwner(loggedInUser, project.getProjectId()))
 			throw new Exception("No permission to add template to project");
-		ProjectToFile ptof = (ProjectToFile) new ProjectToFile().getObject("project_id =" + project.getId() + " and file_id =" + file.getId());
+		ProjectToFile ptof = (ProjectToFile) new ProjectToFile().getObject(Criteria.where("project_id", project.getId()).and("file_id", file.getId()));
 		if (ptof == null) {
 			ptof = new ProjectToFile();
 			ptof.setProjectId(project.getId());
@@ -2824,7 +3006,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 		User user = getUser(loggedInUser);
 		if (user != null && !user.isAdmin() && !isOwner(loggedInUser, project.getProjectId()))
 			throw new Exception("No permission to remove template from project");
-		ProjectToFile ptof = (ProjectToFile) new ProjectToFile().getObject("project_id =" + project.getId() + " and file_id =" + file.getId());
+		ProjectToFile ptof = (ProjectToFile) new ProjectToFile().getObject(Criteria.where("project_id", project.getId()).and("file_id", file.getId()));
 		if (ptof != null) {
 			ptof.delete();
 		}		
@@ -2849,7 +3031,7 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	@Override
 	public AbstractDAO getDBObject(Class dbClass, long id) throws Exception {
 		AbstractDAO object = (AbstractDAO) dbClass.newInstance();
-		return object.getObject("id = " + id);
+		return object.getObject(Criteria.where("id", id));
 	}
 
 	/* (non-Javadoc)
@@ -2859,65 +3041,42 @@ public class DefaultEpadProjectOperations implements EpadProjectOperations {
 	public List sort(List<AbstractDAO> objects, String field, boolean ascending) {
 		if (objects.size() == 0) return new ArrayList();
 		log.debug("Sort database objects:" + objects.get(0).returnDBTABLE());
-		for (int i = 0; i < objects.size(); i++)
-		{
-			AbstractDAO obj1 = objects.get(i);
-			for (int j = i+1; j < objects.size(); j++)
+		// Read each field value once rather than on every comparison
+		List<SortKey> keys = new ArrayList<SortKey>(objects.size());
+		for (AbstractDAO object: objects)
+			keys.add(new SortKey(object, object._fieldValue(field)));
+		Collections.sort(keys, ascending ? SortKey.ASCENDING : Collections.reverseOrder(SortKey.ASCENDING));
+		for (int i = 0; i < keys.size(); i++)
+			objects.set(i, keys.get(i).object);
+		return objects;
+	}
+
+	private static class SortKey
+	{
+		static final Comparator<SortKey> ASCENDING = new Comparator<SortKey>() {
+			@Override
+			public int compare(SortKey key1, SortKey key2)
 			{
-				AbstractDAO obj2 = objects.get(j);
-				Object value1 = obj1._fieldValue(field);
-				Object value2 = obj2._fieldValue(field);
-				if (!ascending)
-				{
-					Object value = value1;
-					value1 = value2;
-					value2 = value;
-				}
-				boolean swich = false;
-				if (value2 == null && value1 != null) 
-				{
-					continue;
-				}
-				else if (value1 == null && value2 != null)
-				{
-					swich = true;
-				}
-				else
-				{
-					if (value1 instanceof String && ((String) value1).compareToIgnoreCase((String) value2) > 0)
-					{
-						swich = true;
-					}
-					else if (value1 instanceof Date && ((Date) value1).compareTo((Date) value2) > 0)
-					{
-						swich = true;
-					}
-					else if (value1 instanceof Integer && ((Integer) value1).compareTo((Integer) value2) > 0)
-					{
-						swich = true;
-					}
-					else if (value1 instanceof Long && ((Long) value1).compareTo((Long) value2) > 0)
-					{
-						swich = true;
-					}
-					else if (value1 instanceof Double && ((Double) value1).compareTo((Double) value2) > 0)
-					{
-						swich = true;
-					}
-					else if (value1 instanceof Boolean && ((Boolean) value1).compareTo((Boolean) value2) > 0)
-					{
-						swich = true;
-					}
-				}
-				if (swich)
-				{
-					objects.set(i, obj2);
-					objects.set(j, obj1);
-					obj1 = obj2;
-				}
+				Object value1 = key1.value;
+				Object value2 = key2.value;
+				if (value1 == null || value2 == null)
+					return value1 == null ? (value2 == null ? 0 : 1) : -1;
+				if (value1 instanceof String && value2 instanceof String)
+					return ((String) value1).compareToIgnoreCase((String) value2);
+				if (value1 instanceof Comparable && value1.getClass() == value2.getClass())
+					return ((Comparable) value1).compareTo(value2);
+				return 0;
 			}
+		};
+
+		final AbstractDAO object;
+		final Object value;
+
+		SortKey(AbstractDAO object, Object value)
+		{
+			this.object = object;
+			this.value = value;
 		}
-		return objects;
 	}
 	
 	private String getProjectToSubjectIdList(List<AbstractDAO> objects)
@@ -127,6 +127,7 @@ import edu.stanford.epad.epadws.models.Template;
 import edu.stanford.epad.epadws.models.User;
 import edu.stanford.epad.epadws.models.UserRole;
 import edu.stanford.epad.epadws.models.dao.AbstractDAO;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
 
 /**
  * All Epad User/Project/Subject/Study related operations to replace XNAT functionality
@@ -436,7 +437,7 @@ public interface EpadProjectOperations {
 	List<Project> getPublicProjects() throws Exception;
 	
 	/**
-	 * Get Projects for a user
+	 * Get Projects for a user, ordered by name
 	 * @param username
 	 * @return
 	 * @throws Exception
@@ -476,6 +477,19 @@ public interface EpadProjectOperations {
 	 */
 	List<Subject> getSubjectsForProject(String projectId) throws Exception;
 	List<Subject> getSubjectsForProject(String projectId, String sortBy) throws Exception;
+
+	/**
+	 * Get one page of Subjects for a project, ordered by name (or by subjectUID if sortBy is "subjectUID")
+	 * @param projectId
+	 * @param sortBy
+	 * @param patientNameMatch search filter name match, or null; narrows the query, the filter itself is not applied
+	 * @param patientIDMatch search filter id match, or null; as patientNameMatch
+	 * @param page position and size of the page; its next token is set if the page was full
+	 * @return
+	 * @throws Exception
+	 */
+	List<Subject> getSubjectsForProject(String projectId, String sortBy, String patientNameMatch, String patientIDMatch,
+			KeysetPage page) throws Exception;
 	List<Subject> getUnassignSubjects() throws Exception;
 	/**
 	 * Get Subject for project
@@ -487,7 +501,7 @@ public interface EpadProjectOperations {
 	Subject getSubjectForProject(String projectId, String subjectUID) throws Exception;
 	
 	/**
-	 * Get projects for a subject
+	 * Get projects for a subject, ordered by name
 	 * @param subjectUID
 	 * @return
 	 * @throws Exception
@@ -495,7 +509,7 @@ public interface EpadProjectOperations {
 	List<Project> getProjectsForSubject(String subjectUID) throws Exception;
 	
 	/**
-	 * Get projects for a study
+	 * Get projects for a study, ordered by name
 	 * @param subjectUID
 	 * @return
 	 * @throws Exception
@@ -535,6 +549,16 @@ public interface EpadProjectOperations {
 	 * @throws Exception
 	 */
 	List<Study> getStudiesForProjectAndSubject(String projectId, String subjectUID) throws Exception;
+
+	/**
+	 * Get one page of Studies for Project/Subject, ordered by studyUID
+	 * @param projectId
+	 * @param subjectUID
+	 * @param page position and size of the page; its next token is set if the page was full
+	 * @return
+	 * @throws Exception
+	 */
+	List<Study> getStudiesForProjectAndSubject(String projectId, String subjectUID, KeysetPage page) throws Exception;
 	
 	/**
 	 * Check if Study in Project
@@ -561,6 +585,15 @@ public interface EpadProjectOperations {
 	 * @throws Exception
 	 */
 	List<Study> getStudiesForSubject(String subjectUID) throws Exception;
+
+	/**
+	 * Get one keyset page of the Studies for a subject, ordered by studyUID
+	 * @param subjectUID
+	 * @param page position and size of the page; its next token is set if the page was full
+	 * @return
+	 * @throws Exception
+	 */
+	List<Study> getStudiesForSubject(String subjectUID, KeysetPage page) throws Exception;
 	Subject getSubjectForStudy(String studyUID) throws Exception;
 	
 	/**
@@ -953,7 +986,8 @@ public interface EpadProjectOperations {
 	AbstractDAO getDBObject(Class dbclass, long id) throws Exception;
 	
 	/**
-	 * Sort db object list
+	 * Sort db object list in place (case-insensitive for strings, nulls last when ascending). Lists read from the
+	 * database should be ordered by the query instead.
 	 * @param objects
 	 * @param field
 	 * @param ascending
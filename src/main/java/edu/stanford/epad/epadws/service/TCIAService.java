@@ -110,7 +110,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -120,9 +119,7 @@ import java.util.Set;
 
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.io.IOUtils;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -134,6 +131,7 @@ import edu.stanford.epad.common.util.EPADLogger;
 import edu.stanford.epad.common.util.Encryption;
 import edu.stanford.epad.dtos.RemotePACEntity;
 import edu.stanford.epad.dtos.TaskStatus;
+import edu.stanford.epad.epadws.handlers.HttpClientPool;
 
 /**
  * Class to query TCIA data. See https://wiki.cancerimagingarchive.net/display/Public/Wiki
@@ -411,30 +409,13 @@ public class TCIAService  {
 		tciaURL = tciaURL + "?SeriesInstanceUID=" + seriesUID;
 		tciaURL = tciaURL + "&api_key=" + apiKey;
 		log.debug("TCIA Download URL:" + tciaURL);
-		HttpClient client = new HttpClient();
-		GetMethod method = new GetMethod(tciaURL);
-		int statusCode = client.executeMethod(method);
 		File uploadStoreDir = new File(EPADConfig.getEPADWebServerUploadDir()
 													+ "temp" + System.currentTimeMillis() + "_"+seriesUID.substring(seriesUID.length()-5));
 		uploadStoreDir.mkdirs();
 		File zipfile = new File(uploadStoreDir, "tcia.zip");
-		long total = 0;
+		int statusCode = HttpClientPool.downloadToFile(tciaURL, zipfile);
 		if (statusCode == HttpServletResponse.SC_OK) {
-			OutputStream outputStream = null;
-			try {
-				outputStream = new FileOutputStream(zipfile);
-				InputStream inputStream = method.getResponseBodyAsStream();
-				int read = 0;
-				byte[] bytes = new byte[4096];
-				while ((read = inputStream.read(bytes)) != -1) {
-					outputStream.write(bytes, 0, read);
-					total = total + read;
-				}
-			} finally {
-				IOUtils.closeQuietly(outputStream);
-				method.releaseConnection();
-			}
-			log.debug("TCIA download:" + total + " bytes");
+			log.debug("TCIA download:" + zipfile.length() + " bytes");
 			writePropertiesFile(uploadStoreDir, projectID, "", username);
 		}
 		else {
@@ -461,10 +442,9 @@ public class TCIAService  {
 		tciaURL = tciaURL.replace(' ', '+') + "api_key=" + apiKey;
 		log.debug("TCIA URL:" + tciaURL);
 		Thread.sleep(10000);
-		HttpClient client = new HttpClient();
+		GetMethod method = new GetMethod(tciaURL);
 		try {
-			GetMethod method = new GetMethod(tciaURL);
-			int statusCode = client.executeMethod(method);
+			int statusCode = HttpClientPool.executeMethod(method);
 			if (statusCode == HttpServletResponse.SC_OK) {
 				InputStream is = method.getResponseBodyAsStream();
 				BufferedReader reader = new BufferedReader(new InputStreamReader(is));
@@ -498,6 +478,8 @@ public class TCIAService  {
 			downtime = System.currentTimeMillis();
 			log.warning("Error calling TCIA url:" + tciaURL, x);
 			throw x;
+		} finally {
+			method.releaseConnection();
 		}
 		
 	}
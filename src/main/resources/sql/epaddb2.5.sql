@@ -0,0 +1,10 @@
+CREATE INDEX epad_files_ind3 on epad_files(instance_fk);
+CREATE INDEX events_ind1 on events(username);
+CREATE INDEX events_ind2 on events(aim_uid);
+CREATE INDEX events_ind3 on events(created_time);
+CREATE INDEX pixel_values_ind1 on pixel_values(file_path(255));
+CREATE INDEX pixel_values_ind2 on pixel_values(image_uid);
+CREATE INDEX subject_name_ind on subject(name,subjectuid);
+
+UPDATE dbversion SET version = '2.5';
+commit;
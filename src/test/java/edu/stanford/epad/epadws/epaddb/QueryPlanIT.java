@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.epaddb;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import edu.stanford.epad.epadws.aim.AIMDatabaseOperations;
+import edu.stanford.epad.epadws.models.dao.Criteria;
+import edu.stanford.epad.epadws.models.dao.KeysetPage;
+
+/**
+ * Query plan regression harness for epaddb
+ * 
+ * Starts an embedded MariaDB, builds epaddb from the installer tables in sql/epaddb-base.sql plus every migration
+ * script under src/main/resources/sql, seeds it with synthetic data and fails if EXPLAIN shows a full table scan for
+ * any of the hot queries below, or a filesort for the ordered (keyset page) ones. The row count defaults to 100000
+ * per large table and can be changed with -Depad.queryplan.rows=N.
+ * <p>
+ * Runs in the failsafe integration test phase of the query-plan profile: mvn -Pquery-plan verify
+ * 
+ * Lookups that cannot use an index by design (the leading wildcard repair query SELECT_EPAD_FILE_PATH_BY_IMAGE_UID
+ * and the CLEANUP_OBSOLETE_EPAD_FILES maintenance query) are not checked.
+ * 
+ */
+public class QueryPlanIT
+{
+	private static final int ROWS = Integer.getInteger("epad.queryplan.rows", 100000);
+	private static final int PROJECTS = Math.max(10, ROWS / 1000);
+	private static final int SUBJECTS = Math.max(10, ROWS / 10);
+	private static final int SERIES = Math.max(10, ROWS / 5);
+	private static final int BATCH_SIZE = 1000;
+
+	private static DB db;
+	private static Connection connection;
+
+	@BeforeClass
+	public static void createDatabase() throws Exception
+	{
+		int port = freePort();
+		DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+		config.setPort(port);
+		db = DB.newEmbeddedDB(config.build());
+		db.start();
+		db.createDB("epaddb");
+		connection = DriverManager.getConnection("jdbc:mysql://localhost:" + port
+				+ "/epaddb?rewriteBatchedStatements=true", "root", "");
+		runScript("sql/epaddb-base.sql");
+		for (int version = 1400; version < 10000; version++)
+		{
+			String name = "sql/epaddb" + new DecimalFormat("#.###").format(version / 1000.0) + ".sql";
+			if (QueryPlanIT.class.getClassLoader().getResource(name) != null)
+				runScript(name);
+		}
+		AIMDatabaseOperations adb = new AIMDatabaseOperations(connection, "", "", "", "", "");
+		adb.createAnnotationsTable();
+		adb.alterAnnotationsTable();
+		seed();
+	}
+
+	@AfterClass
+	public static void dropDatabase() throws Exception
+	{
+		if (connection != null)
+			connection.close();
+		if (db != null)
+			db.stop();
+	}
+
+	@Test
+	public void hotQueriesUseIndexes() throws SQLException
+	{
+		List<String> badPlans = new ArrayList<String>();
+		String path = "/resources/dicom/" + (ROWS / 2) + ".png";
+		String image = "1.2.3." + (ROWS / 2);
+		String series = "1.2.3.4." + (SERIES / 2);
+		String username = "user" + 7;
+		Timestamp lastWeek = new Timestamp(System.currentTimeMillis() - 7L * 24 * 3600 * 1000);
+		String annotationColumns = "SELECT UserLoginName, ProjectUID, PatientID, StudyUID, SeriesUID, ImageUID, frameID, AnnotationUID, DSOSeriesUID, DSOFRAMENO, XML, NAME, AIMCOLOR, TEMPLATECODE, is_dicomsr FROM annotations WHERE ";
+
+		explain(badPlans, EpadDatabaseCommands.SELECT_EPAD_FILES_FOR_EXACT_PATH, path);
+		explain(badPlans, EpadDatabaseCommands.UPDATE_EPAD_FILES_FOR_EXACT_PATH, 1, 10, "", path);
+		explain(badPlans, EpadDatabaseCommands.SELECT_ALL_EPAD_FILE_PATHS_WITH_STATUS, 1);
+		explain(badPlans, EpadDatabaseCommands.SELECT_EPAD_FILE_PATH_FOR_IMAGE, image);
+		explain(badPlans, EpadDatabaseCommands.SELECT_EPAD_IMAGE_UIDS_FOR_SERIES, series);
+		explain(badPlans, EpadDatabaseCommands.SELECT_PIXEL_VALUES_FOR_PATH, path);
+		explain(badPlans, EpadDatabaseCommands.SELECT_PIXEL_VALUES_FOR_IMAGE, image);
+		explain(badPlans, EpadDatabaseCommands.SELECT_EVENTS_FOR_SESSIONID, username);
+		explain(badPlans, EpadDatabaseCommands.DELETE_EVENTS_FOR_SESSIONID, username, ROWS);
+		explain(badPlans, EpadDatabaseCommands.SELECT_EVENTS_FOR_AIMID, "aim" + (ROWS / 2));
+		explain(badPlans, EpadDatabaseCommands.DELETE_OLD_EVENTS, lastWeek);
+		explain(badPlans, EpadDatabaseCommands.SELECT_EPAD_SERIES_BY_ID, series);
+		explain(badPlans, EpadDatabaseCommands.UPDATE_EPAD_SERIES_STATUS, 1, series);
+		explain(badPlans, "SELECT * FROM project_subject WHERE subject_id = ?", SUBJECTS / 2);
+		explain(badPlans, "SELECT * FROM project_subject_study WHERE proj_subj_id = ?", SUBJECTS / 2);
+		explain(badPlans, "SELECT * FROM project_subject_study WHERE study_id = ?", SUBJECTS / 2);
+		explain(badPlans, "SELECT * FROM study WHERE subject_id = ?", SUBJECTS / 2);
+		explain(badPlans, annotationColumns + "SeriesUID = ?", series);
+		explain(badPlans, annotationColumns + "StudyUID = ?", "study" + (SUBJECTS / 2));
+		explain(badPlans, annotationColumns + "DSOSeriesUID = ?", series);
+		explain(badPlans, annotationColumns + "ProjectUID = ? AND PatientID = ?", "project2", "patient2");
+		explain(badPlans, annotationColumns + "AnnotationUID = ?", "aim" + (ROWS / 2));
+		explain(badPlans, "SELECT count(*) FROM annotations WHERE TEMPLATECODE = ?", "T1");
+
+		// Keyset pages, built as DefaultEpadProjectOperations and DefaultEpadDatabaseOperations build them
+		Criteria subjects = new Criteria().inSelect("id", "subject_id", "project_subject", Criteria.where("project_id", 2));
+		keysetPage("subjects", "Patient " + (SUBJECTS / 2), "patient" + (SUBJECTS / 2)).apply(subjects, "name", "subjectuid");
+		explainPage(badPlans, "SELECT * FROM subject a " + subjects.toSQL() + " LIMIT ?,?", subjects, 0, 50);
+		Criteria aims = Criteria.where("ProjectUID", "project2");
+		keysetPage("aims", "patient" + (SUBJECTS / 2), "aim" + (ROWS / 2)).apply(aims, "PatientID", "AnnotationUID");
+		explainPage(badPlans, annotationColumns.replace(" WHERE ", " ") + aims.toSQL() + " LIMIT ?", aims, 50);
+
+		Assert.assertTrue("Full table scans or filesorts: " + badPlans, badPlans.isEmpty());
+	}
+
+	private static KeysetPage keysetPage(String scope, Object... last)
+	{
+		KeysetPage first = new KeysetPage(scope, null, last.length, 50);
+		first.setLast(last);
+		return new KeysetPage(scope, first.getNextToken(), last.length, 50);
+	}
+
+	private static void explainPage(List<String> badPlans, String sql, Criteria criteria, Object... limit) throws SQLException
+	{
+		List<Object> parameters = new ArrayList<Object>(criteria.getValues());
+		parameters.addAll(Arrays.asList(limit));
+		explain(badPlans, sql, parameters.toArray());
+	}
+
+	private static void explain(List<String> badPlans, String sql, Object... parameters) throws SQLException
+	{
+		boolean ordered = sql.toUpperCase().contains(" ORDER BY ");
+		PreparedStatement ps = connection.prepareStatement("EXPLAIN " + sql);
+		try {
+			for (int i = 0; i < parameters.length; i++)
+				ps.setObject(i + 1, parameters[i]);
+			ResultSet rs = ps.executeQuery();
+			while (rs.next())
+			{
+				String table = rs.getString("table");
+				String extra = rs.getString("Extra");
+				if (table != null && !table.startsWith("<") && "ALL".equals(rs.getString("type")))
+					badPlans.add(table + " (" + rs.getString("rows") + " rows): " + sql);
+				else if (ordered && extra != null && extra.contains("Using filesort"))
+					badPlans.add(table + " (filesort of " + rs.getString("rows") + " rows): " + sql);
+			}
+			rs.close();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void seed() throws SQLException
+	{
+		connection.setAutoCommit(false);
+		final long now = System.currentTimeMillis();
+		insert("INSERT INTO project(id,name,projectid,type) VALUES (?,?,?,?)", PROJECTS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 2, "Project " + i, "project" + i, "Private" }; }
+		});
+		insert("INSERT INTO subject(id,subjectuid,name) VALUES (?,?,?)", SUBJECTS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, "patient" + i, "Patient " + i }; }
+		});
+		insert("INSERT INTO study(id,studyuid,subject_id) VALUES (?,?,?)", SUBJECTS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, "study" + i, i + 1 }; }
+		});
+		insert("INSERT INTO project_subject(id,project_id,subject_id) VALUES (?,?,?)", SUBJECTS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, i % PROJECTS + 2, i + 1 }; }
+		});
+		insert("INSERT INTO project_subject_study(proj_subj_id,study_id) VALUES (?,?)", SUBJECTS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, i + 1 }; }
+		});
+		insert("INSERT INTO pacsdb.series(pk,series_iuid) VALUES (?,?)", SERIES, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, "1.2.3.4." + i }; }
+		});
+		insert("INSERT INTO pacsdb.instance(pk,series_fk,sop_iuid) VALUES (?,?,?)", ROWS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { i + 1, i % SERIES + 1, "1.2.3." + i }; }
+		});
+		insert(EpadDatabaseCommands.INSERT_INTO_EPAD_FILES, ROWS, new Row() {
+			@Override
+			public Object[] values(int i) {
+				return new Object[] { i + 1, 1, "/resources/dicom/" + i + ".png", 1000, i % 100 == 0 ? 1 : 4, "", null };
+			}
+		});
+		insert(EpadDatabaseCommands.INSERT_PIXEL_VALUES_FOR_EXACT_PATH, ROWS, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { "/resources/dicom/" + i + ".png", 0, "0", "1.2.3." + i }; }
+		});
+		insert(EpadDatabaseCommands.INSERT_INTO_EPAD_SERIES_STATUS, SERIES, new Row() {
+			@Override
+			public Object[] values(int i) { return new Object[] { "1.2.3.4." + i, 4 }; }
+		});
+		insert("INSERT INTO events(username,event_status,aim_uid,created_time) VALUES (?,?,?,?)", ROWS, new Row() {
+			@Override
+			public Object[] values(int i) {
+				return new Object[] { "user" + i % 500, "Completed", "aim" + i, new Timestamp(now - (ROWS - i) * 1000L) };
+			}
+		});
+		insert("INSERT INTO annotations(UserLoginName,PatientID,SeriesUID,DSOSeriesUID,StudyUID,ImageUID,FrameID,AnnotationUID,ProjectUID,TEMPLATECODE) VALUES (?,?,?,?,?,?,?,?,?,?)",
+				ROWS, new Row() {
+			@Override
+			public Object[] values(int i) {
+				return new Object[] { "user" + i % 500, "patient" + i % SUBJECTS, "1.2.3.4." + i % SERIES,
+						i % 10 == 0 ? "1.2.3.4." + (i + 1) % SERIES : null, "study" + i % SUBJECTS, "1.2.3." + i, 0,
+						"aim" + i, "project" + i % PROJECTS, "T" + i % 20 };
+			}
+		});
+		connection.setAutoCommit(true);
+		Statement s = connection.createStatement();
+		try {
+			s.execute("ANALYZE TABLE project, subject, study, project_subject, project_subject_study, epad_files, pixel_values, "
+					+ "series_status, events, annotations, pacsdb.series, pacsdb.instance");
+		} finally {
+			s.close();
+		}
+	}
+
+	private interface Row
+	{
+		Object[] values(int i);
+	}
+
+	private static void insert(String sql, int count, Row row) throws SQLException
+	{
+		PreparedStatement ps = connection.prepareStatement(sql);
+		try {
+			for (int i = 0; i < count; i++)
+			{
+				Object[] values = row.values(i);
+				for (int j = 0; j < values.length; j++)
+					ps.setObject(j + 1, values[j]);
+				ps.addBatch();
+				if ((i + 1) % BATCH_SIZE == 0)
+					ps.executeBatch();
+			}
+			ps.executeBatch();
+			connection.commit();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static void runScript(String name) throws Exception
+	{
+		InputStream is = QueryPlanIT.class.getClassLoader().getResourceAsStream(name);
+		BufferedReader br = new BufferedReader(new InputStreamReader(is));
+		StringBuilder script = new StringBuilder();
+		String line;
+		while ((line = br.readLine()) != null)
+		{
+			if (line.startsWith("--") || line.startsWith("#")) continue;
+			script.append("\n").append(line);
+		}
+		br.close();
+		Statement s = connection.createStatement();
+		try {
+			for (String sql : script.toString().split(";"))
+			{
+				if (sql.trim().length() == 0) continue;
+				try {
+					s.execute(sql.trim());
+				} catch (SQLException x) {
+					throw new SQLException(name + ": " + x.getMessage() + " in " + sql.trim(), x);
+				}
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	private static int freePort() throws Exception
+	{
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
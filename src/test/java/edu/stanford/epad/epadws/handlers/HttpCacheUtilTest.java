@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpCacheUtilTest {
+
+	@Test
+	public void singleRangeTest() {
+		Assert.assertArrayEquals(new long[] { 0, 99 }, HttpCacheUtil.parseRange("bytes=0-99", 1000));
+		Assert.assertArrayEquals(new long[] { 500, 999 }, HttpCacheUtil.parseRange("bytes=500-", 1000));
+		Assert.assertArrayEquals(new long[] { 900, 999 }, HttpCacheUtil.parseRange("bytes=-100", 1000));
+		Assert.assertArrayEquals(new long[] { 0, 999 }, HttpCacheUtil.parseRange("bytes=-5000", 1000));
+		Assert.assertArrayEquals(new long[] { 10, 999 }, HttpCacheUtil.parseRange("bytes=10-5000", 1000));
+	}
+
+	@Test
+	public void ignoredRangeTest() {
+		Assert.assertEquals(0, HttpCacheUtil.parseRange("bytes=0-9,20-29", 1000).length);
+		Assert.assertEquals(0, HttpCacheUtil.parseRange("items=0-9", 1000).length);
+		Assert.assertEquals(0, HttpCacheUtil.parseRange("bytes=9-0", 1000).length);
+		Assert.assertEquals(0, HttpCacheUtil.parseRange("bytes=a-b", 1000).length);
+	}
+
+	@Test
+	public void unsatisfiableRangeTest() {
+		Assert.assertNull(HttpCacheUtil.parseRange("bytes=1000-", 1000));
+		Assert.assertNull(HttpCacheUtil.parseRange("bytes=-0", 1000));
+		Assert.assertNull(HttpCacheUtil.parseRange("bytes=-100", 0));
+		Assert.assertNull(HttpCacheUtil.parseRange("bytes=0-", 0));
+	}
+
+	@Test
+	public void notModifiedTest() throws IOException {
+		File file = createFile("0123456789");
+		String etag = HttpCacheUtil.getETag("1.2.3", file);
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("If-None-Match", "\"other\", " + etag);
+		MockResponse response = new MockResponse();
+		int status = HttpCacheUtil.sendFile(createRequest(headers), response.proxy, file, etag,
+				HttpCacheUtil.CACHE_REVALIDATE, null);
+		Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, status);
+		Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		Assert.assertEquals(etag, response.headers.get("ETag"));
+		Assert.assertEquals(0, response.body.size());
+
+		headers.put("If-None-Match", "\"other\"");
+		response = new MockResponse();
+		status = HttpCacheUtil.sendFile(createRequest(headers), response.proxy, file, etag,
+				HttpCacheUtil.CACHE_REVALIDATE, null);
+		Assert.assertEquals(HttpServletResponse.SC_OK, status);
+		Assert.assertEquals("0123456789", response.body.toString("US-ASCII"));
+	}
+
+	@Test
+	public void ifRangeTest() throws IOException {
+		File file = createFile("0123456789");
+		String etag = HttpCacheUtil.getETag("1.2.3", file);
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Range", "bytes=2-4");
+		headers.put("If-Range", etag);
+		MockResponse response = new MockResponse();
+		int status = HttpCacheUtil.sendFile(createRequest(headers), response.proxy, file, etag, null, null);
+		Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, status);
+		Assert.assertEquals("bytes 2-4/10", response.headers.get("Content-Range"));
+		Assert.assertEquals("234", response.body.toString("US-ASCII"));
+
+		// The client's copy is out of date, so it gets the whole file
+		headers.put("If-Range", "\"1.2.3-old\"");
+		response = new MockResponse();
+		status = HttpCacheUtil.sendFile(createRequest(headers), response.proxy, file, etag, null, null);
+		Assert.assertEquals(HttpServletResponse.SC_OK, status);
+		Assert.assertNull(response.headers.get("Content-Range"));
+		Assert.assertEquals("0123456789", response.body.toString("US-ASCII"));
+	}
+
+	@Test
+	public void emptyFileRangeTest() throws IOException {
+		File file = createFile("");
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("Range", "bytes=-100");
+		MockResponse response = new MockResponse();
+		int status = HttpCacheUtil.sendFile(createRequest(headers), response.proxy, file, null, null, null);
+		Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, status);
+		Assert.assertEquals("bytes */0", response.headers.get("Content-Range"));
+	}
+
+	@Test
+	public void contentETagTest() throws IOException {
+		File file = createFile("rendered");
+		String etag = HttpCacheUtil.getContentETag("1.2.3", file);
+		Assert.assertTrue(file.setLastModified(file.lastModified() - 10000));
+		Assert.assertEquals(etag, HttpCacheUtil.getContentETag("1.2.3", file));
+		write(file, "rerender");
+		Assert.assertFalse(etag.equals(HttpCacheUtil.getContentETag("1.2.3", file)));
+	}
+
+	private static File createFile(String content) throws IOException {
+		File file = File.createTempFile("httpcache", ".png");
+		file.deleteOnExit();
+		write(file, content);
+		return file;
+	}
+
+	private static void write(File file, String content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static HttpServletRequest createRequest(final Map<String, String> headers) {
+		return (HttpServletRequest)Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getMethod"))
+							return "GET";
+						if (name.equals("getHeader"))
+							return headers.get(args[0]);
+						if (name.equals("getDateHeader"))
+							return -1L;
+						if (name.equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (name.equals("equals"))
+							return proxy == args[0];
+						return null;
+					}
+				});
+	}
+
+	private static class MockResponse implements InvocationHandler {
+		final Map<String, String> headers = new HashMap<String, String>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int status = HttpServletResponse.SC_OK;
+		final HttpServletResponse proxy = (HttpServletResponse)Proxy.newProxyInstance(
+				HttpServletResponse.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, this);
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setHeader"))
+				headers.put((String)args[0], (String)args[1]);
+			else if (name.equals("setDateHeader"))
+				headers.put((String)args[0], String.valueOf(args[1]));
+			else if (name.equals("setStatus"))
+				status = (Integer)args[0];
+			else if (name.equals("getOutputStream"))
+				return new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+						body.write(b);
+					}
+				};
+			else if (name.equals("hashCode"))
+				return System.identityHashCode(proxy);
+			else if (name.equals("equals"))
+				return proxy == args[0];
+			return null;
+		}
+	}
+}
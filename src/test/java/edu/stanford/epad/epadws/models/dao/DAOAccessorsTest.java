@@ -0,0 +1,531 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The Board of Trustees of the Leland Stanford Junior University
+ * BY CLICKING ON "ACCEPT," DOWNLOADING, OR OTHERWISE USING EPAD, YOU AGREE TO THE FOLLOWING TERMS AND CONDITIONS:
+ * STANFORD ACADEMIC SOFTWARE SOURCE CODE LICENSE FOR
+ * "ePAD Annotation Platform for Radiology Images"
+ *
+ * This Agreement covers contributions to and downloads from the ePAD project ("ePAD") maintained by The Board of Trustees 
+ * of the Leland Stanford Junior University ("Stanford"). 
+ *
+ * *	Part A applies to downloads of ePAD source code and/or data from ePAD. 
+ *
+ * *	Part B applies to contributions of software and/or data to ePAD (including making revisions of or additions to code 
+ * and/or data already in ePAD), which may include source or object code. 
+ *
+ * Your download, copying, modifying, displaying, distributing or use of any ePAD software and/or data from ePAD 
+ * (collectively, the "Software") is subject to Part A. Your contribution of software and/or data to ePAD (including any 
+ * that occurred prior to the first publication of this Agreement) is a "Contribution" subject to Part B. Both Parts A and 
+ * B shall be governed by and construed in accordance with the laws of the State of California without regard to principles 
+ * of conflicts of law. Any legal action involving this Agreement or the Research Program will be adjudicated in the State 
+ * of California. This Agreement shall supersede and replace any license terms that you may have agreed to previously with 
+ * respect to ePAD.
+ *
+ * PART A. DOWNLOADING AGREEMENT - LICENSE FROM STANFORD WITH RIGHT TO SUBLICENSE ("SOFTWARE LICENSE").
+ * 1. As used in this Software License, "you" means the individual downloading and/or using, reproducing, modifying, 
+ * displaying and/or distributing Software and the institution or entity which employs or is otherwise affiliated with you. 
+ * Stanford  hereby grants you, with right to sublicense, with respect to Stanford's rights in the Software, a 
+ * royalty-free, non-exclusive license to use, reproduce, make derivative works of, display and distribute the Software, 
+ * provided that: (a) you adhere to all of the terms and conditions of this Software License; (b) in connection with any 
+ * copy, distribution of, or sublicense of all or any portion of the Software, the terms and conditions in this Software 
+ * License shall appear in and shall apply to such copy and such sublicense, including without limitation all source and 
+ * executable forms and on any user documentation, prefaced with the following words: "All or portions of this licensed 
+ * product  have been obtained under license from The Board of Trustees of the Leland Stanford Junior University. and are 
+ * subject to the following terms and conditions" AND any user interface to the Software or the "About" information display 
+ * in the Software will display the following: "Powered by ePAD http://epad.stanford.edu;" (c) you preserve and maintain 
+ * all applicable attributions, copyright notices and licenses included in or applicable to the Software; (d) modified 
+ * versions of the Software must be clearly identified and marked as such, and must not be misrepresented as being the 
+ * original Software; and (e) you consider making, but are under no obligation to make, the source code of any of your 
+ * modifications to the Software freely available to others on an open source basis.
+ *
+ * 2. The license granted in this Software License includes without limitation the right to (i) incorporate the Software 
+ * into your proprietary programs (subject to any restrictions applicable to such programs), (ii) add your own copyright 
+ * statement to your modifications of the Software, and (iii) provide additional or different license terms and conditions 
+ * in your sublicenses of modifications of the Software; provided that in each case your use, reproduction or distribution 
+ * of such modifications otherwise complies with the conditions stated in this Software License.
+ * 3. This Software License does not grant any rights with respect to third party software, except those rights that 
+ * Stanford has been authorized by a third party to grant to you, and accordingly you are solely responsible for (i) 
+ * obtaining any permissions from third parties that you need to use, reproduce, make derivative works of, display and 
+ * distribute the Software, and (ii) informing your sublicensees, including without limitation your end-users, of their 
+ * obligations to secure any such required permissions.
+ * 4. You agree that you will use the Software in compliance with all applicable laws, policies and regulations including, 
+ * but not limited to, those applicable to Personal Health Information ("PHI") and subject to the Institutional Review 
+ * Board requirements of the your institution, if applicable. Licensee acknowledges and agrees that the Software is not 
+ * FDA-approved, is intended only for research, and may not be used for clinical treatment purposes. Any commercialization 
+ * of the Software is at the sole risk of you and the party or parties engaged in such commercialization. You further agree 
+ * to use, reproduce, make derivative works of, display and distribute the Software in compliance with all applicable 
+ * governmental laws, regulations and orders, including without limitation those relating to export and import control.
+ * 5. You or your institution, as applicable, will indemnify, hold harmless, and defend Stanford against any third party 
+ * claim of any kind made against Stanford arising out of or related to the exercise of any rights granted under this 
+ * Agreement, the provision of Software, or the breach of this Agreement. Stanford provides the Software AS IS and WITH ALL 
+ * FAULTS.  Stanford makes no representations and extends no warranties of any kind, either express or implied.  Among 
+ * other things, Stanford disclaims any express or implied warranty in the Software:
+ * (a)  of merchantability, of fitness for a particular purpose,
+ * (b)  of non-infringement or 
+ * (c)  arising out of any course of dealing.
+ *
+ * Title and copyright to the Program and any associated documentation shall at all times remain with Stanford, and 
+ * Licensee agrees to preserve same. Stanford reserves the right to license the Program at any time for a fee.
+ * 6. None of the names, logos or trademarks of Stanford or any of Stanford's affiliates or any of the Contributors, or any 
+ * funding agency, may be used to endorse or promote products produced in whole or in part by operation of the Software or 
+ * derived from or based on the Software without specific prior written permission from the applicable party.
+ * 7. Any use, reproduction or distribution of the Software which is not in accordance with this Software License shall 
+ * automatically revoke all rights granted to you under this Software License and render Paragraphs 1 and 2 of this 
+ * Software License null and void.
+ * 8. This Software License does not grant any rights in or to any intellectual property owned by Stanford or any 
+ * Contributor except those rights expressly granted hereunder.
+ *
+ * PART B. CONTRIBUTION AGREEMENT - LICENSE TO STANFORD WITH RIGHT TO SUBLICENSE ("CONTRIBUTION AGREEMENT").
+ * 1. As used in this Contribution Agreement, "you" means an individual providing a Contribution to ePAD and the 
+ * institution or entity which employs or is otherwise affiliated with you.
+ * 2. This Contribution Agreement applies to all Contributions made to ePAD at any time. By making a Contribution you 
+ * represent that: (i) you are legally authorized and entitled by ownership or license to make such Contribution and to 
+ * grant all licenses granted in this Contribution Agreement with respect to such Contribution; (ii) if your Contribution 
+ * includes any patient data, all such data is de-identified in accordance with U.S. confidentiality and security laws and 
+ * requirements, including but not limited to the Health Insurance Portability and Accountability Act (HIPAA) and its 
+ * regulations, and your disclosure of such data for the purposes contemplated by this Agreement is properly authorized and 
+ * in compliance with all applicable laws and regulations; and (iii) you have preserved in the Contribution all applicable 
+ * attributions, copyright notices and licenses for any third party software or data included in the Contribution.
+ * 3. Except for the licenses you grant in this Agreement, you reserve all right, title and interest in your Contribution.
+ * 4. You hereby grant to Stanford, with the right to sublicense, a perpetual, worldwide, non-exclusive, no charge, 
+ * royalty-free, irrevocable license to use, reproduce, make derivative works of, display and distribute the Contribution. 
+ * If your Contribution is protected by patent, you hereby grant to Stanford, with the right to sublicense, a perpetual, 
+ * worldwide, non-exclusive, no-charge, royalty-free, irrevocable license under your interest in patent rights embodied in 
+ * the Contribution, to make, have made, use, sell and otherwise transfer your Contribution, alone or in combination with 
+ * ePAD or otherwise.
+ * 5. You acknowledge and agree that Stanford ham may incorporate your Contribution into ePAD and may make your 
+ * Contribution as incorporated available to members of the public on an open source basis under terms substantially in 
+ * accordance with the Software License set forth in Part A of this Agreement. You further acknowledge and agree that 
+ * Stanford shall have no liability arising in connection with claims resulting from your breach of any of the terms of 
+ * this Agreement.
+ * 6. YOU WARRANT THAT TO THE BEST OF YOUR KNOWLEDGE YOUR CONTRIBUTION DOES NOT CONTAIN ANY CODE OBTAINED BY YOU UNDER AN 
+ * OPEN SOURCE LICENSE THAT REQUIRES OR PRESCRIBES DISTRBUTION OF DERIVATIVE WORKS UNDER SUCH OPEN SOURCE LICENSE. (By way 
+ * of non-limiting example, you will not contribute any code obtained by you under the GNU General Public License or other 
+ * so-called "reciprocal" license.)
+ *******************************************************************************/
+package edu.stanford.epad.epadws.models.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the cached DAOAccessors map objects exactly like the reflective getSQLValues/setSQLValues of
+ * DefaultEpadDatabaseOperations they replaced (copied below as legacyRead and legacyBind).
+ */
+public class DAOAccessorsTest
+{
+	private static final String[] MODEL_CLASSES = { "DisabledTemplate", "EpadFile", "EpadStatistics",
+			"EpadStatisticsMonthly", "EpadStatisticsTemplate", "EventLog", "NonDicomSeries", "Plugin", "Project",
+			"ProjectToFile", "ProjectToPlugin", "ProjectToPluginParameter", "ProjectToSubject", "ProjectToSubjectToStudy",
+			"ProjectToSubjectToStudyToSeriesToUserStatus", "ProjectToSubjectToUser", "ProjectToTemplate", "ProjectToUser",
+			"RemotePACQuery", "ReviewerToReviewee", "Study", "Subject", "Template", "User", "WorkList",
+			"WorkListToStudy", "WorkListToSubject" };
+
+	public static class AllTypes
+	{
+		static final String[][] DBCOLUMNS = { { "id", "long", "id", "Id" }, { "name", "String", "name", "varchar" },
+				{ "count", "Integer", "count", "integer" }, { "number", "int", "number", "integer" },
+				{ "size", "Long", "size", "bigint" }, { "enabled", "Boolean", "enabled", "bit" },
+				{ "active", "boolean", "active", "bit" }, { "stamp", "Timestamp", "stamp", "timestamp" },
+				{ "created", "Date", "created", "timestamp" }, { "ratio", "Double", "ratio", "double" },
+				{ "scale", "double", "scale", "double" } };
+
+		private long id;
+		private String name;
+		private Integer count;
+		private int number;
+		private Long size;
+		private Boolean enabled;
+		private boolean active;
+		private Timestamp stamp;
+		private Date created;
+		private Double ratio;
+		private double scale;
+
+		public long getId() { return id; }
+		public void setId(long id) { this.id = id; }
+		public String getName() { return name; }
+		public void setName(String name) { this.name = name; }
+		public Integer getCount() { return count; }
+		public void setCount(Integer count) { this.count = count; }
+		public int getNumber() { return number; }
+		public void setNumber(int number) { this.number = number; }
+		public Long getSize() { return size; }
+		public void setSize(Long size) { this.size = size; }
+		public Boolean isEnabled() { return enabled; }
+		public void setEnabled(Boolean enabled) { this.enabled = enabled; }
+		public boolean isActive() { return active; }
+		public void setActive(boolean active) { this.active = active; }
+		public Timestamp getStamp() { return stamp; }
+		public void setStamp(Timestamp stamp) { this.stamp = stamp; }
+		public Date getCreated() { return created; }
+		public void setCreated(Date created) { this.created = created; }
+		public Double getRatio() { return ratio; }
+		public void setRatio(Double ratio) { this.ratio = ratio; }
+		public double getScale() { return scale; }
+		public void setScale(double scale) { this.scale = scale; }
+	}
+
+	@Test
+	public void readMatchesLegacyTest() throws Exception
+	{
+		compareRead(AllTypes.class, AllTypes.DBCOLUMNS, false);
+		compareRead(AllTypes.class, AllTypes.DBCOLUMNS, true);
+	}
+
+	@Test
+	public void bindMatchesLegacyTest() throws Exception
+	{
+		compareBind(AllTypes.class, AllTypes.DBCOLUMNS, false);
+		compareBind(AllTypes.class, AllTypes.DBCOLUMNS, true);
+	}
+
+	@Test
+	public void modelsMatchLegacyTest() throws Exception
+	{
+		for (String name : MODEL_CLASSES) {
+			Class<?> dbClass = Class.forName("edu.stanford.epad.epadws.models." + name);
+			String[][] columns = (String[][])dbClass.getField("DBCOLUMNS").get(null);
+			compareRead(dbClass, columns, false);
+			compareRead(dbClass, columns, true);
+			compareBind(dbClass, columns, false);
+		}
+	}
+
+	@Test
+	public void errorKeepsCauseTest() throws Exception
+	{
+		String[][] columns = { { "id", "long", "id", "Id" }, { "missing", "String", "missing", "varchar" } };
+		try {
+			DAOAccessors.forClass(AllTypes.class, columns).read(createResultSet(columns, false), new AllTypes());
+			Assert.fail("No setter for missing");
+		} catch (SQLException e) {
+			Assert.assertTrue(e.getCause() instanceof NoSuchMethodException);
+		}
+	}
+
+	private static void compareRead(Class<?> dbClass, String[][] columns, boolean nulls) throws Exception
+	{
+		Object legacy = dbClass.newInstance();
+		Object cached = dbClass.newInstance();
+		try {
+			legacyRead(columns, createResultSet(columns, nulls), legacy);
+		} catch (SQLException e) { // e.g. a NULL for a setter that unboxes; the accessors must fail the same way
+			try {
+				DAOAccessors.forClass(dbClass, columns).read(createResultSet(columns, nulls), cached);
+				Assert.fail(dbClass.getSimpleName() + " read although the legacy mapping failed: " + e.getMessage());
+			} catch (SQLException expected) {
+			}
+			return;
+		}
+		DAOAccessors.forClass(dbClass, columns).read(createResultSet(columns, nulls), cached);
+		for (Method method : dbClass.getMethods()) {
+			if (method.getParameterTypes().length == 0 && method.getDeclaringClass() != Object.class
+					&& (method.getName().startsWith("get") || method.getName().startsWith("is")))
+				Assert.assertEquals(dbClass.getSimpleName() + "." + method.getName() + (nulls ? " (nulls)" : ""),
+						invoke(method, legacy), invoke(method, cached));
+		}
+	}
+
+	private static void compareBind(Class<?> dbClass, String[][] columns, boolean nulls) throws Exception
+	{
+		Object data = dbClass.newInstance();
+		try {
+			legacyRead(columns, createResultSet(columns, nulls), data);
+		} catch (SQLException e) { // Columns the class cannot read keep their defaults
+		}
+		List<String> legacy = new ArrayList<String>();
+		legacyBind(columns, createStatement(legacy), data);
+		List<String> cached = new ArrayList<String>();
+		DAOAccessors.forClass(dbClass, columns).bind(createStatement(cached), data);
+		Assert.assertEquals(dbClass.getSimpleName() + (nulls ? " (nulls)" : ""), legacy, cached);
+	}
+
+	private static Object invoke(Method method, Object data)
+	{
+		try {
+			return method.invoke(data);
+		} catch (Exception e) {
+			return e.getClass().getName();
+		}
+	}
+
+	/**
+	 * A single-row ResultSet with a value for every column, or SQL NULL in every column if nulls is set.
+	 */
+	private static ResultSet createResultSet(String[][] columns, final boolean nulls)
+	{
+		final Map<String, Object> values = new HashMap<String, Object>();
+		Timestamp stamp = new Timestamp(1400000000000L);
+		for (int i = 0; i < columns.length; i++) {
+			String type = columns[i][1].toLowerCase();
+			Object value;
+			if (type.equals("string"))
+				value = columns[i][0] + "-value";
+			else if (type.equals("integer") || type.equals("int") || type.equals("long"))
+				value = Long.valueOf(i + 1);
+			else if (type.equals("boolean"))
+				value = Boolean.valueOf(i % 2 == 0);
+			else if (type.equals("double"))
+				value = Double.valueOf(i + 0.5);
+			else
+				value = stamp;
+			values.put(columns[i][2].toLowerCase(), value);
+		}
+		final List<String> labels = new ArrayList<String>();
+		for (String[] column : columns)
+			labels.add(column[2].toLowerCase());
+		InvocationHandler handler = new InvocationHandler() {
+			private boolean lastNull = false;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+			{
+				String name = method.getName();
+				if (name.equals("wasNull"))
+					return lastNull;
+				if (name.equals("hashCode"))
+					return System.identityHashCode(proxy);
+				if (name.equals("equals"))
+					return proxy == args[0];
+				if (name.equals("toString"))
+					return "DAOAccessorsTest.ResultSet";
+				String label = args[0] instanceof String ? ((String)args[0]).toLowerCase() : labels.get((Integer)args[0] - 1);
+				if (name.equals("findColumn"))
+					return labels.indexOf(label) + 1;
+				Object value = nulls ? null : values.get(label);
+				lastNull = value == null;
+				Class<?> type = method.getReturnType();
+				if (type == int.class)
+					return value == null ? 0 : ((Number)value).intValue();
+				if (type == long.class)
+					return value == null ? 0L : ((Number)value).longValue();
+				if (type == double.class)
+					return value == null ? 0.0 : ((Number)value).doubleValue();
+				if (type == boolean.class)
+					return value != null && (Boolean)value;
+				if (type == String.class)
+					return value == null ? null : value.toString();
+				return value;
+			}
+		};
+		return (ResultSet)Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				handler);
+	}
+
+	/**
+	 * A statement that records each parameter it is given.
+	 */
+	private static PreparedStatement createStatement(final List<String> parameters)
+	{
+		return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						if (method.getName().equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+						if (method.getName().startsWith("set"))
+							parameters.add(method.getName() + Arrays.asList(args));
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * DefaultEpadDatabaseOperations.getSQLValues before DAOAccessors.
+	 */
+	private static void legacyRead(String[][] columns, ResultSet rs, Object data) throws SQLException
+	{
+		int i = 0;
+		try
+		{
+			for (i = 0; i < columns.length; i++)
+			{
+				String methodName = "set" + columns[i][0].substring(0,1).toUpperCase() + columns[i][0].substring(1);
+				if (columns[i][1].equals("String"))
+				{
+					String value = rs.getString(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {String.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Integer"))
+				{
+					Integer value = rs.getInt(columns[i][2]);
+					if (rs.getObject(columns[i][2]) == null) value = null;
+					Method method = data.getClass().getMethod(methodName, new Class[] {Integer.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("int"))
+				{
+					Integer value = rs.getInt(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {int.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Long"))
+				{
+					Long value = rs.getLong(columns[i][2]);
+					if (rs.getObject(columns[i][2]) == null) value = null;
+					Method method = data.getClass().getMethod(methodName, new Class[] {Long.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("long"))
+				{
+					Long value = rs.getLong(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {long.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Boolean"))
+				{
+					Boolean value = rs.getBoolean(columns[i][2]);
+					if (rs.getObject(columns[i][2]) == null) value = null;
+					Method method = data.getClass().getMethod(methodName, new Class[] {Boolean.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("boolean"))
+				{
+					Boolean value = rs.getBoolean(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {boolean.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Timestamp"))
+				{
+					Timestamp value = rs.getTimestamp(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {Timestamp.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Date"))
+				{
+					Timestamp stamp = rs.getTimestamp((columns[i][2]));
+					Date value = null;
+					if (stamp != null)
+						value = new Date(stamp.getTime());
+					Method method = data.getClass().getMethod(methodName, new Class[] {Date.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("Double"))
+				{
+					Double value = rs.getDouble(columns[i][2]);
+					if (rs.getObject(columns[i][2]) == null) value = null;
+					Method method = data.getClass().getMethod(methodName, new Class[] {Double.class});
+					method.invoke(data, new Object[] {value});
+				}
+				else if (columns[i][1].equals("double"))
+				{
+					Double value = rs.getDouble(columns[i][2]);
+					Method method = data.getClass().getMethod(methodName, new Class[] {double.class});
+					method.invoke(data, new Object[] {value});
+				}
+			}
+		}
+		catch (Exception x)
+		{
+			throw new SQLException("Error setting values for " + columns[i][0] + ":" + x.getMessage(), x);
+		}
+	}
+
+	/**
+	 * DefaultEpadDatabaseOperations.setSQLValues before DAOAccessors.
+	 */
+	private static void legacyBind(String[][] columns, PreparedStatement ps, Object data) throws SQLException
+	{
+		int i = 1;
+		int j = 0;
+		try
+		{
+			for (j = 0; j < columns.length; j++)
+			{
+				if (columns[j][3].equalsIgnoreCase("Id"))
+				{
+					continue;
+				}
+				String methodName = "get" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
+				if (columns[j][1].equalsIgnoreCase("Boolean"))
+					methodName = "is" + columns[j][0].substring(0,1).toUpperCase() + columns[j][0].substring(1);
+				Method method = null;
+				try {
+					method = data.getClass().getMethod(methodName, (Class[])null);
+				} catch (Exception x) {
+					if (methodName.startsWith("is"))
+						method = data.getClass().getMethod("get" + methodName.substring(2), (Class[])null);
+				}
+				if (columns[j][1].equalsIgnoreCase("String"))
+				{
+					String value = (String) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setString(i, value);
+					else
+						ps.setNull(i, java.sql.Types.VARCHAR);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Integer") || columns[j][1].equalsIgnoreCase("int"))
+				{
+					Integer value = (Integer) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setInt(i, value);
+					else
+						ps.setNull(i, java.sql.Types.INTEGER);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Long") || columns[j][1].equalsIgnoreCase("long"))
+				{
+					Long value = (Long) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setLong(i, value);
+					else
+						ps.setNull(i, java.sql.Types.INTEGER);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Double"))
+				{
+					Double value = (Double) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setDouble(i, value);
+					else
+						ps.setNull(i, java.sql.Types.DOUBLE);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Boolean"))
+				{
+					Boolean value = (Boolean) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setBoolean(i, value);
+					else
+						ps.setInt(i, 0);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Timestamp"))
+				{
+					Timestamp value = (Timestamp) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
+					else
+						ps.setNull(i, java.sql.Types.TIMESTAMP);
+				}
+				else if (columns[j][1].equalsIgnoreCase("Date"))
+				{
+					Date value = (Date) method.invoke(data, (Object[])null);
+					if (value != null)
+						ps.setTimestamp(i, new java.sql.Timestamp(value.getTime()));
+					else
+						ps.setNull(i, java.sql.Types.DATE);
+				}
+				i++;
+			}
+		}
+		catch (Exception x)
+		{
+			throw new SQLException("Error setting values for " + columns[j][0] + " : " + x.getMessage(), x);
+		}
+	}
+}
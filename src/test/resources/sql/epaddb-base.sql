@@ -0,0 +1,47 @@
+-- Tables that exist before the first epaddb migration runs. They are created by the ePAD installer
+-- (and dcm4chee for pacsdb), so they are reproduced here for QueryPlanIT with the indexes they ship with.
+
+CREATE TABLE dbversion (version varchar(4)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+INSERT INTO dbversion VALUES ('1.3');
+
+CREATE TABLE epad_files (pk bigint NOT NULL AUTO_INCREMENT,
+instance_fk bigint,
+file_type integer,
+file_path varchar(255),
+file_size integer,
+file_status integer,
+err_msg varchar(3000),
+file_md5 varchar(64),
+created_time timestamp DEFAULT CURRENT_TIMESTAMP,
+PRIMARY KEY (pk)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE series_status (pk bigint NOT NULL AUTO_INCREMENT,
+series_iuid varchar(128),
+status integer,
+created_time timestamp DEFAULT CURRENT_TIMESTAMP,
+PRIMARY KEY (pk)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE events (pk bigint NOT NULL AUTO_INCREMENT,
+username varchar(128),
+event_status varchar(128),
+aim_uid varchar(128),
+aim_name varchar(128),
+patient_id varchar(128),
+patient_name varchar(128),
+template_id varchar(128),
+template_name varchar(128),
+plugin_name varchar(128),
+created_time timestamp DEFAULT CURRENT_TIMESTAMP,
+PRIMARY KEY (pk)) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE DATABASE IF NOT EXISTS pacsdb;
+CREATE TABLE pacsdb.series (pk bigint NOT NULL AUTO_INCREMENT,
+series_iuid varchar(250) NOT NULL,
+PRIMARY KEY (pk),
+UNIQUE KEY series_iuid (series_iuid)) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+CREATE TABLE pacsdb.instance (pk bigint NOT NULL AUTO_INCREMENT,
+series_fk bigint,
+sop_iuid varchar(250) NOT NULL,
+PRIMARY KEY (pk),
+UNIQUE KEY sop_iuid (sop_iuid),
+KEY series_fk (series_fk)) ENGINE=InnoDB DEFAULT CHARSET=latin1;